@@ -2920,85 +2920,120 @@ void InputDispatcher::setInputWindows(const Vector<sp<InputWindowHandle> >& inpu
         Vector<sp<InputWindowHandle> > oldWindowHandles = mWindowHandles;
         mWindowHandles = inputWindowHandles;
 
-        sp<InputWindowHandle> newFocusedWindowHandle;
-        bool foundHoveredWindow = false;
         for (size_t i = 0; i < mWindowHandles.size(); i++) {
             const sp<InputWindowHandle>& windowHandle = mWindowHandles.itemAt(i);
             if (!windowHandle->updateInfo() || windowHandle->getInputChannel() == NULL) {
                 mWindowHandles.removeAt(i--);
-                continue;
-            }
-            if (windowHandle->getInfo()->hasFocus) {
-                newFocusedWindowHandle = windowHandle;
-            }
-            if (windowHandle == mLastHoverWindowHandle) {
-                foundHoveredWindow = true;
             }
         }
 
-        if (!foundHoveredWindow) {
-            mLastHoverWindowHandle = NULL;
-        }
+        onWindowHandlesChangedLocked(oldWindowHandles);
+    } // release lock
 
-        if (mFocusedWindowHandle != newFocusedWindowHandle) {
-            if (mFocusedWindowHandle != NULL) {
+    // Wake up poll loop since it may need to make new input dispatching choices.
+    mLooper->wake();
+}
+
+void InputDispatcher::updateInputWindows(const Vector<sp<InputWindowHandle> >& changedHandles) {
 #if DEBUG_FOCUS
-                ALOGD("Focus left window: %s",
-                        mFocusedWindowHandle->getName().string());
+    ALOGD("updateInputWindows: %d changed", changedHandles.size());
 #endif
-                sp<InputChannel> focusedInputChannel = mFocusedWindowHandle->getInputChannel();
-                if (focusedInputChannel != NULL) {
-                    CancelationOptions options(CancelationOptions::CANCEL_NON_POINTER_EVENTS,
-                            "focus left window");
-                    synthesizeCancelationEventsForInputChannelLocked(
-                            focusedInputChannel, options);
+    { // acquire lock
+        AutoMutex _l(mLock);
+
+        Vector<sp<InputWindowHandle> > oldWindowHandles = mWindowHandles;
+        for (size_t i = 0; i < changedHandles.size(); i++) {
+            const sp<InputWindowHandle>& windowHandle = changedHandles.itemAt(i);
+            for (size_t j = 0; j < mWindowHandles.size(); j++) {
+                if (mWindowHandles.itemAt(j) == windowHandle) {
+                    if (!windowHandle->updateInfo() || windowHandle->getInputChannel() == NULL) {
+                        mWindowHandles.removeAt(j);
+                    }
+                    break;
                 }
             }
-            if (newFocusedWindowHandle != NULL) {
+        }
+
+        onWindowHandlesChangedLocked(oldWindowHandles);
+    } // release lock
+
+    // Wake up poll loop since it may need to make new input dispatching choices.
+    mLooper->wake();
+}
+
+void InputDispatcher::onWindowHandlesChangedLocked(
+        const Vector<sp<InputWindowHandle> >& oldWindowHandles) {
+    sp<InputWindowHandle> newFocusedWindowHandle;
+    bool foundHoveredWindow = false;
+    for (size_t i = 0; i < mWindowHandles.size(); i++) {
+        const sp<InputWindowHandle>& windowHandle = mWindowHandles.itemAt(i);
+        if (windowHandle->getInfo()->hasFocus) {
+            newFocusedWindowHandle = windowHandle;
+        }
+        if (windowHandle == mLastHoverWindowHandle) {
+            foundHoveredWindow = true;
+        }
+    }
+
+    if (!foundHoveredWindow) {
+        mLastHoverWindowHandle = NULL;
+    }
+
+    if (mFocusedWindowHandle != newFocusedWindowHandle) {
+        if (mFocusedWindowHandle != NULL) {
 #if DEBUG_FOCUS
-                ALOGD("Focus entered window: %s",
-                        newFocusedWindowHandle->getName().string());
+            ALOGD("Focus left window: %s",
+                    mFocusedWindowHandle->getName().string());
 #endif
+            sp<InputChannel> focusedInputChannel = mFocusedWindowHandle->getInputChannel();
+            if (focusedInputChannel != NULL) {
+                CancelationOptions options(CancelationOptions::CANCEL_NON_POINTER_EVENTS,
+                        "focus left window");
+                synthesizeCancelationEventsForInputChannelLocked(
+                        focusedInputChannel, options);
             }
-            mFocusedWindowHandle = newFocusedWindowHandle;
         }
-
-        for (size_t i = 0; i < mTouchState.windows.size(); i++) {
-            TouchedWindow& touchedWindow = mTouchState.windows.editItemAt(i);
-            if (!hasWindowHandleLocked(touchedWindow.windowHandle)) {
+        if (newFocusedWindowHandle != NULL) {
 #if DEBUG_FOCUS
-                ALOGD("Touched window was removed: %s",
-                        touchedWindow.windowHandle->getName().string());
+            ALOGD("Focus entered window: %s",
+                    newFocusedWindowHandle->getName().string());
 #endif
-                sp<InputChannel> touchedInputChannel =
-                        touchedWindow.windowHandle->getInputChannel();
-                if (touchedInputChannel != NULL) {
-                    CancelationOptions options(CancelationOptions::CANCEL_POINTER_EVENTS,
-                            "touched window was removed");
-                    synthesizeCancelationEventsForInputChannelLocked(
-                            touchedInputChannel, options);
-                }
-                mTouchState.windows.removeAt(i--);
-            }
         }
+        mFocusedWindowHandle = newFocusedWindowHandle;
+    }
 
-        // Release information for windows that are no longer present.
-        // This ensures that unused input channels are released promptly.
-        // Otherwise, they might stick around until the window handle is destroyed
-        // which might not happen until the next GC.
-        for (size_t i = 0; i < oldWindowHandles.size(); i++) {
-            const sp<InputWindowHandle>& oldWindowHandle = oldWindowHandles.itemAt(i);
-            if (!hasWindowHandleLocked(oldWindowHandle)) {
+    for (size_t i = 0; i < mTouchState.windows.size(); i++) {
+        TouchedWindow& touchedWindow = mTouchState.windows.editItemAt(i);
+        if (!hasWindowHandleLocked(touchedWindow.windowHandle)) {
 #if DEBUG_FOCUS
-                ALOGD("Window went away: %s", oldWindowHandle->getName().string());
+            ALOGD("Touched window was removed: %s",
+                    touchedWindow.windowHandle->getName().string());
 #endif
-                oldWindowHandle->releaseInfo();
+            sp<InputChannel> touchedInputChannel =
+                    touchedWindow.windowHandle->getInputChannel();
+            if (touchedInputChannel != NULL) {
+                CancelationOptions options(CancelationOptions::CANCEL_POINTER_EVENTS,
+                        "touched window was removed");
+                synthesizeCancelationEventsForInputChannelLocked(
+                        touchedInputChannel, options);
             }
+            mTouchState.windows.removeAt(i--);
         }
-    } // release lock
+    }
 
-    // Wake up poll loop since it may need to make new input dispatching choices.
-    mLooper->wake();
+    // Release information for windows that are no longer present.
+    // This ensures that unused input channels are released promptly.
+    // Otherwise, they might stick around until the window handle is destroyed
+    // which might not happen until the next GC.
+    for (size_t i = 0; i < oldWindowHandles.size(); i++) {
+        const sp<InputWindowHandle>& oldWindowHandle = oldWindowHandles.itemAt(i);
+        if (!hasWindowHandleLocked(oldWindowHandle)) {
+#if DEBUG_FOCUS
+            ALOGD("Window went away: %s", oldWindowHandle->getName().string());
+#endif
+            oldWindowHandle->releaseInfo();
+        }
+    }
 }
 
 void InputDispatcher::setFocusedApplication(
@@ -306,6 +306,14 @@ public:
      */
     virtual void setInputWindows(const Vector<sp<InputWindowHandle> >& inputWindowHandles) = 0;
 
+    /* Rereads the information of some of the current input windows, which
+     * must be in the list last given to setInputWindows.  Handles that are
+     * not in that list are ignored.
+     *
+     * This method may be called on any thread (usually by the input manager).
+     */
+    virtual void updateInputWindows(const Vector<sp<InputWindowHandle> >& changedHandles) = 0;
+
     /* Sets the focused application.
      *
      * This method may be called on any thread (usually by the input manager).
@@ -385,6 +393,7 @@ public:
             uint32_t policyFlags);
 
     virtual void setInputWindows(const Vector<sp<InputWindowHandle> >& inputWindowHandles);
+    virtual void updateInputWindows(const Vector<sp<InputWindowHandle> >& changedHandles);
     virtual void setFocusedApplication(const sp<InputApplicationHandle>& inputApplicationHandle);
     virtual void setInputDispatchMode(bool enabled, bool frozen);
     virtual void setInputFilterEnabled(bool enabled);
@@ -923,6 +932,7 @@ private:
 
     sp<InputWindowHandle> getWindowHandleLocked(const sp<InputChannel>& inputChannel) const;
     bool hasWindowHandleLocked(const sp<InputWindowHandle>& windowHandle) const;
+    void onWindowHandlesChangedLocked(const Vector<sp<InputWindowHandle> >& oldWindowHandles);
 
     // Focus tracking for keys, trackball, etc.
     sp<InputWindowHandle> mFocusedWindowHandle;
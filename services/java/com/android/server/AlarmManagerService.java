@@ -93,11 +93,10 @@ class AlarmManagerService extends IAlarmManager.Stub {
 
     private Object mLock = new Object();
     
-    private final ArrayList<Alarm> mRtcWakeupAlarms = new ArrayList<Alarm>();
-    private final ArrayList<Alarm> mRtcAlarms = new ArrayList<Alarm>();
-    private final ArrayList<Alarm> mElapsedRealtimeWakeupAlarms = new ArrayList<Alarm>();
-    private final ArrayList<Alarm> mElapsedRealtimeAlarms = new ArrayList<Alarm>();
-    private final IncreasingTimeOrder mIncreasingTimeOrder = new IncreasingTimeOrder();
+    private final AlarmQueue mRtcWakeupAlarms = new AlarmQueue();
+    private final AlarmQueue mRtcAlarms = new AlarmQueue();
+    private final AlarmQueue mElapsedRealtimeWakeupAlarms = new AlarmQueue();
+    private final AlarmQueue mElapsedRealtimeAlarms = new AlarmQueue();
     
     private int mDescriptor;
     private int mBroadcastRefCount = 0;
@@ -374,8 +373,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 
             if (localLOGV) Slog.v(TAG, "set: " + alarm);
 
-            int index = addAlarmLocked(alarm);
-            if (index == 0) {
+            if (addAlarmLocked(alarm)) {
                 setLocked(alarm);
             }
         }
@@ -489,21 +487,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
         removeLocked(mElapsedRealtimeAlarms, operation);
     }
 
-    private void removeLocked(ArrayList<Alarm> alarmList,
+    private void removeLocked(AlarmQueue alarmList,
             PendingIntent operation) {
-        if (alarmList.size() <= 0) {
-            return;
-        }
-
-        // iterator over the list removing any it where the intent match
-        Iterator<Alarm> it = alarmList.iterator();
-        
-        while (it.hasNext()) {
-            Alarm alarm = it.next();
-            if (alarm.operation.equals(operation)) {
-                it.remove();
-            }
-        }
+        alarmList.remove(operation);
     }
 
     public void removeLocked(String packageName) {
@@ -513,21 +499,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
         removeLocked(mElapsedRealtimeAlarms, packageName);
     }
 
-    private void removeLocked(ArrayList<Alarm> alarmList,
+    private void removeLocked(AlarmQueue alarmList,
             String packageName) {
-        if (alarmList.size() <= 0) {
-            return;
-        }
-
-        // iterator over the list removing any it where the intent match
-        Iterator<Alarm> it = alarmList.iterator();
-        
-        while (it.hasNext()) {
-            Alarm alarm = it.next();
-            if (alarm.operation.getTargetPackage().equals(packageName)) {
-                it.remove();
-            }
-        }
+        alarmList.removePackage(packageName);
     }
 
     public void removeUserLocked(int userHandle) {
@@ -537,20 +511,8 @@ class AlarmManagerService extends IAlarmManager.Stub {
         removeUserLocked(mElapsedRealtimeAlarms, userHandle);
     }
 
-    private void removeUserLocked(ArrayList<Alarm> alarmList, int userHandle) {
-        if (alarmList.size() <= 0) {
-            return;
-        }
-
-        // iterator over the list removing any it where the intent match
-        Iterator<Alarm> it = alarmList.iterator();
-
-        while (it.hasNext()) {
-            Alarm alarm = it.next();
-            if (UserHandle.getUserId(alarm.operation.getCreatorUid()) == userHandle) {
-                it.remove();
-            }
-        }
+    private void removeUserLocked(AlarmQueue alarmList, int userHandle) {
+        alarmList.removeUser(userHandle);
     }
     
     public boolean lookForPackageLocked(String packageName) {
@@ -560,16 +522,11 @@ class AlarmManagerService extends IAlarmManager.Stub {
                 || lookForPackageLocked(mElapsedRealtimeAlarms, packageName);
     }
 
-    private boolean lookForPackageLocked(ArrayList<Alarm> alarmList, String packageName) {
-        for (int i=alarmList.size()-1; i>=0; i--) {
-            if (alarmList.get(i).operation.getTargetPackage().equals(packageName)) {
-                return true;
-            }
-        }
-        return false;
+    private boolean lookForPackageLocked(AlarmQueue alarmList, String packageName) {
+        return alarmList.hasPackage(packageName);
     }
     
-    private ArrayList<Alarm> getAlarmList(int type) {
+    private AlarmQueue getAlarmList(int type) {
         switch (type) {
             case AlarmManager.RTC_WAKEUP:              return mRtcWakeupAlarms;
             case AlarmManager.RTC:                     return mRtcAlarms;
@@ -580,21 +537,20 @@ class AlarmManagerService extends IAlarmManager.Stub {
         return null;
     }
     
-    private int addAlarmLocked(Alarm alarm) {
-        ArrayList<Alarm> alarmList = getAlarmList(alarm.type);
+    /**
+     * Returns true if alarm is now the next of its type to trigger.
+     */
+    private boolean addAlarmLocked(Alarm alarm) {
+        AlarmQueue alarmList = getAlarmList(alarm.type);
         
-        int index = Collections.binarySearch(alarmList, alarm, mIncreasingTimeOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        if (localLOGV) Slog.v(TAG, "Adding alarm " + alarm + " at " + index);
-        alarmList.add(index, alarm);
+        final boolean first = alarmList.add(alarm);
+        if (localLOGV) Slog.v(TAG, "Adding alarm " + alarm + (first ? " first" : ""));
 
         if (localLOGV) {
             // Display the list of alarms for this alarm type
             Slog.v(TAG, "alarms: " + alarmList.size() + " type: " + alarm.type);
             int position = 0;
-            for (Alarm a : alarmList) {
+            for (Alarm a : alarmList.toSortedList()) {
                 Time time = new Time();
                 time.set(a.when);
                 String timeStr = time.format("%b %d %I:%M:%S %p");
@@ -604,7 +560,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
             }
         }
         
-        return index;
+        return first;
     }
     
     public long timeToNextAlarm() {
@@ -612,9 +568,8 @@ class AlarmManagerService extends IAlarmManager.Stub {
         synchronized (mLock) {
             for (int i=AlarmManager.RTC_WAKEUP;
                     i<=AlarmManager.ELAPSED_REALTIME; i++) {
-                ArrayList<Alarm> alarmList = getAlarmList(i);
-                if (alarmList.size() > 0) {
-                    Alarm a = alarmList.get(0);
+                Alarm a = getAlarmList(i).first();
+                if (a != null) {
                     if (a.when < nextAlarm) {
                         nextAlarm = a.when;
                     }
@@ -804,8 +759,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
         }
     }
 
-    private static final void dumpAlarmList(PrintWriter pw, ArrayList<Alarm> list,
+    private static final void dumpAlarmList(PrintWriter pw, AlarmQueue queue,
             String prefix, String label, long now) {
+        final ArrayList<Alarm> list = queue.toSortedList();
         for (int i=list.size()-1; i>=0; i--) {
             Alarm a = list.get(i);
             pw.print(prefix); pw.print(label); pw.print(" #"); pw.print(i);
@@ -824,24 +780,22 @@ class AlarmManagerService extends IAlarmManager.Stub {
     private native boolean bootFromAlarm(int fd);
 
     // /@}
-    private void triggerAlarmsLocked(ArrayList<Alarm> alarmList,
+    private void triggerAlarmsLocked(AlarmQueue alarmList,
                                      ArrayList<Alarm> triggerList,
                                      long now)
     {
-        Iterator<Alarm> it = alarmList.iterator();
-        ArrayList<Alarm> repeats = new ArrayList<Alarm>();
+        // Take every alarm that is due off the queue at once; repeating
+        // ones go back on after all have been taken.
+        final int start = triggerList.size();
+        final int count = alarmList.removeDue(now, triggerList);
+        ArrayList<Alarm> repeats = null;
         
-        while (it.hasNext())
+        for (int i = start; i < start + count; i++)
         {
-            Alarm alarm = it.next();
+            Alarm alarm = triggerList.get(i);
 
             if (localLOGV) Slog.v(TAG, "Checking active alarm when=" + alarm.when + " " + alarm);
 
-            if (alarm.when > now) {
-                // don't fire alarms in the future
-                break;
-            }
-            
             // If the alarm is late, then print a warning message.
             // Note that this can happen if the user creates a new event on
             // the Calendar app with a reminder that is in the past. In that
@@ -861,23 +815,23 @@ class AlarmManagerService extends IAlarmManager.Stub {
                 // less than one full repeat interval
                 alarm.count += (now - alarm.when) / alarm.repeatInterval;
             }
-            triggerList.add(alarm);
-            
-            // remove the alarm from the list
-            it.remove();
             
             // if it repeats queue it up to be read-added to the list
             if (alarm.repeatInterval > 0) {
+                if (repeats == null) {
+                    repeats = new ArrayList<Alarm>();
+                }
                 repeats.add(alarm);
             }
         }
 
         // reset any repeating alarms.
-        it = repeats.iterator();
-        while (it.hasNext()) {
-            Alarm alarm = it.next();
-            alarm.when += alarm.count * alarm.repeatInterval;
-            addAlarmLocked(alarm);
+        if (repeats != null) {
+            for (int i = 0; i < repeats.size(); i++) {
+                Alarm alarm = repeats.get(i);
+                alarm.when += alarm.count * alarm.repeatInterval;
+                addAlarmLocked(alarm);
+            }
         }
         
         if (alarmList.size() > 0) {
@@ -887,38 +841,25 @@ class AlarmManagerService extends IAlarmManager.Stub {
                 return;
             }
             // /@}
-            setLocked(alarmList.get(0));
-        }
-    }
-    
-    /**
-     * This Comparator sorts Alarms into increasing time order.
-     */
-    public static class IncreasingTimeOrder implements Comparator<Alarm> {
-        public int compare(Alarm a1, Alarm a2) {
-            long when1 = a1.when;
-            long when2 = a2.when;
-            if (when1 - when2 > 0) {
-                return 1;
-            }
-            if (when1 - when2 < 0) {
-                return -1;
-            }
-            return 0;
+            setLocked(alarmList.first());
         }
     }
     
-    private static class Alarm {
+    static class Alarm {
         public int type;
         public int count;
         public long when;
         public long repeatInterval;
         public PendingIntent operation;
+        // Position in its AlarmQueue, or -1; and order among equal times.
+        int heapIndex;
+        long seq;
         
         public Alarm() {
             when = 0;
             repeatInterval = 0;
             operation = null;
+            heapIndex = -1;
         }
         
         @Override
@@ -1362,7 +1303,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
         return -1;
     }
 
-    boolean SearchAlarmListForPackage(ArrayList<Alarm> mRtcWakeupAlarms,
+    boolean SearchAlarmListForPackage(AlarmQueue mRtcWakeupAlarms,
             ArrayList<String> mAlarmIconPackageList) {
         for (int i = 0; i < mRtcWakeupAlarms.size(); i++) {
             Alarm tempAlarm = mRtcWakeupAlarms.get(i);
@@ -1656,9 +1597,8 @@ class AlarmManagerService extends IAlarmManager.Stub {
             setPackageName = tempName;
             if ((latestTime - 30 * 1000) <= nowTime) {
                 Slog.i(TAG, "get target latestTime < 30S!!");
-                Iterator<Alarm> italarm = mRtcWakeupAlarms.iterator();
-                while (italarm.hasNext()) {
-                    Alarm alarm = italarm.next();
+                for (int i = 0; i < mRtcWakeupAlarms.size(); i++) {
+                    Alarm alarm = mRtcWakeupAlarms.get(i);
                     if (alarm.operation.getTargetPackage().equals(setPackageName)
                             && alarm.when == latestTime) {
                         set(8, (latestTime + 60 * 1000), alarm.operation);
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.app.PendingIntent;
+import android.os.UserHandle;
+
+import com.android.server.AlarmManagerService.Alarm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The pending alarms of one type, ordered by trigger time.
+ *
+ * Alarms are kept in a binary min-heap; each alarm records its position in
+ * the heap, so one can be taken out from the middle without a search.  An
+ * index from PendingIntent to alarm finds the alarm to cancel.  Adding or
+ * removing an alarm costs O(log n) and finding the next one O(1), where a
+ * sorted list costs O(n) to shift the alarms after it.  Alarms due at the
+ * same time come out in the order they were added.
+ *
+ * A queue holds at most one alarm for each PendingIntent; adding another
+ * replaces it.  Not thread safe; AlarmManagerService calls it with its lock
+ * held.
+ */
+final class AlarmQueue {
+    private Alarm[] mHeap = new Alarm[16];
+    private int mSize;
+    private final HashMap<PendingIntent, Alarm> mByOperation
+            = new HashMap<PendingIntent, Alarm>();
+    private long mNextSeq;
+
+    static final Comparator<Alarm> TIME_ORDER = new Comparator<Alarm>() {
+        @Override
+        public int compare(Alarm a1, Alarm a2) {
+            return AlarmQueue.compare(a1, a2);
+        }
+    };
+
+    static int compare(Alarm a1, Alarm a2) {
+        if (a1.when != a2.when) {
+            return a1.when < a2.when ? -1 : 1;
+        }
+        return a1.seq < a2.seq ? -1 : (a1.seq == a2.seq ? 0 : 1);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the alarm at index in heap order, for walking the queue; only
+     * index 0 is the next to trigger.
+     */
+    Alarm get(int index) {
+        return mHeap[index];
+    }
+
+    /** The alarm due first, or null if the queue is empty. */
+    Alarm first() {
+        return mSize > 0 ? mHeap[0] : null;
+    }
+
+    Alarm get(PendingIntent operation) {
+        return mByOperation.get(operation);
+    }
+
+    /**
+     * Adds alarm, replacing any alarm for the same operation.  Returns true
+     * if it is now the first alarm to trigger.
+     */
+    boolean add(Alarm alarm) {
+        final Alarm old = mByOperation.put(alarm.operation, alarm);
+        if (old != null && old.heapIndex >= 0) {
+            removeAt(old.heapIndex);
+        }
+        alarm.seq = mNextSeq++;
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        }
+        alarm.heapIndex = mSize;
+        mHeap[mSize++] = alarm;
+        siftUp(alarm.heapIndex);
+        return alarm.heapIndex == 0;
+    }
+
+    /**
+     * Removes the alarm for operation, returning it, or null if there is
+     * none.
+     */
+    Alarm remove(PendingIntent operation) {
+        final Alarm alarm = mByOperation.remove(operation);
+        if (alarm != null) {
+            removeAt(alarm.heapIndex);
+        }
+        return alarm;
+    }
+
+    /**
+     * Moves the alarms due at or before now to out, in trigger order.
+     * Returns how many there were.
+     */
+    int removeDue(long now, ArrayList<Alarm> out) {
+        int count = 0;
+        while (mSize > 0 && mHeap[0].when <= now) {
+            final Alarm alarm = mHeap[0];
+            mByOperation.remove(alarm.operation);
+            removeAt(0);
+            out.add(alarm);
+            count++;
+        }
+        return count;
+    }
+
+    boolean removePackage(String packageName) {
+        return removeMatching(packageName, -1);
+    }
+
+    boolean removeUser(int userHandle) {
+        return removeMatching(null, userHandle);
+    }
+
+    /**
+     * Drops the alarms of a package or user in one pass and rebuilds the
+     * heap in O(n), rather than removing them one at a time.
+     */
+    private boolean removeMatching(String packageName, int userHandle) {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            final Alarm alarm = mHeap[i];
+            final boolean matches = packageName != null
+                    ? packageName.equals(alarm.operation.getTargetPackage())
+                    : UserHandle.getUserId(alarm.operation.getCreatorUid()) == userHandle;
+            if (matches) {
+                mByOperation.remove(alarm.operation);
+                alarm.heapIndex = -1;
+            } else {
+                alarm.heapIndex = kept;
+                mHeap[kept++] = alarm;
+            }
+        }
+        if (kept == mSize) {
+            return false;
+        }
+        Arrays.fill(mHeap, kept, mSize, null);
+        mSize = kept;
+        for (int i = (mSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        return true;
+    }
+
+    boolean hasPackage(String packageName) {
+        for (int i = 0; i < mSize; i++) {
+            if (packageName.equals(mHeap[i].operation.getTargetPackage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mHeap[i].heapIndex = -1;
+            mHeap[i] = null;
+        }
+        mSize = 0;
+        mByOperation.clear();
+    }
+
+    /** Returns the alarms in trigger order; for dumping. */
+    ArrayList<Alarm> toSortedList() {
+        final Alarm[] sorted = Arrays.copyOf(mHeap, mSize);
+        Arrays.sort(sorted, TIME_ORDER);
+        return new ArrayList<Alarm>(Arrays.asList(sorted));
+    }
+
+    private void removeAt(int index) {
+        final Alarm removed = mHeap[index];
+        removed.heapIndex = -1;
+        mSize--;
+        if (index == mSize) {
+            mHeap[mSize] = null;
+            return;
+        }
+        final Alarm last = mHeap[mSize];
+        mHeap[mSize] = null;
+        mHeap[index] = last;
+        last.heapIndex = index;
+        if (index > 0 && compare(last, mHeap[(index - 1) >>> 1]) < 0) {
+            siftUp(index);
+        } else {
+            siftDown(index);
+        }
+    }
+
+    private void siftUp(int index) {
+        final Alarm alarm = mHeap[index];
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            final Alarm p = mHeap[parent];
+            if (compare(alarm, p) >= 0) {
+                break;
+            }
+            mHeap[index] = p;
+            p.heapIndex = index;
+            index = parent;
+        }
+        mHeap[index] = alarm;
+        alarm.heapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        final Alarm alarm = mHeap[index];
+        final int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            final int right = child + 1;
+            if (right < mSize && compare(mHeap[right], mHeap[child]) < 0) {
+                child = right;
+            }
+            final Alarm c = mHeap[child];
+            if (compare(alarm, c) <= 0) {
+                break;
+            }
+            mHeap[index] = c;
+            c.heapIndex = index;
+            index = child;
+        }
+        mHeap[index] = alarm;
+        alarm.heapIndex = index;
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -56,6 +57,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        invalidateResultCache();
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -91,6 +93,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        invalidateResultCache();
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -170,9 +173,49 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 mTypedActionToFilter, packageName, printFilter)) {
             curPrefix = sepPrefix;
         }
+        if (mResultCache != null && packageName == null) {
+            out.print(curPrefix); out.print("Query cache: ");
+            out.print(mResultCache.size()); out.print("/"); out.print(mResultCacheSize);
+            out.print(" entries, "); out.print(mCacheHits); out.print(" hits, ");
+            out.print(mCacheMisses); out.println(" misses");
+        }
         return curPrefix == sepPrefix;
     }
 
+    /**
+     * Enable caching of the filters matched by recent queries.  Up to
+     * maxEntries distinct (action, type, scheme, data, categories, package)
+     * queries are remembered in LRU order; a repeated query then skips
+     * matching every candidate filter and only re-applies the per-call
+     * checks (stopped state, default-only, {@link #allowFilterResult} and
+     * {@link #newResult}), so results still reflect the current state of
+     * the filter owners.  The cache is cleared whenever a filter is added
+     * or removed.  Pass 0 to disable caching.
+     */
+    public void setResultCacheSize(final int maxEntries) {
+        mResultCacheSize = maxEntries;
+        if (maxEntries <= 0) {
+            mResultCache = null;
+            return;
+        }
+        mResultCache = new LinkedHashMap<QueryKey, CachedMatches<F>>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<QueryKey, CachedMatches<F>> eldest) {
+                return size() > mResultCacheSize;
+            }
+        };
+    }
+
+    /**
+     * Drop all cached query results.  Subclasses must call this if a change
+     * they make could alter which filters match an intent.
+     */
+    public void invalidateResultCache() {
+        if (mResultCache != null) {
+            mResultCache.clear();
+        }
+    }
+
     private class IteratorWrapper implements Iterator<F> {
         private final Iterator<F> mI;
         private F mCur;
@@ -301,6 +344,25 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        if (mResultCache != null && !debug) {
+            final QueryKey key = new QueryKey(intent, resolvedType);
+            CachedMatches<F> cached = mResultCache.get(key);
+            if (cached == null) {
+                mCacheMisses++;
+                cached = new CachedMatches<F>();
+                matchFilters(intent, categories, resolvedType, scheme, firstTypeCut, cached);
+                matchFilters(intent, categories, resolvedType, scheme, secondTypeCut, cached);
+                matchFilters(intent, categories, resolvedType, scheme, thirdTypeCut, cached);
+                matchFilters(intent, categories, resolvedType, scheme, schemeCut, cached);
+                mResultCache.put(key, cached);
+            } else {
+                mCacheHits++;
+            }
+            buildResolveListFromMatches(intent, defaultOnly, cached, finalList, userId);
+            sortResults(finalList);
+            return finalList;
+        }
+
         if (firstTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly,
                     resolvedType, scheme, firstTypeCut, finalList, userId);
@@ -603,6 +665,131 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    /**
+     * Collect the filters in src that match the intent, ignoring all
+     * per-user and per-call conditions, into out.
+     */
+    private void matchFilters(Intent intent, FastImmutableArraySet<String> categories,
+            String resolvedType, String scheme, F[] src, CachedMatches<F> out) {
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        final String packageName = intent.getPackage();
+        final int N = src != null ? src.length : 0;
+        F filter;
+        for (int i=0; i<N && (filter=src[i]) != null; i++) {
+            if (packageName != null && !packageName.equals(packageForFilter(filter))) {
+                continue;
+            }
+            final int match = filter.match(action, resolvedType, scheme, data, categories, TAG);
+            if (match >= 0) {
+                out.add(filter, match);
+            }
+        }
+    }
+
+    /**
+     * Counterpart of {@link #buildResolveList} for filters that are already
+     * known to match: applies only the checks that can change without a
+     * filter being added or removed.
+     */
+    private void buildResolveListFromMatches(Intent intent, boolean defaultOnly,
+            CachedMatches<F> matches, List<R> dest, int userId) {
+        final boolean excludingStopped = intent.isExcludingStopped();
+        boolean hasNonDefaults = false;
+        final int N = matches.filters.size();
+        for (int i=0; i<N; i++) {
+            final F filter = matches.filters.get(i);
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, matches.matches[i], userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            } else {
+                hasNonDefaults = true;
+            }
+        }
+
+        if (dest.size() == 0 && hasNonDefaults) {
+            Slog.w(TAG, "resolveIntent failed: found match, but none with Intent.CATEGORY_DEFAULT");
+        }
+    }
+
+    /**
+     * Identifies a query by everything that {@link IntentFilter#match} and
+     * the package restriction look at.
+     */
+    private static final class QueryKey {
+        final String action;
+        final String type;
+        final Uri data;
+        final String packageName;
+        final Set<String> categories;
+        final int hashCode;
+
+        QueryKey(Intent intent, String resolvedType) {
+            action = intent.getAction();
+            type = resolvedType;
+            data = intent.getData();
+            packageName = intent.getPackage();
+            final Set<String> cats = intent.getCategories();
+            categories = cats != null && cats.size() > 0 ? new HashSet<String>(cats) : null;
+            int h = 17;
+            h = 31 * h + (action != null ? action.hashCode() : 0);
+            h = 31 * h + (type != null ? type.hashCode() : 0);
+            h = 31 * h + (data != null ? data.hashCode() : 0);
+            h = 31 * h + (packageName != null ? packageName.hashCode() : 0);
+            h = 31 * h + (categories != null ? categories.hashCode() : 0);
+            hashCode = h;
+        }
+
+        private static boolean eq(Object a, Object b) {
+            return a == b || (a != null && a.equals(b));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            final QueryKey other = (QueryKey) o;
+            return hashCode == other.hashCode && eq(action, other.action)
+                    && eq(type, other.type) && eq(data, other.data)
+                    && eq(packageName, other.packageName)
+                    && eq(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Filters that matched a query, with their match codes, in the order
+     * the uncached lookup would have visited them.
+     */
+    private static final class CachedMatches<F> {
+        final ArrayList<F> filters = new ArrayList<F>();
+        int[] matches = new int[4];
+
+        void add(F filter, int match) {
+            final int N = filters.size();
+            if (N == matches.length) {
+                int[] newMatches = new int[(N * 3) / 2 + 1];
+                System.arraycopy(matches, 0, newMatches, 0, N);
+                matches = newMatches;
+            }
+            matches[N] = match;
+            filters.add(filter);
+        }
+    }
+
     // Sorts a List of IntentFilter objects into descending priority order.
     @SuppressWarnings("rawtypes")
     private static final Comparator mResolvePrioritySorter = new Comparator() {
@@ -727,6 +914,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     };
 
+    private LinkedHashMap<QueryKey, CachedMatches<F>> mResultCache;
+    private int mResultCacheSize;
+    private int mCacheHits;
+    private int mCacheMisses;
+
     /**
      * All filters that have been registered.
      */
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.text.format.DateFormat;
+import android.util.Slog;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the locks guarded by the {@link Watchdog.Monitor}s in the system
+ * process.  Every {@link #mInterval} ms each monitor is called on a
+ * dedicated thread and the time it takes, which is almost entirely time
+ * spent waiting for the service's lock, goes into a per-monitor histogram.
+ * When a call waits longer than {@link #mThreshold} ms, the stacks of the
+ * threads that are running inside the same service at that moment (the
+ * likely lock holders) are captured.
+ *
+ * This is a "dumpsys lockcontention" target.
+ */
+public class LockContentionProfiler extends Binder {
+    private static final String TAG = "LockContentionProfiler";
+
+    static final int DEFAULT_INTERVAL = 10*1000;
+    static final int DEFAULT_THRESHOLD = 100;
+
+    // Histogram buckets: under 1ms, then powers of two up to 32s and over.
+    static final int NUM_BUCKETS = 17;
+
+    private static final String SERVER_PACKAGE = "com.android.server.";
+
+    static final int MAX_SLOW_SAMPLES = 4;
+    static final int MAX_SUSPECT_THREADS = 3;
+    static final int MAX_STACK_DEPTH = 12;
+
+    static final class SlowSample {
+        final long wallTime;
+        final long waitTime;
+        final String suspects;
+
+        SlowSample(long wallTime, long waitTime, String suspects) {
+            this.wallTime = wallTime;
+            this.waitTime = waitTime;
+            this.suspects = suspects;
+        }
+    }
+
+    static final class MonitorStats {
+        final Watchdog.Monitor monitor;
+        final String name;
+        // Threads whose stacks contain frames of this class or package are
+        // the suspected lock holders.  See isSuspectFrame.
+        final String suspectPrefix;
+        final long[] buckets = new long[NUM_BUCKETS];
+        long count;
+        long totalTime;
+        long maxTime;
+        final ArrayList<SlowSample> slowSamples = new ArrayList<SlowSample>();
+        int nextSlowSample;
+
+        MonitorStats(Watchdog.Monitor monitor) {
+            this.monitor = monitor;
+            name = monitor.getClass().getName();
+            final int dot = name.lastIndexOf('.');
+            final String pkg = dot > 0 ? name.substring(0, dot + 1) : "";
+            if (SERVER_PACKAGE.equals(pkg)) {
+                // Nearly every system_server thread runs code in this
+                // package, so use the monitor's own (outer) class.  For
+                // MountService and NetworkManagementService that is where
+                // the callers holding their NativeDaemonConnector's lock are.
+                final int inner = name.indexOf('$');
+                suspectPrefix = inner > 0 ? name.substring(0, inner) : name;
+            } else {
+                suspectPrefix = pkg;
+            }
+        }
+
+        boolean isSuspectFrame(String className) {
+            if (!className.startsWith(suspectPrefix)) {
+                return false;
+            }
+            // A package prefix matches its classes; a class prefix matches
+            // the class and its inner classes, not others sharing its name.
+            return suspectPrefix.endsWith(".") || className.length() == suspectPrefix.length()
+                    || className.charAt(suspectPrefix.length()) == '$';
+        }
+
+        void add(long time) {
+            int bucket = time <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(time);
+            if (bucket >= NUM_BUCKETS) {
+                bucket = NUM_BUCKETS - 1;
+            }
+            buckets[bucket]++;
+            count++;
+            totalTime += time;
+            if (time > maxTime) {
+                maxTime = time;
+            }
+        }
+
+        void addSlowSample(SlowSample sample) {
+            if (slowSamples.size() < MAX_SLOW_SAMPLES) {
+                slowSamples.add(sample);
+            } else {
+                slowSamples.set(nextSlowSample, sample);
+            }
+            nextSlowSample = (nextSlowSample + 1) % MAX_SLOW_SAMPLES;
+        }
+
+        /**
+         * Upper bound, in ms, of the bucket holding the given percentile, or
+         * for the last bucket its lower bound; see {@link #printBucket}.
+         */
+        long percentile(int percentile) {
+            final long target = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (NUM_BUCKETS - 1);
+        }
+    }
+
+    /**
+     * Prints the bound returned by {@link MonitorStats#percentile} or the
+     * range of a bucket: "<N" for the upper bound of a bucket, ">=N" for
+     * the last one, which holds everything from N on.
+     */
+    static void printBucket(PrintWriter pw, int bucket) {
+        if (bucket >= NUM_BUCKETS - 1) {
+            pw.print(">="); pw.print(1L << (NUM_BUCKETS - 2));
+        } else {
+            pw.print("<"); pw.print(1L << bucket);
+        }
+    }
+
+    private static int bucketOf(long bound) {
+        return 63 - Long.numberOfLeadingZeros(bound);
+    }
+
+    private final Context mContext;
+    private final int mInterval;
+    private final int mThreshold;
+
+    // Guarded by "this".
+    private final ArrayList<MonitorStats> mStats = new ArrayList<MonitorStats>();
+    private long mStartTime;
+
+    private Handler mSampleHandler;
+    private Handler mStackHandler;
+    private Thread mSampleThread;
+
+    // The monitor currently being sampled; read by the stack capture.
+    private volatile MonitorStats mCurrent;
+    private volatile long mCurrentStart;
+
+    public LockContentionProfiler(Context context) {
+        mContext = context;
+        mInterval = SystemProperties.getInt("persist.sys.lockprof.interval", DEFAULT_INTERVAL);
+        mThreshold = SystemProperties.getInt("persist.sys.lockprof.threshold",
+                DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Start sampling the given monitors.  Called by the watchdog once its
+     * set of monitors is final.
+     */
+    void start(List<Watchdog.Monitor> monitors) {
+        if (mInterval <= 0) {
+            Slog.i(TAG, "Lock contention profiling disabled");
+            return;
+        }
+        synchronized (this) {
+            for (int i = 0; i < monitors.size(); i++) {
+                mStats.add(new MonitorStats(monitors.get(i)));
+            }
+            mStartTime = SystemClock.uptimeMillis();
+        }
+
+        final HandlerThread sampleThread = new HandlerThread("LockProfiler",
+                Process.THREAD_PRIORITY_FOREGROUND);
+        sampleThread.start();
+        mSampleThread = sampleThread;
+        mSampleHandler = new Handler(sampleThread.getLooper());
+        final HandlerThread stackThread = new HandlerThread("LockProfilerStacks",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        stackThread.start();
+        mStackHandler = new Handler(stackThread.getLooper());
+
+        mSampleHandler.postDelayed(mSample, mInterval);
+    }
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            final int N;
+            synchronized (LockContentionProfiler.this) {
+                N = mStats.size();
+            }
+            for (int i = 0; i < N; i++) {
+                final MonitorStats stats;
+                synchronized (LockContentionProfiler.this) {
+                    stats = mStats.get(i);
+                }
+                mCurrent = stats;
+                mCurrentStart = SystemClock.uptimeMillis();
+                mStackHandler.postDelayed(mCaptureStacks, mThreshold);
+                stats.monitor.monitor();
+                mStackHandler.removeCallbacks(mCaptureStacks);
+                final long time = SystemClock.uptimeMillis() - mCurrentStart;
+                mCurrent = null;
+                synchronized (LockContentionProfiler.this) {
+                    stats.add(time);
+                }
+            }
+            mSampleHandler.postDelayed(this, mInterval);
+        }
+    };
+
+    private final Runnable mCaptureStacks = new Runnable() {
+        @Override
+        public void run() {
+            final MonitorStats stats = mCurrent;
+            if (stats == null) {
+                return;
+            }
+            final long waited = SystemClock.uptimeMillis() - mCurrentStart;
+            final String suspects = findSuspects(stats);
+            Slog.w(TAG, "Waited " + waited + "ms for " + stats.name + "; running in it:\n"
+                    + suspects);
+            synchronized (LockContentionProfiler.this) {
+                stats.addSlowSample(new SlowSample(System.currentTimeMillis(), waited,
+                        suspects));
+            }
+        }
+    };
+
+    /**
+     * Returns the stacks of runnable threads that are executing code of the
+     * monitor's service, other than our own sampling thread.
+     */
+    private String findSuspects(MonitorStats stats) {
+        final StringBuilder sb = new StringBuilder();
+        int found = 0;
+        for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+            final Thread thread = e.getKey();
+            if (thread == mSampleThread || thread.getState() != Thread.State.RUNNABLE) {
+                continue;
+            }
+            final StackTraceElement[] stack = e.getValue();
+            boolean inPackage = false;
+            for (StackTraceElement frame : stack) {
+                if (stats.isSuspectFrame(frame.getClassName())) {
+                    inPackage = true;
+                    break;
+                }
+            }
+            if (!inPackage) {
+                continue;
+            }
+            sb.append("  \"").append(thread.getName()).append("\" tid=")
+                    .append(thread.getId()).append('\n');
+            final int depth = Math.min(stack.length, MAX_STACK_DEPTH);
+            for (int i = 0; i < depth; i++) {
+                sb.append("    at ").append(stack[i]).append('\n');
+            }
+            if (++found >= MAX_SUSPECT_THREADS) {
+                break;
+            }
+        }
+        if (found == 0) {
+            sb.append("  (no runnable thread found in ").append(stats.suspectPrefix)
+                    .append(")\n");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+        synchronized (this) {
+            pw.println("LOCK CONTENTION (dumpsys lockcontention)");
+            if (mInterval <= 0 || mStartTime == 0) {
+                pw.println("  Not sampling.");
+                return;
+            }
+            pw.print("  interval="); pw.print(mInterval);
+            pw.print("ms threshold="); pw.print(mThreshold);
+            pw.print("ms running for "); pw.print((SystemClock.uptimeMillis() - mStartTime)
+                    / 1000); pw.println("s");
+            for (int i = 0; i < mStats.size(); i++) {
+                final MonitorStats stats = mStats.get(i);
+                pw.println();
+                pw.print("  "); pw.println(stats.name);
+                pw.print("    n="); pw.print(stats.count);
+                if (stats.count > 0) {
+                    pw.print(" avg="); pw.print(stats.totalTime / stats.count);
+                    pw.print("ms p50"); printBucket(pw, bucketOf(stats.percentile(50)));
+                    pw.print("ms p90"); printBucket(pw, bucketOf(stats.percentile(90)));
+                    pw.print("ms p99"); printBucket(pw, bucketOf(stats.percentile(99)));
+                    pw.print("ms max="); pw.print(stats.maxTime); pw.print("ms");
+                }
+                pw.println();
+                pw.print("    buckets:");
+                for (int b = 0; b < NUM_BUCKETS; b++) {
+                    if (stats.buckets[b] != 0) {
+                        pw.print(" "); printBucket(pw, b); pw.print("ms:");
+                        pw.print(stats.buckets[b]);
+                    }
+                }
+                pw.println();
+                for (int j = 0; j < stats.slowSamples.size(); j++) {
+                    final SlowSample sample = stats.slowSamples.get(j);
+                    pw.print("    slow sample at ");
+                    pw.print(DateFormat.format("MM-dd kk:mm:ss", sample.wallTime));
+                    pw.print(", waited >"); pw.print(sample.waitTime); pw.println("ms:");
+                    pw.print(sample.suspects);
+                }
+            }
+        }
+    }
+}
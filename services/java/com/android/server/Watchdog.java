@@ -89,6 +89,7 @@ public class Watchdog extends Thread {
     boolean mCompleted;
     boolean mForceKillSystem;
     Monitor mCurrentMonitor;
+    LockContentionProfiler mProfiler;
 
     int mPhonePid;
 
@@ -205,6 +206,9 @@ public class Watchdog extends Thread {
                 android.Manifest.permission.REBOOT, null);
 
         mBootTime = System.currentTimeMillis();
+
+        mProfiler = new LockContentionProfiler(context);
+        ServiceManager.addService("lockcontention", mProfiler);
     }
 
     public void processStarted(String name, int pid) {
@@ -377,6 +381,12 @@ public class Watchdog extends Thread {
     @Override
     public void run() {
         boolean waitedHalf = false;
+        if (mProfiler != null) {
+            // addMonitor() refuses new monitors from now on.
+            synchronized (this) {
+                mProfiler.start(new ArrayList<Monitor>(mMonitors));
+            }
+        }
         while (true) {
             mCompleted = false;
             mHandler.sendEmptyMessage(MONITOR);
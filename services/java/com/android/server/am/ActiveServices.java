@@ -429,7 +429,11 @@ public class ActiveServices {
         if (anyForeground != proc.foregroundServices) {
             proc.foregroundServices = anyForeground;
             if (oomAdj) {
-                mAm.updateOomAdjLocked();
+                if (ActivityManagerService.INCREMENTAL_OOM_ADJ) {
+                    mAm.updateOomAdjLocked(proc);
+                } else {
+                    mAm.updateOomAdjLocked();
+                }
             }
         }
     }
@@ -159,6 +159,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -389,6 +390,31 @@ public final class ActivityManagerService extends ActivityManagerNative
      */
     final ProcessList mProcessList = new ProcessList();
 
+    /**
+     * Adjusts the background process limit and trim thresholds to memory
+     * pressure, unless a process limit has been set explicitly.  Sampling
+     * interval in ms; 0, the default until its thresholds have been tuned
+     * on the low memory devices, keeps the limit at its maximum.
+     */
+    static final int MEMORY_PRESSURE_INTERVAL =
+            SystemProperties.getInt("ro.am.mem_pressure_ms", 0);
+
+    final MemoryPressureController mMemoryPressure = new MemoryPressureController(
+            SystemProperties.getInt("ro.am.proc_limit_min",
+                    Math.max(ProcessList.MIN_HIDDEN_APPS + 1, ProcessList.MAX_HIDDEN_APPS / 3)),
+            SystemProperties.getInt("ro.am.proc_limit_max", ProcessList.MAX_HIDDEN_APPS),
+            mProcessList.getMemLevel(ProcessList.HIDDEN_APP_MAX_ADJ) / 1024);
+
+    /**
+     * Processes started while idle for the applications most likely to be
+     * launched next, so that their launch does not wait for a fork and
+     * bindApplication.  Its size is the number of such processes to keep
+     * at most; 0, the default, disables it.
+     */
+    final ProcessPrestartPool mPrestartPool = new ProcessPrestartPool(this,
+            FeatureOption.MTK_LCA_RAM_OPTIMIZE ? 0
+                    : SystemProperties.getInt("ro.am.prestart_pool_size", 0));
+
     /**
      * All of the applications we currently have running organized by name.
      * The keys are strings of the application package name (as
@@ -476,8 +502,15 @@ public final class ActivityManagerService extends ActivityManagerNative
      * It contains ApplicationRecord objects.  This list does NOT include
      * any persistent application records (since we never want to exit them).
      */
-    final ArrayList<ProcessRecord> mLruProcesses
-            = new ArrayList<ProcessRecord>();
+    final ProcessLruList mLruProcesses = new ProcessLruList();
+
+    /**
+     * Index of the processes in mLruProcesses by the binder of their
+     * application thread, for resolving IApplicationThread callers without
+     * scanning the LRU list.
+     */
+    final HashMap<IBinder, ProcessRecord> mProcessesByThread
+            = new HashMap<IBinder, ProcessRecord>();
 
     /**
      * List of processes that should gc as soon as things are idle.
@@ -794,6 +827,41 @@ public final class ActivityManagerService extends ActivityManagerNative
      */
     int mAdjSeq = 0;
 
+    /**
+     * When set, updateOomAdjLocked(ProcessRecord) re-evaluates only the given
+     * process and the processes that depend on it through service bindings
+     * and provider connections, instead of just the process itself, and
+     * callers that would otherwise need a full update may use it.
+     */
+    static final boolean INCREMENTAL_OOM_ADJ =
+            SystemProperties.getBoolean("ro.am.incremental_oom_adj", false);
+
+    /**
+     * Scratch state for the incremental oom_adj walk.
+     */
+    final ArrayList<ProcessRecord> mOomAdjQueue = new ArrayList<ProcessRecord>();
+    final HashSet<ProcessRecord> mOomAdjQueued = new HashSet<ProcessRecord>();
+
+    /**
+     * Statistics on oom_adj updates, reported by dumpsys activity processes.
+     */
+    int mNumFullOomAdjUpdates = 0;
+    int mNumIncrementalOomAdjUpdates = 0;
+    int mNumSingleOomAdjUpdates = 0;
+    int mNumOomAdjFallbacks = 0;
+    int mLastOomAdjProcsVisited = 0;
+    long mTotalOomAdjProcsVisited = 0;
+
+    /**
+     * Set to write oom_adj and process group changes from a separate thread
+     * instead of with the lock held.
+     */
+    static final boolean ASYNC_PROCESS_STATE_WRITES =
+            SystemProperties.getBoolean("ro.am.async_oom_adj", true);
+
+    final ProcessStateWriter mProcessStateWriter =
+            new ProcessStateWriter(ASYNC_PROCESS_STATE_WRITES);
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -902,6 +970,12 @@ public final class ActivityManagerService extends ActivityManagerNative
     final AtomicLong mLastCpuTime = new AtomicLong(0);
     final AtomicBoolean mProcessStatsMutexFree = new AtomicBoolean(true);
 
+    /**
+     * Passes CPU usage from mProcessStats on to the process records and
+     * battery stats.  Protected by mProcessStatsThread.
+     */
+    final CpuUsageSampler mCpuUsageSampler = new CpuUsageSampler();
+
     long mLastWriteTime = 0;
 
     /**
@@ -913,7 +987,40 @@ public final class ActivityManagerService extends ActivityManagerNative
     int mProcessLimitOverride = -1;
 
     WindowManagerService mWindowManager;
-    MtkThermalSwitchManager mThermalManager;
+
+    /**
+     * Vendor extensions (LTK, thermal switch manager), resolved once.
+     */
+    final AmsVendorHooks mVendorHooks = new AmsVendorHooks();
+
+    /**
+     * Traces activity launches.  Its exporter runs on the vendor hook
+     * thread and does the profiling log and file writes that used to be
+     * done inline when a launch was drawn.
+     */
+    final AppLaunchTracer mLaunchTracer = new AppLaunchTracer(mVendorHooks.getHandler(),
+            new AppLaunchTracer.Listener() {
+        @Override
+        public void onLaunchStarted(AppLaunchTracer.Launch launch) {
+            if (FeatureOption.MTK_MEMORY_COMPRESSION_SUPPORT) {
+                ActivityRecord.triggerMlog("2");
+            }
+        }
+
+        @Override
+        public void onLaunchCompleted(AppLaunchTracer.Launch launch) {
+            if (!SHOW_ACTIVITY_START_TIME) {
+                return;
+            }
+            final long drawn = launch.getPhaseTime(AppLaunchTracer.PHASE_DRAWN);
+            Log.d(TAG, "AP_PROF:AppLaunch_LaunchTime:" + launch.component + ":"
+                    + launch.getTotalTime() + ":" + drawn);
+            ActivityRecord.mtProf("0");
+            if (FeatureOption.MTK_MEMORY_COMPRESSION_SUPPORT) {
+                ActivityRecord.triggerMlog("3");
+            }
+        }
+    });
 
     static ActivityManagerService mSelf;
     static ActivityThread mSystemThread;
@@ -978,6 +1085,7 @@ public final class ActivityManagerService extends ActivityManagerNative
     static final int RESET_SOFTLIMIT = 37;
     /// @}
     static final int FREE_MEM_PROFILE_MSG = 38;    /// M: LCA, accurate service restart
+    static final int PRESTART_PROCESSES_MSG = 39;
     static final int FIRST_ACTIVITY_STACK_MSG = 100;
     static final int FIRST_BROADCAST_QUEUE_MSG = 200;
     static final int FIRST_COMPAT_MODE_MSG = 300;
@@ -995,7 +1103,7 @@ public final class ActivityManagerService extends ActivityManagerNative
     int freeMemProfileSlot = 0;
     /// @}
 
-    final ArrayList<IActivityStateNotifier> mActStateNotifiers = new ArrayList<IActivityStateNotifier>();   /// M: activity state notifier
+    final ActivityStateNotifierBus mActStateNotifiers = new ActivityStateNotifierBus();   /// M: activity state notifier
 
     AlertDialog mUidAlert;
     CompatModeDialog mCompatModeDialog;
@@ -1344,6 +1452,7 @@ public final class ActivityManagerService extends ActivityManagerNative
                 }
             } break;
             case CHECK_EXCESSIVE_WAKE_LOCKS_MSG: {
+                updateCpuStatsNow();
                 synchronized (ActivityManagerService.this) {
                     checkExcessivePowerUsageLocked(true);
                     removeMessages(CHECK_EXCESSIVE_WAKE_LOCKS_MSG);
@@ -1503,6 +1612,12 @@ public final class ActivityManagerService extends ActivityManagerNative
                 break;
             }
             /// @}
+            case PRESTART_PROCESSES_MSG: {
+                synchronized (ActivityManagerService.this) {
+                    mPrestartPool.fillLocked();
+                }
+                break;
+            }
             }
         }
     };
@@ -1553,7 +1668,7 @@ public final class ActivityManagerService extends ActivityManagerNative
 
     public void setThermalManager(MtkThermalSwitchManager tm) {
         Slog.i(TAG, "Set Thermal Manager");
-        mThermalManager = tm;
+        mVendorHooks.setThermalManager(tm);
     }
 
     public static final Context main(int factoryTest) {
@@ -1867,6 +1982,7 @@ public final class ActivityManagerService extends ActivityManagerNative
             }
         };
         mProcessStatsThread.start();
+        mProcessStateWriter.start();
 
         /// M: LCA, accurate service restart @{
         if (FeatureOption.MTK_LCA_RAM_OPTIMIZE) {
@@ -1965,48 +2081,28 @@ public final class ActivityManagerService extends ActivityManagerNative
                 }
             }
             
-            long[] cpuSpeedTimes = mProcessStats.getLastCpuSpeedTimes();
+            // Publish the new numbers for the power check, and hand them to
+            // the process table and then to the battery stats, one lock at
+            // a time.
             final BatteryStatsImpl bstats = mBatteryStatsService.getActiveStatistics();
-            synchronized(bstats) {
+            if (haveNewCpuStats) {
+                final boolean onBattery;
                 synchronized(mPidsSelfLocked) {
-                    if (haveNewCpuStats) {
-                        if (mOnBattery) {
-                            int perc = bstats.startAddingCpuLocked();
-                            int totalUTime = 0;
-                            int totalSTime = 0;
-                            final int N = mProcessStats.countStats();
-                            for (int i=0; i<N; i++) {
-                                ProcessStats.Stats st = mProcessStats.getStats(i);
-                                if (!st.working) {
-                                    continue;
-                                }
-                                ProcessRecord pr = mPidsSelfLocked.get(st.pid);
-                                int otherUTime = (st.rel_utime*perc)/100;
-                                int otherSTime = (st.rel_stime*perc)/100;
-                                totalUTime += otherUTime;
-                                totalSTime += otherSTime;
-                                if (pr != null) {
-                                    BatteryStatsImpl.Uid.Proc ps = pr.batteryStats;
-                                    ps.addCpuTimeLocked(st.rel_utime-otherUTime,
-                                            st.rel_stime-otherSTime);
-                                    ps.addSpeedStepTimes(cpuSpeedTimes);
-                                    pr.curCpuTime += (st.rel_utime+st.rel_stime) * 10;
-                                } else {
-                                    BatteryStatsImpl.Uid.Proc ps =
-                                            bstats.getProcessStatsLocked(st.name, st.pid);
-                                    if (ps != null) {
-                                        ps.addCpuTimeLocked(st.rel_utime-otherUTime,
-                                                st.rel_stime-otherSTime);
-                                        ps.addSpeedStepTimes(cpuSpeedTimes);
-                                    }
-                                }
-                            }
-                            bstats.finishAddingCpuLocked(perc, totalUTime,
-                                    totalSTime, cpuSpeedTimes);
-                        }
+                    onBattery = mOnBattery;
+                }
+                final CpuUsageSampler.Snapshot snapshot = mCpuUsageSampler.sampleLocked(
+                        mProcessStats, mProcessStats.getLastCpuSpeedTimes(), now, onBattery);
+                if (onBattery) {
+                    synchronized(mPidsSelfLocked) {
+                        mCpuUsageSampler.resolveProcessesLocked(snapshot, mPidsSelfLocked);
+                    }
+                    synchronized(bstats) {
+                        mCpuUsageSampler.creditBatteryStatsLocked(snapshot, bstats);
                     }
                 }
+            }
 
+            synchronized(bstats) {
                 if (mLastWriteTime < (now-BATTERY_STATS_TIME)) {
                     mLastWriteTime = now;
                     mBatteryStatsService.getActiveStatistics().writeAsyncLocked();
@@ -2059,12 +2155,11 @@ public final class ActivityManagerService extends ActivityManagerNative
         }
     }
 
-    private final void updateLruProcessInternalLocked(ProcessRecord app, int bestPos) {
+    private final void updateLruProcessInternalLocked(ProcessRecord app,
+            ProcessRecord bound) {
         // put it on the LRU to keep track of when it should be exited.
-        int lrui = mLruProcesses.indexOf(app);
-        if (lrui >= 0) mLruProcesses.remove(lrui);
+        mLruProcesses.remove(app);
         
-        int i = mLruProcesses.size()-1;
         int skipTop = 0;
         
         app.lruSeq = mLruSeq;
@@ -2090,21 +2185,28 @@ public final class ActivityManagerService extends ActivityManagerNative
             skipTop = ProcessList.MIN_HIDDEN_APPS;
         }
 
-        while (i >= 0) {
-            ProcessRecord p = mLruProcesses.get(i);
+        // Walk back from the most recently used end to find where we go.  A
+        // process pulled forward by a client never goes further back than
+        // just before that client (bound).
+        ProcessRecord p = mLruProcesses.getMostRecent();
+        while (p != null) {
             // If this app shouldn't be in front of the first N background
             // apps, then skip over that many that are currently hidden.
             if (skipTop > 0 && p.setAdj >= ProcessList.HIDDEN_APP_MIN_ADJ) {
                 skipTop--;
             }
-            if (p.lruWeight <= app.lruWeight || i < bestPos) {
-                mLruProcesses.add(i+1, app);
+            if (p.lruWeight <= app.lruWeight) {
+                mLruProcesses.insertAfter(p, app);
                 break;
             }
-            i--;
+            if (p == bound) {
+                mLruProcesses.insertAfter(p.lruPrev, app);
+                break;
+            }
+            p = p.lruPrev;
         }
-        if (i < 0) {
-            mLruProcesses.add(0, app);
+        if (p == null) {
+            mLruProcesses.insertAfter(null, app);
         }
         
         // If the app is currently using a content provider or service,
@@ -2114,14 +2216,14 @@ public final class ActivityManagerService extends ActivityManagerNative
                 if (cr.binding != null && cr.binding.service != null
                         && cr.binding.service.app != null
                         && cr.binding.service.app.lruSeq != mLruSeq) {
-                    updateLruProcessInternalLocked(cr.binding.service.app, i+1);
+                    updateLruProcessInternalLocked(cr.binding.service.app, app);
                 }
             }
         }
         for (int j=app.conProviders.size()-1; j>=0; j--) {
             ContentProviderRecord cpr = app.conProviders.get(j).provider;
             if (cpr.proc != null && cpr.proc.lruSeq != mLruSeq) {
-                updateLruProcessInternalLocked(cpr.proc, i+1);
+                updateLruProcessInternalLocked(cpr.proc, app);
             }
         }
     }
@@ -2129,7 +2231,7 @@ public final class ActivityManagerService extends ActivityManagerNative
     final void updateLruProcessLocked(ProcessRecord app,
             boolean oomAdj) {
         mLruSeq++;
-        updateLruProcessInternalLocked(app, 0);
+        updateLruProcessInternalLocked(app, null);
 
         //Slog.i(TAG, "Putting proc to front: " + app.processName);
         if (oomAdj) {
@@ -2496,6 +2598,8 @@ public final class ActivityManagerService extends ActivityManagerNative
             Slog.i(TAG, buf.toString());
 
             logAppLaunchTime(TAG, buf.toString()); /// M: It's for debugging App Launch time
+            mLaunchTracer.notePhaseForProcessLocked(app.processName, app.uid,
+                    AppLaunchTracer.PHASE_PROCESS_START, SystemClock.uptimeMillis());
 
             app.setPid(startResult.pid);
             app.usingWrapper = startResult.usingWrapper;
@@ -2743,7 +2847,8 @@ public final class ActivityManagerService extends ActivityManagerNative
         updateUsageStats(r, true);
 
         if (FeatureOption.MTK_BENCHMARK_BOOST_TP) {
-            mThermalManager.notifyAppState(r.packageName, MtkThermalSwitchManager.AppState.Resumed);
+            mVendorHooks.notifyThermalAppState(r.packageName,
+                    MtkThermalSwitchManager.AppState.Resumed);
             if (DEBUG_THERMAL) Slog.v(
                 TAG, "Notify Thermal Manager that Package =" + r.packageName+ "is Resumed");
         }
@@ -3311,7 +3416,8 @@ public final class ActivityManagerService extends ActivityManagerNative
 
         /// M: Notify thermal manager that AP is dead
         if (FeatureOption.MTK_BENCHMARK_BOOST_TP) {
-            mThermalManager.notifyAppState(app.info.packageName, MtkThermalSwitchManager.AppState.Dead);
+            mVendorHooks.notifyThermalAppState(app.info.packageName,
+                    MtkThermalSwitchManager.AppState.Dead);
             if (DEBUG_THERMAL) Slog.v(
                 TAG, "Notify Thermal Manager that Package = " + app.info.packageName + " is dead ");
         }
@@ -3364,8 +3470,26 @@ public final class ActivityManagerService extends ActivityManagerNative
             return null;
         }
 
+        final IBinder threadBinder = thread.asBinder();
+        ProcessRecord rec = mProcessesByThread.get(threadBinder);
+        if (rec != null) {
+            if (rec.thread != null && rec.thread.asBinder() == threadBinder
+                    && mLruProcesses.contains(rec)) {
+                return rec;
+            }
+            // The record has since been given another thread or has gone;
+            // don't keep its binder alive.
+            mProcessesByThread.remove(threadBinder);
+        }
+
+        // Not indexed yet; fall back to scanning the LRU list.
         int appIndex = getLRURecordIndexForAppLocked(thread);
-        return appIndex >= 0 ? mLruProcesses.get(appIndex) : null;
+        if (appIndex < 0) {
+            return null;
+        }
+        rec = mLruProcesses.get(appIndex);
+        mProcessesByThread.put(threadBinder, rec);
+        return rec;
     }
 
     final void appDiedLocked(ProcessRecord app, int pid,
@@ -4561,6 +4685,8 @@ public final class ActivityManagerService extends ActivityManagerNative
                     badApps.remove();
                 }
             }
+
+            mPrestartPool.removePackageLocked(name, userId);
         }
 
         boolean didSomething = killPackageProcessesLocked(name, appId, userId,
@@ -4879,10 +5005,20 @@ public final class ActivityManagerService extends ActivityManagerNative
 
         EventLog.writeEvent(EventLogTags.AM_PROC_BOUND, app.userId, app.pid, app.processName);
         
+        if (app.thread != null
+                && mProcessesByThread.get(app.thread.asBinder()) == app) {
+            mProcessesByThread.remove(app.thread.asBinder());
+        }
         app.thread = thread;
+        mProcessesByThread.put(thread.asBinder(), app);
         app.curAdj = app.setAdj = -100;
         app.curSchedGroup = Process.THREAD_GROUP_DEFAULT;
         app.setSchedGroup = Process.THREAD_GROUP_BG_NONINTERACTIVE;
+        if (mProcessStateWriter.takeStalePid(pid)) {
+            // A group meant for the previous process with this pid may have
+            // been written to this one; make sure ours is written too.
+            app.setSchedGroup = ProcessStateWriter.UNCHANGED;
+        }
         app.forcingToForeground = null;
         app.foregroundServices = false;
         app.hasShownUi = false;
@@ -4951,6 +5087,8 @@ public final class ActivityManagerService extends ActivityManagerNative
             }
 
             logAppLaunchTime(TAG, "bindApplication -> ActivityThread"); /// M: It's for debugging App Launch time
+            mLaunchTracer.notePhaseForProcessLocked(app.processName, app.uid,
+                    AppLaunchTracer.PHASE_BIND_APPLICATION, SystemClock.uptimeMillis());
 
             thread.bindApplication(processName, appInfo, providers,
                     app.instrumentationClass, profileFile, profileFd, profileAutoStop,
@@ -7035,40 +7173,51 @@ public final class ActivityManagerService extends ActivityManagerNative
      * given {@link ProviderInfo}. Final permission checking is always done
      * in {@link ContentProvider}.
      */
-    private final String checkContentProviderPermissionLocked(
-            ProviderInfo cpi, ProcessRecord r) {
-        final int callingPid = (r != null) ? r.pid : Binder.getCallingPid();
-        final int callingUid = (r != null) ? r.uid : Binder.getCallingUid();
+    /**
+     * The part of {@link #checkContentProviderPermissionLocked} that only
+     * depends on the provider's declared permissions, and so can be done
+     * without holding the activity manager lock.  Returns true if access
+     * is granted; false means the full check must be done.
+     */
+    private final boolean checkContentProviderComponentPermission(
+            ProviderInfo cpi, int callingPid, int callingUid) {
         if (checkComponentPermission(cpi.readPermission, callingPid, callingUid,
                 cpi.applicationInfo.uid, cpi.exported)
                 == PackageManager.PERMISSION_GRANTED) {
-            return null;
+            return true;
         }
         if (checkComponentPermission(cpi.writePermission, callingPid, callingUid,
                 cpi.applicationInfo.uid, cpi.exported)
                 == PackageManager.PERMISSION_GRANTED) {
-            return null;
+            return true;
         }
-        
         PathPermission[] pps = cpi.pathPermissions;
         if (pps != null) {
-            int i = pps.length;
-            while (i > 0) {
-                i--;
+            for (int i = pps.length - 1; i >= 0; i--) {
                 PathPermission pp = pps[i];
                 if (checkComponentPermission(pp.getReadPermission(), callingPid, callingUid,
                         cpi.applicationInfo.uid, cpi.exported)
                         == PackageManager.PERMISSION_GRANTED) {
-                    return null;
+                    return true;
                 }
                 if (checkComponentPermission(pp.getWritePermission(), callingPid, callingUid,
                         cpi.applicationInfo.uid, cpi.exported)
                         == PackageManager.PERMISSION_GRANTED) {
-                    return null;
+                    return true;
                 }
             }
         }
-        
+        return false;
+    }
+
+    private final String checkContentProviderPermissionLocked(
+            ProviderInfo cpi, ProcessRecord r) {
+        final int callingPid = (r != null) ? r.pid : Binder.getCallingPid();
+        final int callingUid = (r != null) ? r.uid : Binder.getCallingUid();
+        if (checkContentProviderComponentPermission(cpi, callingPid, callingUid)) {
+            return null;
+        }
+
         HashMap<Uri, UriPermission> perms = mGrantedUriPermissions.get(callingUid);
         if (perms != null) {
             for (Map.Entry<Uri, UriPermission> uri : perms.entrySet()) {
@@ -7162,6 +7311,17 @@ public final class ActivityManagerService extends ActivityManagerNative
         ContentProviderConnection conn = null;
         ProviderInfo cpi = null;
 
+        // If the provider is already published, do the permission checks
+        // that don't need our state (and which call into the package
+        // manager) before taking the lock.
+        final int callingPid = Binder.getCallingPid();
+        final int callingUid = Binder.getCallingUid();
+        final ContentProviderRecord prechecked = mProviderMap.getPublishedProviderByName(
+                name, userId);
+        final boolean precheckGranted = prechecked != null
+                && checkContentProviderComponentPermission(prechecked.info,
+                        callingPid, callingUid);
+
         synchronized(this) {
             ProcessRecord r = null;
             if (caller != null) {
@@ -7179,8 +7339,10 @@ public final class ActivityManagerService extends ActivityManagerNative
             boolean providerRunning = cpr != null;
             if (providerRunning) {
                 cpi = cpr.info;
+                final boolean granted = precheckGranted && cpr == prechecked
+                        && (r == null || (r.pid == callingPid && r.uid == callingUid));
                 String msg;
-                if ((msg=checkContentProviderPermissionLocked(cpi, r)) != null) {
+                if (!granted && (msg=checkContentProviderPermissionLocked(cpi, r)) != null) {
                     throw new SecurityException(msg);
                 }
 
@@ -7471,7 +7633,13 @@ public final class ActivityManagerService extends ActivityManagerNative
                 throw new NullPointerException("connection is null");
             }
             if (decProviderCountLocked(conn, null, null, stable)) {
-                updateOomAdjLocked();
+                if (conn.provider.proc != null) {
+                    // Only the provider's host (and whatever depends on
+                    // it) can have become less important.
+                    updateOomAdjLocked(conn.provider.proc);
+                } else {
+                    updateOomAdjLocked();
+                }
             }
         }
     }
@@ -7891,6 +8059,9 @@ public final class ActivityManagerService extends ActivityManagerNative
                     + android.Manifest.permission.DEVICE_POWER);
         }
 
+        // Parse the CPU stats before taking the lock, for the power check.
+        updateCpuStatsNow();
+
         synchronized(this) {
             Slog.i(TAG, "goingToSleep");
             mWentToSleep = true;
@@ -8618,6 +8789,19 @@ public final class ActivityManagerService extends ActivityManagerNative
             }
             
             mSystemReady = true;
+            mMemoryPressure.start(MEMORY_PRESSURE_INTERVAL, new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (ActivityManagerService.this) {
+                                updateOomAdjLocked();
+                            }
+                        }
+                    });
+                }
+            });
             if (!mStartRunning) {
                 return;
             }
@@ -9781,6 +9965,7 @@ public final class ActivityManagerService extends ActivityManagerNative
                 pw.println("    i[ntents] [PACKAGE_NAME]: pending intent state");
                 pw.println("    p[rocesses] [PACKAGE_NAME]: process state");
                 pw.println("    o[om]: out of memory management");
+                pw.println("    l[aunches]: activity launch timing");
                 pw.println("    prov[iders] [COMP_SPEC ...]: content provider state");
                 pw.println("    provider [COMP_SPEC]: provider client-side state");
                 pw.println("    s[ervices] [COMP_SPEC ...]: service state");
@@ -9890,6 +10075,10 @@ public final class ActivityManagerService extends ActivityManagerNative
                 synchronized (this) {
                     dumpOomLocked(fd, pw, args, opti, true);
                 }
+            } else if ("launches".equals(cmd) || "l".equals(cmd)) {
+                synchronized (this) {
+                    mLaunchTracer.dumpLocked(pw, dumpAll);
+                }
             } else if ("provider".equals(cmd)) {
                 String[] newArgs;
                 String name;
@@ -10366,7 +10555,22 @@ public final class ActivityManagerService extends ActivityManagerNative
                     pw.println("");
             pw.println("  mGoingToSleep=" + mMainStack.mGoingToSleep);
             pw.println("  mLaunchingActivity=" + mMainStack.mLaunchingActivity);
-            pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+            pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq
+                    + " lruIndexRebuilds=" + mLruProcesses.getIndexRebuildCount());
+            pw.println("  oom_adj updates: full=" + mNumFullOomAdjUpdates
+                    + " incremental=" + mNumIncrementalOomAdjUpdates
+                    + " single=" + mNumSingleOomAdjUpdates
+                    + " fallbacks=" + mNumOomAdjFallbacks);
+            final int numOomAdjUpdates = mNumFullOomAdjUpdates
+                    + mNumIncrementalOomAdjUpdates + mNumSingleOomAdjUpdates;
+            pw.println("  oom_adj procs visited: last=" + mLastOomAdjProcsVisited
+                    + " total=" + mTotalOomAdjProcsVisited
+                    + " avg=" + (numOomAdjUpdates > 0
+                            ? (mTotalOomAdjProcsVisited / numOomAdjUpdates) : 0));
+            mProcessStateWriter.dump(pw, "  ");
+            mActStateNotifiers.dump(pw, "  ");
+            mMemoryPressure.dump(pw, "  ");
+            mPrestartPool.dumpLocked(pw, "  ");
             pw.println("  mNumNonHiddenProcs=" + mNumNonHiddenProcs
                     + " mNumHiddenProcs=" + mNumHiddenProcs
                     + " mNumServiceProcs=" + mNumServiceProcs
@@ -10484,8 +10688,8 @@ public final class ActivityManagerService extends ActivityManagerNative
         /// M: LTK @{
         if (FeatureOption.MTK_MEMORY_COMPRESSION_SUPPORT) {
             try {
-                IAmsPlus amsplus = MediatekClassFactory.createInstance(IAmsPlus.class);
-                pw.println("  LTK enabled: " + amsplus.isEnabled());
+                IAmsPlus amsplus = mVendorHooks.getAmsPlus();
+                pw.println("  LTK enabled: " + (amsplus != null && amsplus.isEnabled()));
             } catch (Exception e) {
                 pw.println("  LTK enabled: false");
             }
@@ -11128,7 +11332,11 @@ public final class ActivityManagerService extends ActivityManagerNative
                         pw.println("%)");
                     }
                     if (r.lastCpuTime != 0) {
-                        long timeUsed = r.curCpuTime - r.lastCpuTime;
+                        final CpuUsageSampler.Snapshot cpu =
+                                service.mCpuUsageSampler.acquireLatest();
+                        long timeUsed = (cpu != null ? cpu.getCpuTime(r.pid, r.curCpuTime)
+                                : r.curCpuTime) - r.lastCpuTime;
+                        service.mCpuUsageSampler.release(cpu);
                         pw.print(prefix);
                         pw.print("    ");
                         pw.print("run cpu over ");
@@ -11655,6 +11863,10 @@ public final class ActivityManagerService extends ActivityManagerNative
         }
 
         mProcessesToGc.remove(app);
+        if (app.pid > 0) {
+            mProcessStateWriter.cancel(app.pid);
+        }
+        mPrestartPool.noteProcessDiedLocked(app);
         /// M: ALPS00497111 [Volunteer free] LCA Memory Optimized @{
         if(FeatureOption.MTK_LCA_RAM_OPTIMIZE)
         {
@@ -11680,6 +11892,10 @@ public final class ActivityManagerService extends ActivityManagerNative
         
         app.resetPackageList();
         app.unlinkDeathRecipient();
+        if (app.thread != null
+                && mProcessesByThread.get(app.thread.asBinder()) == app) {
+            mProcessesByThread.remove(app.thread.asBinder());
+        }
         app.thread = null;
         app.forcingToForeground = null;
         app.foregroundServices = false;
@@ -12817,7 +13033,11 @@ public final class ActivityManagerService extends ActivityManagerNative
             final boolean replaced = replacePending && queue.replaceParallelBroadcastLocked(r);
             if (!replaced) {
                 queue.enqueueParallelBroadcastLocked(r);
-                queue.scheduleBroadcastsLocked();
+                if (replacePending) {
+                    queue.scheduleCoalescedBroadcastsLocked();
+                } else {
+                    queue.scheduleBroadcastsLocked();
+                }
             }
             registeredReceivers = null;
             NR = 0;
@@ -13267,6 +13487,8 @@ public final class ActivityManagerService extends ActivityManagerNative
 
             if (mWindowManager != null) {
                 mProcessList.applyDisplaySize(mWindowManager);
+                mMemoryPressure.setHiddenKillLevelKb(
+                        mProcessList.getMemLevel(ProcessList.HIDDEN_APP_MAX_ADJ) / 1024);
             }
 
             final long origId = Binder.clearCallingIdentity();
@@ -14446,9 +14668,21 @@ public final class ActivityManagerService extends ActivityManagerNative
         }
     }
 
+    /**
+     * Callers should call updateCpuStatsNow() first, without the lock held;
+     * this uses the CPU times in the snapshot it last published.
+     */
     final void checkExcessivePowerUsageLocked(boolean doKills) {
-        updateCpuStatsNow();
+        final CpuUsageSampler.Snapshot cpu = mCpuUsageSampler.acquireLatest();
+        try {
+            checkExcessivePowerUsageLocked(doKills, cpu);
+        } finally {
+            mCpuUsageSampler.release(cpu);
+        }
+    }
 
+    private void checkExcessivePowerUsageLocked(boolean doKills,
+            CpuUsageSampler.Snapshot cpu) {
         BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
         boolean doWakeKills = doKills;
         boolean doCpuKills = doKills;
@@ -14484,6 +14718,9 @@ public final class ActivityManagerService extends ActivityManagerNative
                             app.pid, curRealtime);
                 }
                 long wtimeUsed = wtime - app.lastWakeTime;
+                if (cpu != null) {
+                    app.curCpuTime = cpu.getCpuTime(app.pid, app.curCpuTime);
+                }
                 long cputimeUsed = app.curCpuTime - app.lastCpuTime;
                 if (DEBUG_POWER) {
                     StringBuilder sb = new StringBuilder(128);
@@ -14571,6 +14808,11 @@ public final class ActivityManagerService extends ActivityManagerNative
                     app.lastWakeTime = stats.getProcessWakeTime(app.info.uid,
                             app.pid, SystemClock.elapsedRealtime());
                 }
+                final CpuUsageSampler.Snapshot cpu = mCpuUsageSampler.acquireLatest();
+                if (cpu != null) {
+                    app.curCpuTime = cpu.getCpuTime(app.pid, app.curCpuTime);
+                    mCpuUsageSampler.release(cpu);
+                }
                 app.lastCpuTime = app.curCpuTime;
             }
 
@@ -14581,15 +14823,9 @@ public final class ActivityManagerService extends ActivityManagerNative
             /// M: LTK @{
             if (FeatureOption.MTK_MEMORY_COMPRESSION_SUPPORT) {
                 if(app.curAdj > app.setAdj && (app.curAdj >= ProcessList.PREVIOUS_APP_ADJ) && app.hasShownUi) {
-                    try {
-                        IAmsPlus amsplus = MediatekClassFactory.createInstance(IAmsPlus.class);
-                        amsplus.afterAdjAdjustment(mMainStack.convertProcessRecord(app),
-                                                   app.setAdj,
-                                                   app.curAdj,
-                                                   mMainStack.convertLaunchRecord(mMainStack.topRunningActivityLocked(null)));
-                    } catch (Exception e) {
-                        Log.w(TAG, "[LTK] Exception thrown during afterAdjAdjustment failed:", e);
-                    }
+                    mVendorHooks.afterAdjAdjustment(mMainStack.convertProcessRecord(app),
+                            app.setAdj, app.curAdj,
+                            mMainStack.convertLaunchRecord(mMainStack.topRunningActivityLocked(null)));
                 }
             } 
             /// @}
@@ -14610,7 +14846,7 @@ public final class ActivityManagerService extends ActivityManagerNative
             
             if(isWLProc)
             {
-                if (Process.setOomAdj(app.pid, ProcessList.HIDDEN_APP_MIN_ADJ)) {
+                if (mProcessStateWriter.setOomAdj(app.pid, ProcessList.HIDDEN_APP_MIN_ADJ)) {
                     if (DEBUG_SWITCH || DEBUG_OOM_ADJ) Slog.v(
                         TAG, "Set " + app.pid + " " + app.processName +
                         " adj " + ProcessList.HIDDEN_APP_MIN_ADJ + ": " + app.adjType);
@@ -14622,7 +14858,7 @@ public final class ActivityManagerService extends ActivityManagerNative
             }
             else
             {
-                if (Process.setOomAdj(app.pid, app.curAdj)) {
+                if (mProcessStateWriter.setOomAdj(app.pid, app.curAdj)) {
                     if (DEBUG_SWITCH || DEBUG_OOM_ADJ) Slog.v(
                         TAG, "Set " + app.pid + " " + app.processName +
                         " adj " + app.curAdj + ": " + app.adjType);
@@ -14645,17 +14881,14 @@ public final class ActivityManagerService extends ActivityManagerNative
                 EventLog.writeEvent(EventLogTags.AM_KILL, app.userId, app.pid,
                         app.processName, app.setAdj, app.waitingToKill);
                 app.killedBackground = true;
+                mProcessStateWriter.cancel(app.pid);
                 Process.killProcessQuiet(app.pid);
                 success = false;
             } else {
                 if (true) {
                     long oldId = Binder.clearCallingIdentity();
                     try {
-                        Process.setProcessGroup(app.pid, app.curSchedGroup);
-                    } catch (Exception e) {
-                        Slog.w(TAG, "Failed setting process group of " + app.pid
-                                + " to " + app.curSchedGroup);
-                        e.printStackTrace();
+                        mProcessStateWriter.setProcessGroup(app.pid, app.curSchedGroup);
                     } finally {
                         Binder.restoreCallingIdentity(oldId);
                     }
@@ -14684,6 +14917,10 @@ public final class ActivityManagerService extends ActivityManagerNative
     }
 
     final boolean updateOomAdjLocked(ProcessRecord app) {
+        if (INCREMENTAL_OOM_ADJ) {
+            return updateOomAdjIncrementalLocked(app);
+        }
+
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         int curAdj = app.curAdj;
@@ -14691,6 +14928,9 @@ public final class ActivityManagerService extends ActivityManagerNative
             && curAdj <= ProcessList.HIDDEN_APP_MAX_ADJ;
 
         mAdjSeq++;
+        mNumSingleOomAdjUpdates++;
+        mLastOomAdjProcsVisited = 1;
+        mTotalOomAdjProcsVisited++;
 
         boolean success = updateOomAdjLocked(app, app.hiddenAdj, app.clientHiddenAdj,
                 app.emptyAdj, TOP_APP, false);
@@ -14699,6 +14939,93 @@ public final class ActivityManagerService extends ActivityManagerNative
         if (nowHidden != wasHidden) {
             // Changed to/from hidden state, so apps after it in the LRU
             // list may also be changed.
+            mNumOomAdjFallbacks++;
+            updateOomAdjLocked();
+        }
+        return success;
+    }
+
+    /**
+     * Re-evaluate the oom_adj of the given process and of every process whose
+     * importance can derive from it: the hosts of services it is bound to and
+     * of providers it holds, transitively.  The walk stops at processes whose
+     * computed state did not change.  If any visited process moves into or
+     * out of the hidden range, the hidden slots of the whole LRU list may shift,
+     * so we fall back to a full update.
+     */
+    private final boolean updateOomAdjIncrementalLocked(ProcessRecord app) {
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+
+        mAdjSeq++;
+        mNumIncrementalOomAdjUpdates++;
+
+        final ArrayList<ProcessRecord> queue = mOomAdjQueue;
+        final HashSet<ProcessRecord> queued = mOomAdjQueued;
+        queue.clear();
+        queued.clear();
+        queue.add(app);
+        queued.add(app);
+
+        boolean success = true;
+        boolean hiddenChanged = false;
+        int visited = 0;
+        for (int i = 0; i < queue.size(); i++) {
+            final ProcessRecord proc = queue.get(i);
+            // A process already computed in this pass, as a client reached
+            // through computeOomAdjLocked's recursion, no longer has its
+            // state from before the pass in its cur fields; compare what
+            // was last applied instead, and always go on to its hosts.
+            final boolean computed = proc.adjSeq == mAdjSeq;
+            final int oldRawAdj = computed ? proc.setRawAdj : proc.curRawAdj;
+            final int oldAdj = computed ? proc.setAdj : proc.curAdj;
+            final int oldSchedGroup = computed ? proc.setSchedGroup : proc.curSchedGroup;
+            final boolean oldHiddenFlag = proc.hidden;
+            final boolean oldClientActivities = proc.hasClientActivities;
+            final boolean wasHidden = oldAdj >= ProcessList.HIDDEN_APP_MIN_ADJ
+                    && oldAdj <= ProcessList.HIDDEN_APP_MAX_ADJ;
+
+            visited++;
+            if (!updateOomAdjLocked(proc, proc.hiddenAdj, proc.clientHiddenAdj,
+                    proc.emptyAdj, TOP_APP, false)) {
+                success = false;
+            }
+
+            final boolean nowHidden = proc.curAdj >= ProcessList.HIDDEN_APP_MIN_ADJ
+                    && proc.curAdj <= ProcessList.HIDDEN_APP_MAX_ADJ;
+            if (nowHidden != wasHidden) {
+                hiddenChanged = true;
+                break;
+            }
+            if (proc != app && !computed && proc.curRawAdj == oldRawAdj
+                    && proc.curSchedGroup == oldSchedGroup
+                    && proc.hidden == oldHiddenFlag
+                    && proc.hasClientActivities == oldClientActivities) {
+                // Nothing that our dependencies look at has changed.
+                continue;
+            }
+
+            for (ConnectionRecord cr : proc.connections) {
+                final ProcessRecord host = cr.binding.service.app;
+                if (host != null && host != proc && queued.add(host)) {
+                    queue.add(host);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+                if (host != null && host != proc && queued.add(host)) {
+                    queue.add(host);
+                }
+            }
+        }
+        queue.clear();
+        queued.clear();
+
+        mLastOomAdjProcsVisited = visited;
+        mTotalOomAdjProcsVisited += visited;
+
+        if (hiddenChanged) {
+            mNumOomAdjFallbacks++;
             updateOomAdjLocked();
         }
         return success;
@@ -14717,17 +15044,22 @@ public final class ActivityManagerService extends ActivityManagerNative
 
         mAdjSeq++;
         mNewNumServiceProcs = 0;
+        mNumFullOomAdjUpdates++;
+        mLastOomAdjProcsVisited = mLruProcesses.size();
+        mTotalOomAdjProcsVisited += mLruProcesses.size();
 
+        final int processLimit = mProcessLimitOverride < 0
+                ? mMemoryPressure.getProcessLimit() : mProcessLimit;
         final int emptyProcessLimit;
         final int hiddenProcessLimit;
-        if (mProcessLimit <= 0) {
+        if (processLimit <= 0) {
             emptyProcessLimit = hiddenProcessLimit = 0;
-        } else if (mProcessLimit == 1) {
+        } else if (processLimit == 1) {
             emptyProcessLimit = 1;
             hiddenProcessLimit = 0;
         } else {
-            emptyProcessLimit = (mProcessLimit*2)/3;
-            hiddenProcessLimit = mProcessLimit - emptyProcessLimit;
+            emptyProcessLimit = (processLimit*2)/3;
+            hiddenProcessLimit = processLimit - emptyProcessLimit;
         }
 
         // Let's determine how many processes we have running vs.
@@ -14936,8 +15268,8 @@ public final class ActivityManagerService extends ActivityManagerNative
         // are managing to keep around is less than half the maximum we desire;
         // if we are keeping a good number around, we'll let them use whatever
         // memory they want.
-        if (numHidden <= ProcessList.TRIM_HIDDEN_APPS
-                && numEmpty <= ProcessList.TRIM_EMPTY_APPS) {
+        if (numHidden <= mMemoryPressure.getTrimHiddenApps()
+                && numEmpty <= mMemoryPressure.getTrimEmptyApps()) {
             final int numHiddenAndEmpty = numHidden + numEmpty;
             final int N = mLruProcesses.size();
             int factor = numTrimming/3;
@@ -14953,9 +15285,9 @@ public final class ActivityManagerService extends ActivityManagerNative
             /// @}
             int step = 0;
             int fgTrimLevel;
-            if (numHiddenAndEmpty <= ProcessList.TRIM_CRITICAL_THRESHOLD) {
+            if (numHiddenAndEmpty <= mMemoryPressure.getTrimCriticalThreshold()) {
                 fgTrimLevel = ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
-            } else if (numHiddenAndEmpty <= ProcessList.TRIM_LOW_THRESHOLD) {
+            } else if (numHiddenAndEmpty <= mMemoryPressure.getTrimLowThreshold()) {
                 fgTrimLevel = ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
             } else {
                 fgTrimLevel = ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE;
@@ -16499,23 +16831,28 @@ public final class ActivityManagerService extends ActivityManagerNative
      * M: activity state notifier
      */
     public void registerActivityStateNotifier(IActivityStateNotifier notifier) {
+        registerActivityStateNotifier(notifier, null, true,
+                ActivityStateNotifierBus.POLICY_COALESCE);
+    }
+
+    /**
+     * Registers a notifier that only hears about the given activity states
+     * (null for all) and, if wantsAppDied, process deaths.  Notifications
+     * are delivered asynchronously; policy says what to drop if the notifier
+     * falls behind.
+     */
+    public void registerActivityStateNotifier(IActivityStateNotifier notifier,
+            EnumSet<IActivityStateNotifier.ActivityState> states, boolean wantsAppDied,
+            int policy) {
         Slog.i(TAG, "registerActivityStateNotifier");
-        if (!mActStateNotifiers.contains(notifier)) {
-            mActStateNotifiers.add(notifier);
-        }
+        mActStateNotifiers.register(notifier, states, wantsAppDied, policy);
     }
 
     void notifyActivityState(String packageName, String className, IActivityStateNotifier.ActivityState actState) {
-        for (int i = 0; i < mActStateNotifiers.size(); i++) {
-            IActivityStateNotifier notifier = mActStateNotifiers.get(i);
-            notifier.notifyActivityState(packageName, className, actState);
-        }
+        mActStateNotifiers.postActivityStateLocked(packageName, className, actState);
     }
 
     void notifyAppDied(HashSet<String> packageList) {
-        for (int i = 0; i < mActStateNotifiers.size(); i++) {
-            IActivityStateNotifier notifier = mActStateNotifiers.get(i);
-            notifier.notifyAppDied(packageList);
-        }
+        mActStateNotifiers.postAppDiedLocked(packageList);
     }
 }
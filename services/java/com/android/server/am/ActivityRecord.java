@@ -98,6 +98,7 @@ final class ActivityRecord {
     TaskRecord task;        // the task this is in.
     ThumbnailHolder thumbHolder; // where our thumbnails should go.
     long launchTime;        // when we starting launching this activity
+    long launchTraceSeq;    // launch being traced by AppLaunchTracer
     long startTime;         // last time this activity was started
     long lastVisibleTime;   // last time this activity became visible
     long cpuTimeAtResume;   // the cpu time of host process at the time of resuming activity
@@ -803,32 +804,12 @@ final class ActivityRecord {
                     Log.i(ActivityManagerService.TAG, sb.toString());
                     /// M: Add systrace for app launch time
                     Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "logAppLaunchTime : " + sb);
-                    Log.d(ActivityManagerService.TAG, "AP_PROF:AppLaunch_LaunchTime:" + shortComponentName + ":" + thisTime + ":" + curTime);
                     Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
-                    mtProf(new String("0"));
-
-                    /// M: Trigger Memory Log @{
-                    if(FeatureOption.MTK_MEMORY_COMPRESSION_SUPPORT) {
-                        // trigger mlog
-                        FileOutputStream fos = null;
-                        String path = "/sys/module/mlog/parameters/do_mlog";
-                        try {
-                            String data = "3";
-                            fos = new FileOutputStream(path);
-                            fos.write(data.getBytes());
-                        } catch (IOException e) {
-                            Slog.w(ActivityManagerService.TAG, "Unable to write " + path);
-                        } finally {
-                            if (fos != null) {
-                                try {
-                                    fos.close();
-                                } catch (IOException e) {
-                                }
-                            }
-                        }
-                    }
-                    /// Trigger Memory Log @}
                 }
+                /// M: AP_PROF, mtprof and mlog are written by the tracer's exporter.
+                service.mLaunchTracer.finishLocked(launchTraceSeq, shortComponentName,
+                        launchTime, curTime);
+                launchTraceSeq = 0;
                 stack.reportActivityLaunchedLocked(false, this, thisTime, totalTime);
                 if (totalTime > 0) {
                     service.mUsageStatsService.noteLaunchTime(realActivity, (int)totalTime);
@@ -1035,6 +1016,28 @@ final class ActivityRecord {
         return stringName = sb.toString();
     }
 
+    /**
+     * M: Trigger a memory log; event is "2" at launch start and "3" when
+     * the launch is drawn.  Does file I/O, keep it off the launch path.
+     */
+    static void triggerMlog(String event) {
+        FileOutputStream fos = null;
+        String path = "/sys/module/mlog/parameters/do_mlog";
+        try {
+            fos = new FileOutputStream(path);
+            fos.write(event.getBytes());
+        } catch (IOException e) {
+            Slog.w(ActivityManagerService.TAG, "Unable to write " + path);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
     /*
         * M:
         * MT profiling interface:
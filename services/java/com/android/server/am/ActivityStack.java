@@ -68,7 +68,6 @@ import android.os.Process;
 
 import java.io.IOException;
 /// M: add for memory log @ {
-import java.io.FileOutputStream;
 /// @}
 
 /// M: add for LCA @ {
@@ -82,7 +81,6 @@ import java.util.Iterator;
 import java.util.List;
 
 /// M: LTK
-import com.mediatek.common.MediatekClassFactory;
 import com.mediatek.common.amsplus.IAmsPlus;
 import com.mediatek.common.amsplus.IAmsPlusLaunchRecord;
 import com.mediatek.common.amsplus.IAmsPlusProcessRecord;
@@ -772,8 +770,10 @@ final class ActivityStack {
             /// M: LTK @{
             if (FeatureOption.MTK_MEMORY_COMPRESSION_SUPPORT && !app.hasShownUi) {
                 try {
-                    IAmsPlus ap = MediatekClassFactory.createInstance(IAmsPlus.class);
-                    ap.beforeScheduleLaunchActivity(convertLaunchRecord(r));
+                    IAmsPlus ap = mService.mVendorHooks.getAmsPlus();
+                    if (ap != null) {
+                        ap.beforeScheduleLaunchActivity(convertLaunchRecord(r));
+                    }
                 } catch (Exception e) {
                     Log.e(TAG, "[LTK] Exception thrown during beforeScheduleLaunchActivity failed:", e);
                 }
@@ -791,6 +791,8 @@ final class ActivityStack {
             }
 
             mService.logAppLaunchTime(TAG, "scheduleLaunchActivity -> ActivityThread"); // M: It's for debugging App Launch time
+            mService.mLaunchTracer.notePhaseLocked(r.launchTraceSeq,
+                    AppLaunchTracer.PHASE_LAUNCH_ACTIVITY, SystemClock.uptimeMillis());
 
             app.thread.scheduleLaunchActivity(new Intent(r.intent), r.appToken,
                     System.identityHashCode(r), r.info,
@@ -996,32 +998,18 @@ final class ActivityStack {
             if (mInitialStartTime == 0) {
                 mInitialStartTime = r.launchTime;
             }
-
-            /// M: Trigger Memory Log @{
-            if(FeatureOption.MTK_MEMORY_COMPRESSION_SUPPORT) {
-                // trigger mlog
-                FileOutputStream fos = null;
-                String path = "/sys/module/mlog/parameters/do_mlog";
-                try {
-                    String data = "2";
-                    fos = new FileOutputStream(path);
-                    fos.write(data.getBytes());
-                } catch (IOException e) {
-                    Slog.w(ActivityManagerService.TAG, "Unable to write " + path);
-                } finally {
-                    if (fos != null) {
-                        try {
-                            fos.close();
-                        } catch (IOException e) {
-                        }
-                    }
-                }
-            }
-            /// Trigger Memory Log @}
+            /// M: the memory log trigger is written by the tracer's exporter.
+            r.launchTraceSeq = mService.mLaunchTracer.beginLocked(r.shortComponentName,
+                    r.processName, r.info.applicationInfo.uid, r.launchTime);
         } else if (mInitialStartTime == 0) {
             mInitialStartTime = SystemClock.uptimeMillis();
         }
 
+        if (mService.mPrestartPool.noteLaunchLocked(r.processName, r.info.applicationInfo,
+                app)) {
+            mService.mLaunchTracer.notePooledLocked(r.launchTraceSeq);
+        }
+
         if (app != null && app.thread != null) {
             try {
                 app.addPackage(r.info.packageName);
@@ -1325,8 +1313,8 @@ final class ActivityStack {
                             if (topRecord != null && r.app != null) {
                                 final boolean isTopApp = r.app == topRecord.app;
                                 if (DEBUG_STATES) Slog.v(TAG, "LTK top isHome:" + topRecord.isHomeActivity);
-                                if (topRecord.isHomeActivity && !isTopApp) {
-                                    IAmsPlus ap = MediatekClassFactory.createInstance(IAmsPlus.class);
+                                final IAmsPlus ap = mService.mVendorHooks.getAmsPlus();
+                                if (topRecord.isHomeActivity && !isTopApp && ap != null) {
                                     ActivityRecord topAct = topRunningActivityLocked(mPausingActivity);
                                     ap.onActivityPauseTimeout(convertProcessRecord(r.app), convertLaunchRecord(topAct), timeout);
                                 }
@@ -1349,7 +1337,8 @@ final class ActivityStack {
                 }
                 /// M:Notify thermal manager activity is paused.
                 if (FeatureOption.MTK_BENCHMARK_BOOST_TP) {
-                    mService.mThermalManager.notifyAppState(r.packageName, MtkThermalSwitchManager.AppState.Paused);
+                    mService.mVendorHooks.notifyThermalAppState(r.packageName,
+                            MtkThermalSwitchManager.AppState.Paused);
                     if (DEBUG_THERMAL) Slog.v(
                         TAG, "Notify Thermal Manager that Package = " + r.packageName + "is paused");
                 }
@@ -1507,6 +1496,8 @@ final class ActivityStack {
         next.idle = false;
         next.results = null;
         next.newIntents = null;
+        mService.mLaunchTracer.notePhaseLocked(next.launchTraceSeq,
+                AppLaunchTracer.PHASE_RESUMED, SystemClock.uptimeMillis());
 
         Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "amCompleteResume"); /// M: Add for LCA launch time debug
 
@@ -4613,7 +4604,8 @@ final class ActivityStack {
 
         /// M: Notify Thermal Manager that activity will be destroyed. In case of being destroyed directly without pause, ex: IPO
         if (FeatureOption.MTK_BENCHMARK_BOOST_TP) {
-            mService.mThermalManager.notifyAppState(r.packageName, MtkThermalSwitchManager.AppState.Destroyed);
+            mService.mVendorHooks.notifyThermalAppState(r.packageName,
+                    MtkThermalSwitchManager.AppState.Destroyed);
             if (DEBUG_THERMAL) Slog.v(
                 TAG, "Notify Thermal Manager that package = " + r.packageName + "will be destroyed");
         }
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers activity state changes and process deaths to the registered
+ * {@link IActivityStateNotifier}s from a dedicated thread.
+ *
+ * Events are posted, with the activity manager lock held, into a fixed-size
+ * ring.  Posting takes no other lock: the activity manager lock already
+ * serializes producers, and the dispatcher thread is the only consumer.  If
+ * the ring is full the event is dropped and counted.
+ *
+ * The dispatcher moves events from the ring into a bounded backlog per
+ * subscriber, skipping those the subscriber filtered out, and delivers from
+ * the backlogs round-robin.  A subscriber that falls {@link #MAX_BACKLOG}
+ * events behind loses events according to its policy instead of holding up
+ * the others indefinitely.
+ */
+final class ActivityStateNotifierBus {
+    static final String TAG = "ActivityStateNotifierBus";
+
+    static final int RING_SIZE = 256;   // Must be a power of two.
+    static final int MAX_BACKLOG = 32;
+
+    /** When a backlog is full, drop its oldest event. */
+    static final int POLICY_DROP_OLDEST = 0;
+    /**
+     * When a backlog is full, drop the oldest pending state change of the
+     * same activity, which the new event supersedes; else the oldest event.
+     */
+    static final int POLICY_COALESCE = 1;
+
+    static final class Event {
+        final IActivityStateNotifier.ActivityState state;   // null for a process death
+        final String packageName;
+        final String className;
+        final HashSet<String> packages;
+        final long enqueueTime;
+
+        Event(IActivityStateNotifier.ActivityState state, String packageName,
+                String className, HashSet<String> packages) {
+            this.state = state;
+            this.packageName = packageName;
+            this.className = className;
+            this.packages = packages;
+            this.enqueueTime = SystemClock.uptimeMillis();
+        }
+
+        boolean isAppDied() {
+            return state == null;
+        }
+
+        boolean sameActivity(Event other) {
+            return !isAppDied() && !other.isAppDied()
+                    && packageName.equals(other.packageName)
+                    && (className == null ? other.className == null
+                            : className.equals(other.className));
+        }
+    }
+
+    static final class Subscriber {
+        final IActivityStateNotifier notifier;
+        final EnumSet<IActivityStateNotifier.ActivityState> states; // null for all
+        final boolean wantsAppDied;
+        final int policy;
+
+        // Only touched by the dispatcher thread, except for dumping.
+        final ArrayDeque<Event> backlog = new ArrayDeque<Event>();
+        long numDelivered;
+        long numDropped;
+        long numCoalesced;
+        long numFailed;
+        int maxBacklog;
+        final Histogram latency = new Histogram();
+        final Histogram callTime = new Histogram();
+
+        Subscriber(IActivityStateNotifier notifier,
+                EnumSet<IActivityStateNotifier.ActivityState> states, boolean wantsAppDied,
+                int policy) {
+            this.notifier = notifier;
+            this.states = states;
+            this.wantsAppDied = wantsAppDied;
+            this.policy = policy;
+        }
+
+        boolean accepts(Event event) {
+            if (event.isAppDied()) {
+                return wantsAppDied;
+            }
+            return states == null || states.contains(event.state);
+        }
+
+        void enqueue(Event event) {
+            synchronized (backlog) {
+                if (backlog.size() >= MAX_BACKLOG) {
+                    if (policy == POLICY_COALESCE && removeSupersededLocked(event)) {
+                        numCoalesced++;
+                    } else {
+                        backlog.pollFirst();
+                        numDropped++;
+                    }
+                }
+                backlog.addLast(event);
+                if (backlog.size() > maxBacklog) {
+                    maxBacklog = backlog.size();
+                }
+            }
+        }
+
+        private boolean removeSupersededLocked(Event event) {
+            final Iterator<Event> it = backlog.iterator();
+            while (it.hasNext()) {
+                if (it.next().sameActivity(event)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Event poll() {
+            synchronized (backlog) {
+                return backlog.pollFirst();
+            }
+        }
+
+        void deliver(Event event) {
+            final long start = SystemClock.uptimeMillis();
+            latency.add(start - event.enqueueTime);
+            try {
+                if (event.isAppDied()) {
+                    notifier.notifyAppDied(event.packages);
+                } else {
+                    notifier.notifyActivityState(event.packageName, event.className,
+                            event.state);
+                }
+            } catch (RuntimeException e) {
+                numFailed++;
+                Slog.w(TAG, "Failure notifying " + notifier, e);
+            }
+            callTime.add(SystemClock.uptimeMillis() - start);
+            numDelivered++;
+        }
+    }
+
+    private final Event[] mRing = new Event[RING_SIZE];
+    private final AtomicLong mHead = new AtomicLong();  // Next slot to write.
+    private final AtomicLong mTail = new AtomicLong();  // Next slot to read.
+    private final AtomicLong mNumRingDrops = new AtomicLong();
+    private volatile boolean mDispatcherWaiting;
+
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers
+            = new CopyOnWriteArrayList<Subscriber>();
+    private final Thread mThread;
+
+    ActivityStateNotifierBus() {
+        mThread = new Thread("ActivityStateNotifier") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                dispatchLoop();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Adds a subscriber, unless the notifier is already registered.
+     *
+     * @param states the activity states to deliver, or null for all of them.
+     * @param wantsAppDied whether to deliver process deaths.
+     * @param policy what to drop when the subscriber falls behind.
+     */
+    boolean register(IActivityStateNotifier notifier,
+            EnumSet<IActivityStateNotifier.ActivityState> states, boolean wantsAppDied,
+            int policy) {
+        synchronized (mSubscribers) {
+            for (int i = 0; i < mSubscribers.size(); i++) {
+                if (mSubscribers.get(i).notifier == notifier) {
+                    return false;
+                }
+            }
+            mSubscribers.add(new Subscriber(notifier, states, wantsAppDied, policy));
+            return true;
+        }
+    }
+
+    /** Returns the subscriber for notifier, or null; for tests. */
+    Subscriber getSubscriber(IActivityStateNotifier notifier) {
+        for (int i = 0; i < mSubscribers.size(); i++) {
+            final Subscriber sub = mSubscribers.get(i);
+            if (sub.notifier == notifier) {
+                return sub;
+            }
+        }
+        return null;
+    }
+
+    long getNumRingDrops() {
+        return mNumRingDrops.get();
+    }
+
+    void postActivityStateLocked(String packageName, String className,
+            IActivityStateNotifier.ActivityState state) {
+        postLocked(new Event(state, packageName, className, null));
+    }
+
+    /**
+     * The package list is copied, since the process record's list is reset
+     * when the process is cleaned up.
+     */
+    void postAppDiedLocked(HashSet<String> packages) {
+        postLocked(new Event(null, null, null, new HashSet<String>(packages)));
+    }
+
+    private void postLocked(Event event) {
+        if (mSubscribers.isEmpty()) {
+            return;
+        }
+        final long head = mHead.get();
+        if (head - mTail.get() >= RING_SIZE) {
+            mNumRingDrops.incrementAndGet();
+            return;
+        }
+        mRing[(int) (head & (RING_SIZE - 1))] = event;
+        mHead.set(head + 1);
+        if (mDispatcherWaiting) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private void drainRing() {
+        long tail = mTail.get();
+        final long head = mHead.get();
+        while (tail < head) {
+            final int slot = (int) (tail & (RING_SIZE - 1));
+            final Event event = mRing[slot];
+            mRing[slot] = null;
+            tail++;
+            mTail.set(tail);
+            for (int i = 0; i < mSubscribers.size(); i++) {
+                final Subscriber sub = mSubscribers.get(i);
+                if (sub.accepts(event)) {
+                    sub.enqueue(event);
+                }
+            }
+        }
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            drainRing();
+            boolean delivered = false;
+            for (int i = 0; i < mSubscribers.size(); i++) {
+                final Subscriber sub = mSubscribers.get(i);
+                final Event event = sub.poll();
+                if (event != null) {
+                    sub.deliver(event);
+                    delivered = true;
+                    // Keep the ring from filling behind a slow subscriber.
+                    drainRing();
+                }
+            }
+            if (!delivered) {
+                mDispatcherWaiting = true;
+                if (mHead.get() == mTail.get()) {
+                    LockSupport.park(this);
+                }
+                mDispatcherWaiting = false;
+            }
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Activity state notifiers: queued=");
+        pw.print(mHead.get() - mTail.get()); pw.print(" posted="); pw.print(mHead.get());
+        pw.print(" ringDrops="); pw.println(mNumRingDrops.get());
+        for (int i = 0; i < mSubscribers.size(); i++) {
+            final Subscriber sub = mSubscribers.get(i);
+            pw.print(prefix); pw.print("  "); pw.print(sub.notifier);
+            pw.print(" states="); pw.print(sub.states == null ? "all" : sub.states.toString());
+            pw.print(" appDied="); pw.print(sub.wantsAppDied);
+            pw.print(" policy=");
+            pw.println(sub.policy == POLICY_COALESCE ? "coalesce" : "drop-oldest");
+            synchronized (sub.backlog) {
+                pw.print(prefix); pw.print("    backlog="); pw.print(sub.backlog.size());
+                pw.print(" maxBacklog="); pw.print(sub.maxBacklog);
+                pw.print(" delivered="); pw.print(sub.numDelivered);
+                pw.print(" dropped="); pw.print(sub.numDropped);
+                pw.print(" coalesced="); pw.print(sub.numCoalesced);
+                pw.print(" failed="); pw.println(sub.numFailed);
+            }
+            pw.print(prefix); pw.print("    latency: "); sub.latency.dump(pw);
+            pw.print(prefix); pw.print("    call time: "); sub.callTime.dump(pw);
+        }
+    }
+}
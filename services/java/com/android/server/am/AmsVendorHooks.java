@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Slog;
+
+import com.mediatek.common.MediatekClassFactory;
+import com.mediatek.common.amsplus.IAmsPlus;
+import com.mediatek.common.amsplus.IAmsPlusLaunchRecord;
+import com.mediatek.common.amsplus.IAmsPlusProcessRecord;
+import com.mediatek.common.thermal.MtkThermalSwitchManager;
+
+/**
+ * Vendor extensions of the activity manager.  Each extension is looked up
+ * once, the first time it is needed, instead of being constructed through
+ * MediatekClassFactory reflection at every call site.  Thermal app state
+ * notifications, which only carry a package name and a state, are
+ * delivered on a dedicated thread, in the order they were made, so that
+ * the thermal manager does not run with the activity manager lock held.
+ */
+final class AmsVendorHooks {
+    static final String TAG = "AmsVendorHooks";
+
+    private final Handler mHandler;
+
+    private final Object mAmsPlusLock = new Object();
+    private IAmsPlus mAmsPlus;
+    private boolean mAmsPlusResolved;
+
+    private volatile MtkThermalSwitchManager mThermalManager;
+
+    AmsVendorHooks() {
+        final HandlerThread thread = new HandlerThread("AmsVendorHooks",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Returns the LTK extension, or null if there is none.
+     */
+    IAmsPlus getAmsPlus() {
+        synchronized (mAmsPlusLock) {
+            if (!mAmsPlusResolved) {
+                try {
+                    mAmsPlus = MediatekClassFactory.createInstance(IAmsPlus.class);
+                } catch (Exception e) {
+                    Slog.w(TAG, "[LTK] Unable to create IAmsPlus", e);
+                }
+                mAmsPlusResolved = true;
+            }
+            return mAmsPlus;
+        }
+    }
+
+    void setThermalManager(MtkThermalSwitchManager tm) {
+        mThermalManager = tm;
+    }
+
+    void notifyThermalAppState(final String packageName,
+            final MtkThermalSwitchManager.AppState state) {
+        final MtkThermalSwitchManager tm = mThermalManager;
+        if (tm == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tm.notifyAppState(packageName, state);
+                } catch (Exception e) {
+                    Slog.w(TAG, "Thermal manager failed handling " + packageName
+                            + " " + state, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Calls the LTK extension's afterAdjAdjustment, if there is one.  This
+     * stays synchronous: app and top wrap live records that the extension
+     * reads and updates (killedLTK) under the activity manager lock, and
+     * app's adj must still be the old one when it is called.
+     */
+    void afterAdjAdjustment(IAmsPlusProcessRecord app, int oldAdj, int newAdj,
+            IAmsPlusLaunchRecord top) {
+        final IAmsPlus amsPlus = getAmsPlus();
+        if (amsPlus == null) {
+            return;
+        }
+        try {
+            amsPlus.afterAdjAdjustment(app, oldAdj, newAdj, top);
+        } catch (Exception e) {
+            Slog.w(TAG, "[LTK] Exception thrown during afterAdjAdjustment failed:", e);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Traces activity launches phase by phase: from the activity manager
+ * deciding to start the activity, through starting its process, binding
+ * the application and scheduling the activity, to the activity resuming
+ * and the window manager reporting its windows drawn.
+ *
+ * Launch records live in a ring allocated up front that keeps the most
+ * recent {@link #RING_SIZE} launches.  Completed launches also go into per
+ * component histograms.  Anything that has to leave the process (logs,
+ * vendor profiling files) is handed to a {@link Listener} on the export
+ * handler, never done on the calling thread.
+ *
+ * All methods ending in Locked must be called with the activity manager
+ * lock held.
+ */
+final class AppLaunchTracer {
+    static final int RING_SIZE = 64;
+    static final int MAX_COMPONENTS = 64;
+    static final String OTHER_COMPONENT = "(other)";
+
+    static final int PHASE_START = 0;
+    static final int PHASE_PROCESS_START = 1;
+    static final int PHASE_BIND_APPLICATION = 2;
+    static final int PHASE_LAUNCH_ACTIVITY = 3;
+    static final int PHASE_RESUMED = 4;
+    static final int PHASE_DRAWN = 5;
+    static final int NUM_PHASES = 6;
+
+    static final String[] PHASE_NAMES = {
+        "start", "procStart", "bindApp", "launchActivity", "resumed", "drawn"
+    };
+
+    /**
+     * One launch.  Phase times are uptime ms, 0 for phases not reached.
+     */
+    static final class Launch {
+        long seq;
+        String component;
+        String processName;
+        int uid;
+        boolean coldStart;
+        boolean pooled;
+        boolean active;
+        final long[] phaseTimes = new long[NUM_PHASES];
+
+        long getPhaseTime(int phase) {
+            return phaseTimes[phase];
+        }
+
+        long getTotalTime() {
+            return phaseTimes[PHASE_DRAWN] != 0
+                    ? phaseTimes[PHASE_DRAWN] - phaseTimes[PHASE_START] : -1;
+        }
+    }
+
+    interface Listener {
+        /**
+         * Called on the export handler.  The launch is a copy and may be
+         * kept.
+         */
+        void onLaunchStarted(Launch launch);
+        void onLaunchCompleted(Launch launch);
+    }
+
+    private final Launch[] mRing = new Launch[RING_SIZE];
+    private long mNextSeq = 1;
+    private final Handler mExportHandler;
+    private final Listener mListener;
+
+    final Histogram mColdLaunchTime = new Histogram();
+    final Histogram mWarmLaunchTime = new Histogram();
+    final Histogram mPooledLaunchTime = new Histogram();
+    private final HashMap<String, Histogram> mComponentTimes
+            = new HashMap<String, Histogram>();
+    private int mNumAbandoned;
+
+    AppLaunchTracer(Handler exportHandler, Listener listener) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            mRing[i] = new Launch();
+        }
+        mExportHandler = exportHandler;
+        mListener = listener;
+    }
+
+    /**
+     * Starts tracing a launch of component, returning its sequence number
+     * for the other calls.
+     */
+    long beginLocked(String component, String processName, int uid, long now) {
+        final long seq = mNextSeq++;
+        final Launch launch = mRing[(int) (seq % RING_SIZE)];
+        if (launch.active) {
+            mNumAbandoned++;
+        }
+        launch.seq = seq;
+        launch.component = component;
+        launch.processName = processName;
+        launch.uid = uid;
+        launch.coldStart = false;
+        launch.pooled = false;
+        launch.active = true;
+        for (int i = 0; i < NUM_PHASES; i++) {
+            launch.phaseTimes[i] = 0;
+        }
+        launch.phaseTimes[PHASE_START] = now;
+        export(launch, false);
+        return seq;
+    }
+
+    private Launch getLocked(long seq) {
+        if (seq <= 0) {
+            return null;
+        }
+        final Launch launch = mRing[(int) (seq % RING_SIZE)];
+        return launch.seq == seq && launch.active ? launch : null;
+    }
+
+    private static void setPhase(Launch launch, int phase, long now) {
+        if (launch.phaseTimes[phase] == 0) {
+            launch.phaseTimes[phase] = now;
+            if (phase == PHASE_PROCESS_START) {
+                launch.coldStart = true;
+            }
+        }
+    }
+
+    /**
+     * The launch runs in a process started ahead of it by the
+     * {@link ProcessPrestartPool}.
+     */
+    void notePooledLocked(long seq) {
+        final Launch launch = getLocked(seq);
+        if (launch != null) {
+            launch.pooled = true;
+        }
+    }
+
+    void notePhaseLocked(long seq, int phase, long now) {
+        final Launch launch = getLocked(seq);
+        if (launch != null) {
+            setPhase(launch, phase, now);
+        }
+    }
+
+    /**
+     * Notes a phase for every launch in progress that is waiting on the
+     * given process.
+     */
+    void notePhaseForProcessLocked(String processName, int uid, int phase, long now) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            final Launch launch = mRing[i];
+            if (launch.active && launch.uid == uid && processName.equals(launch.processName)) {
+                setPhase(launch, phase, now);
+            }
+        }
+    }
+
+    /**
+     * The launch's windows are drawn; records it and returns its total time,
+     * or -1 if it is no longer being traced.  The listener hears about the
+     * launch either way: one that was evicted from the ring or never traced
+     * is reported with only its component, start time and drawn time.
+     */
+    long finishLocked(long seq, String component, long startTime, long now) {
+        final Launch launch = getLocked(seq);
+        if (launch == null) {
+            if (mListener != null) {
+                final Launch untraced = new Launch();
+                untraced.seq = seq;
+                untraced.component = component;
+                untraced.phaseTimes[PHASE_START] = startTime;
+                untraced.phaseTimes[PHASE_DRAWN] = now;
+                post(untraced, true);
+            }
+            return -1;
+        }
+        launch.phaseTimes[PHASE_DRAWN] = now;
+        launch.active = false;
+        final long total = launch.getTotalTime();
+        (launch.coldStart ? mColdLaunchTime
+                : (launch.pooled ? mPooledLaunchTime : mWarmLaunchTime)).add(total);
+        Histogram hist = mComponentTimes.get(launch.component);
+        if (hist == null) {
+            if (mComponentTimes.size() >= MAX_COMPONENTS) {
+                hist = mComponentTimes.get(OTHER_COMPONENT);
+            }
+            if (hist == null) {
+                hist = new Histogram();
+                mComponentTimes.put(mComponentTimes.size() >= MAX_COMPONENTS
+                        ? OTHER_COMPONENT : launch.component, hist);
+            }
+        }
+        hist.add(total);
+        export(launch, true);
+        return total;
+    }
+
+    private void export(Launch launch, boolean completed) {
+        if (mListener == null) {
+            return;
+        }
+        final Launch copy = new Launch();
+        copy.seq = launch.seq;
+        copy.component = launch.component;
+        copy.processName = launch.processName;
+        copy.uid = launch.uid;
+        copy.coldStart = launch.coldStart;
+        copy.pooled = launch.pooled;
+        System.arraycopy(launch.phaseTimes, 0, copy.phaseTimes, 0, NUM_PHASES);
+        post(copy, completed);
+    }
+
+    private void post(final Launch launch, final boolean completed) {
+        mExportHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (completed) {
+                    mListener.onLaunchCompleted(launch);
+                } else {
+                    mListener.onLaunchStarted(launch);
+                }
+            }
+        });
+    }
+
+    static void printPhases(PrintWriter pw, Launch launch) {
+        final long start = launch.phaseTimes[PHASE_START];
+        for (int i = PHASE_START + 1; i < NUM_PHASES; i++) {
+            if (launch.phaseTimes[i] != 0) {
+                pw.print(" "); pw.print(PHASE_NAMES[i]); pw.print("=");
+                TimeUtils.formatDuration(launch.phaseTimes[i] - start, pw);
+            }
+        }
+    }
+
+    void dumpLocked(PrintWriter pw, boolean dumpAll) {
+        pw.println("ACTIVITY MANAGER LAUNCHES (dumpsys activity launches)");
+        pw.print("  cold: "); mColdLaunchTime.dump(pw);
+        pw.print("  warm: "); mWarmLaunchTime.dump(pw);
+        pw.print("  pooled: "); mPooledLaunchTime.dump(pw);
+        if (mNumAbandoned > 0) {
+            pw.print("  abandoned="); pw.println(mNumAbandoned);
+        }
+
+        final ArrayList<Map.Entry<String, Histogram>> entries
+                = new ArrayList<Map.Entry<String, Histogram>>(
+                        mComponentTimes.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Histogram>>() {
+            @Override
+            public int compare(Map.Entry<String, Histogram> lhs,
+                    Map.Entry<String, Histogram> rhs) {
+                final int lp = lhs.getValue().getPercentileBucket(90);
+                final int rp = rhs.getValue().getPercentileBucket(90);
+                return lp > rp ? -1 : (lp < rp ? 1 : 0);
+            }
+        });
+        if (entries.size() > 0) {
+            pw.println("  By component (slowest first):");
+            final int N = dumpAll ? entries.size()
+                    : Math.min(entries.size(), BroadcastStats.DUMP_TOP);
+            for (int i = 0; i < N; i++) {
+                pw.print("    "); pw.print(entries.get(i).getKey()); pw.print(": ");
+                entries.get(i).getValue().dump(pw);
+            }
+        }
+
+        pw.println("  Recent launches (most recent first):");
+        final long now = SystemClock.uptimeMillis();
+        for (long seq = mNextSeq - 1; seq > 0 && seq >= mNextSeq - RING_SIZE; seq--) {
+            final Launch launch = mRing[(int) (seq % RING_SIZE)];
+            pw.print("    #"); pw.print(seq); pw.print(" ");
+            pw.print(launch.component);
+            pw.print(launch.coldStart ? " cold" : (launch.pooled ? " pooled" : " warm"));
+            pw.print(" started ");
+            TimeUtils.formatDuration(launch.phaseTimes[PHASE_START], now, pw);
+            if (launch.active) {
+                pw.print(" (in progress)");
+            }
+            printPhases(pw, launch);
+            pw.println();
+        }
+    }
+}
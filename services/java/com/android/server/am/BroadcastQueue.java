@@ -36,6 +36,7 @@ import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.EventLog;
 import android.util.Log;
@@ -63,6 +64,15 @@ public class BroadcastQueue {
     static final int MAX_BROADCAST_HISTORY = 25;
     static final int MAX_BROADCAST_SUMMARY_HISTORY = 100;
 
+    /**
+     * How long, in milliseconds, to hold back delivery of parallel
+     * broadcasts sent with {@link Intent#FLAG_RECEIVER_REPLACE_PENDING}, so
+     * that a burst of them (battery or connectivity changes, say) collapses
+     * into a single delivery of the latest intent.  0 disables coalescing.
+     */
+    static final int COALESCE_DELAY =
+            SystemProperties.getInt("ro.am.broadcast_coalesce_ms", 0);
+
     final ActivityManagerService mService;
 
     /**
@@ -111,6 +121,24 @@ public class BroadcastQueue {
      */
     boolean mBroadcastsScheduled = false;
 
+    /**
+     * Set when the BROADCAST_INTENT_MSG in flight is a delayed one posted by
+     * {@link #scheduleCoalescedBroadcastsLocked}.
+     */
+    boolean mCoalescedBroadcastsScheduled = false;
+
+    /**
+     * Number of pending parallel broadcasts that were replaced by a newer
+     * one before being delivered, and the receiver deliveries that saved.
+     */
+    int mNumReplacedParallelBroadcasts;
+    long mNumSkippedParallelDeliveries;
+
+    /**
+     * Latency statistics for broadcasts and receivers on this queue.
+     */
+    final BroadcastStats mStats = new BroadcastStats();
+
     /**
      * True if we have a pending unexpired BROADCAST_TIMEOUT_MSG posted to our handler.
      */
@@ -193,6 +221,8 @@ public class BroadcastQueue {
                 if (DEBUG_BROADCAST) Slog.v(TAG,
                         "***** DROPPING PARALLEL ["
                 + mQueueName + "]: " + r.intent);
+                mNumReplacedParallelBroadcasts++;
+                mNumSkippedParallelDeliveries += mParallelBroadcasts.get(i).receivers.size();
                 mParallelBroadcasts.set(i, r);
                 return true;
             }
@@ -326,12 +356,40 @@ public class BroadcastQueue {
                 + mBroadcastsScheduled);
 
         if (mBroadcastsScheduled) {
-            return;
+            if (!mCoalescedBroadcastsScheduled) {
+                return;
+            }
+            // Don't hold everything else back behind a coalescing delay.
+            mHandler.removeMessages(BROADCAST_INTENT_MSG);
+            mCoalescedBroadcastsScheduled = false;
         }
         mHandler.sendMessage(mHandler.obtainMessage(BROADCAST_INTENT_MSG, this));
         mBroadcastsScheduled = true;
     }
 
+    /**
+     * Like {@link #scheduleBroadcastsLocked}, but for a parallel broadcast
+     * that may be replaced by a later one: when coalescing is enabled the
+     * queue is run after {@link #COALESCE_DELAY}, giving further broadcasts
+     * of the same intent a chance to replace it while it is still pending.
+     */
+    public void scheduleCoalescedBroadcastsLocked() {
+        if (COALESCE_DELAY <= 0) {
+            scheduleBroadcastsLocked();
+            return;
+        }
+        if (DEBUG_BROADCAST) Slog.v(TAG, "Schedule coalesced broadcasts ["
+                + mQueueName + "]: current=" + mBroadcastsScheduled);
+
+        if (mBroadcastsScheduled) {
+            return;
+        }
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(BROADCAST_INTENT_MSG, this),
+                COALESCE_DELAY);
+        mBroadcastsScheduled = true;
+        mCoalescedBroadcastsScheduled = true;
+    }
+
     public BroadcastRecord getMatchingOrderedReceiver(IBinder receiver) {
         if (mOrderedBroadcasts.size() > 0) {
             final BroadcastRecord r = mOrderedBroadcasts.get(0);
@@ -351,6 +409,15 @@ public class BroadcastQueue {
             if (explicit) {
                 Slog.w(TAG, "finishReceiver [" + mQueueName + "] called but state is IDLE");
             }
+        } else if (r.receiverTime > 0) {
+            String receiver = null;
+            if (r.curComponent != null) {
+                receiver = r.curComponent.flattenToShortString();
+            } else if (r.curFilter != null) {
+                receiver = r.curFilter.packageName + " (registered)";
+            }
+            mStats.noteReceiverFinishedLocked(receiver,
+                    SystemClock.uptimeMillis() - r.receiverTime);
         }
         r.receiver = null;
         r.intent.setComponent(null);
@@ -497,6 +564,7 @@ public class BroadcastQueue {
 
             if (fromMsg) {
                 mBroadcastsScheduled = false;
+                mCoalescedBroadcastsScheduled = false;
             }
 
             // First, deliver any non-serialized broadcasts right away.
@@ -504,6 +572,7 @@ public class BroadcastQueue {
                 r = mParallelBroadcasts.remove(0);
                 r.dispatchTime = SystemClock.uptimeMillis();
                 r.dispatchClockTime = System.currentTimeMillis();
+                mStats.noteDispatchedLocked(r);
                 final int N = r.receivers.size();
                 if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG, "Processing parallel broadcast ["
                         + mQueueName + "] " + r);
@@ -514,6 +583,7 @@ public class BroadcastQueue {
                             + target + ": " + r);
                     deliverToRegisteredReceiverLocked(r, (BroadcastFilter)target, false);
                 }
+                mStats.noteFinishedLocked(r, SystemClock.uptimeMillis());
                 addBroadcastToHistoryLocked(r);
                 if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG, "Done with parallel broadcast ["
                         + mQueueName + "] " + r);
@@ -636,6 +706,7 @@ public class BroadcastQueue {
                             + r);
 
                     // ... and on to the next...
+                    mStats.noteFinishedLocked(r, SystemClock.uptimeMillis());
                     addBroadcastToHistoryLocked(r);
                     mOrderedBroadcasts.remove(0);
                     r = null;
@@ -653,6 +724,7 @@ public class BroadcastQueue {
             if (recIdx == 0) {
                 r.dispatchTime = r.receiverTime;
                 r.dispatchClockTime = System.currentTimeMillis();
+                mStats.noteDispatchedLocked(r);
                 if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG, "Processing ordered broadcast ["
                         + mQueueName + "] " + r);
             }
@@ -957,12 +1029,12 @@ public class BroadcastQueue {
 
         Slog.w(TAG, "Timeout of broadcast " + r + " - receiver=" + r.receiver
                 + ", started " + (now - r.receiverTime) + "ms ago");
-        r.receiverTime = now;
         r.anrCount++;
 
         // Current receiver has passed its expiration date.
         if (r.nextReceiver <= 0) {
             Slog.w(TAG, "Timeout on receiver with nextReceiver <= 0");
+            r.receiverTime = now;
             return;
         }
 
@@ -993,9 +1065,11 @@ public class BroadcastQueue {
             mPendingBroadcast = null;
         }
 
-        // Move on to the next receiver.
+        // Move on to the next receiver.  The receiver's start time is only
+        // reset afterwards, so that its full run is counted in mStats.
         finishReceiverLocked(r, r.resultCode, r.resultData,
                 r.resultExtras, r.resultAbort, true);
+        r.receiverTime = now;
         scheduleBroadcastsLocked();
 
         if (anrMessage != null) {
@@ -1049,6 +1123,23 @@ public class BroadcastQueue {
 
     final boolean dumpLocked(FileDescriptor fd, PrintWriter pw, String[] args,
             int opti, boolean dumpAll, String dumpPackage, boolean needSep) {
+        if (dumpPackage == null && (COALESCE_DELAY > 0 || mNumReplacedParallelBroadcasts > 0)) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Coalesced broadcasts [" + mQueueName + "]: delay="
+                    + COALESCE_DELAY + "ms replaced=" + mNumReplacedParallelBroadcasts
+                    + " skippedDeliveries=" + mNumSkippedParallelDeliveries);
+        }
+        if (dumpPackage == null && mStats.mEnqueueToDispatch.getCount() > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Broadcast latency [" + mQueueName + "]:");
+            mStats.dumpLocked(pw, "    ", dumpAll);
+        }
         if (mParallelBroadcasts.size() > 0 || mOrderedBroadcasts.size() > 0
                 || mPendingBroadcast != null) {
             boolean printed = false;
@@ -48,6 +48,7 @@ class BroadcastRecord extends Binder {
     final String requiredPermission; // a permission the caller has required
     final List receivers;   // contains BroadcastFilter and ResolveInfo
     IIntentReceiver resultTo; // who receives final result if non-null
+    long enqueueTime;       // when the broadcast was enqueued
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
     long receiverTime;      // when current receiver started for timeouts.
@@ -95,7 +96,9 @@ class BroadcastRecord extends Binder {
         }
         pw.print(prefix); pw.print("dispatchClockTime=");
                 pw.println(new Date(dispatchClockTime));
-        pw.print(prefix); pw.print("dispatchTime=");
+        pw.print(prefix); pw.print("enqueueTime=");
+                TimeUtils.formatDuration(enqueueTime, now, pw);
+                pw.print(" dispatchTime=");
                 TimeUtils.formatDuration(dispatchTime, now, pw);
         if (finishTime != 0) {
             pw.print(" finishTime="); TimeUtils.formatDuration(finishTime, now, pw);
@@ -187,6 +190,7 @@ class BroadcastRecord extends Binder {
         userId = _userId;
         nextReceiver = 0;
         state = IDLE;
+        enqueueTime = SystemClock.uptimeMillis();
     }
 
     public String toString() {
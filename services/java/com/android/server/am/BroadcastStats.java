@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Always-on latency statistics for one {@link BroadcastQueue}: how long
+ * broadcasts wait between being enqueued and dispatched, how long they take
+ * from dispatch to finishing with their last receiver, and how long each
+ * ordered receiver holds the broadcast.  Samples go into fixed-size
+ * power-of-two histograms, overall and per action or receiver.
+ *
+ * The histogram counters are atomic, so a sample is a couple of increments
+ * and reading them never blocks a writer.  The per-key maps are guarded by
+ * the activity manager lock, like the queue that owns them, and are capped
+ * at {@link #MAX_KEYS} entries; further keys are folded into one bucket.
+ */
+final class BroadcastStats {
+    static final int MAX_KEYS = 64;
+    static final String OTHER_KEY = "(other)";
+
+    /** Number of entries printed per table unless dumping everything. */
+    static final int DUMP_TOP = 10;
+
+    private static final Comparator<Map.Entry<String, Histogram>> sSlowestFirst =
+            new Comparator<Map.Entry<String, Histogram>>() {
+        @Override
+        public int compare(Map.Entry<String, Histogram> lhs,
+                Map.Entry<String, Histogram> rhs) {
+            final int lp = lhs.getValue().getPercentileBucket(99);
+            final int rp = rhs.getValue().getPercentileBucket(99);
+            if (lp != rp) {
+                return lp > rp ? -1 : 1;
+            }
+            final long lm = lhs.getValue().getMax();
+            final long rm = rhs.getValue().getMax();
+            return lm > rm ? -1 : (lm < rm ? 1 : 0);
+        }
+    };
+
+    final Histogram mEnqueueToDispatch = new Histogram();
+    final Histogram mDispatchToFinish = new Histogram();
+    final Histogram mReceiverTime = new Histogram();
+
+    private final HashMap<String, Histogram> mEnqueueToDispatchByAction
+            = new HashMap<String, Histogram>();
+    private final HashMap<String, Histogram> mDispatchToFinishByAction
+            = new HashMap<String, Histogram>();
+    private final HashMap<String, Histogram> mReceiverTimeByReceiver
+            = new HashMap<String, Histogram>();
+
+    private static Histogram getLocked(HashMap<String, Histogram> map, String key) {
+        if (key == null) {
+            key = OTHER_KEY;
+        }
+        Histogram hist = map.get(key);
+        if (hist == null) {
+            if (map.size() >= MAX_KEYS) {
+                key = OTHER_KEY;
+                hist = map.get(key);
+            }
+            if (hist == null) {
+                hist = new Histogram();
+                map.put(key, hist);
+            }
+        }
+        return hist;
+    }
+
+    /**
+     * Called when the first receiver of r is about to be invoked.
+     */
+    void noteDispatchedLocked(BroadcastRecord r) {
+        if (r.enqueueTime <= 0) {
+            return;
+        }
+        final long delay = r.dispatchTime - r.enqueueTime;
+        mEnqueueToDispatch.add(delay);
+        getLocked(mEnqueueToDispatchByAction, r.intent.getAction()).add(delay);
+    }
+
+    /**
+     * Called when r is done with its last receiver.
+     */
+    void noteFinishedLocked(BroadcastRecord r, long now) {
+        if (r.dispatchTime <= 0) {
+            return;
+        }
+        final long time = now - r.dispatchTime;
+        mDispatchToFinish.add(time);
+        getLocked(mDispatchToFinishByAction, r.intent.getAction()).add(time);
+    }
+
+    /**
+     * Called when an ordered receiver finishes, times out or goes away.
+     */
+    void noteReceiverFinishedLocked(String receiver, long time) {
+        mReceiverTime.add(time);
+        getLocked(mReceiverTimeByReceiver, receiver).add(time);
+    }
+
+    private static void dumpTable(PrintWriter pw, String prefix, String title,
+            HashMap<String, Histogram> map, boolean dumpAll) {
+        if (map.size() == 0) {
+            return;
+        }
+        final ArrayList<Map.Entry<String, Histogram>> entries
+                = new ArrayList<Map.Entry<String, Histogram>>(map.entrySet());
+        Collections.sort(entries, sSlowestFirst);
+        pw.print(prefix); pw.print(title); pw.println(" (slowest first):");
+        final int N = dumpAll ? entries.size() : Math.min(entries.size(), DUMP_TOP);
+        for (int i = 0; i < N; i++) {
+            final Map.Entry<String, Histogram> e = entries.get(i);
+            pw.print(prefix); pw.print("  "); pw.print(e.getKey()); pw.print(": ");
+            e.getValue().dump(pw);
+        }
+        if (N < entries.size()) {
+            pw.print(prefix); pw.print("  ... "); pw.print(entries.size() - N);
+            pw.println(" more");
+        }
+    }
+
+    void dumpLocked(PrintWriter pw, String prefix, boolean dumpAll) {
+        pw.print(prefix); pw.print("enqueue->dispatch: "); mEnqueueToDispatch.dump(pw);
+        pw.print(prefix); pw.print("dispatch->finish: "); mDispatchToFinish.dump(pw);
+        pw.print(prefix); pw.print("ordered receiver: "); mReceiverTime.dump(pw);
+        dumpTable(pw, prefix, "enqueue->dispatch by action", mEnqueueToDispatchByAction,
+                dumpAll);
+        dumpTable(pw, prefix, "dispatch->finish by action", mDispatchToFinishByAction,
+                dumpAll);
+        dumpTable(pw, prefix, "ordered receiver time by receiver", mReceiverTimeByReceiver,
+                dumpAll);
+    }
+}
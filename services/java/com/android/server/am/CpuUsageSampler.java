@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.SparseArray;
+
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.ProcessStats;
+
+import java.util.ArrayList;
+
+/**
+ * Turns a {@link ProcessStats} update into an immutable {@link Snapshot}
+ * of per-process CPU use, and hands it to its consumers in separate steps
+ * so that the process table, battery stats and activity manager locks are
+ * never held together:
+ *
+ * <ol>
+ * <li>{@link #sampleLocked} fills a snapshot with the processes that used
+ * CPU since the last update, with the ProcessStats lock held, and publishes
+ * it as the latest.
+ * <li>{@link #resolveProcessesLocked} looks the pids up in the process
+ * table, with only its lock held, remembering the battery stats entry to
+ * credit.
+ * <li>{@link #creditBatteryStatsLocked} credits the battery stats, with
+ * only their lock held.
+ * <li>The excessive power check takes the latest snapshot with
+ * {@link #acquireLatest}, on its own thread, and reads each process's CPU
+ * time on battery from it with {@link Snapshot#getCpuTime}.
+ * </ol>
+ *
+ * A snapshot is never written once published.  Snapshots come from a pool
+ * and are only refilled once no consumer holds them and a newer one has
+ * been published; their arrays only ever grow, so after the first few
+ * samples sampling does not allocate.
+ */
+final class CpuUsageSampler {
+    /**
+     * CPU used by each process that ran since the previous sample, and the
+     * CPU each live process has used on battery.  Read-only.
+     */
+    static final class Snapshot {
+        private long mUptime;
+        private int mCount;
+        private int[] mPids = new int[0];
+        private String[] mNames = new String[0];
+        private int[] mRelUtime = new int[0];
+        private int[] mRelStime = new int[0];
+        private long[] mCpuSpeedTimes = new long[0];
+
+        // All live processes, sorted by pid, with the CPU in ms each has
+        // used while on battery.
+        private int mNumTotals;
+        private int[] mTotalPids = new int[0];
+        private long[] mTotalCpuTimes = new long[0];
+
+        // Guarded by the sampler.
+        private int mRefCount;
+
+        long getUptime() {
+            return mUptime;
+        }
+
+        int size() {
+            return mCount;
+        }
+
+        int getPid(int i) {
+            return mPids[i];
+        }
+
+        String getName(int i) {
+            return mNames[i];
+        }
+
+        /** User time in jiffies. */
+        int getRelUtime(int i) {
+            return mRelUtime[i];
+        }
+
+        /** System time in jiffies. */
+        int getRelStime(int i) {
+            return mRelStime[i];
+        }
+
+        /**
+         * Returns the CPU time in ms that pid has used while on battery, or
+         * def if it was not running when the snapshot was taken.
+         */
+        long getCpuTime(int pid, long def) {
+            final int i = indexOfTotal(pid);
+            return i >= 0 ? mTotalCpuTimes[i] : def;
+        }
+
+        private int indexOfTotal(int pid) {
+            int lo = 0;
+            int hi = mNumTotals - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int midPid = mTotalPids[mid];
+                if (midPid < pid) {
+                    lo = mid + 1;
+                } else if (midPid > pid) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private void ensureCapacity(int count) {
+            if (mPids.length < count) {
+                final int size = count + count / 2;
+                mPids = new int[size];
+                mNames = new String[size];
+                mRelUtime = new int[size];
+                mRelStime = new int[size];
+                mTotalPids = new int[size];
+                mTotalCpuTimes = new long[size];
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private final ArrayList<Snapshot> mPool = new ArrayList<Snapshot>();
+    private Snapshot mLatest;
+
+    // Resolved by resolveProcessesLocked for creditBatteryStatsLocked.
+    private ProcessRecord[] mProcs = new ProcessRecord[0];
+
+    /**
+     * Fills a snapshot from stats, which has just been updated, and
+     * publishes it as the latest.  cpuSpeedTimes is what
+     * {@link ProcessStats#getLastCpuSpeedTimes} returned for this update.
+     * CPU is only added to the on battery totals if onBattery.  Call with
+     * stats locked; the snapshot stays valid until the next call.
+     */
+    Snapshot sampleLocked(ProcessStats stats, long[] cpuSpeedTimes, long now,
+            boolean onBattery) {
+        final Snapshot prev;
+        final Snapshot snapshot;
+        synchronized (mLock) {
+            prev = mLatest;
+            snapshot = obtainLocked();
+        }
+
+        final int N = stats.countStats();
+        snapshot.ensureCapacity(N);
+        int count = 0;
+        int numTotals = 0;
+        for (int i = 0; i < N; i++) {
+            final ProcessStats.Stats st = stats.getStats(i);
+            long total = prev != null ? prev.getCpuTime(st.pid, 0) : 0;
+            if (st.working) {
+                snapshot.mPids[count] = st.pid;
+                snapshot.mNames[count] = st.name;
+                snapshot.mRelUtime[count] = st.rel_utime;
+                snapshot.mRelStime[count] = st.rel_stime;
+                count++;
+                if (onBattery) {
+                    total += (st.rel_utime + st.rel_stime) * 10;
+                }
+            }
+            // Insert in pid order; stats are usually sorted already.
+            int j = numTotals;
+            while (j > 0 && snapshot.mTotalPids[j - 1] > st.pid) {
+                snapshot.mTotalPids[j] = snapshot.mTotalPids[j - 1];
+                snapshot.mTotalCpuTimes[j] = snapshot.mTotalCpuTimes[j - 1];
+                j--;
+            }
+            snapshot.mTotalPids[j] = st.pid;
+            snapshot.mTotalCpuTimes[j] = total;
+            numTotals++;
+        }
+        for (int i = count; i < snapshot.mCount; i++) {
+            snapshot.mNames[i] = null;
+        }
+        snapshot.mCount = count;
+        snapshot.mNumTotals = numTotals;
+        snapshot.mUptime = now;
+
+        final int numSpeeds = cpuSpeedTimes != null ? cpuSpeedTimes.length : 0;
+        if (snapshot.mCpuSpeedTimes.length != numSpeeds) {
+            snapshot.mCpuSpeedTimes = new long[numSpeeds];
+        }
+        if (numSpeeds > 0) {
+            System.arraycopy(cpuSpeedTimes, 0, snapshot.mCpuSpeedTimes, 0, numSpeeds);
+        }
+
+        synchronized (mLock) {
+            mLatest = snapshot;
+        }
+        return snapshot;
+    }
+
+    private Snapshot obtainLocked() {
+        for (int i = mPool.size() - 1; i >= 0; i--) {
+            final Snapshot snapshot = mPool.get(i);
+            if (snapshot != mLatest && snapshot.mRefCount == 0) {
+                return snapshot;
+            }
+        }
+        final Snapshot snapshot = new Snapshot();
+        mPool.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Returns the latest snapshot, or null if nothing has been sampled yet.
+     * It is not refilled until given back with {@link #release}.
+     */
+    Snapshot acquireLatest() {
+        synchronized (mLock) {
+            if (mLatest != null) {
+                mLatest.mRefCount++;
+            }
+            return mLatest;
+        }
+    }
+
+    /** Gives back a snapshot from {@link #acquireLatest}; null is ignored. */
+    void release(Snapshot snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (snapshot.mRefCount <= 0) {
+                throw new IllegalStateException("Snapshot released more than acquired");
+            }
+            snapshot.mRefCount--;
+        }
+    }
+
+    /**
+     * Finds the process record of each pid in the snapshot, for
+     * {@link #creditBatteryStatsLocked}.  Call with pids locked.
+     */
+    void resolveProcessesLocked(Snapshot snapshot, SparseArray<ProcessRecord> pids) {
+        final int N = snapshot.mCount;
+        if (mProcs.length < N) {
+            mProcs = new ProcessRecord[snapshot.mPids.length];
+        }
+        for (int i = 0; i < N; i++) {
+            mProcs[i] = pids.get(snapshot.mPids[i]);
+        }
+        for (int i = N; i < mProcs.length && mProcs[i] != null; i++) {
+            mProcs[i] = null;
+        }
+    }
+
+    /**
+     * Credits the CPU in the snapshot to the battery stats, split between
+     * the processes and the "other" bucket as BatteryStatsImpl asks.  Call
+     * after {@link #resolveProcessesLocked}, with bstats locked.
+     */
+    void creditBatteryStatsLocked(Snapshot snapshot, BatteryStatsImpl bstats) {
+        final long[] cpuSpeedTimes = snapshot.mCpuSpeedTimes;
+        final int perc = bstats.startAddingCpuLocked();
+        int totalUTime = 0;
+        int totalSTime = 0;
+        final int N = snapshot.mCount;
+        for (int i = 0; i < N; i++) {
+            final int utime = snapshot.mRelUtime[i];
+            final int stime = snapshot.mRelStime[i];
+            final int otherUTime = (utime*perc)/100;
+            final int otherSTime = (stime*perc)/100;
+            totalUTime += otherUTime;
+            totalSTime += otherSTime;
+            final ProcessRecord pr = mProcs[i];
+            final BatteryStatsImpl.Uid.Proc ps = pr != null ? pr.batteryStats
+                    : bstats.getProcessStatsLocked(snapshot.mNames[i], snapshot.mPids[i]);
+            if (ps != null) {
+                ps.addCpuTimeLocked(utime-otherUTime, stime-otherSTime);
+                ps.addSpeedStepTimes(cpuSpeedTimes);
+            }
+        }
+        bstats.finishAddingCpuLocked(perc, totalUTime, totalSTime, cpuSpeedTimes);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Histogram of millisecond durations.  Bucket 0 counts samples under 1ms
+ * and bucket b counts samples in [2^(b-1), 2^b) ms; the last bucket
+ * holds everything longer.
+ */
+final class Histogram {
+    static final int NUM_BUCKETS = 18;
+
+    private final AtomicIntegerArray mCounts = new AtomicIntegerArray(NUM_BUCKETS);
+    private final AtomicLong mTotalTime = new AtomicLong();
+    private final AtomicLong mMaxTime = new AtomicLong();
+
+    static int bucketFor(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        final int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return bucket < NUM_BUCKETS ? bucket : NUM_BUCKETS - 1;
+    }
+
+    /** Exclusive upper bound of a bucket, in ms. */
+    static long bucketLimit(int bucket) {
+        return 1L << bucket;
+    }
+
+    void add(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mCounts.incrementAndGet(bucketFor(millis));
+        mTotalTime.addAndGet(millis);
+        long max;
+        while (millis > (max = mMaxTime.get())) {
+            if (mMaxTime.compareAndSet(max, millis)) {
+                break;
+            }
+        }
+    }
+
+    int getCount() {
+        int count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    long getMax() {
+        return mMaxTime.get();
+    }
+
+    /**
+     * Returns the bucket holding the given percentile, or -1 if there
+     * are no samples.
+     */
+    int getPercentileBucket(int percentile) {
+        final int count = getCount();
+        if (count == 0) {
+            return -1;
+        }
+        final long target = ((long) count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return i;
+            }
+        }
+        return NUM_BUCKETS - 1;
+    }
+
+    private void printPercentile(PrintWriter pw, int percentile) {
+        final int bucket = getPercentileBucket(percentile);
+        pw.print(" p"); pw.print(percentile);
+        if (bucket == NUM_BUCKETS - 1) {
+            pw.print(">="); pw.print(bucketLimit(bucket - 1));
+        } else {
+            pw.print("<"); pw.print(bucketLimit(bucket));
+        }
+        pw.print("ms");
+    }
+
+    void dump(PrintWriter pw) {
+        final int count = getCount();
+        pw.print("n="); pw.print(count);
+        if (count > 0) {
+            pw.print(" avg="); pw.print(mTotalTime.get() / count); pw.print("ms");
+            printPercentile(pw, 50);
+            printPercentile(pw, 90);
+            printPercentile(pw, 99);
+            pw.print(" max="); pw.print(getMax()); pw.print("ms");
+        }
+        pw.println();
+    }
+}
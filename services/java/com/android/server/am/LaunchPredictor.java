@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Predicts which packages the user will launch next, from the sequence of
+ * package launches and the hours of the day at which each package tends to
+ * be launched.
+ *
+ * A candidate's score mixes three estimates: how often it followed the
+ * package launched last, how much of the launching at this hour of the day
+ * (and, at half weight, the neighbouring hours) went to it, and how often
+ * it is launched at all.  Transition counts fade as newer transitions out
+ * of the same package come in, so a change of habit shows up within a few
+ * days.  At most {@link #MAX_PACKAGES} packages are tracked; the one
+ * launched least recently makes way for a new one.
+ *
+ * Not thread safe; {@link UsageStatsService} calls it with its stats lock
+ * held.
+ */
+final class LaunchPredictor {
+    static final int MAX_PACKAGES = 64;
+    static final int HOURS = 24;
+
+    /** Applied to a package's outgoing transitions each time it is left. */
+    static final float TRANSITION_DECAY = 0.9f;
+
+    static final float WEIGHT_TRANSITION = 0.5f;
+    static final float WEIGHT_HOUR = 0.3f;
+    static final float WEIGHT_FREQUENCY = 0.2f;
+
+    static final class PackageStats {
+        final String packageName;
+        final float[] hourCounts = new float[HOURS];
+        final HashMap<String, Float> next = new HashMap<String, Float>();
+        float nextTotal;
+        float launchCount;
+        long lastLaunchSeq;
+
+        PackageStats(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
+    private final HashMap<String, PackageStats> mPackages
+            = new HashMap<String, PackageStats>();
+    private final float[] mHourTotals = new float[HOURS];
+    private float mLaunchTotal;
+    private String mLastPackage;
+    private long mSeq;
+
+    private final ArrayList<PackageStats> mScratch = new ArrayList<PackageStats>();
+
+    static int hourOfDay(long wallTime) {
+        final long local = wallTime + TimeZone.getDefault().getOffset(wallTime);
+        return (int) ((local / (60*60*1000)) % HOURS);
+    }
+
+    /**
+     * The user switched to packageName at wallTime.
+     */
+    void noteLaunch(String packageName, long wallTime) {
+        noteLaunch(packageName, hourOfDay(wallTime));
+    }
+
+    void noteLaunch(String packageName, int hour) {
+        if (packageName.equals(mLastPackage)) {
+            return;
+        }
+        final PackageStats ps = getOrCreate(packageName);
+        ps.lastLaunchSeq = ++mSeq;
+        ps.launchCount++;
+        ps.hourCounts[hour]++;
+        mHourTotals[hour]++;
+        mLaunchTotal++;
+
+        final PackageStats last = mLastPackage != null ? mPackages.get(mLastPackage) : null;
+        if (last != null) {
+            for (Map.Entry<String, Float> e : last.next.entrySet()) {
+                e.setValue(e.getValue() * TRANSITION_DECAY);
+            }
+            final Float count = last.next.get(packageName);
+            last.next.put(packageName, (count != null ? count : 0f) + 1f);
+            last.nextTotal = last.nextTotal * TRANSITION_DECAY + 1f;
+        }
+        mLastPackage = packageName;
+    }
+
+    /**
+     * Seeds the model with launches from before it was running, for which
+     * only the count and one time of day are known.
+     */
+    void seed(String packageName, int launchCount, int hour) {
+        if (launchCount <= 0) {
+            return;
+        }
+        final PackageStats ps = getOrCreate(packageName);
+        ps.launchCount += launchCount;
+        mLaunchTotal += launchCount;
+        if (hour >= 0) {
+            ps.hourCounts[hour] += launchCount;
+            mHourTotals[hour] += launchCount;
+        }
+    }
+
+    void removePackage(String packageName) {
+        final PackageStats ps = mPackages.remove(packageName);
+        if (ps == null) {
+            return;
+        }
+        forget(ps);
+        for (PackageStats other : mPackages.values()) {
+            final Float count = other.next.remove(packageName);
+            if (count != null) {
+                other.nextTotal -= count;
+            }
+        }
+        if (packageName.equals(mLastPackage)) {
+            mLastPackage = null;
+        }
+    }
+
+    private PackageStats getOrCreate(String packageName) {
+        PackageStats ps = mPackages.get(packageName);
+        if (ps == null) {
+            if (mPackages.size() >= MAX_PACKAGES) {
+                PackageStats oldest = null;
+                for (PackageStats other : mPackages.values()) {
+                    if (oldest == null || other.lastLaunchSeq < oldest.lastLaunchSeq) {
+                        oldest = other;
+                    }
+                }
+                removePackage(oldest.packageName);
+            }
+            ps = new PackageStats(packageName);
+            mPackages.put(packageName, ps);
+        }
+        return ps;
+    }
+
+    private void forget(PackageStats ps) {
+        for (int h = 0; h < HOURS; h++) {
+            mHourTotals[h] -= ps.hourCounts[h];
+        }
+        mLaunchTotal -= ps.launchCount;
+    }
+
+    float score(PackageStats ps, PackageStats last, int hour) {
+        float score = 0;
+        if (last != null && last.nextTotal > 0) {
+            final Float count = last.next.get(ps.packageName);
+            if (count != null) {
+                score += WEIGHT_TRANSITION * count / last.nextTotal;
+            }
+        }
+        final int prev = (hour + HOURS - 1) % HOURS;
+        final int next = (hour + 1) % HOURS;
+        final float hourTotal = mHourTotals[hour]
+                + (mHourTotals[prev] + mHourTotals[next]) / 2;
+        if (hourTotal > 0) {
+            score += WEIGHT_HOUR * (ps.hourCounts[hour]
+                    + (ps.hourCounts[prev] + ps.hourCounts[next]) / 2) / hourTotal;
+        }
+        if (mLaunchTotal > 0) {
+            score += WEIGHT_FREQUENCY * ps.launchCount / mLaunchTotal;
+        }
+        return score;
+    }
+
+    /**
+     * Returns up to max packages most likely to be launched next, most
+     * likely first, leaving out the package in front now.
+     */
+    ArrayList<String> predict(long wallTime, int max) {
+        return predict(hourOfDay(wallTime), max);
+    }
+
+    ArrayList<String> predict(int hour, int max) {
+        final PackageStats last = mLastPackage != null ? mPackages.get(mLastPackage) : null;
+        final ArrayList<PackageStats> best = mScratch;
+        final ArrayList<Float> scores = new ArrayList<Float>(max);
+        best.clear();
+        for (PackageStats ps : mPackages.values()) {
+            if (ps == last) {
+                continue;
+            }
+            final float score = score(ps, last, hour);
+            if (score <= 0) {
+                continue;
+            }
+            int pos = best.size();
+            while (pos > 0 && scores.get(pos - 1) < score) {
+                pos--;
+            }
+            if (pos < max) {
+                best.add(pos, ps);
+                scores.add(pos, score);
+                if (best.size() > max) {
+                    best.remove(max);
+                    scores.remove(max);
+                }
+            }
+        }
+        final ArrayList<String> result = new ArrayList<String>(best.size());
+        for (int i = 0; i < best.size(); i++) {
+            result.add(best.get(i).packageName);
+        }
+        best.clear();
+        return result;
+    }
+
+    void dump(PrintWriter pw, String prefix, long wallTime) {
+        pw.print(prefix); pw.print("Launch predictor: ");
+        pw.print(mPackages.size()); pw.print(" packages, last=");
+        pw.println(mLastPackage);
+        pw.print(prefix); pw.print("  next:");
+        for (String pkg : predict(wallTime, 5)) {
+            pw.print(" "); pw.print(pkg);
+        }
+        pw.println();
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import com.android.internal.util.MemInfoReader;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Adapts the number of background (hidden and empty) processes the activity
+ * manager keeps, and how early it asks them to trim memory, to how much
+ * memory the device actually has to spare.
+ *
+ * Every sample reads the free and cached memory from /proc/meminfo and the
+ * page scan counters from /proc/vmstat.  When available memory gets close
+ * to the level at which the low memory killer starts killing hidden apps,
+ * or the kernel keeps reclaiming pages directly, the process limit is cut; it
+ * grows back one process at a time after several relaxed samples in a row.
+ * The limit always stays within [min, max].  Direct reclaim has to exceed
+ * a scan rate to count as critical, and stay under a lower one to stop
+ * counting, so that a stray direct scan does not cut the limit.
+ *
+ * The decision logic is in {@link #onSample}, which takes cumulative
+ * counters just as the kernel reports them, so that recorded traces can be
+ * replayed through it.
+ */
+final class MemoryPressureController {
+    static final String TAG = "MemoryPressureController";
+
+    static final int LEVEL_NORMAL = 0;
+    static final int LEVEL_LOW = 1;
+    static final int LEVEL_CRITICAL = 2;
+
+    // Available memory below this many times the hidden app kill level is
+    // low; below CRITICAL_FACTOR (in quarters) it is critical.  Above
+    // RELAXED_FACTOR times it we may grow again.
+    static final int LOW_FACTOR = 2;
+    static final int CRITICAL_QUARTERS = 5;
+    static final int RELAXED_FACTOR = 3;
+
+    // kswapd scanning more than this many pages a second counts as low
+    // memory even if free memory still looks fine.
+    static final long SCAN_RATE_LOW = 2000;
+
+    // Direct reclaim scanning more than this many pages a second counts as
+    // critical, until it falls to DIRECT_SCAN_RATE_CLEAR or less.
+    static final long DIRECT_SCAN_RATE_CRITICAL = 500;
+    static final long DIRECT_SCAN_RATE_CLEAR = 100;
+
+    // Number of consecutive relaxed samples before the limit grows by one.
+    static final int GROW_SAMPLES = 3;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private long mHiddenKillLevelKb;
+
+    private volatile int mLimit;
+    private volatile int mLevel = LEVEL_NORMAL;
+
+    private long mLastUptime;
+    private long mLastKswapdScan = -1;
+    private long mLastDirectScan = -1;
+    private int mRelaxedSamples;
+
+    // Statistics for dumpsys.
+    private long mLastAvailKb;
+    private long mLastScanRate;
+    private long mLastDirectScanRate;
+    private boolean mDirectReclaiming;
+    private int mNumSamples;
+    private int mNumShrinks;
+    private int mNumGrows;
+    private int mLowestLimit;
+
+    private Handler mHandler;
+    private Runnable mOnChanged;
+    private int mInterval;
+
+    MemoryPressureController(int minLimit, int maxLimit, long hiddenKillLevelKb) {
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit < minLimit ? minLimit : maxLimit;
+        mHiddenKillLevelKb = hiddenKillLevelKb;
+        mLimit = mMaxLimit;
+        mLowestLimit = mMaxLimit;
+    }
+
+    /**
+     * Starts sampling every interval ms; onChanged is run on the sampling
+     * thread whenever the process limit or the pressure level changes.
+     */
+    void start(int interval, Runnable onChanged) {
+        if (interval <= 0) {
+            return;
+        }
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mOnChanged = onChanged;
+        mInterval = interval;
+        mHandler.post(mSample);
+    }
+
+    synchronized void setHiddenKillLevelKb(long kb) {
+        mHiddenKillLevelKb = kb;
+    }
+
+    /** Maximum number of hidden plus empty processes to keep. */
+    int getProcessLimit() {
+        return mLimit;
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    int getTrimHiddenApps() {
+        return ProcessList.TRIM_HIDDEN_APPS + mLevel;
+    }
+
+    int getTrimEmptyApps() {
+        return ProcessList.TRIM_EMPTY_APPS + mLevel;
+    }
+
+    int getTrimCriticalThreshold() {
+        return ProcessList.TRIM_CRITICAL_THRESHOLD + mLevel;
+    }
+
+    int getTrimLowThreshold() {
+        return ProcessList.TRIM_LOW_THRESHOLD + mLevel * 2;
+    }
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            final MemInfoReader minfo = new MemInfoReader();
+            minfo.readMemInfo();
+            final long availKb = (minfo.getFreeSize() + minfo.getCachedSize()) / 1024;
+            final long[] scans = readVmStatScans();
+            if (onSample(SystemClock.uptimeMillis(), availKb, scans[0], scans[1])
+                    && mOnChanged != null) {
+                mOnChanged.run();
+            }
+            mHandler.postDelayed(this, mInterval);
+        }
+    };
+
+    /**
+     * Returns the cumulative pgscan_kswapd* and pgscan_direct* page counts.
+     */
+    private static long[] readVmStatScans() {
+        final long[] scans = new long[2];
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader("/proc/vmstat"));
+            String line;
+            while ((line = br.readLine()) != null) {
+                final int which;
+                if (line.startsWith("pgscan_kswapd")) {
+                    which = 0;
+                } else if (line.startsWith("pgscan_direct")) {
+                    which = 1;
+                } else {
+                    continue;
+                }
+                final int space = line.indexOf(' ');
+                if (space > 0) {
+                    try {
+                        scans[which] += Long.parseLong(line.substring(space + 1).trim());
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to read /proc/vmstat");
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return scans;
+    }
+
+    /**
+     * Feeds one sample.  The scan counts are cumulative.  Returns true if
+     * the process limit or pressure level changed.
+     */
+    synchronized boolean onSample(long uptime, long availKb, long kswapdScan,
+            long directScan) {
+        mNumSamples++;
+        mLastAvailKb = availKb;
+        final boolean haveLast = mLastKswapdScan >= 0 && uptime > mLastUptime;
+        long scanRate = 0;
+        long directRate = 0;
+        if (haveLast) {
+            scanRate = (kswapdScan - mLastKswapdScan) * 1000 / (uptime - mLastUptime);
+            directRate = (directScan - mLastDirectScan) * 1000 / (uptime - mLastUptime);
+        }
+        mLastUptime = uptime;
+        mLastKswapdScan = kswapdScan;
+        mLastDirectScan = directScan;
+        mLastScanRate = scanRate;
+        mLastDirectScanRate = directRate;
+        mDirectReclaiming = directRate > (mDirectReclaiming
+                ? DIRECT_SCAN_RATE_CLEAR : DIRECT_SCAN_RATE_CRITICAL);
+
+        final int oldLimit = mLimit;
+        final int oldLevel = mLevel;
+        int limit = oldLimit;
+        final int level;
+        if (mDirectReclaiming || availKb * 4 < mHiddenKillLevelKb * CRITICAL_QUARTERS) {
+            level = LEVEL_CRITICAL;
+            // Cut hard on getting critical, then a process at a time while
+            // it stays so.
+            limit = oldLevel == LEVEL_CRITICAL ? limit - 1
+                    : Math.min(limit - 1, limit * 3 / 4);
+            mRelaxedSamples = 0;
+        } else if (availKb < mHiddenKillLevelKb * LOW_FACTOR || scanRate > SCAN_RATE_LOW) {
+            level = LEVEL_LOW;
+            limit--;
+            mRelaxedSamples = 0;
+        } else {
+            level = LEVEL_NORMAL;
+            if (availKb > mHiddenKillLevelKb * RELAXED_FACTOR && scanRate == 0) {
+                if (++mRelaxedSamples >= GROW_SAMPLES) {
+                    limit++;
+                    mRelaxedSamples = 0;
+                }
+            } else {
+                mRelaxedSamples = 0;
+            }
+        }
+        if (limit < mMinLimit) {
+            limit = mMinLimit;
+        } else if (limit > mMaxLimit) {
+            limit = mMaxLimit;
+        }
+
+        if (limit < oldLimit) {
+            mNumShrinks++;
+        } else if (limit > oldLimit) {
+            mNumGrows++;
+        }
+        if (limit < mLowestLimit) {
+            mLowestLimit = limit;
+        }
+        mLimit = limit;
+        mLevel = level;
+        return limit != oldLimit || level != oldLevel;
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Adaptive process limit: limit="); pw.print(mLimit);
+        pw.print(" range=["); pw.print(mMinLimit); pw.print(","); pw.print(mMaxLimit);
+        pw.print("] lowest="); pw.print(mLowestLimit);
+        pw.print(" level=");
+        pw.println(mLevel == LEVEL_CRITICAL ? "critical" : mLevel == LEVEL_LOW ? "low" : "normal");
+        pw.print(prefix); pw.print("  avail="); pw.print(mLastAvailKb);
+        pw.print("kB hiddenKillLevel="); pw.print(mHiddenKillLevelKb);
+        pw.print("kB kswapdScanRate="); pw.print(mLastScanRate);
+        pw.print("/s directScanRate="); pw.print(mLastDirectScanRate);
+        pw.println(mDirectReclaiming ? "/s (reclaiming)" : "/s");
+        pw.print(prefix); pw.print("  samples="); pw.print(mNumSamples);
+        pw.print(" shrinks="); pw.print(mNumShrinks);
+        pw.print(" grows="); pw.println(mNumGrows);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The process LRU list.  As with the ArrayList it replaces, index 0 is the
+ * least recently used process and the last index is the most recently used.
+ *
+ * Processes are linked together through their {@link ProcessRecord#lruPrev}
+ * and {@link ProcessRecord#lruNext} fields, so membership tests, removal
+ * and insertion next to a known process are O(1).  Indexed access goes
+ * through a position array that is rebuilt lazily after a change in the
+ * middle of the list; appending to or removing from the most recently used
+ * end keeps it valid.  Iterating by index therefore costs the same as it did
+ * with an ArrayList, while the LRU update itself no longer shifts the array.
+ *
+ * Like mLruProcesses itself, this is only accessed with the activity manager
+ * lock held.
+ */
+final class ProcessLruList extends AbstractList<ProcessRecord> implements RandomAccess {
+    private ProcessRecord mLeastRecent;
+    private ProcessRecord mMostRecent;
+    private int mSize;
+
+    private ProcessRecord[] mIndex = new ProcessRecord[32];
+    private boolean mIndexValid = true;
+
+    // Statistics for dumpsys.
+    private int mIndexRebuilds;
+
+    ProcessRecord getLeastRecent() {
+        return mLeastRecent;
+    }
+
+    ProcessRecord getMostRecent() {
+        return mMostRecent;
+    }
+
+    int getIndexRebuildCount() {
+        return mIndexRebuilds;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public ProcessRecord get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+        ensureIndexLocked();
+        return mIndex[index];
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof ProcessRecord && ((ProcessRecord) o).lruList == this;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!contains(o)) {
+            return -1;
+        }
+        ensureIndexLocked();
+        return ((ProcessRecord) o).lruIndex;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean add(ProcessRecord app) {
+        insertAfter(mMostRecent, app);
+        return true;
+    }
+
+    @Override
+    public void add(int index, ProcessRecord app) {
+        if (index < 0 || index > mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+        insertAfter(index == 0 ? null : get(index - 1), app);
+    }
+
+    @Override
+    public ProcessRecord remove(int index) {
+        final ProcessRecord app = get(index);
+        unlink(app);
+        return app;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        unlink((ProcessRecord) o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        ProcessRecord app = mLeastRecent;
+        while (app != null) {
+            final ProcessRecord next = app.lruNext;
+            app.lruPrev = app.lruNext = null;
+            app.lruList = null;
+            app.lruIndex = -1;
+            app = next;
+        }
+        mLeastRecent = mMostRecent = null;
+        mSize = 0;
+        Arrays.fill(mIndex, null);
+        mIndexValid = true;
+        modCount++;
+    }
+
+    /**
+     * Insert app immediately after prev, or at the least recently used end
+     * if prev is null.  The app must not currently be in the list.
+     */
+    void insertAfter(ProcessRecord prev, ProcessRecord app) {
+        if (app.lruList != null) {
+            throw new IllegalStateException("Process " + app + " is already in an LRU list");
+        }
+        if (prev != null && prev.lruList != this) {
+            throw new IllegalArgumentException("Process " + prev + " is not in this list");
+        }
+        final ProcessRecord next = prev != null ? prev.lruNext : mLeastRecent;
+        app.lruPrev = prev;
+        app.lruNext = next;
+        app.lruList = this;
+        if (prev != null) {
+            prev.lruNext = app;
+        } else {
+            mLeastRecent = app;
+        }
+        if (next != null) {
+            next.lruPrev = app;
+        } else {
+            mMostRecent = app;
+        }
+
+        if (mIndexValid && next == null) {
+            // Appending keeps the existing positions intact.
+            growIndex(mSize + 1);
+            mIndex[mSize] = app;
+            app.lruIndex = mSize;
+        } else {
+            mIndexValid = false;
+        }
+        mSize++;
+        modCount++;
+    }
+
+    /**
+     * Move app to the most recently used end of the list.
+     */
+    void moveToMostRecent(ProcessRecord app) {
+        if (app == mMostRecent) {
+            return;
+        }
+        if (app.lruList == this) {
+            unlink(app);
+        }
+        insertAfter(mMostRecent, app);
+    }
+
+    private void unlink(ProcessRecord app) {
+        final ProcessRecord prev = app.lruPrev;
+        final ProcessRecord next = app.lruNext;
+        if (prev != null) {
+            prev.lruNext = next;
+        } else {
+            mLeastRecent = next;
+        }
+        if (next != null) {
+            next.lruPrev = prev;
+        } else {
+            mMostRecent = prev;
+        }
+        if (mIndexValid && next == null) {
+            mIndex[mSize - 1] = null;
+        } else {
+            mIndexValid = false;
+        }
+        app.lruPrev = app.lruNext = null;
+        app.lruList = null;
+        app.lruIndex = -1;
+        mSize--;
+        modCount++;
+    }
+
+    private void growIndex(int size) {
+        if (size > mIndex.length) {
+            mIndex = Arrays.copyOf(mIndex, Math.max(size, mIndex.length * 2));
+        }
+    }
+
+    private void ensureIndexLocked() {
+        if (mIndexValid) {
+            return;
+        }
+        growIndex(mSize);
+        int i = 0;
+        for (ProcessRecord app = mLeastRecent; app != null; app = app.lruNext) {
+            mIndex[i] = app;
+            app.lruIndex = i;
+            i++;
+        }
+        Arrays.fill(mIndex, i, mIndex.length, null);
+        mIndexValid = true;
+        mIndexRebuilds++;
+    }
+}
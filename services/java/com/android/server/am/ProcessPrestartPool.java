@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.AppGlobals;
+import android.content.pm.ApplicationInfo;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.TimeUtils;
+
+import com.android.server.ProcessMap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Keeps a few application processes started ahead of the launches that
+ * will need them.  While the system is idle the pool starts the processes
+ * of the applications most likely to be launched next, if they are not
+ * running; each one forks and binds its application like any other
+ * process and then waits as an empty process.  A launch that finds one of
+ * them skips the fork and bindApplication.
+ *
+ * Candidates are the applications the usage stats predict will be
+ * launched next, then those most recently cold started.  How many
+ * processes are kept started follows the memory pressure level: the
+ * configured size when memory is plentiful, half of it when low, none when
+ * critical.  Prestarted processes are ordinary empty processes, so the
+ * usual process limits can still kill them.
+ *
+ * A candidate only remembers its package, and its application is looked
+ * up again each time it would be started, so that an updated package is
+ * started from its new code, and a removed or stopped one is not started
+ * at all.  Force stopping a package, removing it or stopping its user
+ * also drops its candidates.  A prestarted process that dies before it is
+ * used was most likely killed for memory, so its application is not
+ * prestarted again until the user launches it.
+ *
+ * All methods must be called with the activity manager lock held.
+ */
+final class ProcessPrestartPool {
+    static final String TAG = "ProcessPrestartPool";
+
+    static final int MAX_CANDIDATES = 16;
+
+    /** How long the system must be quiet before we start processes. */
+    static final long IDLE_DELAY = 5*1000;
+
+    static final class Candidate {
+        final String processName;
+        final String packageName;
+        final int uid;
+
+        Candidate(String processName, ApplicationInfo info) {
+            this.processName = processName;
+            this.packageName = info.packageName;
+            this.uid = info.uid;
+        }
+
+        boolean matches(String processName, int uid) {
+            return this.uid == uid && this.processName.equals(processName);
+        }
+    }
+
+    private final ActivityManagerService mService;
+    private final int mMaxSize;
+
+    // Most recently launched first.
+    private final ArrayList<Candidate> mRecent = new ArrayList<Candidate>();
+    // In order of likelihood.
+    private final ArrayList<Candidate> mPredicted = new ArrayList<Candidate>();
+    // Processes whose prestarted process died unused, with the uptime at
+    // which it did; not prestarted again until launched.
+    private final ProcessMap<Long> mKilled = new ProcessMap<Long>();
+
+    private int mNumStarted;
+    private int mNumHits;
+    private int mNumMisses;
+    private int mNumWasted;
+    private int mNumKeptHidden;
+    private long mLastFillTime;
+
+    ProcessPrestartPool(ActivityManagerService service, int maxSize) {
+        mService = service;
+        mMaxSize = maxSize;
+    }
+
+    boolean isEnabled() {
+        return mMaxSize > 0;
+    }
+
+    int getTargetSizeLocked() {
+        switch (mService.mMemoryPressure.getLevel()) {
+            case MemoryPressureController.LEVEL_CRITICAL:
+                return 0;
+            case MemoryPressureController.LEVEL_LOW:
+                return mMaxSize / 2;
+            default:
+                return mMaxSize;
+        }
+    }
+
+    /**
+     * An activity is about to be launched in processName.  Returns true if
+     * it will run in a prestarted process, which then stops being one.
+     */
+    boolean noteLaunchLocked(String processName, ApplicationInfo info, ProcessRecord app) {
+        if (!isEnabled()) {
+            return false;
+        }
+        mKilled.remove(processName, info.uid);
+        if (app != null && app.prestarted) {
+            app.prestarted = false;
+            mNumHits++;
+            scheduleFillLocked();
+            return true;
+        }
+        if (app == null || app.pid == 0) {
+            mNumMisses++;
+            int index = -1;
+            for (int i = 0; i < mRecent.size(); i++) {
+                if (mRecent.get(i).matches(processName, info.uid)) {
+                    index = i;
+                    break;
+                }
+            }
+            final Candidate c = index >= 0 ? mRecent.remove(index)
+                    : new Candidate(processName, info);
+            mRecent.add(0, c);
+            while (mRecent.size() > MAX_CANDIDATES) {
+                mRecent.remove(mRecent.size() - 1);
+            }
+        }
+        // Top up once launching has quietened down.
+        scheduleFillLocked();
+        return false;
+    }
+
+    /**
+     * Asks the usage stats for the packages most likely to be launched
+     * next.  Those already running in a hidden process are moved to the
+     * front of the LRU list, where they get the lowest hidden adj and are
+     * killed last, as long as memory is not low; the others become the
+     * first candidates to prestart.
+     */
+    private void updatePredictionsLocked(int userId, int max) {
+        mPredicted.clear();
+        final ArrayList<String> packages = mService.mUsageStatsService.predictNextPackages(max);
+        final boolean keepHidden = mService.mMemoryPressure.getLevel()
+                == MemoryPressureController.LEVEL_NORMAL;
+        boolean bumped = false;
+        for (int i = 0; i < packages.size(); i++) {
+            ApplicationInfo info = null;
+            try {
+                info = AppGlobals.getPackageManager().getApplicationInfo(packages.get(i),
+                        ActivityManagerService.STOCK_PM_FLAGS, userId);
+            } catch (RemoteException e) {
+            }
+            if (info == null || (info.flags & ApplicationInfo.FLAG_STOPPED) != 0
+                    || mKilled.get(info.processName, info.uid) != null) {
+                continue;
+            }
+            final ProcessRecord app = mService.getProcessRecordLocked(info.processName,
+                    info.uid);
+            if (app == null) {
+                mPredicted.add(new Candidate(info.processName, info));
+            } else if (keepHidden && app.thread != null
+                    && app.curAdj >= ProcessList.HIDDEN_APP_MIN_ADJ) {
+                mService.updateLruProcessLocked(app, false);
+                mNumKeptHidden++;
+                bumped = true;
+            }
+        }
+        if (bumped) {
+            mService.updateOomAdjLocked();
+        }
+    }
+
+    void noteProcessDiedLocked(ProcessRecord app) {
+        if (app.prestarted) {
+            app.prestarted = false;
+            mNumWasted++;
+            mKilled.put(app.processName, app.uid, SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Drops the candidates of a package that has been force stopped or
+     * removed in userId, or in any user if userId is
+     * {@link UserHandle#USER_ALL}; all of the user's if packageName is null.
+     */
+    void removePackageLocked(String packageName, int userId) {
+        removePackageLocked(mPredicted, packageName, userId);
+        removePackageLocked(mRecent, packageName, userId);
+    }
+
+    private static void removePackageLocked(ArrayList<Candidate> candidates,
+            String packageName, int userId) {
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            final Candidate c = candidates.get(i);
+            if ((userId == UserHandle.USER_ALL || UserHandle.getUserId(c.uid) == userId)
+                    && (packageName == null || packageName.equals(c.packageName))) {
+                candidates.remove(i);
+            }
+        }
+    }
+
+    void scheduleFillLocked() {
+        if (!isEnabled()) {
+            return;
+        }
+        mService.mHandler.removeMessages(ActivityManagerService.PRESTART_PROCESSES_MSG);
+        mService.mHandler.sendEmptyMessageDelayed(ActivityManagerService.PRESTART_PROCESSES_MSG,
+                IDLE_DELAY);
+    }
+
+    private int countPrestartedLocked() {
+        int count = 0;
+        for (int i = mService.mLruProcesses.size() - 1; i >= 0; i--) {
+            if (mService.mLruProcesses.get(i).prestarted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts processes until the pool is at its target size.
+     */
+    void fillLocked() {
+        if (!isEnabled() || !mService.mSystemReady || !mService.mBooted
+                || mService.isSleeping()) {
+            return;
+        }
+        final int target = getTargetSizeLocked();
+        if (target <= 0) {
+            return;
+        }
+        mLastFillTime = SystemClock.uptimeMillis();
+        final int userId = mService.getCurrentUserIdLocked();
+        updatePredictionsLocked(userId, target);
+        int needed = target - countPrestartedLocked();
+        if (needed <= 0) {
+            return;
+        }
+        needed = fillFromLocked(mPredicted, needed, userId);
+        fillFromLocked(mRecent, needed, userId);
+    }
+
+    private int fillFromLocked(ArrayList<Candidate> candidates, int needed, int userId) {
+        for (int i = 0; i < candidates.size() && needed > 0; i++) {
+            final Candidate c = candidates.get(i);
+            if (UserHandle.getUserId(c.uid) != userId
+                    || mKilled.get(c.processName, c.uid) != null
+                    || mService.getProcessRecordLocked(c.processName, c.uid) != null) {
+                continue;
+            }
+            // The package may have been updated, removed or stopped since
+            // the candidate was recorded.
+            ApplicationInfo info = null;
+            try {
+                info = AppGlobals.getPackageManager().getApplicationInfo(c.packageName,
+                        ActivityManagerService.STOCK_PM_FLAGS, userId);
+            } catch (RemoteException e) {
+            }
+            if (info == null || info.uid != c.uid
+                    || (info.flags & ApplicationInfo.FLAG_STOPPED) != 0) {
+                candidates.remove(i);
+                i--;
+                continue;
+            }
+            final ProcessRecord app = mService.startProcessLocked(c.processName, info,
+                    false, 0, "prestart", null, false, false);
+            if (app != null) {
+                if (ActivityManagerService.DEBUG_PROCESSES) Slog.v(TAG,
+                        "Prestarted " + app);
+                app.prestarted = true;
+                mNumStarted++;
+                needed--;
+            }
+        }
+        return needed;
+    }
+
+    void dumpLocked(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Prestart pool: max="); pw.print(mMaxSize);
+        if (!isEnabled()) {
+            pw.println(" (disabled)");
+            return;
+        }
+        pw.print(" target="); pw.print(getTargetSizeLocked());
+        pw.print(" current="); pw.print(countPrestartedLocked());
+        if (mLastFillTime != 0) {
+            pw.print(" lastFill=");
+            TimeUtils.formatDuration(mLastFillTime, SystemClock.uptimeMillis(), pw);
+        }
+        pw.println();
+        pw.print(prefix); pw.print("  started="); pw.print(mNumStarted);
+        pw.print(" hits="); pw.print(mNumHits);
+        pw.print(" coldMisses="); pw.print(mNumMisses);
+        pw.print(" wasted="); pw.print(mNumWasted);
+        pw.print(" keptHidden="); pw.println(mNumKeptHidden);
+        pw.print(prefix); pw.print("  candidates:");
+        for (int i = 0; i < mPredicted.size(); i++) {
+            pw.print(" "); pw.print(mPredicted.get(i).processName); pw.print("(p)");
+        }
+        for (int i = 0; i < mRecent.size(); i++) {
+            pw.print(" "); pw.print(mRecent.get(i).processName);
+        }
+        pw.println();
+        if (mKilled.getMap().size() > 0) {
+            final long now = SystemClock.uptimeMillis();
+            pw.print(prefix); pw.print("  killed unused:");
+            for (String name : mKilled.getMap().keySet()) {
+                final SparseArray<Long> uids = mKilled.getMap().get(name);
+                for (int i = 0; i < uids.size(); i++) {
+                    pw.print(" "); pw.print(name); pw.print("/"); pw.print(uids.keyAt(i));
+                    pw.print(" "); TimeUtils.formatDuration(uids.valueAt(i), now, pw);
+                }
+            }
+            pw.println();
+        }
+    }
+}
@@ -85,10 +85,15 @@ class ProcessRecord {
     boolean hasAboveClient;     // Bound using BIND_ABOVE_CLIENT, so want to be lower
     boolean bad;                // True if disabled in the bad process list
     boolean killedBackground;   // True when proc has been killed due to too many bg
+    boolean prestarted;         // Started ahead of use by the prestart pool
     String waitingToKill;       // Process is waiting to be killed when in the bg; reason
     IBinder forcingToForeground;// Token that is forcing this process to be foreground
     int adjSeq;                 // Sequence id for identifying oom_adj assignment cycles
     int lruSeq;                 // Sequence id for identifying LRU update cycles
+    ProcessLruList lruList;     // LRU list this process is linked into, if any
+    ProcessRecord lruPrev;      // Next less recently used process in lruList
+    ProcessRecord lruNext;      // Next more recently used process in lruList
+    int lruIndex = -1;          // Position in lruList, maintained by the list
     CompatibilityInfo compat;   // last used compatibility mode
     IBinder.DeathRecipient deathRecipient; // Who is watching for the death.
     ComponentName instrumentationClass;// class installed to instrument app
@@ -101,7 +106,7 @@ class ProcessRecord {
     BroadcastRecord curReceiver;// receiver currently running in the app
     long lastWakeTime;          // How long proc held wake lock at last check
     long lastCpuTime;           // How long proc has run CPU at last check
-    long curCpuTime;            // How long proc has run CPU most recently
+    long curCpuTime;            // How long proc has run CPU at last sample taken
     long lastRequestedGc;       // When we last asked the app to do a gc
     long lastLowMemory;         // When we last told the app that memory is low
     boolean reportLowMemory;    // Set to true when waiting to report low mem
@@ -257,6 +262,9 @@ class ProcessRecord {
                 pw.print(" lastLowMemory=");
                 TimeUtils.formatDuration(lastLowMemory, now, pw);
                 pw.print(" reportLowMemory="); pw.println(reportLowMemory);
+        if (prestarted) {
+            pw.print(prefix); pw.println("prestarted=true");
+        }
         if (killedBackground || waitingToKill != null) {
             pw.print(prefix); pw.print("killedBackground="); pw.print(killedBackground);
                     pw.print(" waitingToKill="); pw.println(waitingToKill);
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Applies oom_adj and scheduling group changes computed by the activity
+ * manager.  Those are procfs and cgroup writes, and doing them inline keeps
+ * the activity manager lock held across a pair of syscalls for every
+ * process whose state changed.  Instead updates are queued here by pid and
+ * written by a dedicated thread; a pid that changes again before the thread
+ * gets to it is only written once, with its latest values.
+ *
+ * Writes are assumed to succeed; a failure is logged by the writer thread,
+ * and the next change for the process writes it again.
+ *
+ * Once a process has died its pid may be reused, so {@link #cancel} also
+ * stops the writes for it in the batch being written.  It does not wait
+ * for a write that has already started, as it is called with the activity
+ * manager lock held; such a write may still land on a new process given
+ * the same pid, so the pid is remembered as stale until that process
+ * attaches and asks with {@link #takeStalePid}.  Whatever is queued for the
+ * new process is written after the stale write finishes.
+ */
+final class ProcessStateWriter {
+    static final String TAG = "ProcessStateWriter";
+
+    static final int UNCHANGED = Integer.MIN_VALUE;
+
+    static final class Update {
+        int pid;
+        int adj = UNCHANGED;
+        int schedGroup = UNCHANGED;
+        long enqueueTime;
+        boolean cancelled;
+    }
+
+    /** Where updates are written; tests record them instead. */
+    interface Sink {
+        boolean setOomAdj(int pid, int adj);
+        boolean setProcessGroup(int pid, int schedGroup);
+    }
+
+    static final Sink PROCESS_SINK = new Sink() {
+        @Override
+        public boolean setOomAdj(int pid, int adj) {
+            if (!Process.setOomAdj(pid, adj)) {
+                Slog.w(TAG, "Failed setting oom adj of pid " + pid + " to " + adj);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean setProcessGroup(int pid, int schedGroup) {
+            try {
+                Process.setProcessGroup(pid, schedGroup);
+                return true;
+            } catch (Exception e) {
+                Slog.w(TAG, "Failed setting process group of " + pid + " to " + schedGroup, e);
+                return false;
+            }
+        }
+    };
+
+    private final boolean mAsync;
+    private final Sink mSink;
+    private Thread mThread;
+
+    // All of the following are guarded by "this".
+    private SparseArray<Update> mPending = new SparseArray<Update>();
+    private SparseArray<Update> mSpare = new SparseArray<Update>();
+    private final ArrayList<Update> mFreeUpdates = new ArrayList<Update>();
+    // The batch being written, and the pid whose update is being written.
+    private SparseArray<Update> mWriting;
+    private int mWritingPid;
+    // Pids whose write was in progress when they were cancelled.
+    private final SparseBooleanArray mStalePids = new SparseBooleanArray();
+    private int mMaxQueueDepth;
+    private long mNumRequests;
+    private long mNumCoalesced;
+    private long mNumCancelled;
+    private long mNumBatches;
+    private long mNumWrites;
+    private long mNumFailures;
+
+    /** Time from queueing an update until it is written. */
+    final Histogram mQueueDelay = new Histogram();
+    /** Time spent writing one batch. */
+    final Histogram mBatchTime = new Histogram();
+
+    ProcessStateWriter(boolean async) {
+        this(async, PROCESS_SINK);
+    }
+
+    ProcessStateWriter(boolean async, Sink sink) {
+        mAsync = async;
+        mSink = sink;
+    }
+
+    /**
+     * Starts the writer thread, if writes are async.  Updates queued before
+     * this are written once it has started.
+     */
+    void start() {
+        if (!mAsync) {
+            return;
+        }
+        synchronized (this) {
+            if (mThread != null) {
+                return;
+            }
+            mThread = new Thread("ProcessStateWriter") {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    while (true) {
+                        try {
+                            writePending();
+                        } catch (Exception e) {
+                            Slog.e(TAG, "Unexpected exception writing process state", e);
+                        }
+                    }
+                }
+            };
+        }
+        mThread.start();
+    }
+
+    /**
+     * Queue a new oom_adj for pid.  Returns false only if the write was done
+     * synchronously and failed.
+     */
+    boolean setOomAdj(int pid, int adj) {
+        if (!mAsync) {
+            return mSink.setOomAdj(pid, adj);
+        }
+        synchronized (this) {
+            obtainLocked(pid).adj = adj;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a new scheduling group for pid.
+     */
+    void setProcessGroup(int pid, int schedGroup) {
+        if (!mAsync) {
+            mSink.setProcessGroup(pid, schedGroup);
+            return;
+        }
+        synchronized (this) {
+            obtainLocked(pid).schedGroup = schedGroup;
+        }
+    }
+
+    /**
+     * Drop anything queued or not yet written for pid, which has gone away;
+     * its pid may be reused.  If pid's update is being written right now,
+     * marks pid stale instead of waiting for it.
+     */
+    void cancel(int pid) {
+        if (!mAsync) {
+            return;
+        }
+        synchronized (this) {
+            final int index = mPending.indexOfKey(pid);
+            if (index >= 0) {
+                mFreeUpdates.add(mPending.valueAt(index));
+                mPending.removeAt(index);
+                mNumCancelled++;
+            }
+            final Update writing = mWriting != null ? mWriting.get(pid) : null;
+            if (writing != null && !writing.cancelled) {
+                writing.cancelled = true;
+                mNumCancelled++;
+            }
+            if (mWritingPid == pid) {
+                mStalePids.put(pid, true);
+            }
+        }
+    }
+
+    /**
+     * Returns true if an update for a process that has died with pid may
+     * have been written after it died, and so to a new process with the
+     * same pid; that process should have all of its state written.  Forgets
+     * pid.
+     */
+    boolean takeStalePid(int pid) {
+        if (!mAsync) {
+            return false;
+        }
+        synchronized (this) {
+            final int index = mStalePids.indexOfKey(pid);
+            if (index < 0) {
+                return false;
+            }
+            mStalePids.removeAt(index);
+            return true;
+        }
+    }
+
+    private Update obtainLocked(int pid) {
+        mNumRequests++;
+        Update update = mPending.get(pid);
+        if (update != null) {
+            mNumCoalesced++;
+            return update;
+        }
+        final int N = mFreeUpdates.size();
+        if (N > 0) {
+            update = mFreeUpdates.remove(N - 1);
+            update.adj = UNCHANGED;
+            update.schedGroup = UNCHANGED;
+            update.cancelled = false;
+        } else {
+            update = new Update();
+        }
+        update.pid = pid;
+        update.enqueueTime = SystemClock.uptimeMillis();
+        mPending.put(pid, update);
+        if (mPending.size() == 1) {
+            notify();
+        }
+        if (mPending.size() > mMaxQueueDepth) {
+            mMaxQueueDepth = mPending.size();
+        }
+        return update;
+    }
+
+    private void writePending() {
+        final SparseArray<Update> batch;
+        synchronized (this) {
+            while (mPending.size() == 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+            // Swap buffers so that queueing can continue while we write.
+            batch = mPending;
+            mPending = mSpare;
+            mSpare = batch;
+            mWriting = batch;
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        int writes = 0;
+        int failures = 0;
+        final int N = batch.size();
+        for (int i = 0; i < N; i++) {
+            final Update update = batch.valueAt(i);
+            synchronized (this) {
+                if (update.cancelled) {
+                    continue;
+                }
+                mWritingPid = update.pid;
+            }
+            mQueueDelay.add(start - update.enqueueTime);
+            if (update.adj != UNCHANGED) {
+                writes++;
+                if (!mSink.setOomAdj(update.pid, update.adj)) {
+                    failures++;
+                }
+            }
+            if (update.schedGroup != UNCHANGED) {
+                writes++;
+                if (!mSink.setProcessGroup(update.pid, update.schedGroup)) {
+                    failures++;
+                }
+            }
+            synchronized (this) {
+                mWritingPid = 0;
+            }
+        }
+        mBatchTime.add(SystemClock.uptimeMillis() - start);
+
+        synchronized (this) {
+            mWriting = null;
+            for (int i = 0; i < N; i++) {
+                mFreeUpdates.add(batch.valueAt(i));
+            }
+            batch.clear();
+            mNumBatches++;
+            mNumWrites += writes;
+            mNumFailures += failures;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (this) {
+            pw.print(prefix); pw.print("Process state writer: ");
+            pw.println(mAsync ? "async" : "sync");
+            if (!mAsync) {
+                return;
+            }
+            pw.print(prefix); pw.print("  queued="); pw.print(mPending.size());
+            pw.print(" maxQueued="); pw.print(mMaxQueueDepth);
+            pw.print(" requests="); pw.print(mNumRequests);
+            pw.print(" coalesced="); pw.print(mNumCoalesced);
+            pw.print(" cancelled="); pw.println(mNumCancelled);
+            pw.print(prefix); pw.print("  batches="); pw.print(mNumBatches);
+            pw.print(" writes="); pw.print(mNumWrites);
+            pw.print(" failures="); pw.println(mNumFailures);
+        }
+        pw.print(prefix); pw.print("  queue delay: "); mQueueDelay.dump(pw);
+        pw.print(prefix); pw.print("  batch write time: "); mBatchTime.dump(pw);
+    }
+}
@@ -27,13 +27,19 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Keeps track of content providers by authority (name) and class. It separates the mapping by
  * user and ones that are not user-specific (system providers).
+ *
+ * All lookups and changes are made with the activity manager lock held,
+ * except {@link #getPublishedProviderByName}, which getContentProvider uses
+ * to check a provider's declared permissions before taking that lock.  For
+ * that one the maps are concurrent, and the per-user tables are replaced
+ * when a user's map is added or removed rather than modified.
  */
 public class ProviderMap {
 
@@ -43,15 +49,19 @@ public class ProviderMap {
 
     private final ActivityManagerService mAm;
 
-    private final HashMap<String, ContentProviderRecord> mSingletonByName
-            = new HashMap<String, ContentProviderRecord>();
-    private final HashMap<ComponentName, ContentProviderRecord> mSingletonByClass
-            = new HashMap<ComponentName, ContentProviderRecord>();
+    private final ConcurrentHashMap<String, ContentProviderRecord> mSingletonByName
+            = new ConcurrentHashMap<String, ContentProviderRecord>();
+    private final ConcurrentHashMap<ComponentName, ContentProviderRecord> mSingletonByClass
+            = new ConcurrentHashMap<ComponentName, ContentProviderRecord>();
 
-    private final SparseArray<HashMap<String, ContentProviderRecord>> mProvidersByNamePerUser
-            = new SparseArray<HashMap<String, ContentProviderRecord>>();
-    private final SparseArray<HashMap<ComponentName, ContentProviderRecord>> mProvidersByClassPerUser
-            = new SparseArray<HashMap<ComponentName, ContentProviderRecord>>();
+    // Copy-on-write: a new SparseArray is published whenever a user's map is
+    // added or removed.
+    private volatile SparseArray<ConcurrentHashMap<String, ContentProviderRecord>>
+            mProvidersByNamePerUser
+            = new SparseArray<ConcurrentHashMap<String, ContentProviderRecord>>();
+    private volatile SparseArray<ConcurrentHashMap<ComponentName, ContentProviderRecord>>
+            mProvidersByClassPerUser
+            = new SparseArray<ConcurrentHashMap<ComponentName, ContentProviderRecord>>();
 
     ProviderMap(ActivityManagerService am) {
         mAm = am;
@@ -65,6 +75,9 @@ public class ProviderMap {
         if (DBG) {
             Slog.i(TAG, "getProviderByName: " + name + " , callingUid = " + Binder.getCallingUid());
         }
+        if (name == null) {
+            return null;
+        }
         // Try to find it in the global list
         ContentProviderRecord record = mSingletonByName.get(name);
         if (record != null) {
@@ -72,7 +85,29 @@ public class ProviderMap {
         }
 
         // Check the current user's list
-        return getProvidersByName(userId).get(name);
+        if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
+        final ConcurrentHashMap<String, ContentProviderRecord> map
+                = mProvidersByNamePerUser.get(userId);
+        return map != null ? map.get(name) : null;
+    }
+
+    /**
+     * Look up a provider by authority without holding the activity manager
+     * lock.  The result is only a hint: the provider may be removed or
+     * replaced at any moment, so callers must look it up again under the
+     * lock before acting on it.
+     */
+    ContentProviderRecord getPublishedProviderByName(String name, int userId) {
+        if (name == null) {
+            return null;
+        }
+        ContentProviderRecord record = mSingletonByName.get(name);
+        if (record != null) {
+            return record;
+        }
+        final ConcurrentHashMap<String, ContentProviderRecord> map
+                = mProvidersByNamePerUser.get(userId);
+        return map != null ? map.get(name) : null;
     }
 
     ContentProviderRecord getProviderByClass(ComponentName name) {
@@ -83,6 +118,9 @@ public class ProviderMap {
         if (DBG) {
             Slog.i(TAG, "getProviderByClass: " + name + ", callingUid = " + Binder.getCallingUid());
         }
+        if (name == null) {
+            return null;
+        }
         // Try to find it in the global list
         ContentProviderRecord record = mSingletonByClass.get(name);
         if (record != null) {
@@ -90,7 +128,10 @@ public class ProviderMap {
         }
 
         // Check the current user's list
-        return getProvidersByClass(userId).get(name);
+        if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
+        final ConcurrentHashMap<ComponentName, ContentProviderRecord> map
+                = mProvidersByClassPerUser.get(userId);
+        return map != null ? map.get(name) : null;
     }
 
     void putProviderByName(String name, ContentProviderRecord record) {
@@ -129,11 +170,17 @@ public class ProviderMap {
             if (DBG)
                 Slog.i(TAG,
                         "Removing from providersByName name=" + name + " user=" + userId);
-            HashMap<String, ContentProviderRecord> map = getProvidersByName(userId);
-            // map returned by getProvidersByName wouldn't be null
+            final ConcurrentHashMap<String, ContentProviderRecord> map
+                    = mProvidersByNamePerUser.get(userId);
+            if (map == null) {
+                return;
+            }
             map.remove(name);
             if (map.size() == 0) {
-                mProvidersByNamePerUser.remove(userId);
+                final SparseArray<ConcurrentHashMap<String, ContentProviderRecord>> users
+                        = mProvidersByNamePerUser.clone();
+                users.remove(userId);
+                mProvidersByNamePerUser = users;
             }
         }
     }
@@ -148,35 +195,58 @@ public class ProviderMap {
             if (DBG)
                 Slog.i(TAG,
                         "Removing from providersByClass name=" + name + " user=" + userId);
-            HashMap<ComponentName, ContentProviderRecord> map = getProvidersByClass(userId);
-            // map returned by getProvidersByClass wouldn't be null
+            final ConcurrentHashMap<ComponentName, ContentProviderRecord> map
+                    = mProvidersByClassPerUser.get(userId);
+            if (map == null) {
+                return;
+            }
             map.remove(name);
             if (map.size() == 0) {
-                mProvidersByClassPerUser.remove(userId);
+                final SparseArray<ConcurrentHashMap<ComponentName, ContentProviderRecord>> users
+                        = mProvidersByClassPerUser.clone();
+                users.remove(userId);
+                mProvidersByClassPerUser = users;
             }
         }
     }
 
-    private HashMap<String, ContentProviderRecord> getProvidersByName(int userId) {
+    /**
+     * Returns userId's map, creating it if needed.  Only for adding
+     * providers: creating a map copies the per-user table.
+     */
+    private ConcurrentHashMap<String, ContentProviderRecord> getProvidersByName(int userId) {
         if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
-        final HashMap<String, ContentProviderRecord> map = mProvidersByNamePerUser.get(userId);
+        final ConcurrentHashMap<String, ContentProviderRecord> map
+                = mProvidersByNamePerUser.get(userId);
         if (map == null) {
-            HashMap<String, ContentProviderRecord> newMap = new HashMap<String, ContentProviderRecord>();
-            mProvidersByNamePerUser.put(userId, newMap);
+            ConcurrentHashMap<String, ContentProviderRecord> newMap
+                    = new ConcurrentHashMap<String, ContentProviderRecord>();
+            final SparseArray<ConcurrentHashMap<String, ContentProviderRecord>> users
+                    = mProvidersByNamePerUser.clone();
+            users.put(userId, newMap);
+            mProvidersByNamePerUser = users;
             return newMap;
         } else {
             return map;
         }
     }
 
-    HashMap<ComponentName, ContentProviderRecord> getProvidersByClass(int userId) {
+    /**
+     * Returns userId's map, creating it if needed.  Only for adding
+     * providers: creating a map copies the per-user table.
+     */
+    private ConcurrentHashMap<ComponentName, ContentProviderRecord> getProvidersByClass(
+            int userId) {
         if (userId < 0) throw new IllegalArgumentException("Bad user " + userId);
-        final HashMap<ComponentName, ContentProviderRecord> map
+        final ConcurrentHashMap<ComponentName, ContentProviderRecord> map
                 = mProvidersByClassPerUser.get(userId);
         if (map == null) {
-            HashMap<ComponentName, ContentProviderRecord> newMap
-                    = new HashMap<ComponentName, ContentProviderRecord>();
-            mProvidersByClassPerUser.put(userId, newMap);
+            ConcurrentHashMap<ComponentName, ContentProviderRecord> newMap
+                    = new ConcurrentHashMap<ComponentName, ContentProviderRecord>();
+            final SparseArray<ConcurrentHashMap<ComponentName, ContentProviderRecord>> users
+                    = mProvidersByClassPerUser.clone();
+            users.put(userId, newMap);
+            mProvidersByClassPerUser = users;
             return newMap;
         } else {
             return map;
@@ -185,7 +255,7 @@ public class ProviderMap {
 
     private boolean collectForceStopProvidersLocked(String name, int appId,
             boolean doit, boolean evenPersistent, int userId,
-            HashMap<ComponentName, ContentProviderRecord> providers,
+            ConcurrentHashMap<ComponentName, ContentProviderRecord> providers,
             ArrayList<ContentProviderRecord> result) {
         boolean didSomething = false;
         for (ContentProviderRecord provider : providers.values()) {
@@ -220,8 +290,8 @@ public class ProviderMap {
                 }
             }
         } else {
-            HashMap<ComponentName, ContentProviderRecord> items
-                    = getProvidersByClass(userId);
+            ConcurrentHashMap<ComponentName, ContentProviderRecord> items
+                    = mProvidersByClassPerUser.get(userId);
             if (items != null) {
                 didSomething |= collectForceStopProvidersLocked(name, appId, doit,
                         evenPersistent, userId, items, result);
@@ -231,7 +301,7 @@ public class ProviderMap {
     }
 
     private void dumpProvidersByClassLocked(PrintWriter pw, boolean dumpAll,
-            HashMap<ComponentName, ContentProviderRecord> map) {
+            ConcurrentHashMap<ComponentName, ContentProviderRecord> map) {
         Iterator<Map.Entry<ComponentName, ContentProviderRecord>> it = map.entrySet().iterator();
         while (it.hasNext()) {
             Map.Entry<ComponentName, ContentProviderRecord> e = it.next();
@@ -243,7 +313,7 @@ public class ProviderMap {
     }
 
     private void dumpProvidersByNameLocked(PrintWriter pw,
-            HashMap<String, ContentProviderRecord> map) {
+            ConcurrentHashMap<String, ContentProviderRecord> map) {
         Iterator<Map.Entry<String, ContentProviderRecord>> it = map.entrySet().iterator();
         while (it.hasNext()) {
             Map.Entry<String, ContentProviderRecord> e = it.next();
@@ -263,7 +333,8 @@ public class ProviderMap {
 
         pw.println("");
         for (int i = 0; i < mProvidersByClassPerUser.size(); i++) {
-            HashMap<ComponentName, ContentProviderRecord> map = mProvidersByClassPerUser.valueAt(i);
+            ConcurrentHashMap<ComponentName, ContentProviderRecord> map
+                    = mProvidersByClassPerUser.valueAt(i);
             pw.println("");
             pw.println("  Published user " + mProvidersByClassPerUser.keyAt(i)
                     + " content providers (by class):");
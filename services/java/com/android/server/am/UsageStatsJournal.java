@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Append-only log of the usage events recorded since the usage stats were
+ * last written in full.  Writing the stats out then costs as much as the
+ * events that happened, not as much as the packages they cover; the full
+ * daily summary is only rewritten when the log is compacted.
+ *
+ * The log starts with a header naming the day and the generation of the
+ * summary it continues from.  A summary written with a newer generation
+ * already holds the log's events, so a log left over from a compaction
+ * interrupted between the two writes is not replayed twice.  Package and
+ * component names are written once per log and referred to by number
+ * after that.  A record cut short by a crash ends the replay.
+ *
+ * Events are buffered in memory until {@link #flush}.  The note methods
+ * may be called from any thread; flush and the start of a new generation
+ * must be serialized by the caller.
+ */
+final class UsageStatsJournal {
+    private static final String TAG = "UsageStatsJournal";
+
+    static final int MAGIC = 0x55534a31; // USJ1
+
+    static final int TYPE_NAME = 1;
+    static final int TYPE_RESUME = 2;
+    static final int TYPE_PAUSE = 3;
+    static final int TYPE_LAUNCH_TIME = 4;
+    static final int TYPE_REMOVED = 5;
+
+    /** Receives the events of a log being replayed. */
+    interface Replayer {
+        void onResume(String pkg, String comp, long wallTime, boolean newPackage,
+                boolean newComponent);
+        void onPause(String pkg, long usageTime);
+        void onLaunchTime(String pkg, String comp, int millis);
+        void onRemoved(String pkg);
+    }
+
+    /** What {@link #replay} found in a log. */
+    static final class Replayed {
+        final HashMap<String, Integer> nameIds = new HashMap<String, Integer>();
+        // Length of the complete records; anything after is a torn write.
+        long length;
+    }
+
+    static final class Header {
+        final String day;
+        final long generation;
+
+        Header(String day, long generation) {
+            this.day = day;
+            this.generation = generation;
+        }
+    }
+
+    private final File mFile;
+
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(4096);
+    private DataOutputStream mOut = new DataOutputStream(mBuffer);
+    private final HashMap<String, Integer> mNameIds = new HashMap<String, Integer>();
+    private boolean mTruncateOnFlush;
+    private boolean mBroken;
+    private long mFileSize;
+
+    UsageStatsJournal(File file) {
+        mFile = file;
+        mFileSize = file.length();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Continues an existing log after it has been replayed, keeping the
+     * names it already defines and cutting off any record left incomplete.
+     */
+    synchronized void resume(Replayed replayed) throws IOException {
+        mNameIds.putAll(replayed.nameIds);
+        if (replayed.length < mFileSize) {
+            Slog.w(TAG, "Dropping " + (mFileSize - replayed.length)
+                    + " bytes of incomplete records");
+            final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(replayed.length);
+            } finally {
+                raf.close();
+            }
+            mFileSize = replayed.length;
+        }
+    }
+
+    /**
+     * Starts a new log for the events after a summary of the given day and
+     * generation has been taken.  Events noted so far are dropped; the file
+     * is replaced at the next flush.
+     */
+    synchronized void startGeneration(String day, long generation) {
+        mBuffer = new ByteArrayOutputStream(4096);
+        mOut = new DataOutputStream(mBuffer);
+        mNameIds.clear();
+        mTruncateOnFlush = true;
+        mBroken = false;
+        try {
+            mOut.writeInt(MAGIC);
+            mOut.writeUTF(day);
+            mOut.writeLong(generation);
+        } catch (IOException e) {
+            // Can't happen writing to memory.
+        }
+    }
+
+    /**
+     * True once an append has failed; the log can't be trusted past that
+     * point, so the caller should compact.
+     */
+    synchronized boolean isBroken() {
+        return mBroken;
+    }
+
+    synchronized long getSize() {
+        return mFileSize + mBuffer.size();
+    }
+
+    private int nameId(String name) throws IOException {
+        Integer id = mNameIds.get(name);
+        if (id == null) {
+            id = mNameIds.size();
+            mNameIds.put(name, id);
+            mOut.writeByte(TYPE_NAME);
+            mOut.writeUTF(name);
+        }
+        return id;
+    }
+
+    synchronized void noteResume(String pkg, String comp, long wallTime,
+            boolean newPackage, boolean newComponent) {
+        try {
+            final int pkgId = nameId(pkg);
+            final int compId = nameId(comp);
+            mOut.writeByte(TYPE_RESUME);
+            mOut.writeInt(pkgId);
+            mOut.writeInt(compId);
+            mOut.writeLong(wallTime);
+            mOut.writeByte((newPackage ? 1 : 0) | (newComponent ? 2 : 0));
+        } catch (IOException e) {
+        }
+    }
+
+    synchronized void notePause(String pkg, long usageTime) {
+        try {
+            final int pkgId = nameId(pkg);
+            mOut.writeByte(TYPE_PAUSE);
+            mOut.writeInt(pkgId);
+            mOut.writeLong(usageTime);
+        } catch (IOException e) {
+        }
+    }
+
+    synchronized void noteLaunchTime(String pkg, String comp, int millis) {
+        try {
+            final int pkgId = nameId(pkg);
+            final int compId = nameId(comp);
+            mOut.writeByte(TYPE_LAUNCH_TIME);
+            mOut.writeInt(pkgId);
+            mOut.writeInt(compId);
+            mOut.writeInt(millis);
+        } catch (IOException e) {
+        }
+    }
+
+    synchronized void noteRemoved(String pkg) {
+        try {
+            final int pkgId = nameId(pkg);
+            mOut.writeByte(TYPE_REMOVED);
+            mOut.writeInt(pkgId);
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Appends the buffered events to the file and syncs it.
+     */
+    void flush() throws IOException {
+        final byte[] data;
+        final boolean truncate;
+        synchronized (this) {
+            if (mBuffer.size() == 0 && !mTruncateOnFlush) {
+                return;
+            }
+            data = mBuffer.toByteArray();
+            truncate = mTruncateOnFlush;
+            mBuffer.reset();
+            mTruncateOnFlush = false;
+        }
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(mFile, !truncate);
+            stream.write(data);
+            stream.flush();
+            FileUtils.sync(stream);
+            synchronized (this) {
+                mFileSize = truncate ? data.length : mFileSize + data.length;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                mBroken = true;
+            }
+            throw e;
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the header of the log in file, or returns null if there is no
+     * usable log.
+     */
+    static Header readHeader(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final DataInputStream in = openMapped(file);
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            return new Header(in.readUTF(), in.readLong());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replays the events in file to replayer, returning what is needed to
+     * continue the log with {@link #resume}.
+     */
+    static Replayed replay(File file, Replayer replayer) throws IOException {
+        final Replayed replayed = new Replayed();
+        final HashMap<String, Integer> nameIds = replayed.nameIds;
+        String[] table = new String[64];
+        int numNames = 0;
+        int numEvents = 0;
+        final ByteBuffer data = map(file);
+        final DataInputStream in = wrap(data);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Bad usage journal " + file);
+        }
+        in.readUTF();
+        in.readLong();
+        try {
+            while (true) {
+                replayed.length = data.position();
+                final int type = in.readByte();
+                switch (type) {
+                    case TYPE_NAME: {
+                        final String name = in.readUTF();
+                        if (numNames == table.length) {
+                            final String[] bigger = new String[numNames * 2];
+                            System.arraycopy(table, 0, bigger, 0, numNames);
+                            table = bigger;
+                        }
+                        nameIds.put(name, numNames);
+                        table[numNames++] = name;
+                        break;
+                    }
+                    case TYPE_RESUME: {
+                        final String pkg = table[in.readInt()];
+                        final String comp = table[in.readInt()];
+                        final long wallTime = in.readLong();
+                        final int flags = in.readByte();
+                        replayer.onResume(pkg, comp, wallTime, (flags & 1) != 0,
+                                (flags & 2) != 0);
+                        break;
+                    }
+                    case TYPE_PAUSE: {
+                        final String pkg = table[in.readInt()];
+                        replayer.onPause(pkg, in.readLong());
+                        break;
+                    }
+                    case TYPE_LAUNCH_TIME: {
+                        final String pkg = table[in.readInt()];
+                        final String comp = table[in.readInt()];
+                        replayer.onLaunchTime(pkg, comp, in.readInt());
+                        break;
+                    }
+                    case TYPE_REMOVED: {
+                        replayer.onRemoved(table[in.readInt()]);
+                        break;
+                    }
+                    default:
+                        Slog.w(TAG, "Unknown record " + type + " after " + numEvents
+                                + " events; ignoring the rest");
+                        return replayed;
+                }
+                numEvents++;
+            }
+        } catch (EOFException e) {
+            // End of the log, or a record cut short.
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Slog.w(TAG, "Undefined name after " + numEvents + " events; ignoring the rest");
+        }
+        return replayed;
+    }
+
+    /**
+     * Maps file into memory, so that reading it does not copy it through a
+     * buffer of our own.
+     */
+    static ByteBuffer map(File file) throws IOException {
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            return map(fis);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            fis.close();
+        }
+    }
+
+    static ByteBuffer map(FileInputStream fis) throws IOException {
+        final FileChannel channel = fis.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    static DataInputStream openMapped(File file) throws IOException {
+        return wrap(map(file));
+    }
+
+    static DataInputStream wrap(ByteBuffer buffer) {
+        return new DataInputStream(new ByteBufferInputStream(buffer));
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
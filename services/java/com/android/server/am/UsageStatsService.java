@@ -34,12 +34,13 @@ import android.util.Xml;
 import com.android.internal.app.IUsageStats;
 import com.android.internal.content.PackageMonitor;
 import com.android.internal.os.PkgUsageStats;
-import com.android.internal.util.FastXmlSerializer;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -47,14 +48,16 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -72,15 +75,26 @@ public final class UsageStatsService extends IUsageStats.Stub {
     private static final boolean REPORT_UNEXPECTED = false;
     private static final String TAG = "UsageStats";
     
-    // Current on-disk Parcel version
-    private static final int VERSION = 1007;
+    // Current on-disk version of the columnar daily summary
+    private static final int VERSION = 1008;
+    // Daily files written as a Parcel before the summary was columnar
+    private static final int PARCEL_VERSION = 1007;
+    private static final int HISTORY_VERSION = 1;
 
     private static final int CHECKIN_VERSION = 4;
     
     private static final String FILE_PREFIX = "usage-";
 
+    // Replaced by FILE_HISTORY_BIN; read once to migrate.
     private static final String FILE_HISTORY = FILE_PREFIX + "history.xml";
 
+    // Not prefixed, so that they are not taken for daily files.
+    private static final String FILE_HISTORY_BIN = "history";
+    private static final String FILE_JOURNAL = "journal";
+
+    // Compact the journal into the daily summary once it is this big.
+    private static final int JOURNAL_COMPACT_SIZE = 64*1024;
+
     private static final int FILE_WRITE_INTERVAL = 30*60*1000; //ms
     
     private static final int MAX_NUM_FILES = 5;
@@ -101,6 +115,9 @@ public final class UsageStatsService extends IUsageStats.Stub {
     // To remove last-resume time stats when a pacakge is removed.
     private PackageMonitor mPackageMonitor;
 
+    // Learns which package tends to be launched next; guarded by mStatsLock.
+    private final LaunchPredictor mPredictor = new LaunchPredictor();
+
     // Lock to update package stats. Methods suffixed by SLOCK should invoked with
     // this lock held
     final Object mStatsLock;
@@ -113,8 +130,14 @@ public final class UsageStatsService extends IUsageStats.Stub {
     private boolean mIsResumed;
     private File mFile;
     private AtomicFile mHistoryFile;
+    private File mLegacyHistoryFile;
     private String mFileLeaf;
     private File mDir;
+    // Events since the last compaction; see UsageStatsJournal.
+    private UsageStatsJournal mJournal;
+    // Generation of the summary in mFile, which the journal continues.
+    private long mGeneration; // guarded by mFileLock
+    private boolean mNeedsCompaction; // guarded by mFileLock
 
     private Calendar mCal; // guarded by itself
 
@@ -151,14 +174,6 @@ public final class UsageStatsService extends IUsageStats.Stub {
                 localTimes[i] = in.readInt();
             }
         }
-        
-        void writeToParcel(Parcel out) {
-            out.writeInt(count);
-            final int[] localTimes = times;
-            for (int i=0; i<NUM_LAUNCH_TIME_BINS; i++) {
-                out.writeInt(localTimes[i]);
-            }
-        }
     }
     
     private class PkgUsageStatsExtended {
@@ -197,9 +212,11 @@ public final class UsageStatsService extends IUsageStats.Stub {
             mResumedTime = SystemClock.elapsedRealtime();
         }
         
-        void updatePause() {
+        long updatePause() {
             mPausedTime =  SystemClock.elapsedRealtime();
-            mUsageTime += (mPausedTime - mResumedTime);
+            final long used = mPausedTime - mResumedTime;
+            mUsageTime += used;
+            return used;
         }
         
         void addLaunchCount(String comp) {
@@ -220,20 +237,6 @@ public final class UsageStatsService extends IUsageStats.Stub {
             times.add(millis);
         }
         
-        void writeToParcel(Parcel out) {
-            out.writeInt(mLaunchCount);
-            out.writeLong(mUsageTime);
-            final int numTimeStats = mLaunchTimes.size();
-            out.writeInt(numTimeStats);
-            if (numTimeStats > 0) {
-                for (Map.Entry<String, TimeStats> ent : mLaunchTimes.entrySet()) {
-                    out.writeString(ent.getKey());
-                    TimeStats times = ent.getValue();
-                    times.writeToParcel(out);
-                }
-            }
-        }
-        
         void clear() {
             mLaunchTimes.clear();
             mLaunchCount = 0;
@@ -269,9 +272,15 @@ public final class UsageStatsService extends IUsageStats.Stub {
         // Update current stats which are binned by date
         mFileLeaf = getCurrentDateStr(FILE_PREFIX);
         mFile = new File(mDir, mFileLeaf);
-        mHistoryFile = new AtomicFile(new File(mDir, FILE_HISTORY));
+        mHistoryFile = new AtomicFile(new File(mDir, FILE_HISTORY_BIN));
+        mLegacyHistoryFile = new File(mDir, FILE_HISTORY);
+        mJournal = new UsageStatsJournal(new File(mDir, FILE_JOURNAL));
         readStatsFromFile();
         readHistoryStatsFromFile();
+        replayJournal();
+        synchronized (mStatsLock) {
+            seedPredictorSLOCK();
+        }
         mLastWriteElapsedTime.set(SystemClock.elapsedRealtime());
         // mCal was set by getCurrentDateStr(), want to use that same time.
         mLastWriteDay.set(mCal.get(Calendar.DAY_OF_YEAR));
@@ -302,22 +311,43 @@ public final class UsageStatsService extends IUsageStats.Stub {
         return sb.toString();
     }
     
-    private Parcel getParcelForFile(File file) throws IOException {
-        FileInputStream stream = new FileInputStream(file);
-        byte[] raw = readFully(stream);
-        Parcel in = Parcel.obtain();
-        in.unmarshall(raw, 0, raw.length);
-        in.setDataPosition(0);
-        stream.close();
-        return in;
+    /**
+     * Gives the launch predictor what is known of the launches before this
+     * boot: today's launch counts and each package's last resume time.
+     */
+    private void seedPredictorSLOCK() {
+        for (Map.Entry<String, Map<String, Long>> entry : mLastResumeTimes.entrySet()) {
+            long lastResumeTime = 0;
+            for (Long time : entry.getValue().values()) {
+                lastResumeTime = Math.max(lastResumeTime, time);
+            }
+            final PkgUsageStatsExtended pus = mStats.get(entry.getKey());
+            mPredictor.seed(entry.getKey(), pus != null ? Math.max(pus.mLaunchCount, 1) : 1,
+                    lastResumeTime > 0 ? LaunchPredictor.hourOfDay(lastResumeTime) : -1);
+        }
+        for (Map.Entry<String, PkgUsageStatsExtended> entry : mStats.entrySet()) {
+            if (!mLastResumeTimes.containsKey(entry.getKey())) {
+                mPredictor.seed(entry.getKey(), entry.getValue().mLaunchCount, -1);
+            }
+        }
     }
-    
+
     private void readStatsFromFile() {
         File newFile = mFile;
         synchronized (mFileLock) {
             try {
                 if (newFile.exists()) {
-                    readStatsFLOCK(newFile);
+                    final Map<String, PkgUsageStatsExtended> stats
+                            = new HashMap<String, PkgUsageStatsExtended>();
+                    final long generation = readStatsFLOCK(newFile, stats);
+                    if (generation < 0) {
+                        Slog.w(TAG, "Usage stats version changed; dropping");
+                    } else {
+                        mGeneration = generation;
+                        synchronized (mStatsLock) {
+                            mStats.putAll(stats);
+                        }
+                    }
                 } else {
                     // Check for file limit before creating a new file
                     checkFileLimitFLOCK();
@@ -328,14 +358,82 @@ public final class UsageStatsService extends IUsageStats.Stub {
             }
         }
     }
-    
-    private void readStatsFLOCK(File file) throws IOException {
-        Parcel in = getParcelForFile(file);
-        int vers = in.readInt();
-        if (vers != VERSION) {
-            Slog.w(TAG, "Usage stats version changed; dropping");
-            return;
+
+    /**
+     * Reads the daily file into stats, returning the generation of the
+     * summary: 0 for an empty file or one written as a Parcel, or -1 if
+     * the file is of a version we don't know.
+     */
+    private long readStatsFLOCK(File file, Map<String, PkgUsageStatsExtended> stats)
+            throws IOException {
+        final ByteBuffer data = UsageStatsJournal.map(file);
+        if (data.remaining() == 0) {
+            return 0;
+        }
+        if (data.remaining() >= 4
+                && data.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == PARCEL_VERSION) {
+            readParcelStatsFLOCK(data, stats);
+            return 0;
+        }
+        final DataInputStream in = UsageStatsJournal.wrap(data);
+        if (in.readInt() != VERSION) {
+            return -1;
+        }
+        final long generation = in.readLong();
+        final int N = in.readInt();
+        final String[] pkgNames = new String[N];
+        final PkgUsageStatsExtended[] pkgs = new PkgUsageStatsExtended[N];
+        for (int i=0; i<N; i++) {
+            pkgNames[i] = in.readUTF();
+        }
+        for (int i=0; i<N; i++) {
+            pkgs[i] = new PkgUsageStatsExtended();
+            pkgs[i].mLaunchCount = in.readInt();
+        }
+        for (int i=0; i<N; i++) {
+            pkgs[i].mUsageTime = in.readLong();
+        }
+        final int[] numComps = new int[N];
+        int M = 0;
+        for (int i=0; i<N; i++) {
+            numComps[i] = in.readInt();
+            M += numComps[i];
+        }
+        final String[] compNames = new String[M];
+        final TimeStats[] times = new TimeStats[M];
+        for (int j=0; j<M; j++) {
+            compNames[j] = in.readUTF();
+        }
+        for (int j=0; j<M; j++) {
+            times[j] = new TimeStats();
+            times[j].count = in.readInt();
         }
+        for (int b=0; b<NUM_LAUNCH_TIME_BINS; b++) {
+            for (int j=0; j<M; j++) {
+                times[j].times[b] = in.readInt();
+            }
+        }
+        int j = 0;
+        for (int i=0; i<N; i++) {
+            for (int k=0; k<numComps[i]; k++, j++) {
+                pkgs[i].mLaunchTimes.put(compNames[j], times[j]);
+            }
+            if (localLOGV) Slog.v(TAG, "Read package #" + i + ": " + pkgNames[i]);
+            stats.put(pkgNames[i], pkgs[i]);
+        }
+        return generation;
+    }
+
+    /**
+     * Reads a daily file written before the summary was columnar.
+     */
+    private void readParcelStatsFLOCK(ByteBuffer data, Map<String, PkgUsageStatsExtended> stats) {
+        final byte[] raw = new byte[data.remaining()];
+        data.get(raw);
+        Parcel in = Parcel.obtain();
+        in.unmarshall(raw, 0, raw.length);
+        in.setDataPosition(0);
+        in.readInt();
         int N = in.readInt();
         while (N > 0) {
             N--;
@@ -344,25 +442,171 @@ public final class UsageStatsService extends IUsageStats.Stub {
                 break;
             }
             if (localLOGV) Slog.v(TAG, "Reading package #" + N + ": " + pkgName);
-            PkgUsageStatsExtended pus = new PkgUsageStatsExtended(in);
-            synchronized (mStatsLock) {
-                mStats.put(pkgName, pus);
-            }
+            stats.put(pkgName, new PkgUsageStatsExtended(in));
         }
+        in.recycle();
     }
 
     private void readHistoryStatsFromFile() {
         synchronized (mFileLock) {
             if (mHistoryFile.getBaseFile().exists()) {
-                readHistoryStatsFLOCK(mHistoryFile);
+                readHistoryStatsFLOCK();
+            } else if (mLegacyHistoryFile.exists()) {
+                // Written as XML before; rewritten in the new form, and the
+                // XML deleted, at the next compaction.
+                readLegacyHistoryStatsFLOCK(mLegacyHistoryFile);
+                mNeedsCompaction = true;
             }
         }
     }
 
-    private void readHistoryStatsFLOCK(AtomicFile file) {
+    private void readHistoryStatsFLOCK() {
         FileInputStream fis = null;
         try {
             fis = mHistoryFile.openRead();
+            final DataInputStream in = UsageStatsJournal.wrap(UsageStatsJournal.map(fis));
+            if (in.readInt() != HISTORY_VERSION) {
+                Slog.w(TAG, "Usage history version changed; dropping");
+                return;
+            }
+            final int N = in.readInt();
+            final String[] pkgNames = new String[N];
+            final int[] numComps = new int[N];
+            for (int i=0; i<N; i++) {
+                pkgNames[i] = in.readUTF();
+            }
+            int M = 0;
+            for (int i=0; i<N; i++) {
+                numComps[i] = in.readInt();
+                M += numComps[i];
+            }
+            final String[] compNames = new String[M];
+            for (int j=0; j<M; j++) {
+                compNames[j] = in.readUTF();
+            }
+            synchronized (mStatsLock) {
+                int j = 0;
+                for (int i=0; i<N; i++) {
+                    final Map<String, Long> lrt = new HashMap<String, Long>();
+                    for (int k=0; k<numComps[i]; k++, j++) {
+                        lrt.put(compNames[j], in.readLong());
+                    }
+                    mLastResumeTimes.put(pkgNames[i], lrt);
+                }
+            }
+        } catch (IOException e) {
+            Slog.w(TAG,"Error reading history stats: " + e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the events in the journal left by the last boot.  A journal
+     * from an earlier day is folded into that day's file.
+     */
+    private void replayJournal() {
+        synchronized (mFileLock) {
+            final File file = mJournal.getFile();
+            final UsageStatsJournal.Header header = UsageStatsJournal.readHeader(file);
+            try {
+                if (header != null && header.day.equals(mFileLeaf)) {
+                    if (header.generation == mGeneration) {
+                        synchronized (mStatsLock) {
+                            mJournal.resume(UsageStatsJournal.replay(file,
+                                    new JournalReplayer(mStats)));
+                        }
+                        return;
+                    }
+                } else if (header != null) {
+                    final File dayFile = new File(mDir, header.day);
+                    final Map<String, PkgUsageStatsExtended> dayStats
+                            = new HashMap<String, PkgUsageStatsExtended>();
+                    final long dayGeneration = dayFile.exists()
+                            ? readStatsFLOCK(dayFile, dayStats) : 0;
+                    if (dayGeneration == header.generation) {
+                        final byte[] data;
+                        synchronized (mStatsLock) {
+                            UsageStatsJournal.replay(file, new JournalReplayer(dayStats));
+                            data = writeStatsSLOCK(dayStats, header.generation + 1);
+                        }
+                        writeBytesFLOCK(dayFile, data);
+                    }
+                    // The resume times it held still need to reach the history.
+                    mNeedsCompaction = true;
+                }
+            } catch (IOException e) {
+                Slog.w(TAG, "Error replaying usage journal: " + e);
+                mNeedsCompaction = true;
+            }
+            mJournal.startGeneration(mFileLeaf, mGeneration);
+        }
+    }
+
+    /**
+     * Applies journal events to the given daily stats and, with mStatsLock
+     * held, to the resume times.
+     */
+    private final class JournalReplayer implements UsageStatsJournal.Replayer {
+        private final Map<String, PkgUsageStatsExtended> mTarget;
+
+        JournalReplayer(Map<String, PkgUsageStatsExtended> target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void onResume(String pkg, String comp, long wallTime, boolean newPackage,
+                boolean newComponent) {
+            PkgUsageStatsExtended pus = mTarget.get(pkg);
+            if (pus == null) {
+                pus = new PkgUsageStatsExtended();
+                mTarget.put(pkg, pus);
+            }
+            if (newPackage) {
+                pus.mLaunchCount++;
+            }
+            if (newComponent) {
+                pus.addLaunchCount(comp);
+            }
+            Map<String, Long> lrt = mLastResumeTimes.get(pkg);
+            if (lrt == null) {
+                lrt = new HashMap<String, Long>();
+                mLastResumeTimes.put(pkg, lrt);
+            }
+            lrt.put(comp, wallTime);
+        }
+
+        @Override
+        public void onPause(String pkg, long usageTime) {
+            final PkgUsageStatsExtended pus = mTarget.get(pkg);
+            if (pus != null) {
+                pus.mUsageTime += usageTime;
+            }
+        }
+
+        @Override
+        public void onLaunchTime(String pkg, String comp, int millis) {
+            final PkgUsageStatsExtended pus = mTarget.get(pkg);
+            if (pus != null) {
+                pus.addLaunchTime(comp, millis);
+            }
+        }
+
+        @Override
+        public void onRemoved(String pkg) {
+            mLastResumeTimes.remove(pkg);
+        }
+    }
+
+    private void readLegacyHistoryStatsFLOCK(File file) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, null);
             int eventType = parser.getEventType();
@@ -469,11 +713,15 @@ public final class UsageStatsService extends IUsageStats.Stub {
      * 'force' is false) so it tries to be quick, without writing to
      * disk directly or acquiring heavy locks.
      *
+     * A write normally only appends the events since the last one to the
+     * journal.  The journal is compacted into the daily summary and the
+     * history when the day changes, when it has grown large, or when asked.
+     *
      * @params force  do an unconditional, synchronous stats flush
      *                to disk on the current thread.
-     * @params forceWriteHistoryStats Force writing of historical stats.
+     * @params compact  Rewrite the summary and history in full.
      */
-    private void writeStatsToFile(final boolean force, final boolean forceWriteHistoryStats) {
+    private void writeStatsToFile(final boolean force, final boolean compact) {
         int curDay;
         synchronized (mCal) {
             mCal.setTimeInMillis(System.currentTimeMillis());
@@ -511,63 +759,100 @@ public final class UsageStatsService extends IUsageStats.Stub {
         }
 
         synchronized (mFileLock) {
-            // Get the most recent file
-            mFileLeaf = getCurrentDateStr(FILE_PREFIX);
-            // Copy current file to back up
-            File backupFile = null;
-            if (mFile != null && mFile.exists()) {
-                backupFile = new File(mFile.getPath() + ".bak");
-                if (!backupFile.exists()) {
-                    if (!mFile.renameTo(backupFile)) {
-                        Slog.w(TAG, "Failed to persist new stats");
-                        return;
-                    }
-                } else {
-                    mFile.delete();
+            if (compact || dayChanged || mNeedsCompaction || mJournal.isBroken()
+                    || mJournal.getSize() > JOURNAL_COMPACT_SIZE) {
+                compactFLOCK(dayChanged, curDay, currElapsedTime);
+            } else {
+                try {
+                    mJournal.flush();
+                    mLastWriteElapsedTime.set(currElapsedTime);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed appending to usage journal: " + e);
                 }
             }
+        }
+        if (localLOGV) Slog.d(TAG, "Dumped usage stats.");
+    }
 
-            try {
-                // Write mStats to file
-                writeStatsFLOCK(mFile);
-                mLastWriteElapsedTime.set(currElapsedTime);
-                if (dayChanged) {
-                    mLastWriteDay.set(curDay);
-                    // clear stats
-                    synchronized (mStats) {
-                        mStats.clear();
-                    }
-                    mFile = new File(mDir, mFileLeaf);
-                    checkFileLimitFLOCK();
-                }
+    /**
+     * Writes the daily summary and the history in full and starts a new
+     * journal after them.
+     */
+    private void compactFLOCK(boolean dayChanged, int curDay, long currElapsedTime) {
+        // Get the most recent file
+        mFileLeaf = getCurrentDateStr(FILE_PREFIX);
+        final long generation = mGeneration + 1;
+        final byte[] stats;
+        final byte[] history;
+        synchronized (mStatsLock) {
+            stats = writeStatsSLOCK(mStats, generation);
+            history = writeHistorySLOCK();
+            if (dayChanged) {
+                // clear stats
+                mStats.clear();
+                mJournal.startGeneration(mFileLeaf, 0);
+            } else {
+                mJournal.startGeneration(mFile.getName(), generation);
+            }
+        }
 
-                if (dayChanged || forceWriteHistoryStats) {
-                    // Write history stats daily, or when forced (due to shutdown).
-                    writeHistoryStatsFLOCK(mHistoryFile);
+        // Copy current file to back up
+        File backupFile = null;
+        if (mFile != null && mFile.exists()) {
+            backupFile = new File(mFile.getPath() + ".bak");
+            if (!backupFile.exists()) {
+                if (!mFile.renameTo(backupFile)) {
+                    Slog.w(TAG, "Failed to persist new stats");
+                    mNeedsCompaction = true;
+                    return;
                 }
+            } else {
+                mFile.delete();
+            }
+        }
 
-                // Delete the backup file
-                if (backupFile != null) {
-                    backupFile.delete();
-                }
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed writing stats to file:" + mFile);
-                if (backupFile != null) {
-                    mFile.delete();
-                    backupFile.renameTo(mFile);
-                }
+        try {
+            // Write mStats to file
+            writeBytesFLOCK(mFile, stats);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed writing stats to file:" + mFile);
+            if (backupFile != null) {
+                mFile.delete();
+                backupFile.renameTo(mFile);
             }
+            mNeedsCompaction = true;
+            return;
+        }
+        // Delete the backup file
+        if (backupFile != null) {
+            backupFile.delete();
+        }
+        mNeedsCompaction = !writeHistoryFLOCK(history);
+
+        mLastWriteElapsedTime.set(currElapsedTime);
+        if (dayChanged) {
+            mLastWriteDay.set(curDay);
+            mFile = new File(mDir, mFileLeaf);
+            // Anything already there is stale; the new journal starts from nothing.
+            mFile.delete();
+            mGeneration = 0;
+            checkFileLimitFLOCK();
+        } else {
+            mGeneration = generation;
+        }
+
+        try {
+            mJournal.flush();
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed starting usage journal: " + e);
+            mNeedsCompaction = true;
         }
-        if (localLOGV) Slog.d(TAG, "Dumped usage stats.");
     }
 
-    private void writeStatsFLOCK(File file) throws IOException {
+    private void writeBytesFLOCK(File file, byte[] data) throws IOException {
         FileOutputStream stream = new FileOutputStream(file);
         try {
-            Parcel out = Parcel.obtain();
-            writeStatsToParcelFLOCK(out);
-            stream.write(out.marshall());
-            out.recycle();
+            stream.write(data);
             stream.flush();
         } finally {
             FileUtils.sync(stream);
@@ -575,17 +860,55 @@ public final class UsageStatsService extends IUsageStats.Stub {
         }
     }
 
-    private void writeStatsToParcelFLOCK(Parcel out) {
-        synchronized (mStatsLock) {
+    /**
+     * Writes stats as a columnar summary: each field of every package in
+     * turn, then each field of every component, so that a field can be
+     * read without decoding the others.
+     */
+    private byte[] writeStatsSLOCK(Map<String, PkgUsageStatsExtended> stats, long generation) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
             out.writeInt(VERSION);
-            Set<String> keys = mStats.keySet();
-            out.writeInt(keys.size());
-            for (String key : keys) {
-                PkgUsageStatsExtended pus = mStats.get(key);
-                out.writeString(key);
-                pus.writeToParcel(out);
+            out.writeLong(generation);
+            final int N = stats.size();
+            out.writeInt(N);
+            final PkgUsageStatsExtended[] pkgs = new PkgUsageStatsExtended[N];
+            int i = 0;
+            for (Map.Entry<String, PkgUsageStatsExtended> ent : stats.entrySet()) {
+                out.writeUTF(ent.getKey());
+                pkgs[i++] = ent.getValue();
+            }
+            for (PkgUsageStatsExtended pus : pkgs) {
+                out.writeInt(pus.mLaunchCount);
+            }
+            for (PkgUsageStatsExtended pus : pkgs) {
+                out.writeLong(pus.mUsageTime);
+            }
+            for (PkgUsageStatsExtended pus : pkgs) {
+                out.writeInt(pus.mLaunchTimes.size());
+            }
+            for (PkgUsageStatsExtended pus : pkgs) {
+                for (String comp : pus.mLaunchTimes.keySet()) {
+                    out.writeUTF(comp);
+                }
+            }
+            for (PkgUsageStatsExtended pus : pkgs) {
+                for (TimeStats times : pus.mLaunchTimes.values()) {
+                    out.writeInt(times.count);
+                }
+            }
+            for (int b=0; b<NUM_LAUNCH_TIME_BINS; b++) {
+                for (PkgUsageStatsExtended pus : pkgs) {
+                    for (TimeStats times : pus.mLaunchTimes.values()) {
+                        out.writeInt(times.times[b]);
+                    }
+                }
             }
+        } catch (IOException e) {
+            // Can't happen writing to memory.
         }
+        return bytes.toByteArray();
     }
 
     /** Filter out stats for any packages which aren't present anymore. */
@@ -604,38 +927,54 @@ public final class UsageStatsService extends IUsageStats.Stub {
         }
     }
 
-    private void writeHistoryStatsFLOCK(AtomicFile historyFile) {
-        FileOutputStream fos = null;
+    /**
+     * Writes the resume times in the same columnar form as the summary.
+     */
+    private byte[] writeHistorySLOCK() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        final DataOutputStream out = new DataOutputStream(bytes);
         try {
-            fos = historyFile.startWrite();
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            out.startTag(null, "usage-history");
-            synchronized (mStatsLock) {
-                for (Map.Entry<String, Map<String, Long>> pkgEntry : mLastResumeTimes.entrySet()) {
-                    out.startTag(null, "pkg");
-                    out.attribute(null, "name", pkgEntry.getKey());
-                    for (Map.Entry<String, Long> compEntry : pkgEntry.getValue().entrySet()) {
-                        out.startTag(null, "comp");
-                        out.attribute(null, "name", compEntry.getKey());
-                        out.attribute(null, "lrt", compEntry.getValue().toString());
-                        out.endTag(null, "comp");
-                    }
-                    out.endTag(null, "pkg");
+            out.writeInt(HISTORY_VERSION);
+            out.writeInt(mLastResumeTimes.size());
+            for (String pkg : mLastResumeTimes.keySet()) {
+                out.writeUTF(pkg);
+            }
+            for (Map<String, Long> lrt : mLastResumeTimes.values()) {
+                out.writeInt(lrt.size());
+            }
+            for (Map<String, Long> lrt : mLastResumeTimes.values()) {
+                for (String comp : lrt.keySet()) {
+                    out.writeUTF(comp);
+                }
+            }
+            for (Map<String, Long> lrt : mLastResumeTimes.values()) {
+                for (Long time : lrt.values()) {
+                    out.writeLong(time);
                 }
             }
-            out.endTag(null, "usage-history");
-            out.endDocument();
+        } catch (IOException e) {
+            // Can't happen writing to memory.
+        }
+        return bytes.toByteArray();
+    }
 
-            historyFile.finishWrite(fos);
+    private boolean writeHistoryFLOCK(byte[] data) {
+        FileOutputStream fos = null;
+        try {
+            fos = mHistoryFile.startWrite();
+            fos.write(data);
+            mHistoryFile.finishWrite(fos);
         } catch (IOException e) {
             Slog.w(TAG,"Error writing history stats" + e);
             if (fos != null) {
-                historyFile.failWrite(fos);
+                mHistoryFile.failWrite(fos);
             }
+            return false;
         }
+        if (mLegacyHistoryFile.exists()) {
+            mLegacyHistoryFile.delete();
+        }
+        return true;
     }
 
     public void publish(Context context) {
@@ -653,6 +992,8 @@ public final class UsageStatsService extends IUsageStats.Stub {
             public void onPackageRemovedAllUsers(String packageName, int uid) {
                 synchronized (mStatsLock) {
                     mLastResumeTimes.remove(packageName);
+                    mJournal.noteRemoved(packageName);
+                    mPredictor.removePackage(packageName);
                 }
             }
         };
@@ -665,7 +1006,8 @@ public final class UsageStatsService extends IUsageStats.Stub {
             mPackageMonitor.unregister();
         }
         Slog.i(TAG, "Writing usage stats before shutdown...");
-        writeStatsToFile(true, true);
+        // Only the journal, which is replayed at the next boot.
+        writeStatsToFile(true, false);
     }
 
     public static IUsageStats getService() {
@@ -695,7 +1037,7 @@ public final class UsageStatsService extends IUsageStats.Stub {
                             + " while already resumed in " + mLastResumedPkg);
                     PkgUsageStatsExtended pus = mStats.get(mLastResumedPkg);
                     if (pus != null) {
-                        pus.updatePause();
+                        mJournal.notePause(mLastResumedPkg, pus.updatePause());
                     }
                 }
             }
@@ -718,12 +1060,18 @@ public final class UsageStatsService extends IUsageStats.Stub {
                 pus.addLaunchCount(mLastResumedComp);
             }
 
+            final long now = System.currentTimeMillis();
+            if (!samePackage) {
+                mPredictor.noteLaunch(pkgName, now);
+            }
+
             Map<String, Long> componentResumeTimes = mLastResumeTimes.get(pkgName);
             if (componentResumeTimes == null) {
                 componentResumeTimes = new HashMap<String, Long>();
                 mLastResumeTimes.put(pkgName, componentResumeTimes);
             }
-            componentResumeTimes.put(mLastResumedComp, System.currentTimeMillis());
+            componentResumeTimes.put(mLastResumedComp, now);
+            mJournal.noteResume(pkgName, mLastResumedComp, now, !samePackage, !sameComp);
         }
     }
 
@@ -751,7 +1099,7 @@ public final class UsageStatsService extends IUsageStats.Stub {
                 Slog.i(TAG, "No package stats for pkg:"+pkgName);
                 return;
             }
-            pus.updatePause();
+            mJournal.notePause(pkgName, pus.updatePause());
         }
         
         // Persist current data to file if needed.
@@ -773,10 +1121,22 @@ public final class UsageStatsService extends IUsageStats.Stub {
             PkgUsageStatsExtended pus = mStats.get(pkgName);
             if (pus != null) {
                 pus.addLaunchTime(componentName.getClassName(), millis);
+                mJournal.noteLaunchTime(pkgName, componentName.getClassName(), millis);
             }
         }
     }
     
+    /**
+     * Returns up to max packages the user is most likely to switch to next,
+     * most likely first.  For the activity manager, which may call with its
+     * own lock held.
+     */
+    ArrayList<String> predictNextPackages(int max) {
+        synchronized (mStatsLock) {
+            return mPredictor.predict(System.currentTimeMillis(), max);
+        }
+    }
+
     public void enforceCallingPermission() {
         if (Binder.getCallingPid() == Process.myPid()) {
             return;
@@ -832,25 +1192,6 @@ public final class UsageStatsService extends IUsageStats.Stub {
         }
     }
     
-    static byte[] readFully(FileInputStream stream) throws java.io.IOException {
-        int pos = 0;
-        int avail = stream.available();
-        byte[] data = new byte[avail];
-        while (true) {
-            int amt = stream.read(data, pos, data.length-pos);
-            if (amt <= 0) {
-                return data;
-            }
-            pos += amt;
-            avail = stream.available();
-            if (avail > data.length-pos) {
-                byte[] newData = new byte[pos+avail];
-                System.arraycopy(data, 0, newData, 0, pos);
-                data = newData;
-            }
-        }
-    }
-    
     private void collectDumpInfoFLOCK(PrintWriter pw, boolean isCompactOutput,
             boolean deleteAfterPrint, HashSet<String> packages) {
         List<String> fileList = getUsageStatsFileListFLOCK();
@@ -867,9 +1208,11 @@ public final class UsageStatsService extends IUsageStats.Stub {
             File dFile = new File(mDir, file);
             String dateStr = file.substring(FILE_PREFIX.length());
             try {
-                Parcel in = getParcelForFile(dFile);
-                collectDumpInfoFromParcelFLOCK(in, pw, dateStr, isCompactOutput,
-                        packages);
+                final Map<String, PkgUsageStatsExtended> stats
+                        = new LinkedHashMap<String, PkgUsageStatsExtended>();
+                final long generation = readStatsFLOCK(dFile, stats);
+                collectDumpInfoFromStatsFLOCK(generation >= 0 ? stats : null, pw, dateStr,
+                        isCompactOutput, packages);
                 if (deleteAfterPrint) {
                     // Delete old file after collecting info only for checkin requests
                     dFile.delete();
@@ -883,8 +1226,8 @@ public final class UsageStatsService extends IUsageStats.Stub {
         }
     }
     
-    private void collectDumpInfoFromParcelFLOCK(Parcel in, PrintWriter pw,
-            String date, boolean isCompactOutput, HashSet<String> packages) {
+    private void collectDumpInfoFromStatsFLOCK(Map<String, PkgUsageStatsExtended> stats,
+            PrintWriter pw, String date, boolean isCompactOutput, HashSet<String> packages) {
         StringBuilder sb = new StringBuilder(512);
         if (isCompactOutput) {
             sb.append("D:");
@@ -896,24 +1239,18 @@ public final class UsageStatsService extends IUsageStats.Stub {
         
         sb.append(date);
         
-        int vers = in.readInt();
-        if (vers != VERSION) {
+        if (stats == null) {
             sb.append(" (old data version)");
             pw.println(sb.toString());
             return;
         }
         
         pw.println(sb.toString());
-        int N = in.readInt();
         
-        while (N > 0) {
-            N--;
-            String pkgName = in.readString();
-            if (pkgName == null) {
-                break;
-            }
+        for (Map.Entry<String, PkgUsageStatsExtended> entry : stats.entrySet()) {
+            String pkgName = entry.getKey();
             sb.setLength(0);
-            PkgUsageStatsExtended pus = new PkgUsageStatsExtended(in);
+            PkgUsageStatsExtended pus = entry.getValue();
             if (packages != null && !packages.contains(pkgName)) {
                 // This package has not been requested -- don't print
                 // anything for it.
@@ -1052,7 +1389,7 @@ public final class UsageStatsService extends IUsageStats.Stub {
         // doesn't need to be done if we are deleting files after printing,
         // since it that case we won't print the current stats.
         if (!deleteAfterPrint) {
-            writeStatsToFile(true, false);
+            writeStatsToFile(true, true);
         }
         
         HashSet<String> packages = null;
@@ -1077,6 +1414,12 @@ public final class UsageStatsService extends IUsageStats.Stub {
         synchronized (mFileLock) {
             collectDumpInfoFLOCK(pw, isCompactOutput, deleteAfterPrint, packages);
         }
+
+        if (!isCompactOutput) {
+            synchronized (mStatsLock) {
+                mPredictor.dump(pw, "", System.currentTimeMillis());
+            }
+        }
     }
 
 }
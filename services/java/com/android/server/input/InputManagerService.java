@@ -171,6 +171,8 @@ public class InputManagerService extends IInputManager.Stub
             int injectorPid, int injectorUid, int syncMode, int timeoutMillis,
             int policyFlags);
     private static native void nativeSetInputWindows(int ptr, InputWindowHandle[] windowHandles);
+    private static native void nativeUpdateInputWindows(int ptr,
+            InputWindowHandle[] windowHandles);
     private static native void nativeSetInputDispatchMode(int ptr, boolean enabled, boolean frozen);
     private static native void nativeSetSystemUiVisibility(int ptr, int visibility);
     private static native void nativeSetFocusedApplication(int ptr,
@@ -1041,6 +1043,15 @@ public class InputManagerService extends IInputManager.Stub
     public void setInputWindows(InputWindowHandle[] windowHandles) {
         nativeSetInputWindows(mPtr, windowHandles);
     }
+
+    /**
+     * Rereads the given windows, all of which must be in the list last passed
+     * to {@link #setInputWindows}.  Cheaper than setting the whole list again
+     * when only their attributes changed.
+     */
+    public void updateInputWindows(InputWindowHandle[] changedHandles) {
+        nativeUpdateInputWindows(mPtr, changedHandles);
+    }
     
     public void setFocusedApplication(InputApplicationHandle application) {
         nativeSetFocusedApplication(mPtr, application);
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.content.pm.Signature;
+import android.os.Build;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import libcore.io.IoUtils;
+
+/**
+ * Boot-time cache of package metadata, stored in a compact binary file
+ * next to packages.xml.  Entries are keyed by apk path and are only
+ * trusted while the file's size and modification time are unchanged;
+ * the whole cache is dropped when the build fingerprint changes.
+ *
+ * The cache lets the boot scan skip certificate collection for unchanged
+ * apks, and skip parsing entirely for system apks that are known to be
+ * superseded by an update installed on /data or that failed to parse on
+ * this build.  Other apks are still parsed: their components can only be
+ * built by PackageParser itself.
+ */
+final class PackageCache {
+    private static final String TAG = "PackageCache";
+
+    private static final int FILE_MAGIC = 0x504b4331; // "PKC1"
+    private static final int FILE_VERSION = 3;
+
+    static final class Entry {
+        final long size;
+        final long lastModified;
+        final String packageName;
+        final int versionCode;
+        final Signature[] signatures;
+        // INSTALL_SUCCEEDED, or the error the apk failed to parse with; the
+        // other fields are only set for apks that parsed.
+        final int parseError;
+
+        Entry(long size, long lastModified, String packageName, int versionCode,
+                Signature[] signatures, int parseError) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.signatures = signatures;
+            this.parseError = parseError;
+        }
+
+        boolean sameAs(Entry other) {
+            return size == other.size && lastModified == other.lastModified
+                    && versionCode == other.versionCode && parseError == other.parseError
+                    && packageName.equals(other.packageName)
+                    && Arrays.equals(signatures, other.signatures);
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Paths looked up or stored during this boot; everything else is
+    // dropped on the next write.
+    private final HashSet<String> mLivePaths = new HashSet<String>();
+    private boolean mDirty;
+
+    PackageCache(File systemDir) {
+        mFile = new AtomicFile(new File(systemDir, "packages-cache.bin"));
+    }
+
+    /**
+     * Returns the cached entry for apk if it is still valid, null otherwise.
+     */
+    Entry get(File apk) {
+        final String path = apk.getPath();
+        final Entry entry = mEntries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.size != apk.length() || entry.lastModified != apk.lastModified()) {
+            mEntries.remove(path);
+            mDirty = true;
+            return null;
+        }
+        mLivePaths.add(path);
+        return entry;
+    }
+
+    /**
+     * Records pkg, which must have had its certificates collected.
+     */
+    void put(File apk, PackageParser.Package pkg) {
+        if (pkg.mSignatures == null || pkg.mSignatures.length == 0) {
+            Slog.w(TAG, "Not caching " + apk + " without certificates");
+            return;
+        }
+        putEntry(apk, new Entry(apk.length(), apk.lastModified(), pkg.packageName,
+                pkg.mVersionCode, pkg.mSignatures, PackageManager.INSTALL_SUCCEEDED));
+    }
+
+    /**
+     * Records that apk failed to parse with parseError, which must be an
+     * error that parsing the same bytes on the same build always gives.
+     */
+    void putParseError(File apk, int parseError) {
+        putEntry(apk, new Entry(apk.length(), apk.lastModified(), "", 0, null, parseError));
+    }
+
+    private void putEntry(File apk, Entry entry) {
+        final String path = apk.getPath();
+        final Entry old = mEntries.put(path, entry);
+        mLivePaths.add(path);
+        if (old == null || !old.sameAs(entry)) {
+            mDirty = true;
+        }
+    }
+
+    void read() {
+        mEntries.clear();
+        FileInputStream fis = null;
+        try {
+            fis = mFile.openRead();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Slog.i(TAG, "Ignoring package cache with unknown format");
+                mDirty = true;
+                return;
+            }
+            if (!Build.FINGERPRINT.equals(in.readUTF())) {
+                Slog.i(TAG, "Build fingerprint changed; discarding package cache");
+                mDirty = true;
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+                final int parseError = in.readInt();
+                final String packageName = in.readUTF();
+                final int versionCode = in.readInt();
+                final int numSigs = in.readInt();
+                Signature[] sigs = null;
+                if (numSigs >= 0) {
+                    sigs = new Signature[numSigs];
+                    for (int j = 0; j < numSigs; j++) {
+                        final byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        sigs[j] = new Signature(bytes);
+                    }
+                }
+                mEntries.put(path, new Entry(size, lastModified, packageName, versionCode,
+                        sigs, parseError));
+            }
+        } catch (FileNotFoundException e) {
+            // First boot, or the cache was deleted; it will be rebuilt.
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading package cache; discarding", e);
+            mEntries.clear();
+            mDirty = true;
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Write the cache back if anything changed, dropping entries for apks
+     * that were not seen since {@link #read}.
+     */
+    void write() {
+        if (mEntries.keySet().retainAll(mLivePaths)) {
+            mDirty = true;
+        }
+        if (!mDirty) {
+            return;
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeInt(entry.parseError);
+                out.writeUTF(entry.packageName);
+                out.writeInt(entry.versionCode);
+                if (entry.signatures == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(entry.signatures.length);
+                    for (Signature sig : entry.signatures) {
+                        final byte[] bytes = sig.toByteArray();
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Slog.w(TAG, "Error writing package cache", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
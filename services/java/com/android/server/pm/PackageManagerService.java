@@ -251,6 +251,19 @@ public class PackageManagerService extends IPackageManager.Stub {
 
     static final String mTempContainerPrefix = "smdl2tmp";
 
+    /**
+     * Number of distinct intent queries whose matching filters are cached
+     * by each of the activity, receiver and service resolvers.
+     */
+    private static final int INTENT_QUERY_CACHE_SIZE = 64;
+
+    /**
+     * Upper bound on the number of threads used to parse packages in
+     * parallel during boot.  Can be lowered with pm.scan.threads; a value
+     * of 1 or less forces the old serial scan.
+     */
+    private static final int MAX_PARALLEL_SCAN_THREADS = 4;
+
     final HandlerThread mHandlerThread = new HandlerThread("PackageManager",
             Process.THREAD_PRIORITY_BACKGROUND);
     final PackageHandler mHandler;
@@ -267,6 +280,14 @@ public class PackageManagerService extends IPackageManager.Stub {
     final int mDefParseFlags;
     final String[] mSeparateProcesses;
 
+    // Parses boot-time package directories on a worker pool; null once
+    // the boot scan is done or when parallel scanning is disabled.
+    private ParallelPackageParser mParallelPackageParser;
+
+    // Metadata of previously scanned apks, consulted and refreshed by the
+    // boot scan; null once the boot scan is done.
+    private PackageCache mPackageCache;
+
     /** M: [ALPS00098646] Mtprof tool @{ */
     boolean mMTPROFDisable;
     /** @} */
@@ -1120,6 +1141,9 @@ public class PackageManagerService extends IPackageManager.Stub {
             mRestoredSettings = mSettings.readLPw(sUserManager.getUsers(false),
                     mSdkVersion, mOnlyCore);
 
+            mPackageCache = new PackageCache(new File(dataDir, "system"));
+            mPackageCache.read();
+
             long startTime = SystemClock.uptimeMillis();
 
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_SYSTEM_SCAN_START,
@@ -1136,6 +1160,15 @@ public class PackageManagerService extends IPackageManager.Stub {
                 scanMode |= SCAN_NO_DEX;
             }
 
+            final int scanThreads = SystemProperties.getInt("pm.scan.threads",
+                    Math.min(Runtime.getRuntime().availableProcessors(),
+                            MAX_PARALLEL_SCAN_THREADS));
+            if (scanThreads > 1) {
+                Slog.i(TAG, "Scanning packages with " + scanThreads + " threads");
+                mParallelPackageParser = new ParallelPackageParser(mSeparateProcesses,
+                        mOnlyCore, mMetrics, scanThreads);
+            }
+
             final HashSet<String> libFiles = new HashSet<String>();
 
             mFrameworkDir = new File(Environment.getRootDirectory(), "framework");
@@ -1490,6 +1523,17 @@ public class PackageManagerService extends IPackageManager.Stub {
                 mDrmAppInstallObserver = null;
             }
 
+            if (mParallelPackageParser != null) {
+                mParallelPackageParser.shutdown();
+                mParallelPackageParser = null;
+            }
+            if (!mOnlyCore) {
+                // Only core apps were scanned; writing would drop the
+                // entries of all the others.
+                mPackageCache.write();
+            }
+            mPackageCache = null;
+
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_SCAN_END,
                     SystemClock.uptimeMillis());
 
@@ -3412,6 +3456,11 @@ public class PackageManagerService extends IPackageManager.Stub {
         long startScanTime,endScanTime;
         /** @} */
 
+        if (mParallelPackageParser != null) {
+            scanDirParallelLI(dir, files, flags, scanMode, currentTime);
+            return;
+        }
+
         int i;
         for (i=0; i<files.length; i++) {
             File file = new File(dir, files[i]);
@@ -3429,13 +3478,128 @@ public class PackageManagerService extends IPackageManager.Stub {
             endScanTime = SystemClock.uptimeMillis();
             Log.d(TAG,"scan package: " + file.toString() + " , end at: " + endScanTime + "ms. elapsed time = " + (endScanTime - startScanTime) + "ms.");
             /** @} */
-            // Don't mess around with apps in system partition.
-            if (pkg == null && (flags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
-                    mLastScanError == PackageManager.INSTALL_FAILED_INVALID_APK) {
-                // Delete the apk
-                Slog.w(TAG, "Cleaning up failed install of " + file);
-                file.delete();
+            cleanUpFailedScanLI(file, pkg, flags);
+        }
+    }
+
+    /**
+     * Variant of {@link #scanDirLI} used during boot: the manifests of all
+     * apks in the directory are parsed on {@link #mParallelPackageParser},
+     * and the results are then committed one by one in the same (sorted)
+     * order as the serial scan, so the resulting package state is identical.
+     */
+    private void scanDirParallelLI(File dir, String[] files, int flags, int scanMode,
+            long currentTime) {
+        final int parseFlags = flags | PackageParser.PARSE_MUST_BE_APK | mDefParseFlags;
+        ArrayList<File> apks = new ArrayList<File>(files.length);
+        for (int i=0; i<files.length; i++) {
+            if (isPackageFilename(files[i])) {
+                final File file = new File(dir, files[i]);
+                if (getCachedScanErrorLI(file, parseFlags) == PackageManager.INSTALL_SUCCEEDED) {
+                    apks.add(file);
+                }
+            }
+        }
+
+        final long startParseTime = SystemClock.uptimeMillis();
+        final ParallelPackageParser.ParseResult[] results = mParallelPackageParser.parse(
+                apks.toArray(new File[apks.size()]), parseFlags);
+        Log.d(TAG, "parsed " + results.length + " packages in " + dir + " in "
+                + (SystemClock.uptimeMillis() - startParseTime) + "ms.");
+
+        for (int i=0; i<results.length; i++) {
+            final ParallelPackageParser.ParseResult result = results[i];
+            final long startScanTime = SystemClock.uptimeMillis();
+            PackageParser.Package pkg;
+            if (result.pkg == null) {
+                mLastScanError = result.parseError;
+                noteParseErrorLI(result.scanFile, parseFlags, result.parseError);
+                pkg = null;
+            } else {
+                mLastScanError = PackageManager.INSTALL_SUCCEEDED;
+                pkg = scanPackageLI(result.parser, result.pkg, result.scanFile, parseFlags,
+                        scanMode, currentTime, null);
             }
+            Log.d(TAG, "scan package: " + result.scanFile + " , parse time = "
+                    + result.parseTimeMillis + "ms, commit time = "
+                    + (SystemClock.uptimeMillis() - startScanTime) + "ms.");
+            cleanUpFailedScanLI(result.scanFile, pkg, flags);
+        }
+    }
+
+    /**
+     * Uses {@link #mPackageCache} to find, without parsing, unchanged system
+     * apks that {@link #scanPackageLI} would not add: ones superseded by a
+     * newer update installed on the data partition, and ones that failed to
+     * parse on this build.  Returns the scan error for scanFile, or
+     * INSTALL_SUCCEEDED if it has to be parsed.
+     */
+    private int getCachedScanErrorLI(File scanFile, int parseFlags) {
+        if (mPackageCache == null || (parseFlags & (PackageParser.PARSE_IS_SYSTEM
+                | PackageParser.PARSE_IS_VENDOR)) == 0) {
+            return PackageManager.INSTALL_SUCCEEDED;
+        }
+        final PackageCache.Entry entry = mPackageCache.get(scanFile);
+        if (entry == null) {
+            return PackageManager.INSTALL_SUCCEEDED;
+        }
+        if (entry.parseError != PackageManager.INSTALL_SUCCEEDED) {
+            Slog.w(TAG, "Skipping " + scanFile + " (cached): failed to parse with "
+                    + entry.parseError);
+            return entry.parseError;
+        }
+        synchronized (mPackages) {
+            if (mSettings.mRenamedPackages.containsKey(entry.packageName)) {
+                // Renamed packages need the parsed original-package list.
+                return PackageManager.INSTALL_SUCCEEDED;
+            }
+            final PackageSetting ps = mSettings.peekPackageLPr(entry.packageName);
+            if (ps == null || ps.codePath.equals(scanFile)
+                    || mSettings.getDisabledSystemPkgLPr(ps.name) == null) {
+                return PackageManager.INSTALL_SUCCEEDED;
+            }
+            if (entry.versionCode < ps.versionCode
+                    || (parseFlags & PackageParser.PARSE_IS_VENDOR) != 0) {
+                Log.i(TAG, "Package " + ps.name + " at " + scanFile
+                        + " ignored (cached): updated version " + ps.versionCode
+                        + " better than this " + entry.versionCode);
+                return PackageManager.INSTALL_FAILED_DUPLICATE_PACKAGE;
+            }
+        }
+        return PackageManager.INSTALL_SUCCEEDED;
+    }
+
+    /**
+     * Remembers in {@link #mPackageCache} that a system apk failed to parse,
+     * if parsing it again on this build can only fail the same way.  Errors
+     * that depend on the contents of the manifest qualify; BAD_MANIFEST does
+     * not, as the parser also reports an AssetManager failure, which may be
+     * transient (running out of file descriptors, say), with it.
+     */
+    private void noteParseErrorLI(File scanFile, int parseFlags, int parseError) {
+        if (mPackageCache == null || (parseFlags & (PackageParser.PARSE_IS_SYSTEM
+                | PackageParser.PARSE_IS_VENDOR)) == 0) {
+            return;
+        }
+        switch (parseError) {
+            case PackageManager.INSTALL_PARSE_FAILED_NOT_APK:
+            case PackageManager.INSTALL_PARSE_FAILED_BAD_PACKAGE_NAME:
+            case PackageManager.INSTALL_PARSE_FAILED_BAD_SHARED_USER_ID:
+            case PackageManager.INSTALL_PARSE_FAILED_MANIFEST_MALFORMED:
+            case PackageManager.INSTALL_PARSE_FAILED_MANIFEST_EMPTY:
+            case PackageManager.INSTALL_FAILED_OLDER_SDK:
+                mPackageCache.putParseError(scanFile, parseError);
+                break;
+        }
+    }
+
+    private void cleanUpFailedScanLI(File file, PackageParser.Package pkg, int flags) {
+        // Don't mess around with apps in system partition.
+        if (pkg == null && (flags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
+                mLastScanError == PackageManager.INSTALL_FAILED_INVALID_APK) {
+            // Delete the apk
+            Slog.w(TAG, "Cleaning up failed install of " + file);
+            file.delete();
         }
     }
 
@@ -3479,6 +3643,16 @@ public class PackageManagerService extends IPackageManager.Stub {
                 }
                 
                 Slog.w(TAG, "PackageSetting for " + ps.name + " is missing signatures.  Collecting certs again to recover them.");
+            } else if (mPackageCache != null) {
+                final PackageCache.Entry entry = mPackageCache.get(srcFile);
+                if (entry != null && entry.signatures != null && entry.signatures.length != 0
+                        && pkg.packageName.equals(entry.packageName)) {
+                    // The apk is byte-for-byte where and what it was when we
+                    // last collected its certificates on this build.
+                    pkg.mSignatures = entry.signatures;
+                    return true;
+                }
+                Log.i(TAG, srcFile.toString() + " changed; collecting certs");
             } else {
                 Log.i(TAG, srcFile.toString() + " changed; collecting certs");
             }
@@ -3500,6 +3674,11 @@ public class PackageManagerService extends IPackageManager.Stub {
         mLastScanError = PackageManager.INSTALL_SUCCEEDED;
         String scanPath = scanFile.getPath();
         parseFlags |= mDefParseFlags;
+        final int cachedError = getCachedScanErrorLI(scanFile, parseFlags);
+        if (cachedError != PackageManager.INSTALL_SUCCEEDED) {
+            mLastScanError = cachedError;
+            return null;
+        }
         PackageParser pp = new PackageParser(scanPath);
         pp.setSeparateProcesses(mSeparateProcesses);
         pp.setOnlyCoreApps(mOnlyCore);
@@ -3507,9 +3686,20 @@ public class PackageManagerService extends IPackageManager.Stub {
                 scanPath, mMetrics, parseFlags);
         if (pkg == null) {
             mLastScanError = pp.getParseError();
+            noteParseErrorLI(scanFile, parseFlags, mLastScanError);
             return null;
         }
+        return scanPackageLI(pp, pkg, scanFile, parseFlags, scanMode, currentTime, user);
+    }
 
+    /*
+     *  Second half of scanning a package file: takes a package that has
+     *  already been parsed by pp (possibly on another thread) and adds it.
+     *  parseFlags must already include mDefParseFlags.
+     */
+    private PackageParser.Package scanPackageLI(PackageParser pp,
+            PackageParser.Package pkg, File scanFile, int parseFlags, int scanMode,
+            long currentTime, UserHandle user) {
         PackageSetting ps = null;
         PackageSetting updatedPkg;
         // reader
@@ -3547,6 +3737,13 @@ public class PackageManagerService extends IPackageManager.Stub {
                     Log.i(TAG, "Package " + ps.name + " at " + scanFile
                             + " ignored: updated version " + ps.versionCode
                             + " better than this " + pkg.mVersionCode);
+                    if (mPackageCache != null
+                            && collectCertificatesLI(pp, null, pkg, scanFile, parseFlags)) {
+                        // Remember this so the next boot can skip parsing it.
+                        // Entries always carry certificates, so they are
+                        // collected once here even though the apk is ignored.
+                        mPackageCache.put(scanFile, pkg);
+                    }
                     mLastScanError = PackageManager.INSTALL_FAILED_DUPLICATE_PACKAGE;
                     return null;
                 } else {
@@ -3595,6 +3792,9 @@ public class PackageManagerService extends IPackageManager.Stub {
             Slog.w(TAG, "Failed verifying certificates for package:" + pkg.packageName);
             return null;
         }
+        if (mPackageCache != null) {
+            mPackageCache.put(scanFile, pkg);
+        }
 
         /*
          * A new system app appeared, but we already had a non-system one of the
@@ -5329,6 +5529,10 @@ public class PackageManagerService extends IPackageManager.Stub {
     
     private final class ActivityIntentResolver
             extends IntentResolver<PackageParser.ActivityIntentInfo, ResolveInfo> {
+        ActivityIntentResolver() {
+            setResultCacheSize(INTENT_QUERY_CACHE_SIZE);
+        }
+
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType,
                 boolean defaultOnly, int userId) {
             if (!sUserManager.exists(userId)) return null;
@@ -5532,6 +5736,10 @@ public class PackageManagerService extends IPackageManager.Stub {
 
     private final class ServiceIntentResolver
             extends IntentResolver<PackageParser.ServiceIntentInfo, ResolveInfo> {
+        ServiceIntentResolver() {
+            setResultCacheSize(INTENT_QUERY_CACHE_SIZE);
+        }
+
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType,
                 boolean defaultOnly, int userId) {
             mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
@@ -9468,7 +9676,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                     return;
                 }
             }
-            mSettings.writePackageRestrictionsLPr(userId);
+            mSettings.writePackageRestrictionsLPr(pkgSetting, userId);
             packageUid = UserHandle.getUid(userId, pkgSetting.appId);
             components = mPendingBroadcasts.get(packageName);
             final boolean newPackage = components == null;
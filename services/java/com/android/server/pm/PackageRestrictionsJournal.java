@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageUserState;
+import android.os.FileUtils;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import libcore.io.IoUtils;
+
+/**
+ * Binary append-only journal of per-user package restriction changes that
+ * sits on top of a user's package-restrictions.xml.  Each record holds the
+ * complete {@link PackageUserState} of one package, so replaying the
+ * journal over the last full XML write is idempotent, and a small change
+ * such as a component being enabled costs one short append instead of a
+ * rewrite of the whole file.  Once the journal grows past
+ * {@link #MAX_RECORDS} the owner is expected to compact it by writing the
+ * XML file and calling {@link #reset}.
+ */
+final class PackageRestrictionsJournal {
+    private static final String TAG = "PackageRestrictionsJournal";
+
+    private static final int FILE_MAGIC = 0x50524a31; // "PRJ1"
+
+    private static final int FLAG_INSTALLED = 1<<0;
+    private static final int FLAG_STOPPED = 1<<1;
+    private static final int FLAG_NOT_LAUNCHED = 1<<2;
+
+    /** Number of records after which the journal should be compacted. */
+    static final int MAX_RECORDS = 128;
+
+    private final File mFile;
+    private int mRecordCount;
+
+    // Reused for encoding records; only touched with the settings lock held.
+    private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream(256);
+    private final CRC32 mCrc = new CRC32();
+
+    PackageRestrictionsJournal(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    boolean needsCompaction() {
+        return mRecordCount >= MAX_RECORDS;
+    }
+
+    /**
+     * Append the current state of a package.  Returns false if the record
+     * could not be written, in which case the caller must fall back to a
+     * full write.
+     */
+    boolean append(String packageName, PackageUserState state) {
+        mRecordBytes.reset();
+        final DataOutputStream rec = new DataOutputStream(mRecordBytes);
+        FileOutputStream fos = null;
+        try {
+            rec.writeUTF(packageName);
+            rec.writeInt(state.enabled);
+            int flags = 0;
+            if (state.installed) flags |= FLAG_INSTALLED;
+            if (state.stopped) flags |= FLAG_STOPPED;
+            if (state.notLaunched) flags |= FLAG_NOT_LAUNCHED;
+            rec.writeByte(flags);
+            writeComponents(rec, state.enabledComponents);
+            writeComponents(rec, state.disabledComponents);
+            rec.flush();
+
+            final boolean newFile = !mFile.exists() || mFile.length() == 0;
+            fos = new FileOutputStream(mFile, true);
+            final DataOutputStream out = new DataOutputStream(fos);
+            if (newFile) {
+                // Same access as the package-restrictions.xml it sits on.
+                FileUtils.setPermissions(mFile.toString(),
+                        FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                        |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                        -1, -1);
+                out.writeInt(FILE_MAGIC);
+                mRecordCount = 0;
+            }
+            final byte[] bytes = mRecordBytes.toByteArray();
+            mCrc.reset();
+            mCrc.update(bytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeInt((int) mCrc.getValue());
+            out.flush();
+            FileUtils.sync(fos);
+            mRecordCount++;
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to append to " + mFile + ": " + e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    private static void writeComponents(DataOutputStream out, HashSet<String> components)
+            throws IOException {
+        if (components == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(components.size());
+        for (String name : components) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static HashSet<String> readComponents(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count <= 0) {
+            return null;
+        }
+        final HashSet<String> components = new HashSet<String>(count);
+        for (int i = 0; i < count; i++) {
+            components.add(in.readUTF());
+        }
+        return components;
+    }
+
+    /**
+     * Apply every intact record to the matching package's state for userId.
+     * Records for unknown packages are skipped, and reading stops at the
+     * first torn or corrupt record.  Returns the number of records read.
+     */
+    int replay(Map<String, ? extends PackageSettingBase> packages, int userId) {
+        mRecordCount = 0;
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC) {
+                Slog.w(TAG, "Discarding " + mFile + " with bad header");
+                reset();
+                return 0;
+            }
+            validLength = 4;
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > mFile.length()) {
+                    Slog.w(TAG, "Corrupt record length in " + mFile);
+                    break;
+                }
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                final int crc = in.readInt();
+                mCrc.reset();
+                mCrc.update(bytes);
+                if (crc != (int) mCrc.getValue()) {
+                    Slog.w(TAG, "Checksum mismatch in " + mFile);
+                    break;
+                }
+                mRecordCount++;
+                validLength += 8 + length;
+
+                final DataInputStream rec = new DataInputStream(
+                        new ByteArrayInputStream(bytes));
+                final String name = rec.readUTF();
+                final int enabled = rec.readInt();
+                final int flags = rec.readByte();
+                final HashSet<String> enabledComponents = readComponents(rec);
+                final HashSet<String> disabledComponents = readComponents(rec);
+                final PackageSettingBase ps = packages.get(name);
+                if (ps == null) {
+                    continue;
+                }
+                ps.setUserState(userId, enabled,
+                        (flags & FLAG_INSTALLED) != 0,
+                        (flags & FLAG_STOPPED) != 0,
+                        (flags & FLAG_NOT_LAUNCHED) != 0,
+                        enabledComponents, disabledComponents);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been journaled since the last full write.
+        } catch (IOException e) {
+            // A torn final record is expected after a crash mid-append.
+            Slog.w(TAG, "Stopped replaying " + mFile + " after " + mRecordCount
+                    + " records: " + e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        if (validLength > 0 && validLength < mFile.length()) {
+            // Drop the damaged tail so that later appends stay readable.
+            truncate(validLength);
+        }
+        return mRecordCount;
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to truncate " + mFile + "; discarding it", e);
+            reset();
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Discard all records; called once their effect has been captured by a
+     * full write of the XML file.
+     */
+    void reset() {
+        mRecordCount = 0;
+        if (mFile.exists() && !mFile.delete()) {
+            Slog.w(TAG, "Unable to delete " + mFile);
+        }
+    }
+}
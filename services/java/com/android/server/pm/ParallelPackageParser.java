@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.util.Slog;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses a batch of package files on a fixed pool of worker threads.
+ * Only the manifest parsing step is done in parallel; the results are
+ * handed back in the same order as the input files so that the caller
+ * can commit them to the package database exactly as a serial scan
+ * would.
+ */
+final class ParallelPackageParser {
+    private static final String TAG = "ParallelPackageParser";
+
+    /**
+     * Outcome of parsing a single file.  Exactly one of {@link #pkg} or
+     * a non-success {@link #parseError} is set.  The parser instance is
+     * kept because certificate collection must later be done through it.
+     */
+    static final class ParseResult {
+        final File scanFile;
+        final PackageParser parser;
+        PackageParser.Package pkg;
+        int parseError = PackageManager.INSTALL_SUCCEEDED;
+        long parseTimeMillis;
+
+        ParseResult(File scanFile, PackageParser parser) {
+            this.scanFile = scanFile;
+            this.parser = parser;
+        }
+    }
+
+    private final String[] mSeparateProcesses;
+    private final boolean mOnlyCore;
+    private final DisplayMetrics mMetrics;
+    private final ExecutorService mExecutor;
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCore,
+            DisplayMetrics metrics, int threadCount) {
+        mSeparateProcesses = separateProcesses;
+        mOnlyCore = onlyCore;
+        mMetrics = metrics;
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread("PackageParser-" + mCount.getAndIncrement()) {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Parse all of the given files and return their results in input order.
+     * Blocks until every file has been parsed.
+     */
+    ParseResult[] parse(File[] files, final int parseFlags) {
+        final ParseResult[] results = new ParseResult[files.length];
+        final Future<?>[] futures = new Future<?>[files.length];
+        for (int i = 0; i < files.length; i++) {
+            final ParseResult result = new ParseResult(files[i],
+                    new PackageParser(files[i].getPath()));
+            results[i] = result;
+            futures[i] = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    parseOne(result, parseFlags);
+                }
+            });
+        }
+
+        for (int i = 0; i < futures.length; i++) {
+            try {
+                futures[i].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results[i].parseError = PackageManager.INSTALL_PARSE_FAILED_UNEXPECTED_EXCEPTION;
+            } catch (ExecutionException e) {
+                Slog.w(TAG, "Failed to parse " + results[i].scanFile, e.getCause());
+                results[i].pkg = null;
+                results[i].parseError = PackageManager.INSTALL_PARSE_FAILED_UNEXPECTED_EXCEPTION;
+            }
+        }
+        return results;
+    }
+
+    private void parseOne(ParseResult result, int parseFlags) {
+        final long start = SystemClock.uptimeMillis();
+        final PackageParser pp = result.parser;
+        pp.setSeparateProcesses(mSeparateProcesses);
+        pp.setOnlyCoreApps(mOnlyCore);
+        final String scanPath = result.scanFile.getPath();
+        result.pkg = pp.parsePackage(result.scanFile, scanPath, mMetrics, parseFlags);
+        if (result.pkg == null) {
+            result.parseError = pp.getParseError();
+        }
+        result.parseTimeMillis = SystemClock.uptimeMillis() - start;
+    }
+
+    /**
+     * Stop the worker threads.  Must not be called while a
+     * {@link #parse} is in progress.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -128,6 +128,11 @@ final class Settings {
     final SparseArray<PreferredIntentResolver> mPreferredActivities =
             new SparseArray<PreferredIntentResolver>();
 
+    // Per-user journals of restriction changes made since the last full
+    // write of package-restrictions.xml.
+    private final SparseArray<PackageRestrictionsJournal> mRestrictionsJournals =
+            new SparseArray<PackageRestrictionsJournal>();
+
     final HashMap<String, SharedUserSetting> mSharedUsers =
             new HashMap<String, SharedUserSetting>();
     private final ArrayList<Object> mUserIds = new ArrayList<Object>();
@@ -754,6 +759,31 @@ final class Settings {
                 "package-restrictions-backup.xml");
     }
 
+    private PackageRestrictionsJournal getUserPackagesStateJournal(int userId) {
+        PackageRestrictionsJournal journal = mRestrictionsJournals.get(userId);
+        if (journal == null) {
+            journal = new PackageRestrictionsJournal(new File(
+                    Environment.getUserSystemDirectory(userId), "package-restrictions.jnl"));
+            mRestrictionsJournals.put(userId, journal);
+        }
+        return journal;
+    }
+
+    /**
+     * Persist a change to a single package's restrictions for userId.  The
+     * new state is appended to the user's restrictions journal; the full
+     * package-restrictions.xml is only rewritten when the journal is due
+     * for compaction or the append fails.
+     */
+    void writePackageRestrictionsLPr(PackageSetting ps, int userId) {
+        final PackageRestrictionsJournal journal = getUserPackagesStateJournal(userId);
+        if (journal.needsCompaction()
+                || !getUserPackagesStateFile(userId).exists()
+                || !journal.append(ps.name, ps.readUserState(userId))) {
+            writePackageRestrictionsLPr(userId);
+        }
+    }
+
     void writeAllUsersPackageRestrictionsLPr() {
         List<UserInfo> users = getAllUsers();
         if (users == null) return;
@@ -805,6 +835,14 @@ final class Settings {
     }
 
     void readPackageRestrictionsLPr(int userId) {
+        readPackageRestrictionsFileLPr(userId);
+        final int records = getUserPackagesStateJournal(userId).replay(mPackages, userId);
+        if (DEBUG_MU && records > 0) {
+            Log.i(TAG, "Replayed " + records + " journaled restrictions for user=" + userId);
+        }
+    }
+
+    private void readPackageRestrictionsFileLPr(int userId) {
         if (DEBUG_MU) {
             Log.i(TAG, "Reading package restrictions for user=" + userId);
         }
@@ -1086,6 +1124,7 @@ final class Settings {
             // New settings successfully written, old ones are no longer
             // needed.
             backupFile.delete();
+            getUserPackagesStateJournal(userId).reset();
             FileUtils.setPermissions(userPackagesStateFile.toString(),
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
@@ -2370,6 +2409,8 @@ final class Settings {
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
+        getUserPackagesStateJournal(userId).reset();
+        mRestrictionsJournals.remove(userId);
     }
 
     // Returns -1 if we could not find an available UserId to assign
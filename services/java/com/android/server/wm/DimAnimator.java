@@ -33,6 +33,8 @@ class DimAnimator {
     static final String TAG = "DimAnimator";
 
     Surface mDimSurface;
+    // What has been written to mDimSurface.
+    SurfaceShadow mDimShadow;
     boolean mDimShown = false;
     float mDimCurrentAlpha;
     float mDimTargetAlpha;
@@ -56,8 +58,9 @@ class DimAnimator {
             if (WindowManagerService.SHOW_TRANSACTIONS ||
                     WindowManagerService.SHOW_SURFACE_ALLOC) Slog.i(WindowManagerService.TAG,
                             "  DIM " + mDimSurface + ": CREATE");
+            mDimShadow = new SurfaceShadow(mDimSurface);
             mDimSurface.setLayerStack(layerStack);
-            mDimSurface.setAlpha(0.0f);
+            mDimShadow.setAlpha(0.0f);
             mDimSurface.show();
         } catch (Exception e) {
             Slog.e(WindowManagerService.TAG, "Exception creating Dim surface", e);
@@ -90,7 +93,7 @@ class DimAnimator {
                 mLastDimWidth = dw;
                 mLastDimHeight = dh;
                 // back off position so mDimXXX/4 is before and mDimXXX/4 is after
-                mDimSurface.setPosition(-1 * dw / 6, -1 * dh /6);
+                mDimShadow.setPosition(-1 * dw / 6, -1 * dh /6);
                 mDimSurface.setSize(dw, dh);
                 mDimSurface.show();
             } catch (RuntimeException e) {
@@ -101,10 +104,10 @@ class DimAnimator {
             mLastDimHeight = dh;
             mDimSurface.setSize(dw, dh);
             // back off position so mDimXXX/4 is before and mDimXXX/4 is after
-            mDimSurface.setPosition(-1 * dw / 6, -1 * dh /6);
+            mDimShadow.setPosition(-1 * dw / 6, -1 * dh /6);
         }
 
-        mDimSurface.setLayer(winAnimator.mAnimLayer - WindowManagerService.LAYER_OFFSET_DIM);
+        mDimShadow.setLayer(winAnimator.mAnimLayer - WindowManagerService.LAYER_OFFSET_DIM);
 
         if (WindowManagerService.SHOW_TRANSACTIONS) Slog.i(WindowManagerService.TAG, "  DIM "
                 + mDimSurface + ": layer=" + (winAnimator.mAnimLayer-1) + " target=" + target);
@@ -177,13 +180,13 @@ class DimAnimator {
                 if (WindowManagerService.SHOW_TRANSACTIONS) Slog.i(WindowManagerService.TAG, "  DIM "
                         + mDimSurface + ": alpha=" + mDimCurrentAlpha);
                 mLastDimAnimTime = currentTime;
-                mDimSurface.setAlpha(mDimCurrentAlpha);
+                mDimShadow.setAlpha(mDimCurrentAlpha);
             } else {
                 mDimCurrentAlpha = mDimTargetAlpha;
                 mLastDimAnimTime = 0;
                 if (WindowManagerService.SHOW_TRANSACTIONS) Slog.i(WindowManagerService.TAG, "  DIM "
                         + mDimSurface + ": final alpha=" + mDimCurrentAlpha);
-                mDimSurface.setAlpha(mDimCurrentAlpha);
+                mDimShadow.setAlpha(mDimCurrentAlpha);
                 if (!dimming) {
                     if (WindowManagerService.SHOW_TRANSACTIONS) Slog.i(WindowManagerService.TAG, "  DIM " + mDimSurface
                             + ": HIDE");
@@ -203,6 +206,7 @@ class DimAnimator {
         if (mDimSurface != null) {
             mDimSurface.destroy();
             mDimSurface = null;
+            mDimShadow = null;
         }
     }
 
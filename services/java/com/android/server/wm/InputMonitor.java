@@ -24,6 +24,7 @@ import com.android.server.wm.WindowManagerService.AllWindowsIterator;
 import android.app.ActivityManagerNative;
 import android.app.ANRManagerNative;
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.os.RemoteException;
 import android.util.Log;
 import android.util.Slog;
@@ -32,6 +33,7 @@ import android.view.InputChannel;
 import android.view.KeyEvent;
 import android.view.WindowManager;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -63,6 +65,22 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private InputWindowHandle[] mInputWindowHandles;
     private int mInputWindowHandleCount;
 
+    // The window handles last given to the input dispatcher in full.  While
+    // the list stays the same, only the handles whose attributes changed are
+    // sent to it again.
+    private InputWindowHandle[] mPublishedWindowHandles;
+    private int mPublishedWindowHandleCount;
+    private InputWindowHandle[] mChangedWindowHandles;
+    private int mChangedWindowHandleCount;
+
+    private final Region mTmpTouchableRegion = new Region();
+
+    // How often the input windows were sent in full, as changes only, or not
+    // at all because nothing had changed.
+    private int mNumFullUpdates;
+    private int mNumDeltaUpdates;
+    private int mNumSkippedUpdates;
+
     // Set to true when the first input device configuration change notification
     // is received to indicate that the input devices are ready.
     private final Object mInputDevicesReadyMonitor = new Object();
@@ -268,36 +286,70 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
             final WindowState child, final int flags, final int type,
             final boolean isVisible, final boolean hasFocus, final boolean hasWallpaper) {
         // Add a window to our list of input windows.
-        inputWindowHandle.name = child.toString();
-        inputWindowHandle.layoutParamsFlags = flags;
-        inputWindowHandle.layoutParamsType = type;
-        inputWindowHandle.dispatchingTimeoutNanos = child.getInputDispatchingTimeoutNanos();
-        inputWindowHandle.visible = isVisible;
-        inputWindowHandle.canReceiveKeys = child.canReceiveKeys();
-        inputWindowHandle.hasFocus = hasFocus;
-        inputWindowHandle.hasWallpaper = hasWallpaper;
-        inputWindowHandle.paused = child.mAppToken != null ? child.mAppToken.paused : false;
-        inputWindowHandle.layer = child.mLayer;
-        inputWindowHandle.ownerPid = child.mSession.mPid;
-        inputWindowHandle.ownerUid = child.mSession.mUid;
-        inputWindowHandle.inputFeatures = child.mAttrs.inputFeatures;
-
+        final String name = child.toString();
+        final long dispatchingTimeoutNanos = child.getInputDispatchingTimeoutNanos();
+        final boolean canReceiveKeys = child.canReceiveKeys();
+        final boolean paused = child.mAppToken != null ? child.mAppToken.paused : false;
         final Rect frame = child.mFrame;
-        inputWindowHandle.frameLeft = frame.left;
-        inputWindowHandle.frameTop = frame.top;
-        inputWindowHandle.frameRight = frame.right;
-        inputWindowHandle.frameBottom = frame.bottom;
-
-        if (child.mGlobalScale != 1) {
-            // If we are scaling the window, input coordinates need
-            // to be inversely scaled to map from what is on screen
-            // to what is actually being touched in the UI.
-            inputWindowHandle.scaleFactor = 1.0f/child.mGlobalScale;
-        } else {
-            inputWindowHandle.scaleFactor = 1;
-        }
 
-        child.getTouchableRegion(inputWindowHandle.touchableRegion);
+        // If we are scaling the window, input coordinates need
+        // to be inversely scaled to map from what is on screen
+        // to what is actually being touched in the UI.
+        final float scaleFactor = child.mGlobalScale != 1 ? 1.0f/child.mGlobalScale : 1;
+
+        final Region touchableRegion = mTmpTouchableRegion;
+        child.getTouchableRegion(touchableRegion);
+
+        final boolean changed = !name.equals(inputWindowHandle.name)
+                || inputWindowHandle.layoutParamsFlags != flags
+                || inputWindowHandle.layoutParamsType != type
+                || inputWindowHandle.dispatchingTimeoutNanos != dispatchingTimeoutNanos
+                || inputWindowHandle.visible != isVisible
+                || inputWindowHandle.canReceiveKeys != canReceiveKeys
+                || inputWindowHandle.hasFocus != hasFocus
+                || inputWindowHandle.hasWallpaper != hasWallpaper
+                || inputWindowHandle.paused != paused
+                || inputWindowHandle.layer != child.mLayer
+                || inputWindowHandle.ownerPid != child.mSession.mPid
+                || inputWindowHandle.ownerUid != child.mSession.mUid
+                || inputWindowHandle.inputFeatures != child.mAttrs.inputFeatures
+                || inputWindowHandle.frameLeft != frame.left
+                || inputWindowHandle.frameTop != frame.top
+                || inputWindowHandle.frameRight != frame.right
+                || inputWindowHandle.frameBottom != frame.bottom
+                || inputWindowHandle.scaleFactor != scaleFactor
+                || !inputWindowHandle.touchableRegion.equals(touchableRegion);
+
+        if (changed) {
+            inputWindowHandle.name = name;
+            inputWindowHandle.layoutParamsFlags = flags;
+            inputWindowHandle.layoutParamsType = type;
+            inputWindowHandle.dispatchingTimeoutNanos = dispatchingTimeoutNanos;
+            inputWindowHandle.visible = isVisible;
+            inputWindowHandle.canReceiveKeys = canReceiveKeys;
+            inputWindowHandle.hasFocus = hasFocus;
+            inputWindowHandle.hasWallpaper = hasWallpaper;
+            inputWindowHandle.paused = paused;
+            inputWindowHandle.layer = child.mLayer;
+            inputWindowHandle.ownerPid = child.mSession.mPid;
+            inputWindowHandle.ownerUid = child.mSession.mUid;
+            inputWindowHandle.inputFeatures = child.mAttrs.inputFeatures;
+            inputWindowHandle.frameLeft = frame.left;
+            inputWindowHandle.frameTop = frame.top;
+            inputWindowHandle.frameRight = frame.right;
+            inputWindowHandle.frameBottom = frame.bottom;
+            inputWindowHandle.scaleFactor = scaleFactor;
+            inputWindowHandle.touchableRegion.set(touchableRegion);
+
+            if (mChangedWindowHandles == null) {
+                mChangedWindowHandles = new InputWindowHandle[16];
+            }
+            if (mChangedWindowHandleCount >= mChangedWindowHandles.length) {
+                mChangedWindowHandles = Arrays.copyOf(mChangedWindowHandles,
+                        mChangedWindowHandleCount * 2);
+            }
+            mChangedWindowHandles[mChangedWindowHandleCount++] = inputWindowHandle;
+        }
 
         addInputWindowHandleLw(inputWindowHandle);
     }
@@ -306,6 +358,50 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         while (mInputWindowHandleCount != 0) {
             mInputWindowHandles[--mInputWindowHandleCount] = null;
         }
+        while (mChangedWindowHandleCount != 0) {
+            mChangedWindowHandles[--mChangedWindowHandleCount] = null;
+        }
+    }
+
+    private boolean isPublishedListLw() {
+        if (mInputWindowHandleCount != mPublishedWindowHandleCount) {
+            return false;
+        }
+        for (int i = 0; i < mInputWindowHandleCount; i++) {
+            if (mInputWindowHandles[i] != mPublishedWindowHandles[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Sends the window list just built to the input dispatcher: in full if
+     * windows were added, removed or reordered, otherwise only the windows
+     * whose attributes changed, or nothing.
+     */
+    private void publishInputWindowsLw() {
+        if (isPublishedListLw()) {
+            if (mChangedWindowHandleCount == 0) {
+                mNumSkippedUpdates++;
+            } else {
+                mService.mInputManager.updateInputWindows(mChangedWindowHandles);
+                mNumDeltaUpdates++;
+            }
+            clearInputWindowHandlesLw();
+            return;
+        }
+
+        mService.mInputManager.setInputWindows(mInputWindowHandles);
+        mNumFullUpdates++;
+
+        // Keep the list just sent, and reuse the old one for the next round.
+        final InputWindowHandle[] published = mPublishedWindowHandles;
+        final int publishedCount = mPublishedWindowHandleCount;
+        mPublishedWindowHandles = mInputWindowHandles;
+        mPublishedWindowHandleCount = mInputWindowHandleCount;
+        mInputWindowHandles = published;
+        mInputWindowHandleCount = publishedCount;
+        clearInputWindowHandlesLw();
     }
 
     public void setUpdateInputWindowsNeededLw() {
@@ -393,11 +489,9 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
             }
         }
 
-        // Send windows to native code.
-        mService.mInputManager.setInputWindows(mInputWindowHandles);
-
-        // Clear the list in preparation for the next round.
-        clearInputWindowHandlesLw();
+        // Send windows to native code, and clear the list in preparation
+        // for the next round.
+        publishInputWindowsLw();
 
         if (false) Slog.d(WindowManagerService.TAG, "<<<<<<< EXITED updateInputWindowsLw");
     }
@@ -574,4 +668,11 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private void updateInputDispatchModeLw() {
         mService.mInputManager.setInputDispatchMode(mInputDispatchEnabled, mInputDispatchFrozen);
     }
+
+    void dumpLw(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Input windows: ");
+                pw.print(mPublishedWindowHandleCount); pw.print(" published, updates full=");
+                pw.print(mNumFullUpdates); pw.print(" delta="); pw.print(mNumDeltaUpdates);
+                pw.print(" skipped="); pw.println(mNumSkippedUpdates);
+    }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.os.SystemClock;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Times the phases of each window manager traversal or animation frame:
+ * layout, layer assignment, wallpaper adjustment, surface placement,
+ * animation stepping, and opening and closing the surface transaction.
+ *
+ * Frames go into a ring allocated up front holding the last
+ * {@link #RING_SIZE}.  A frame that takes longer than
+ * {@link #FRAME_BUDGET_NANOS} is also copied into a smaller ring of slow
+ * frames, together with the windows that took longest in it, so that the
+ * culprits of a janky transition are still there after the frames around
+ * them have gone.  Nothing is allocated while timing.
+ *
+ * Not thread safe; the window manager calls it with mWindowMap held.
+ */
+final class PhaseProfiler {
+    static final int RING_SIZE = 64;
+    static final int SLOW_RING_SIZE = 16;
+    static final int MAX_WINDOWS = 3;
+
+    /** One frame at 60fps. */
+    static final long FRAME_BUDGET_NANOS = 16 * 1000 * 1000;
+
+    static final int PHASE_LAYOUT = 0;
+    static final int PHASE_LAYERS = 1;
+    static final int PHASE_WALLPAPER = 2;
+    static final int PHASE_PLACE = 3;
+    static final int PHASE_ANIMATE = 4;
+    static final int PHASE_OPEN_TRANSACTION = 5;
+    static final int PHASE_CLOSE_TRANSACTION = 6;
+    static final int NUM_PHASES = 7;
+
+    static final String[] PHASE_NAMES = {
+        "layout", "layers", "wallpaper", "place", "animate", "openTrans", "closeTrans"
+    };
+
+    static final class Frame {
+        long seq;
+        long startTime;
+        long totalNanos;
+        final long[] phaseNanos = new long[NUM_PHASES];
+        // The slowest windows, slowest first.  WindowStates while the frame
+        // is in progress, their names once copied to the slow ring.
+        final Object[] windows = new Object[MAX_WINDOWS];
+        final long[] windowNanos = new long[MAX_WINDOWS];
+
+        void reset() {
+            for (int i = 0; i < NUM_PHASES; i++) {
+                phaseNanos[i] = 0;
+            }
+            for (int i = 0; i < MAX_WINDOWS; i++) {
+                windows[i] = null;
+                windowNanos[i] = 0;
+            }
+        }
+
+        void noteWindow(Object window, long nanos) {
+            int pos = MAX_WINDOWS;
+            while (pos > 0 && (windows[pos - 1] == null || windowNanos[pos - 1] < nanos)) {
+                pos--;
+            }
+            if (pos >= MAX_WINDOWS) {
+                return;
+            }
+            for (int i = MAX_WINDOWS - 1; i > pos; i--) {
+                windows[i] = windows[i - 1];
+                windowNanos[i] = windowNanos[i - 1];
+            }
+            windows[pos] = window;
+            windowNanos[pos] = nanos;
+        }
+    }
+
+    private final String mName;
+    private final Frame[] mRing = new Frame[RING_SIZE];
+    private final Frame[] mSlowRing = new Frame[SLOW_RING_SIZE];
+    private long mNextSeq = 1;
+    private int mNumSlow;
+    private long mMaxNanos;
+
+    private Frame mCurrent;
+    private long mStartNanos;
+
+    PhaseProfiler(String name) {
+        mName = name;
+        for (int i = 0; i < RING_SIZE; i++) {
+            mRing[i] = new Frame();
+        }
+        for (int i = 0; i < SLOW_RING_SIZE; i++) {
+            mSlowRing[i] = new Frame();
+        }
+    }
+
+    void beginFrame() {
+        final long seq = mNextSeq++;
+        mCurrent = mRing[(int) (seq % RING_SIZE)];
+        mCurrent.reset();
+        mCurrent.seq = seq;
+        mCurrent.startTime = SystemClock.uptimeMillis();
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns a start time for {@link #endPhase}, or 0 if no frame is being
+     * timed, in which case the phase is not counted.
+     */
+    long beginPhase() {
+        return mCurrent != null ? System.nanoTime() : 0;
+    }
+
+    void endPhase(int phase, long startNanos) {
+        if (mCurrent != null && startNanos != 0) {
+            mCurrent.phaseNanos[phase] += System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Charges the time since startNanos to window, for finding the windows
+     * that made a frame slow.
+     */
+    void endWindow(WindowState window, long startNanos) {
+        if (mCurrent != null && startNanos != 0) {
+            mCurrent.noteWindow(window, System.nanoTime() - startNanos);
+        }
+    }
+
+    void endFrame() {
+        final Frame frame = mCurrent;
+        if (frame == null) {
+            return;
+        }
+        mCurrent = null;
+        frame.totalNanos = System.nanoTime() - mStartNanos;
+        if (frame.totalNanos > mMaxNanos) {
+            mMaxNanos = frame.totalNanos;
+        }
+        if (frame.totalNanos > FRAME_BUDGET_NANOS) {
+            final Frame slow = mSlowRing[mNumSlow % SLOW_RING_SIZE];
+            mNumSlow++;
+            slow.seq = frame.seq;
+            slow.startTime = frame.startTime;
+            slow.totalNanos = frame.totalNanos;
+            System.arraycopy(frame.phaseNanos, 0, slow.phaseNanos, 0, NUM_PHASES);
+            for (int i = 0; i < MAX_WINDOWS; i++) {
+                // WindowState caches its string.
+                slow.windows[i] = frame.windows[i] != null ? frame.windows[i].toString() : null;
+                slow.windowNanos[i] = frame.windowNanos[i];
+            }
+        }
+        // Don't hold on to windows that may be removed.
+        for (int i = 0; i < MAX_WINDOWS; i++) {
+            frame.windows[i] = null;
+        }
+    }
+
+    long getNumFrames() {
+        return mNextSeq - 1;
+    }
+
+    int getNumSlowFrames() {
+        return mNumSlow;
+    }
+
+    private static void printMicros(PrintWriter pw, long nanos) {
+        final long micros = nanos / 1000;
+        pw.print(micros / 1000); pw.print('.');
+        final long frac = (micros % 1000) / 100;
+        pw.print(frac); pw.print("ms");
+    }
+
+    private static void dumpFrame(PrintWriter pw, String prefix, Frame frame, long now) {
+        pw.print(prefix); pw.print("#"); pw.print(frame.seq); pw.print(" ");
+        TimeUtils.formatDuration(frame.startTime, now, pw);
+        pw.print(" total="); printMicros(pw, frame.totalNanos);
+        for (int p = 0; p < NUM_PHASES; p++) {
+            if (frame.phaseNanos[p] != 0) {
+                pw.print(" "); pw.print(PHASE_NAMES[p]); pw.print("=");
+                printMicros(pw, frame.phaseNanos[p]);
+            }
+        }
+        pw.println();
+        for (int i = 0; i < MAX_WINDOWS && frame.windows[i] != null; i++) {
+            pw.print(prefix); pw.print("  "); printMicros(pw, frame.windowNanos[i]);
+            pw.print(" "); pw.println(frame.windows[i]);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix, boolean dumpAll) {
+        final long now = SystemClock.uptimeMillis();
+        final long numFrames = getNumFrames();
+        pw.print(prefix); pw.print(mName); pw.print(" phases: frames="); pw.print(numFrames);
+        pw.print(" overBudget="); pw.print(mNumSlow);
+        pw.print(" max="); printMicros(pw, mMaxNanos); pw.println();
+        if (numFrames == 0) {
+            return;
+        }
+
+        // Averages and maxima over the frames still in the ring.
+        final int count = (int) Math.min(numFrames, RING_SIZE);
+        long total = 0;
+        long totalMax = 0;
+        final long[] sums = new long[NUM_PHASES];
+        final long[] maxes = new long[NUM_PHASES];
+        for (int i = 0; i < count; i++) {
+            final Frame frame = mRing[(int) ((numFrames - i) % RING_SIZE)];
+            total += frame.totalNanos;
+            totalMax = Math.max(totalMax, frame.totalNanos);
+            for (int p = 0; p < NUM_PHASES; p++) {
+                sums[p] += frame.phaseNanos[p];
+                maxes[p] = Math.max(maxes[p], frame.phaseNanos[p]);
+            }
+        }
+        pw.print(prefix); pw.print("  last "); pw.print(count); pw.print(": avg ");
+        printMicros(pw, total / count); pw.print(" max "); printMicros(pw, totalMax);
+        pw.println();
+        for (int p = 0; p < NUM_PHASES; p++) {
+            if (maxes[p] == 0) {
+                continue;
+            }
+            pw.print(prefix); pw.print("    "); pw.print(PHASE_NAMES[p]); pw.print(": avg ");
+            printMicros(pw, sums[p] / count); pw.print(" max "); printMicros(pw, maxes[p]);
+            pw.println();
+        }
+
+        if (mNumSlow > 0) {
+            pw.print(prefix); pw.println("  Recent frames over budget:");
+            final int slowCount = Math.min(mNumSlow, SLOW_RING_SIZE);
+            for (int i = 1; i <= slowCount; i++) {
+                dumpFrame(pw, prefix + "    ",
+                        mSlowRing[(mNumSlow - i) % SLOW_RING_SIZE], now);
+            }
+        }
+        if (dumpAll) {
+            pw.print(prefix); pw.println("  Recent frames:");
+            for (int i = 0; i < count; i++) {
+                dumpFrame(pw, prefix + "    ", mRing[(int) ((numFrames - i) % RING_SIZE)],
+                        now);
+            }
+        }
+    }
+}
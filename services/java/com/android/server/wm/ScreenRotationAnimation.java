@@ -46,6 +46,8 @@ class ScreenRotationAnimation {
     final Context mContext;
     final Display mDisplay;
     Surface mSurface;
+    // What has been written to mSurface.
+    SurfaceShadow mSurfaceShadow;
     BlackFrame mCustomBlackFrame;
     BlackFrame mExitingBlackFrame;
     BlackFrame mEnteringBlackFrame;
@@ -234,9 +236,10 @@ class ScreenRotationAnimation {
                     mSurface = null;
                     return;
                 }
+                mSurfaceShadow = new SurfaceShadow(mSurface);
                 mSurface.setLayerStack(mDisplay.getLayerStack());
-                mSurface.setLayer(FREEZE_LAYER + 1);
-                mSurface.setAlpha(0);
+                mSurfaceShadow.setLayer(FREEZE_LAYER + 1);
+                mSurfaceShadow.setAlpha(0);
                 mSurface.show();
             } catch (Surface.OutOfResourcesException e) {
                 Slog.w(TAG, "Unable to allocate freeze surface", e);
@@ -270,12 +273,12 @@ class ScreenRotationAnimation {
     private void setSnapshotTransformInTransaction(Matrix matrix, float alpha) {
         if (mSurface != null) {
             matrix.getValues(mTmpFloats);
-            mSurface.setPosition(mTmpFloats[Matrix.MTRANS_X],
+            mSurfaceShadow.setPosition(mTmpFloats[Matrix.MTRANS_X],
                     mTmpFloats[Matrix.MTRANS_Y]);
-            mSurface.setMatrix(
+            mSurfaceShadow.setMatrix(
                     mTmpFloats[Matrix.MSCALE_X], mTmpFloats[Matrix.MSKEW_Y],
                     mTmpFloats[Matrix.MSKEW_X], mTmpFloats[Matrix.MSCALE_Y]);
-            mSurface.setAlpha(alpha);
+            mSurfaceShadow.setAlpha(alpha);
             if (DEBUG_TRANSFORMS) {
                 float[] srcPnts = new float[] { 0, 0, mWidth, mHeight };
                 float[] dstPnts = new float[4];
@@ -618,6 +621,7 @@ class ScreenRotationAnimation {
             Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
             mSurface.destroy();
             mSurface = null;
+            mSurfaceShadow = null;
         }
         if (mCustomBlackFrame != null) {
             mCustomBlackFrame.kill();
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.view.Surface;
+
+import java.io.PrintWriter;
+
+/**
+ * The position, layer, alpha and matrix last written to a Surface, so that
+ * a write that would not change anything is dropped instead of crossing
+ * into native code.  Each Surface property setter is a separate JNI call
+ * and transaction update, and an animation frame sets these for every
+ * window whose alpha, layer or transform changed, whether or not the
+ * others did.  Size and crop are already only written when they change.
+ *
+ * A property is written through the first time it is set, and whenever
+ * the surface is replaced.  All writes of these properties to a shadowed
+ * surface must go through its shadow.
+ *
+ * Used with mWindowMap held, which also guards the counts.  Writes made
+ * outside an animation frame are counted in the next one.
+ */
+final class SurfaceShadow {
+    private static int sFrameWrites;
+    private static int sFrameSuppressed;
+    private static int sLastFrameWrites;
+    private static int sLastFrameSuppressed;
+    private static int sMaxFrameSuppressed;
+    private static long sTotalWrites;
+    private static long sTotalSuppressed;
+
+    final Surface mSurface;
+
+    private boolean mHasPosition;
+    private float mX, mY;
+    private boolean mHasLayer;
+    private int mLayer;
+    private boolean mHasAlpha;
+    private float mAlpha;
+    private boolean mHasMatrix;
+    private float mDsDx, mDtDx, mDsDy, mDtDy;
+
+    SurfaceShadow(Surface surface) {
+        mSurface = surface;
+    }
+
+    /** Returns shadow if it is for surface, or a new shadow for surface. */
+    static SurfaceShadow forSurface(SurfaceShadow shadow, Surface surface) {
+        return shadow != null && shadow.mSurface == surface ? shadow : new SurfaceShadow(surface);
+    }
+
+    void setPosition(float x, float y) {
+        if (mHasPosition && mX == x && mY == y) {
+            sFrameSuppressed++;
+            return;
+        }
+        mSurface.setPosition(x, y);
+        mHasPosition = true;
+        mX = x;
+        mY = y;
+        sFrameWrites++;
+    }
+
+    void setLayer(int layer) {
+        if (mHasLayer && mLayer == layer) {
+            sFrameSuppressed++;
+            return;
+        }
+        mSurface.setLayer(layer);
+        mHasLayer = true;
+        mLayer = layer;
+        sFrameWrites++;
+    }
+
+    void setAlpha(float alpha) {
+        if (mHasAlpha && mAlpha == alpha) {
+            sFrameSuppressed++;
+            return;
+        }
+        mSurface.setAlpha(alpha);
+        mHasAlpha = true;
+        mAlpha = alpha;
+        sFrameWrites++;
+    }
+
+    void setMatrix(float dsdx, float dtdx, float dsdy, float dtdy) {
+        if (mHasMatrix && mDsDx == dsdx && mDtDx == dtdx && mDsDy == dsdy && mDtDy == dtdy) {
+            sFrameSuppressed++;
+            return;
+        }
+        mSurface.setMatrix(dsdx, dtdx, dsdy, dtdy);
+        mHasMatrix = true;
+        mDsDx = dsdx;
+        mDtDx = dtdx;
+        mDsDy = dsdy;
+        mDtDy = dtdy;
+        sFrameWrites++;
+    }
+
+    /** Closes the counts for an animation frame. */
+    static void endFrame() {
+        sLastFrameWrites = sFrameWrites;
+        sLastFrameSuppressed = sFrameSuppressed;
+        if (sFrameSuppressed > sMaxFrameSuppressed) {
+            sMaxFrameSuppressed = sFrameSuppressed;
+        }
+        sTotalWrites += sFrameWrites;
+        sTotalSuppressed += sFrameSuppressed;
+        sFrameWrites = 0;
+        sFrameSuppressed = 0;
+    }
+
+    static void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Surface property writes: last frame=");
+                pw.print(sLastFrameWrites); pw.print(" suppressed=");
+                pw.print(sLastFrameSuppressed); pw.print(" (max ");
+                pw.print(sMaxFrameSuppressed); pw.print("), total=");
+                pw.print(sTotalWrites); pw.print(" suppressed="); pw.println(sTotalSuppressed);
+    }
+}
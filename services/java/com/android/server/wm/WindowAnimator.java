@@ -108,6 +108,18 @@ public class WindowAnimator {
 
     boolean mInitialized = false;
 
+    /** Slack when deciding whether a display's refresh period has passed. */
+    static final long HALF_FRAME_MILLIS = 8;
+
+    /**
+     * How many frames in a row a secondary display's animation may be put
+     * off for the default display.
+     */
+    static final int MAX_DEFERRED_FRAMES = 1;
+
+    /** Times each animation frame; see {@link PhaseProfiler}. */
+    final PhaseProfiler mProfiler = new PhaseProfiler("Animation");
+
     // forceHiding states.
     static final int KEYGUARD_NOT_SHOWN     = 0;
     static final int KEYGUARD_ANIMATING_IN  = 1;
@@ -660,11 +672,19 @@ public class WindowAnimator {
             Slog.i(TAG, "!!! animate: entry time=" + mCurrentTime);
         }
 
+        final long frameStartNanos = System.nanoTime();
+        final PhaseProfiler profiler = mProfiler;
+        profiler.beginFrame();
+        long phaseStart;
+
         if (WindowManagerService.SHOW_TRANSACTIONS) Slog.i(
                 TAG, ">>> OPEN TRANSACTION animateLocked");
+        phaseStart = profiler.beginPhase();
         Surface.openTransaction();
         Surface.setAnimationTransaction();
+        profiler.endPhase(PhaseProfiler.PHASE_OPEN_TRANSACTION, phaseStart);
         try {
+            phaseStart = profiler.beginPhase();
             updateAppWindowsLocked();
 
             mDisplayed = false;
@@ -673,6 +693,18 @@ public class WindowAnimator {
                 final int displayId = mDisplayContentsAnimators.keyAt(i);
                 DisplayContentsAnimator displayAnimator = mDisplayContentsAnimators.valueAt(i);
 
+                if (!displayAnimator.isStepDueLocked(mCurrentTime, frameStartNanos)) {
+                    // Still animating; picked up again on a later frame.
+                    displayAnimator.mStepped = false;
+                    mAnimating = true;
+                    continue;
+                }
+                final PhaseProfiler displayProfiler = displayAnimator.mProfiler;
+                displayProfiler.beginFrame();
+                final long displayStart = displayProfiler.beginPhase();
+                final boolean animatingBefore = mAnimating;
+                mAnimating = false;
+
                 final ScreenRotationAnimation screenRotationAnimation =
                         displayAnimator.mScreenRotationAnimation;
                 if (screenRotationAnimation != null && screenRotationAnimation.isAnimating()) {
@@ -699,7 +731,11 @@ public class WindowAnimator {
                 final int N = winAnimatorList.size();
 
                 for (int j = 0; j < N; j++) {
-                    winAnimatorList.get(j).prepareSurfaceLocked(true);
+                    final WindowStateAnimator winAnimator = winAnimatorList.get(j);
+                    final long windowStart = profiler.beginPhase();
+                    winAnimator.prepareSurfaceLocked(true);
+                    profiler.endWindow(winAnimator.mWin, windowStart);
+                    displayProfiler.endWindow(winAnimator.mWin, windowStart);
                 }
                 /// M: [ALPS00388255] Solve the flash screen issue caused by too early unset the freeze state @{
                 if (!mDisplayed && !mService.mDisplayFrozenTimeout) {
@@ -707,6 +743,13 @@ public class WindowAnimator {
                     Slog.v(TAG, "No window is displayed, unset the SET_ORIENTATION_CHANGE_COMPLETE flag");
                 }
                 /// @}
+
+                displayAnimator.mAnimating = mAnimating;
+                mAnimating |= animatingBefore;
+                displayAnimator.mStepped = true;
+                displayAnimator.mDeferredInRow = 0;
+                displayAnimator.mLastStepTime = mCurrentTime;
+                displayProfiler.endPhase(PhaseProfiler.PHASE_ANIMATE, displayStart);
             }
 
             testTokenMayBeDrawnLocked();
@@ -714,6 +757,11 @@ public class WindowAnimator {
             for (int i = 0; i < numDisplays; i++) {
                 final int displayId = mDisplayContentsAnimators.keyAt(i);
                 DisplayContentsAnimator displayAnimator = mDisplayContentsAnimators.valueAt(i);
+                if (!displayAnimator.mStepped) {
+                    continue;
+                }
+                final PhaseProfiler displayProfiler = displayAnimator.mProfiler;
+                final long displayStart = displayProfiler.beginPhase();
 
                 final ScreenRotationAnimation screenRotationAnimation =
                         displayAnimator.mScreenRotationAnimation;
@@ -727,21 +775,31 @@ public class WindowAnimator {
                     dimAnimator.updateParameters(mContext.getResources(), dimParams, mCurrentTime);
                 }
                 if (dimAnimator != null && dimAnimator.mDimShown) {
-                    mAnimating |= dimAnimator.updateSurface(isDimmingLocked(displayId),
-                            mCurrentTime, !mService.okToDisplay());
+                    if (dimAnimator.updateSurface(isDimmingLocked(displayId),
+                            mCurrentTime, !mService.okToDisplay())) {
+                        mAnimating = true;
+                        displayAnimator.mAnimating = true;
+                    }
                 }
+                displayProfiler.endPhase(PhaseProfiler.PHASE_ANIMATE, displayStart);
+                displayProfiler.endFrame();
             }
 
             if (mService.mWatermark != null) {
                 mService.mWatermark.drawIfNeeded();
             }
+            profiler.endPhase(PhaseProfiler.PHASE_ANIMATE, phaseStart);
         } catch (RuntimeException e) {
             Log.wtf(TAG, "Unhandled exception in Window Manager", e);
         } finally {
+            phaseStart = profiler.beginPhase();
             Surface.closeTransaction();
+            profiler.endPhase(PhaseProfiler.PHASE_CLOSE_TRANSACTION, phaseStart);
             if (WindowManagerService.SHOW_TRANSACTIONS) Slog.i(
                     TAG, "<<< CLOSE TRANSACTION animateLocked");
         }
+        profiler.endFrame();
+        SurfaceShadow.endFrame();
 
         for (int i = mPendingLayoutChanges.size() - 1; i >= 0; i--) {
             if ((mPendingLayoutChanges.valueAt(i)
@@ -859,6 +917,10 @@ public class WindowAnimator {
                     pw.print(mDisplayContentsAnimators.keyAt(i));
                     pw.println(":");
             DisplayContentsAnimator displayAnimator = mDisplayContentsAnimators.valueAt(i);
+            pw.print(subPrefix); pw.print("mAnimating="); pw.print(displayAnimator.mAnimating);
+                    pw.print(" mNumThrottled="); pw.print(displayAnimator.mNumThrottled);
+                    pw.print(" mNumDeferred="); pw.println(displayAnimator.mNumDeferred);
+            displayAnimator.mProfiler.dump(pw, subPrefix, dumpAll);
             for (int j=0; j<displayAnimator.mWinAnimators.size(); j++) {
                 WindowStateAnimator wanim = displayAnimator.mWinAnimators.get(j);
                 pw.print(subPrefix); pw.print("Window #"); pw.print(j);
@@ -977,16 +1039,60 @@ public class WindowAnimator {
     }
 
     private class DisplayContentsAnimator {
+        final int mDisplayId;
         WinAnimatorList mWinAnimators = new WinAnimatorList();
         DimAnimator mDimAnimator = null;
         DimAnimator.Parameters mDimParams = null;
         DimSurface mWindowAnimationBackgroundSurface = null;
         ScreenRotationAnimation mScreenRotationAnimation = null;
 
+        // Whether this display was still animating after its last step.
+        boolean mAnimating;
+        // Whether this display was stepped in the current frame.
+        boolean mStepped;
+        long mLastStepTime;
+        int mDeferredInRow;
+        int mNumThrottled;
+        int mNumDeferred;
+        final PhaseProfiler mProfiler;
+
         public DisplayContentsAnimator(int displayId) {
+            mDisplayId = displayId;
             mDimAnimator = new DimAnimator(mService.mFxSession, displayId);
             mWindowAnimationBackgroundSurface =
                     new DimSurface(mService.mFxSession, displayId);
+            mProfiler = new PhaseProfiler("Display " + displayId + " animation");
+        }
+
+        /**
+         * Whether to step this display in the frame that started at now.
+         * The default display is stepped on every frame.  A secondary
+         * display that is only continuing an animation is stepped no more
+         * often than it refreshes, and is put off by a frame if the frame
+         * is already half gone, so that a slow wifi or overlay display does
+         * not take frame time from the default one.  A display that was not
+         * animating, or is frozen or rotating, is stepped right away.
+         */
+        boolean isStepDueLocked(long now, long frameStartNanos) {
+            if (mDisplayId == Display.DEFAULT_DISPLAY || !mAnimating
+                    || mScreenRotationAnimation != null || mService.mDisplayFrozen) {
+                return true;
+            }
+            final DisplayContent displayContent = mService.getDisplayContentLocked(mDisplayId);
+            final float refreshRate = displayContent != null
+                    ? displayContent.getDisplayInfo().refreshRate : 0;
+            if (refreshRate > 0 && now - mLastStepTime + HALF_FRAME_MILLIS
+                    < 1000 / refreshRate) {
+                mNumThrottled++;
+                return false;
+            }
+            if (mDeferredInRow < MAX_DEFERRED_FRAMES
+                    && System.nanoTime() - frameStartNanos > PhaseProfiler.FRAME_BUDGET_NANOS / 2) {
+                mDeferredInRow++;
+                mNumDeferred++;
+                return false;
+            }
+            return true;
         }
     }
 }
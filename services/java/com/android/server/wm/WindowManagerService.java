@@ -7612,6 +7612,10 @@ public class WindowManagerService extends IWindowManager.Stub
     // -------------------------------------------------------------
 
     final InputMonitor mInputMonitor = new InputMonitor(this);
+
+    /** Times each layout traversal; see {@link PhaseProfiler}. */
+    final PhaseProfiler mTraversalProfiler = new PhaseProfiler("Traversal");
+
     private boolean mEventDispatchingEnabled;
 
     public void pauseKeyDispatching(IBinder _token) {
@@ -8832,6 +8836,7 @@ public class WindowManagerService extends IWindowManager.Stub
         }
 
         Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "wmLayout");
+        mTraversalProfiler.beginFrame();
         mInLayout = true;
         boolean recoveringMemory = false;
 
@@ -8883,6 +8888,7 @@ public class WindowManagerService extends IWindowManager.Stub
             Log.wtf(TAG, "Unhandled exception while laying out windows", e);
         }
 
+        mTraversalProfiler.endFrame();
         Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
     }
 
@@ -9653,9 +9659,14 @@ public class WindowManagerService extends IWindowManager.Stub
         final int defaultDw = defaultInfo.logicalWidth;
         final int defaultDh = defaultInfo.logicalHeight;
 
+        final PhaseProfiler profiler = mTraversalProfiler;
+        long phaseStart;
+
         if (SHOW_LIGHT_TRANSACTIONS) Slog.i(TAG,
                 ">>> OPEN TRANSACTION performLayoutAndPlaceSurfaces");
+        phaseStart = profiler.beginPhase();
         Surface.openTransaction();
+        profiler.endPhase(PhaseProfiler.PHASE_OPEN_TRANSACTION, phaseStart);
         try {
 
             if (mWatermark != null) {
@@ -9698,11 +9709,16 @@ public class WindowManagerService extends IWindowManager.Stub
                         displayContent.pendingLayoutChanges);
 
                     if (isDefaultDisplay && ((displayContent.pendingLayoutChanges
-                            & WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER) != 0)
-                            && ((adjustWallpaperWindowsLocked()
-                                    & ADJUST_WALLPAPER_LAYERS_CHANGED) != 0)) {
-                        assignLayersLocked(windows);
-                        displayContent.layoutNeeded = true;
+                            & WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER) != 0)) {
+                        phaseStart = profiler.beginPhase();
+                        final int adjResult = adjustWallpaperWindowsLocked();
+                        profiler.endPhase(PhaseProfiler.PHASE_WALLPAPER, phaseStart);
+                        if ((adjResult & ADJUST_WALLPAPER_LAYERS_CHANGED) != 0) {
+                            phaseStart = profiler.beginPhase();
+                            assignLayersLocked(windows);
+                            profiler.endPhase(PhaseProfiler.PHASE_LAYERS, phaseStart);
+                            displayContent.layoutNeeded = true;
+                        }
                     }
 
                     if (isDefaultDisplay && (displayContent.pendingLayoutChanges
@@ -9721,8 +9737,10 @@ public class WindowManagerService extends IWindowManager.Stub
 
                     // FIRST LOOP: Perform a layout, if needed.
                     if (repeats < 4) {
+                        phaseStart = profiler.beginPhase();
                         performLayoutLockedInner(displayContent, repeats == 1,
                                 false /*updateInputWindows*/);
+                        profiler.endPhase(PhaseProfiler.PHASE_LAYOUT, phaseStart);
                     } else {
                         Slog.w(TAG, "Layout repeat skipped after too many iterations");
                     }
@@ -9755,9 +9773,11 @@ public class WindowManagerService extends IWindowManager.Stub
                 // Only used if default window
                 final boolean someoneLosingFocus = !mLosingFocus.isEmpty();
 
+                final long placeStart = profiler.beginPhase();
                 final int N = windows.size();
                 for (i=N-1; i>=0; i--) {
                     WindowState w = windows.get(i);
+                    final long windowStart = profiler.beginPhase();
 
                     final boolean obscuredChanged = w.mObscured != mInnerFields.mObscured;
 
@@ -9890,7 +9910,9 @@ public class WindowManagerService extends IWindowManager.Stub
                     }
 
                     updateResizingWindows(w);
+                    profiler.endWindow(w, windowStart);
                 }
+                profiler.endPhase(PhaseProfiler.PHASE_PLACE, placeStart);
 
                 final boolean hasUniqueContent;
                 switch (mInnerFields.mDisplayHasContent) {
@@ -9928,7 +9950,9 @@ public class WindowManagerService extends IWindowManager.Stub
         } catch (RuntimeException e) {
             Log.wtf(TAG, "Unhandled exception in Window Manager", e);
         } finally {
+            phaseStart = profiler.beginPhase();
             Surface.closeTransaction();
+            profiler.endPhase(PhaseProfiler.PHASE_CLOSE_TRANSACTION, phaseStart);
             if (SHOW_LIGHT_TRANSACTIONS) Slog.i(TAG,
                     "<<< CLOSE TRANSACTION performLayoutAndPlaceSurfaces");
         }
@@ -9975,14 +9999,18 @@ public class WindowManagerService extends IWindowManager.Stub
         if (mInnerFields.mWallpaperMayChange) {
             if (WindowManagerService.DEBUG_WALLPAPER_LIGHT) Slog.v(TAG,
                     "Wallpaper may change!  Adjusting");
+            phaseStart = profiler.beginPhase();
             mInnerFields.mAdjResult |= adjustWallpaperWindowsLocked();
+            profiler.endPhase(PhaseProfiler.PHASE_WALLPAPER, phaseStart);
         }
 
         if ((mInnerFields.mAdjResult&ADJUST_WALLPAPER_LAYERS_CHANGED) != 0) {
             if (DEBUG_WALLPAPER_LIGHT) Slog.v(TAG,
                     "Wallpaper layer changed: assigning layers + relayout");
             defaultDisplay.pendingLayoutChanges |= WindowManagerPolicy.FINISH_LAYOUT_REDO_LAYOUT;
+            phaseStart = profiler.beginPhase();
             assignLayersLocked(defaultWindows);
+            profiler.endPhase(PhaseProfiler.PHASE_LAYERS, phaseStart);
         } else if ((mInnerFields.mAdjResult&ADJUST_WALLPAPER_VISIBILITY_CHANGED) != 0) {
             if (DEBUG_WALLPAPER_LIGHT) Slog.v(TAG,
                     "Wallpaper visibility changed: relayout");
@@ -11258,6 +11286,10 @@ public class WindowManagerService extends IWindowManager.Stub
         if (mLastFocus != mCurrentFocus) {
             pw.print("  mLastFocus="); pw.println(mLastFocus);
         }
+        mInputMonitor.dumpLw(pw, "  ");
+        mTraversalProfiler.dump(pw, "  ", dumpAll);
+        mAnimator.mProfiler.dump(pw, "  ", dumpAll);
+        SurfaceShadow.dump(pw, "  ");
         pw.print("  mFocusedApp="); pw.println(mFocusedApp);
         if (mInputMethodTarget != null) {
             pw.print("  mInputMethodTarget="); pw.println(mInputMethodTarget);
@@ -91,6 +91,8 @@ class WindowStateAnimator {
 
     Surface mSurface;
     Surface mPendingDestroySurface;
+    // What has been written to mSurface; see getSurfaceShadow().
+    private SurfaceShadow mSurfaceShadow;
 
     /**
      * Set when we have changed the size of the surface, to know that
@@ -731,7 +733,8 @@ class WindowStateAnimator {
                 try {
                     mSurfaceX = mWin.mFrame.left + mWin.mXOffset;
                     mSurfaceY = mWin.mFrame.top + mWin.mYOffset;
-                    mSurface.setPosition(mSurfaceX, mSurfaceY);
+                    final SurfaceShadow shadow = getSurfaceShadow();
+                    shadow.setPosition(mSurfaceX, mSurfaceY);
 
                     /// M: If someone sets the position again,
                     ///    it need to change mSurfacePositionChanged as true.
@@ -740,8 +743,8 @@ class WindowStateAnimator {
 
                     mSurfaceLayer = mAnimLayer;
                     mSurface.setLayerStack(mLayerStack);
-                    mSurface.setLayer(mAnimLayer);
-                    mSurface.setAlpha(0);
+                    shadow.setLayer(mAnimLayer);
+                    shadow.setAlpha(0);
                     mSurfaceShown = false;
                 } catch (RuntimeException e) {
                     Slog.w(TAG, "Error creating surface in " + w, e);
@@ -1132,6 +1135,15 @@ class WindowStateAnimator {
         }
     }
 
+    /**
+     * Returns the shadow of mSurface's properties, starting a new one if the
+     * surface has been replaced.
+     */
+    private SurfaceShadow getSurfaceShadow() {
+        mSurfaceShadow = SurfaceShadow.forSurface(mSurfaceShadow, mSurface);
+        return mSurfaceShadow;
+    }
+
     void setSurfaceBoundariesLocked(final boolean recoveringMemory) {
         final WindowState w = mWin;
         int width, height;
@@ -1165,7 +1177,7 @@ class WindowStateAnimator {
                         "POS " + left + ", " + top, null);
                 mSurfaceX = left;
                 mSurfaceY = top;
-                mSurface.setPosition(left, top);
+                getSurfaceShadow().setPosition(left, top);
             } catch (RuntimeException e) {
                 Slog.w(TAG, "Error positioning surface of " + w
                         + " pos=(" + left
@@ -1275,11 +1287,12 @@ class WindowStateAnimator {
                     + "," + (mDtDy*w.mVScale) + "]", null);
             if (mSurface != null) {
                 try {
+                    final SurfaceShadow shadow = getSurfaceShadow();
                     mSurfaceAlpha = mShownAlpha;
-                    mSurface.setAlpha(mShownAlpha);
+                    shadow.setAlpha(mShownAlpha);
                     mSurfaceLayer = mAnimLayer;
-                    mSurface.setLayer(mAnimLayer);
-                    mSurface.setMatrix(
+                    shadow.setLayer(mAnimLayer);
+                    shadow.setMatrix(
                         mDsDx*w.mHScale, mDtDx*w.mVScale,
                         mDsDy*w.mHScale, mDtDy*w.mVScale);
 
@@ -1378,7 +1391,7 @@ class WindowStateAnimator {
         try {
             if (WindowManagerService.SHOW_TRANSACTIONS) WindowManagerService.logSurface(mWin,
                     "POS " + left + ", " + top, null);
-            mSurface.setPosition(mWin.mFrame.left + left, mWin.mFrame.top + top);
+            getSurfaceShadow().setPosition(mWin.mFrame.left + left, mWin.mFrame.top + top);
             updateSurfaceWindowCrop(false);
         } catch (RuntimeException e) {
             Slog.w(TAG, "Error positioning surface of " + mWin
@@ -173,6 +173,7 @@ public:
     status_t unregisterInputChannel(JNIEnv* env, const sp<InputChannel>& inputChannel);
 
     void setInputWindows(JNIEnv* env, jobjectArray windowHandleObjArray);
+    void updateInputWindows(JNIEnv* env, jobjectArray windowHandleObjArray);
     void setFocusedApplication(JNIEnv* env, jobject applicationHandleObj);
     void setInputDispatchMode(bool enabled, bool frozen);
     void setSystemUiVisibility(int32_t visibility);
@@ -224,6 +225,9 @@ private:
     jobject mServiceObj;
     sp<Looper> mLooper;
 
+    // The input windows last set; only used by calls from the window manager.
+    Vector<sp<InputWindowHandle> > mWindowHandles;
+
     Mutex mLock;
     struct Locked {
         // Display size information.
@@ -250,6 +254,7 @@ private:
     } mLocked;
 
     void updateInactivityTimeoutLocked(const sp<PointerController>& controller);
+    void updatePointerGesturesEnabled();
     void handleInterceptActions(jint wmActions, nsecs_t when, uint32_t& policyFlags);
     void ensureSpriteControllerLocked();
 
@@ -636,9 +641,8 @@ bool NativeInputManager::isKeyRepeatEnabled() {
     return isScreenOn();
 }
 
-void NativeInputManager::setInputWindows(JNIEnv* env, jobjectArray windowHandleObjArray) {
-    Vector<sp<InputWindowHandle> > windowHandles;
-
+static void getWindowHandles(JNIEnv* env, jobjectArray windowHandleObjArray,
+        Vector<sp<InputWindowHandle> >& windowHandles) {
     if (windowHandleObjArray) {
         jsize length = env->GetArrayLength(windowHandleObjArray);
         for (jsize i = 0; i < length; i++) {
@@ -655,14 +659,35 @@ void NativeInputManager::setInputWindows(JNIEnv* env, jobjectArray windowHandleO
             env->DeleteLocalRef(windowHandleObj);
         }
     }
+}
+
+void NativeInputManager::setInputWindows(JNIEnv* env, jobjectArray windowHandleObjArray) {
+    Vector<sp<InputWindowHandle> > windowHandles;
+    getWindowHandles(env, windowHandleObjArray, windowHandles);
 
     mInputManager->getDispatcher()->setInputWindows(windowHandles);
+    mWindowHandles = windowHandles;
+
+    updatePointerGesturesEnabled();
+}
 
+void NativeInputManager::updateInputWindows(JNIEnv* env, jobjectArray windowHandleObjArray) {
+    Vector<sp<InputWindowHandle> > changedHandles;
+    getWindowHandles(env, windowHandleObjArray, changedHandles);
+
+    mInputManager->getDispatcher()->updateInputWindows(changedHandles);
+
+    // The focused window may be one that did not change, so look at them all;
+    // their information is already up to date.
+    updatePointerGesturesEnabled();
+}
+
+void NativeInputManager::updatePointerGesturesEnabled() {
     // Do this after the dispatcher has updated the window handle state.
     bool newPointerGesturesEnabled = true;
-    size_t numWindows = windowHandles.size();
+    size_t numWindows = mWindowHandles.size();
     for (size_t i = 0; i < numWindows; i++) {
-        const sp<InputWindowHandle>& windowHandle = windowHandles.itemAt(i);
+        const sp<InputWindowHandle>& windowHandle = mWindowHandles.itemAt(i);
         const InputWindowInfo* windowInfo = windowHandle->getInfo();
         if (windowInfo && windowInfo->hasFocus && (windowInfo->inputFeatures
                 & InputWindowInfo::INPUT_FEATURE_DISABLE_TOUCH_PAD_GESTURES)) {
@@ -1186,6 +1211,13 @@ static void nativeSetInputWindows(JNIEnv* env, jclass clazz,
     im->setInputWindows(env, windowHandleObjArray);
 }
 
+static void nativeUpdateInputWindows(JNIEnv* env, jclass clazz,
+        jint ptr, jobjectArray windowHandleObjArray) {
+    NativeInputManager* im = reinterpret_cast<NativeInputManager*>(ptr);
+
+    im->updateInputWindows(env, windowHandleObjArray);
+}
+
 static void nativeSetFocusedApplication(JNIEnv* env, jclass clazz,
         jint ptr, jobject applicationHandleObj) {
     NativeInputManager* im = reinterpret_cast<NativeInputManager*>(ptr);
@@ -1331,6 +1363,8 @@ static JNINativeMethod gInputManagerMethods[] = {
             (void*) nativeInjectInputEvent },
     { "nativeSetInputWindows", "(I[Lcom/android/server/input/InputWindowHandle;)V",
             (void*) nativeSetInputWindows },
+    { "nativeUpdateInputWindows", "(I[Lcom/android/server/input/InputWindowHandle;)V",
+            (void*) nativeUpdateInputWindows },
     { "nativeSetFocusedApplication", "(ILcom/android/server/input/InputApplicationHandle;)V",
             (void*) nativeSetFocusedApplication },
     { "nativeSetInputDispatchMode", "(IZZ)V",
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.server.AlarmManagerService.Alarm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Tests for {@link AlarmQueue}, and a comparison of its cost against the
+ * sorted lists it replaced, with results in the log.
+ */
+public class AlarmQueueTest extends AndroidTestCase {
+    private static final String TAG = "AlarmQueueTest";
+    private static final String ACTION = "com.android.server.AlarmQueueTest.ALARM";
+
+    private static final int BENCH_ALARMS = 2000;
+
+    private PendingIntent[] mOperations;
+
+    private PendingIntent getOperation(int i) {
+        if (mOperations == null) {
+            mOperations = new PendingIntent[BENCH_ALARMS];
+        }
+        if (mOperations[i] == null) {
+            mOperations[i] = PendingIntent.getBroadcast(getContext(), i, new Intent(ACTION), 0);
+        }
+        return mOperations[i];
+    }
+
+    private Alarm newAlarm(int i, long when) {
+        final Alarm alarm = new Alarm();
+        alarm.type = AlarmManager.ELAPSED_REALTIME;
+        alarm.when = when;
+        alarm.operation = getOperation(i);
+        return alarm;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mOperations != null) {
+            for (PendingIntent pi : mOperations) {
+                if (pi != null) {
+                    pi.cancel();
+                }
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testDueAlarmsComeOutInOrder() {
+        final AlarmQueue queue = new AlarmQueue();
+        final Random random = new Random(1);
+        final ArrayList<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < 100; i++) {
+            final long when = random.nextInt(1000);
+            queue.add(newAlarm(i, when));
+            expected.add(when);
+        }
+        Collections.sort(expected);
+        assertEquals((long) expected.get(0), queue.first().when);
+
+        final ArrayList<Alarm> due = new ArrayList<Alarm>();
+        assertEquals(0, queue.removeDue(-1, due));
+        final int count = queue.removeDue(499, due);
+        for (int i = 0; i < count; i++) {
+            assertEquals((long) expected.get(i), due.get(i).when);
+            assertEquals(-1, due.get(i).heapIndex);
+        }
+        assertTrue(queue.first().when >= 500);
+        queue.removeDue(Long.MAX_VALUE, due);
+        assertEquals(100, due.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals((long) expected.get(i), due.get(i).when);
+        }
+        assertNull(queue.first());
+    }
+
+    public void testEqualTimesKeepInsertionOrder() {
+        final AlarmQueue queue = new AlarmQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.add(newAlarm(i, 100));
+        }
+        final ArrayList<Alarm> due = new ArrayList<Alarm>();
+        queue.removeDue(100, due);
+        for (int i = 0; i < 10; i++) {
+            assertSame(getOperation(i), due.get(i).operation);
+        }
+    }
+
+    public void testCancelAndReplaceByOperation() {
+        final AlarmQueue queue = new AlarmQueue();
+        for (int i = 0; i < 50; i++) {
+            queue.add(newAlarm(i, 1000 - i));
+        }
+        assertFalse(queue.add(newAlarm(7, 2000)));
+        assertEquals(50, queue.size());
+        assertEquals(2000, queue.get(getOperation(7)).when);
+
+        assertTrue(queue.add(newAlarm(20, 0)));
+        assertSame(getOperation(20), queue.first().operation);
+
+        for (int i = 0; i < 50; i += 2) {
+            assertNotNull(queue.remove(getOperation(i)));
+        }
+        assertNull(queue.remove(getOperation(0)));
+        assertEquals(25, queue.size());
+
+        final ArrayList<Alarm> due = new ArrayList<Alarm>();
+        queue.removeDue(Long.MAX_VALUE, due);
+        assertEquals(25, due.size());
+        for (int i = 1; i < due.size(); i++) {
+            assertTrue(due.get(i - 1).when <= due.get(i).when);
+            assertTrue(due.get(i).operation != getOperation(20));
+        }
+        assertEquals(2000, due.get(due.size() - 1).when);
+    }
+
+    public void testRemovePackage() {
+        final AlarmQueue queue = new AlarmQueue();
+        for (int i = 0; i < 20; i++) {
+            queue.add(newAlarm(i, i));
+        }
+        final String pkg = getContext().getPackageName();
+        assertTrue(queue.hasPackage(pkg));
+        assertFalse(queue.removePackage("com.example.none"));
+        assertEquals(20, queue.size());
+        assertTrue(queue.removePackage(pkg));
+        assertEquals(0, queue.size());
+        assertNull(queue.get(getOperation(3)));
+        assertFalse(queue.hasPackage(pkg));
+    }
+
+    /**
+     * The sorted list the service used before, for comparison: binary
+     * search and insert to set, a scan to cancel.
+     */
+    private static final class SortedAlarmList {
+        final ArrayList<Alarm> list = new ArrayList<Alarm>();
+        final Comparator<Alarm> order = new Comparator<Alarm>() {
+            @Override
+            public int compare(Alarm a1, Alarm a2) {
+                return a1.when < a2.when ? -1 : (a1.when == a2.when ? 0 : 1);
+            }
+        };
+
+        void add(Alarm alarm) {
+            int index = Collections.binarySearch(list, alarm, order);
+            if (index < 0) {
+                index = 0 - index - 1;
+            }
+            list.add(index, alarm);
+        }
+
+        void remove(PendingIntent operation) {
+            final Iterator<Alarm> it = list.iterator();
+            while (it.hasNext()) {
+                if (it.next().operation.equals(operation)) {
+                    it.remove();
+                }
+            }
+        }
+
+        void removeDue(long now, ArrayList<Alarm> out) {
+            final Iterator<Alarm> it = list.iterator();
+            while (it.hasNext()) {
+                final Alarm alarm = it.next();
+                if (alarm.when > now) {
+                    break;
+                }
+                out.add(alarm);
+                it.remove();
+            }
+        }
+    }
+
+    public void testCostAgainstSortedList() {
+        final Random random = new Random(3);
+        final long[] whens = new long[BENCH_ALARMS];
+        final int[] cancelOrder = new int[BENCH_ALARMS];
+        for (int i = 0; i < BENCH_ALARMS; i++) {
+            whens[i] = random.nextInt(24*60*60*1000);
+            cancelOrder[i] = i;
+            getOperation(i);
+        }
+        for (int i = BENCH_ALARMS - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int t = cancelOrder[i];
+            cancelOrder[i] = cancelOrder[j];
+            cancelOrder[j] = t;
+        }
+
+        for (int round = 0; round < 3; round++) {
+            final SortedAlarmList list = new SortedAlarmList();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCH_ALARMS; i++) {
+                list.remove(mOperations[i]);
+                list.add(newAlarm(i, whens[i]));
+            }
+            final long listSet = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < BENCH_ALARMS / 2; i++) {
+                list.remove(mOperations[cancelOrder[i]]);
+            }
+            final long listCancel = System.nanoTime() - start;
+            final ArrayList<Alarm> listDue = new ArrayList<Alarm>();
+            start = System.nanoTime();
+            list.removeDue(Long.MAX_VALUE, listDue);
+            final long listTrigger = System.nanoTime() - start;
+
+            final AlarmQueue queue = new AlarmQueue();
+            start = System.nanoTime();
+            for (int i = 0; i < BENCH_ALARMS; i++) {
+                queue.remove(mOperations[i]);
+                queue.add(newAlarm(i, whens[i]));
+            }
+            final long queueSet = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < BENCH_ALARMS / 2; i++) {
+                queue.remove(mOperations[cancelOrder[i]]);
+            }
+            final long queueCancel = System.nanoTime() - start;
+            final ArrayList<Alarm> queueDue = new ArrayList<Alarm>();
+            start = System.nanoTime();
+            queue.removeDue(Long.MAX_VALUE, queueDue);
+            final long queueTrigger = System.nanoTime() - start;
+
+            assertEquals(listDue.size(), queueDue.size());
+            for (int i = 0; i < listDue.size(); i++) {
+                assertEquals(listDue.get(i).when, queueDue.get(i).when);
+            }
+            Log.i(TAG, BENCH_ALARMS + " alarms, round " + round
+                    + ": set " + listSet / 1000 + "us -> " + queueSet / 1000
+                    + "us, cancel half " + listCancel / 1000 + "us -> " + queueCancel / 1000
+                    + "us, trigger all " + listTrigger / 1000 + "us -> "
+                    + queueTrigger / 1000 + "us");
+        }
+    }
+}
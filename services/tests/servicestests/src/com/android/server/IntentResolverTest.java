@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Checks that the {@link IntentResolver} query cache returns the same
+ * results as an uncached resolver, and measures the difference on a filter
+ * set shaped like a typical device (a launcher entry for most apps, plus
+ * share, view and browsable filters).
+ */
+public class IntentResolverTest extends AndroidTestCase {
+    private static final String TAG = "IntentResolverTest";
+
+    private static final int APP_COUNT = 250;
+    private static final int ITERATIONS = 500;
+
+    static class TestFilter extends IntentFilter {
+        final String packageName;
+        boolean stopped;
+
+        TestFilter(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
+    static class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected String packageForFilter(TestFilter filter) {
+            return filter.packageName;
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+
+        @Override
+        protected boolean isFilterStopped(TestFilter filter, int userId) {
+            return filter.stopped;
+        }
+    }
+
+    private static void populate(TestResolver resolver, TestFilter[] launcherFilters) {
+        for (int i = 0; i < APP_COUNT; i++) {
+            final String pkg = "com.example.app" + i;
+
+            final TestFilter launcher = new TestFilter(pkg);
+            launcher.addAction(Intent.ACTION_MAIN);
+            launcher.addCategory(Intent.CATEGORY_LAUNCHER);
+            launcher.addCategory(Intent.CATEGORY_DEFAULT);
+            resolver.addFilter(launcher);
+            launcherFilters[i] = launcher;
+
+            if (i % 4 == 0) {
+                final TestFilter share = new TestFilter(pkg);
+                share.addAction(Intent.ACTION_SEND);
+                share.addCategory(Intent.CATEGORY_DEFAULT);
+                try {
+                    share.addDataType(i % 8 == 0 ? "image/*" : "text/plain");
+                } catch (IntentFilter.MalformedMimeTypeException e) {
+                    throw new RuntimeException(e);
+                }
+                resolver.addFilter(share);
+            }
+
+            if (i % 10 == 0) {
+                final TestFilter view = new TestFilter(pkg);
+                view.addAction(Intent.ACTION_VIEW);
+                view.addCategory(Intent.CATEGORY_DEFAULT);
+                view.addCategory(Intent.CATEGORY_BROWSABLE);
+                view.addDataScheme("http");
+                view.addDataScheme("https");
+                if (i % 20 == 0) {
+                    view.addDataAuthority("www.example" + i + ".com", null);
+                }
+                resolver.addFilter(view);
+            }
+        }
+    }
+
+    private static Intent[] queries() {
+        final Intent launcher = new Intent(Intent.ACTION_MAIN);
+        launcher.addCategory(Intent.CATEGORY_LAUNCHER);
+        final Intent shareText = new Intent(Intent.ACTION_SEND);
+        shareText.setType("text/plain");
+        final Intent shareImage = new Intent(Intent.ACTION_SEND);
+        shareImage.setType("image/jpeg");
+        final Intent view = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("http://www.example20.com/index.html"));
+        view.addCategory(Intent.CATEGORY_BROWSABLE);
+        final Intent targeted = new Intent(Intent.ACTION_MAIN);
+        targeted.addCategory(Intent.CATEGORY_LAUNCHER);
+        targeted.setPackage("com.example.app7");
+        return new Intent[] { launcher, shareText, shareImage, view, targeted };
+    }
+
+    private static void assertSameResults(List<TestFilter> expected, List<TestFilter> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i));
+        }
+    }
+
+    public void testCachedQueriesMatchUncached() {
+        final TestResolver plain = new TestResolver();
+        final TestResolver cached = new TestResolver();
+        cached.setResultCacheSize(16);
+        final TestFilter[] plainLaunchers = new TestFilter[APP_COUNT];
+        final TestFilter[] cachedLaunchers = new TestFilter[APP_COUNT];
+        populate(plain, plainLaunchers);
+        populate(cached, cachedLaunchers);
+
+        for (Intent intent : queries()) {
+            final String type = intent.getType();
+            final List<TestFilter> expected = plain.queryIntent(intent, type, true, 0);
+            // First call fills the cache, second is served from it.
+            final List<TestFilter> miss = cached.queryIntent(intent, type, true, 0);
+            final List<TestFilter> hit = cached.queryIntent(intent, type, true, 0);
+            assertEquals(expected.size(), miss.size());
+            assertEquals(expected.size(), hit.size());
+            assertSameResults(miss, hit);
+        }
+    }
+
+    public void testPerCallStateIsReapplied() {
+        final TestResolver resolver = new TestResolver();
+        resolver.setResultCacheSize(16);
+        final TestFilter[] launchers = new TestFilter[APP_COUNT];
+        populate(resolver, launchers);
+
+        final Intent intent = queries()[0];
+        intent.addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES);
+        assertEquals(APP_COUNT, resolver.queryIntent(intent, null, false, 0).size());
+
+        launchers[3].stopped = true;
+        assertEquals(APP_COUNT - 1, resolver.queryIntent(intent, null, false, 0).size());
+    }
+
+    public void testAddAndRemoveInvalidate() {
+        final TestResolver resolver = new TestResolver();
+        resolver.setResultCacheSize(16);
+        final TestFilter[] launchers = new TestFilter[APP_COUNT];
+        populate(resolver, launchers);
+
+        final Intent intent = queries()[0];
+        assertEquals(APP_COUNT, resolver.queryIntent(intent, null, false, 0).size());
+
+        resolver.removeFilter(launchers[0]);
+        assertEquals(APP_COUNT - 1, resolver.queryIntent(intent, null, false, 0).size());
+
+        final TestFilter extra = new TestFilter("com.example.extra");
+        extra.addAction(Intent.ACTION_MAIN);
+        extra.addCategory(Intent.CATEGORY_LAUNCHER);
+        resolver.addFilter(extra);
+        assertEquals(APP_COUNT, resolver.queryIntent(intent, null, false, 0).size());
+    }
+
+    private static long timeQueries(TestResolver resolver, Intent[] intents) {
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Intent intent : intents) {
+                resolver.queryIntent(intent, intent.getType(), true, 0);
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    public void testBenchmark() {
+        final TestResolver plain = new TestResolver();
+        final TestResolver cached = new TestResolver();
+        cached.setResultCacheSize(16);
+        populate(plain, new TestFilter[APP_COUNT]);
+        populate(cached, new TestFilter[APP_COUNT]);
+
+        final Intent[] intents = queries();
+        // Warm up both paths before measuring.
+        timeQueries(plain, intents);
+        timeQueries(cached, intents);
+
+        final long plainTime = timeQueries(plain, intents);
+        final long cachedTime = timeQueries(cached, intents);
+        Log.i(TAG, (ITERATIONS * intents.length) + " queries: uncached " + plainTime
+                + "ms, cached " + cachedTime + "ms");
+    }
+}
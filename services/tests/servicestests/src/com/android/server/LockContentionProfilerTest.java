@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.test.AndroidTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class LockContentionProfilerTest extends AndroidTestCase {
+
+    private static final Watchdog.Monitor NOOP_MONITOR = new Watchdog.Monitor() {
+        @Override
+        public void monitor() {
+        }
+    };
+
+    public void testPercentiles() {
+        final LockContentionProfiler.MonitorStats stats
+                = new LockContentionProfiler.MonitorStats(NOOP_MONITOR);
+        for (int i = 0; i < 98; i++) {
+            stats.add(0);
+        }
+        stats.add(150);
+        stats.add(100000);
+        assertEquals(100, stats.count);
+        assertEquals(100000, stats.maxTime);
+        assertEquals(1, stats.percentile(50));
+        assertEquals(1, stats.percentile(98));
+        assertEquals(256, stats.percentile(99));
+        assertEquals(1L << (LockContentionProfiler.NUM_BUCKETS - 1), stats.percentile(100));
+    }
+
+    public void testSlowSamplesAreCapped() {
+        final LockContentionProfiler.MonitorStats stats
+                = new LockContentionProfiler.MonitorStats(NOOP_MONITOR);
+        for (int i = 0; i < LockContentionProfiler.MAX_SLOW_SAMPLES + 2; i++) {
+            stats.addSlowSample(new LockContentionProfiler.SlowSample(i, i, ""));
+        }
+        assertEquals(LockContentionProfiler.MAX_SLOW_SAMPLES, stats.slowSamples.size());
+        // The two oldest samples were overwritten.
+        assertEquals(LockContentionProfiler.MAX_SLOW_SAMPLES, stats.slowSamples.get(0).waitTime);
+        assertEquals(LockContentionProfiler.MAX_SLOW_SAMPLES + 1,
+                stats.slowSamples.get(1).waitTime);
+    }
+
+    public void testSuspectsAreKeyedOnMonitorClass() {
+        final LockContentionProfiler.MonitorStats stats
+                = new LockContentionProfiler.MonitorStats(NOOP_MONITOR);
+        // Monitors in com.android.server itself match only their own class.
+        assertEquals("com.android.server.LockContentionProfilerTest", stats.suspectPrefix);
+        assertTrue(stats.isSuspectFrame("com.android.server.LockContentionProfilerTest"));
+        assertTrue(stats.isSuspectFrame("com.android.server.LockContentionProfilerTest$1"));
+        assertFalse(stats.isSuspectFrame("com.android.server.LockContentionProfilerTestFoo"));
+        assertFalse(stats.isSuspectFrame("com.android.server.NativeDaemonConnector"));
+        assertFalse(stats.isSuspectFrame("com.android.server.am.ActivityManagerService"));
+    }
+
+    public void testOverflowBucketIsOpenEnded() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        LockContentionProfiler.printBucket(pw, 3);
+        pw.print(' ');
+        LockContentionProfiler.printBucket(pw, LockContentionProfiler.NUM_BUCKETS - 1);
+        pw.flush();
+        assertEquals("<8 >=" + (1L << (LockContentionProfiler.NUM_BUCKETS - 2)), sw.toString());
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ActivityStateNotifierBusTest extends AndroidTestCase {
+    private static final String PACKAGE = "com.example.app";
+    private static final String BLOCKING_CLASS = ".Blocking";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Records what it is told, as "class:state" or "died:packages", and
+     * holds the dispatcher inside the call for {@link #BLOCKING_CLASS}
+     * until released, so that the test can queue up events behind it.
+     */
+    private static final class StubNotifier implements IActivityStateNotifier {
+        final ArrayList<String> mReceived = new ArrayList<String>();
+        final CountDownLatch mBlocked = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public void notifyActivityState(String packageName, String className,
+                IActivityStateNotifier.ActivityState actState) {
+            if (BLOCKING_CLASS.equals(className)) {
+                mBlocked.countDown();
+                try {
+                    mRelease.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+            record(className + ":" + actState);
+        }
+
+        @Override
+        public void notifyAppDied(HashSet<String> packageList) {
+            record("died:" + packageList);
+        }
+
+        private synchronized void record(String event) {
+            mReceived.add(event);
+            notifyAll();
+        }
+
+        synchronized ArrayList<String> awaitCount(int count) throws InterruptedException {
+            final long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            long now;
+            while (mReceived.size() < count && (now = System.currentTimeMillis()) < end) {
+                wait(end - now);
+            }
+            assertEquals(count, mReceived.size());
+            return new ArrayList<String>(mReceived);
+        }
+    }
+
+    private static void post(ActivityStateNotifierBus bus, String className,
+            IActivityStateNotifier.ActivityState state) {
+        bus.postActivityStateLocked(PACKAGE, className, state);
+    }
+
+    /** Posts an event that the stub blocks on, and waits until it does. */
+    private static void block(ActivityStateNotifierBus bus, StubNotifier stub)
+            throws InterruptedException {
+        post(bus, BLOCKING_CLASS, IActivityStateNotifier.ActivityState.Resumed);
+        assertTrue(stub.mBlocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    public void testDeliversInPostingOrder() throws Exception {
+        final ActivityStateNotifierBus bus = new ActivityStateNotifierBus();
+        final StubNotifier stub = new StubNotifier();
+        assertTrue(bus.register(stub, null, true, ActivityStateNotifierBus.POLICY_COALESCE));
+        assertFalse(bus.register(stub, null, true, ActivityStateNotifierBus.POLICY_COALESCE));
+
+        post(bus, ".A", IActivityStateNotifier.ActivityState.Resumed);
+        post(bus, ".A", IActivityStateNotifier.ActivityState.Paused);
+        final HashSet<String> packages = new HashSet<String>();
+        packages.add(PACKAGE);
+        bus.postAppDiedLocked(packages);
+        packages.clear();
+        post(bus, ".B", IActivityStateNotifier.ActivityState.Resumed);
+
+        final ArrayList<String> received = stub.awaitCount(4);
+        assertEquals(".A:Resumed", received.get(0));
+        assertEquals(".A:Paused", received.get(1));
+        // The package list was copied when posted.
+        assertEquals("died:[" + PACKAGE + "]", received.get(2));
+        assertEquals(".B:Resumed", received.get(3));
+    }
+
+    public void testFiltersStates() throws Exception {
+        final ActivityStateNotifierBus bus = new ActivityStateNotifierBus();
+        final StubNotifier stub = new StubNotifier();
+        bus.register(stub, EnumSet.of(IActivityStateNotifier.ActivityState.Resumed), false,
+                ActivityStateNotifierBus.POLICY_COALESCE);
+
+        post(bus, ".A", IActivityStateNotifier.ActivityState.Paused);
+        bus.postAppDiedLocked(new HashSet<String>());
+        post(bus, ".A", IActivityStateNotifier.ActivityState.Resumed);
+
+        final ArrayList<String> received = stub.awaitCount(1);
+        assertEquals(".A:Resumed", received.get(0));
+    }
+
+    public void testCoalescesSupersededStateWhenBehind() throws Exception {
+        final ActivityStateNotifierBus bus = new ActivityStateNotifierBus();
+        final StubNotifier stub = new StubNotifier();
+        bus.register(stub, null, true, ActivityStateNotifierBus.POLICY_COALESCE);
+        block(bus, stub);
+
+        // Fill the backlog, starting with a state of .X that a later one
+        // supersedes.
+        post(bus, ".X", IActivityStateNotifier.ActivityState.Paused);
+        for (int i = 0; i < ActivityStateNotifierBus.MAX_BACKLOG - 1; i++) {
+            post(bus, ".C" + i, IActivityStateNotifier.ActivityState.Resumed);
+        }
+        post(bus, ".X", IActivityStateNotifier.ActivityState.Resumed);
+        stub.mRelease.countDown();
+
+        final ArrayList<String> received = stub.awaitCount(
+                1 + ActivityStateNotifierBus.MAX_BACKLOG);
+        assertEquals(BLOCKING_CLASS + ":Resumed", received.get(0));
+        assertEquals(".C0:Resumed", received.get(1));
+        assertEquals(".X:Resumed", received.get(received.size() - 1));
+        assertFalse(received.contains(".X:Paused"));
+        final ActivityStateNotifierBus.Subscriber sub = bus.getSubscriber(stub);
+        assertEquals(1, sub.numCoalesced);
+        assertEquals(0, sub.numDropped);
+        assertEquals(ActivityStateNotifierBus.MAX_BACKLOG, sub.maxBacklog);
+    }
+
+    public void testDropsOldestWhenBehind() throws Exception {
+        final ActivityStateNotifierBus bus = new ActivityStateNotifierBus();
+        final StubNotifier stub = new StubNotifier();
+        bus.register(stub, null, true, ActivityStateNotifierBus.POLICY_DROP_OLDEST);
+        block(bus, stub);
+
+        for (int i = 0; i <= ActivityStateNotifierBus.MAX_BACKLOG; i++) {
+            post(bus, ".C" + i, IActivityStateNotifier.ActivityState.Resumed);
+        }
+        stub.mRelease.countDown();
+
+        final ArrayList<String> received = stub.awaitCount(
+                1 + ActivityStateNotifierBus.MAX_BACKLOG);
+        assertFalse(received.contains(".C0:Resumed"));
+        assertEquals(".C1:Resumed", received.get(1));
+        assertEquals(".C" + ActivityStateNotifierBus.MAX_BACKLOG + ":Resumed",
+                received.get(received.size() - 1));
+        final ActivityStateNotifierBus.Subscriber sub = bus.getSubscriber(stub);
+        assertEquals(1, sub.numDropped);
+        assertEquals(0, sub.numCoalesced);
+    }
+
+    public void testCountsRingDrops() throws Exception {
+        final ActivityStateNotifierBus bus = new ActivityStateNotifierBus();
+        final StubNotifier stub = new StubNotifier();
+        bus.register(stub, null, true, ActivityStateNotifierBus.POLICY_DROP_OLDEST);
+        block(bus, stub);
+
+        // The dispatcher is blocked, so nothing leaves the ring.
+        final int extra = 5;
+        for (int i = 0; i < ActivityStateNotifierBus.RING_SIZE + extra; i++) {
+            post(bus, ".C" + i, IActivityStateNotifier.ActivityState.Resumed);
+        }
+        assertEquals(extra, bus.getNumRingDrops());
+        stub.mRelease.countDown();
+
+        // Only the newest MAX_BACKLOG of the ring's events survive the backlog.
+        final ArrayList<String> received = stub.awaitCount(
+                1 + ActivityStateNotifierBus.MAX_BACKLOG);
+        assertEquals(".C" + (ActivityStateNotifierBus.RING_SIZE - 1) + ":Resumed",
+                received.get(received.size() - 1));
+        assertEquals(ActivityStateNotifierBus.RING_SIZE - ActivityStateNotifierBus.MAX_BACKLOG,
+                bus.getSubscriber(stub).numDropped);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.mediatek.common.MediatekClassFactory;
+import com.mediatek.common.amsplus.IAmsPlus;
+
+/**
+ * Compares what an oom_adj change used to pay to reach the LTK extension,
+ * a MediatekClassFactory lookup each time, with the cached lookup in
+ * {@link AmsVendorHooks}.
+ */
+@LargeTest
+public class AmsVendorHooksTest extends AndroidTestCase {
+    private static final String TAG = "AmsVendorHooksTest";
+
+    private static final int ITERATIONS = 10000;
+
+    public void testLookupIsCached() {
+        final AmsVendorHooks hooks = new AmsVendorHooks();
+        assertSame(hooks.getAmsPlus(), hooks.getAmsPlus());
+    }
+
+    public void testBenchmarkAdjChangeLookup() {
+        final AmsVendorHooks hooks = new AmsVendorHooks();
+        if (hooks.getAmsPlus() == null) {
+            Log.i(TAG, "No IAmsPlus on this device, skipping");
+            return;
+        }
+
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (MediatekClassFactory.createInstance(IAmsPlus.class) != null) {
+                found++;
+            }
+        }
+        final long factoryTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (hooks.getAmsPlus() != null) {
+                found++;
+            }
+        }
+        final long cachedTime = System.nanoTime() - start;
+
+        assertEquals(ITERATIONS * 2, found);
+        Log.i(TAG, "IAmsPlus lookup per adj change: MediatekClassFactory "
+                + (factoryTime / ITERATIONS) + "ns, cached " + (cachedTime / ITERATIONS) + "ns");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AppLaunchTracerTest extends AndroidTestCase {
+
+    public void testColdLaunchPhases() {
+        final AppLaunchTracer tracer = new AppLaunchTracer(null, null);
+        final long seq = tracer.beginLocked("com.example/.Main", "com.example", 10001, 1000);
+        tracer.notePhaseForProcessLocked("com.example", 10001,
+                AppLaunchTracer.PHASE_PROCESS_START, 1010);
+        // A different user's process with the same name is not this launch.
+        tracer.notePhaseForProcessLocked("com.example", 1010001,
+                AppLaunchTracer.PHASE_BIND_APPLICATION, 1050);
+        tracer.notePhaseForProcessLocked("com.example", 10001,
+                AppLaunchTracer.PHASE_BIND_APPLICATION, 1100);
+        tracer.notePhaseLocked(seq, AppLaunchTracer.PHASE_LAUNCH_ACTIVITY, 1300);
+        tracer.notePhaseLocked(seq, AppLaunchTracer.PHASE_RESUMED, 1500);
+        assertEquals(700, tracer.finishLocked(seq, "com.example/.Main", 1000, 1700));
+        // Already finished.
+        assertEquals(-1, tracer.finishLocked(seq, "com.example/.Main", 1000, 1800));
+
+        assertEquals(1, tracer.mColdLaunchTime.getCount());
+        assertEquals(0, tracer.mWarmLaunchTime.getCount());
+
+        final StringWriter sw = new StringWriter();
+        tracer.dumpLocked(new PrintWriter(sw, true), true);
+        final String dump = sw.toString();
+        assertTrue(dump, dump.contains("bindApp=+100ms"));
+        assertTrue(dump, dump.contains("drawn=+700ms"));
+    }
+
+    public void testPooledLaunchesAreRecordedSeparately() {
+        final AppLaunchTracer tracer = new AppLaunchTracer(null, null);
+        final long seq = tracer.beginLocked("com.example/.Main", "com.example", 10001, 1000);
+        tracer.notePooledLocked(seq);
+        tracer.notePhaseLocked(seq, AppLaunchTracer.PHASE_LAUNCH_ACTIVITY, 1020);
+        assertEquals(300, tracer.finishLocked(seq, "com.example/.Main", 1000, 1300));
+
+        assertEquals(1, tracer.mPooledLaunchTime.getCount());
+        assertEquals(0, tracer.mWarmLaunchTime.getCount());
+        assertEquals(0, tracer.mColdLaunchTime.getCount());
+    }
+
+    public void testRingReuseDropsStaleLaunches() {
+        final AppLaunchTracer tracer = new AppLaunchTracer(null, null);
+        final long first = tracer.beginLocked("com.example/.First", "com.example", 10001, 0);
+        for (int i = 0; i < AppLaunchTracer.RING_SIZE; i++) {
+            tracer.beginLocked("com.example/.Other", "com.example", 10001, i);
+        }
+        // The first launch's slot now belongs to a newer launch.
+        assertEquals(-1, tracer.finishLocked(first, "com.example/.First", 0, 100));
+        assertEquals(0, tracer.mWarmLaunchTime.getCount());
+    }
+
+    public void testUntracedLaunchIsStillExported() throws Exception {
+        final HandlerThread thread = new HandlerThread("AppLaunchTracerTest");
+        thread.start();
+        try {
+            final ArrayList<AppLaunchTracer.Launch> completed
+                    = new ArrayList<AppLaunchTracer.Launch>();
+            final CountDownLatch done = new CountDownLatch(1);
+            final AppLaunchTracer tracer = new AppLaunchTracer(
+                    new Handler(thread.getLooper()), new AppLaunchTracer.Listener() {
+                @Override
+                public void onLaunchStarted(AppLaunchTracer.Launch launch) {
+                }
+
+                @Override
+                public void onLaunchCompleted(AppLaunchTracer.Launch launch) {
+                    completed.add(launch);
+                    done.countDown();
+                }
+            });
+            // Never traced, e.g. evicted from the ring before it was drawn.
+            assertEquals(-1, tracer.finishLocked(0, "com.example/.Main", 1000, 1400));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals("com.example/.Main", completed.get(0).component);
+            assertEquals(400, completed.get(0).getTotalTime());
+            assertEquals(1400, completed.get(0).getPhaseTime(AppLaunchTracer.PHASE_DRAWN));
+            assertEquals(0, tracer.mWarmLaunchTime.getCount());
+        } finally {
+            thread.quit();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class BroadcastStatsTest extends AndroidTestCase {
+
+    public void testReceiverKeysAreCapped() {
+        final BroadcastStats stats = new BroadcastStats();
+        for (int i = 0; i < BroadcastStats.MAX_KEYS * 2; i++) {
+            stats.noteReceiverFinishedLocked("com.example/.Receiver" + i, i);
+        }
+        stats.noteReceiverFinishedLocked("com.example/.Slow", 20000);
+        assertEquals(BroadcastStats.MAX_KEYS * 2 + 1, stats.mReceiverTime.getCount());
+
+        final StringWriter sw = new StringWriter();
+        stats.dumpLocked(new PrintWriter(sw, true), "", true);
+        final String dump = sw.toString();
+        assertTrue(dump.contains(BroadcastStats.OTHER_KEY));
+        assertFalse(dump.contains("com.example/.Slow"));
+        assertTrue(dump.contains("max=20000ms"));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.ActivityManagerNative;
+import android.app.ActivityThread;
+import android.app.IActivityManager;
+import android.app.IActivityManager.ContentProviderHolder;
+import android.app.IApplicationThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures how many getContentProvider/removeContentProvider round trips per
+ * second the activity manager sustains as the number of concurrent callers
+ * grows.  The calls go straight to the activity manager, bypassing the
+ * provider cache in ActivityThread, so that every one of them takes the
+ * service's locks.  Run before and after a locking change and compare the
+ * logged rates.
+ */
+@LargeTest
+public class ContentProviderContentionTest extends AndroidTestCase {
+    private static final String TAG = "ContentProviderContentionTest";
+
+    private static final long RUN_TIME = 3000;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+    private int runThreads(int numThreads) throws Exception {
+        final IActivityManager am = ActivityManagerNative.getDefault();
+        final IApplicationThread caller = ActivityThread.currentActivityThread()
+                .getApplicationThread();
+        final int userId = UserHandle.myUserId();
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final long[] deadline = new long[1];
+
+        for (int i = 0; i < numThreads; i++) {
+            new Thread("provider-caller-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (SystemClock.uptimeMillis() < deadline[0]) {
+                            final ContentProviderHolder holder = am.getContentProvider(
+                                    caller, Settings.AUTHORITY, userId, false);
+                            assertNotNull(holder);
+                            am.removeContentProvider(holder.connection, false);
+                            calls.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        deadline[0] = SystemClock.uptimeMillis() + RUN_TIME;
+        start.countDown();
+        done.await();
+        if (failure.get() != null) {
+            throw new Exception(failure.get());
+        }
+        return calls.get();
+    }
+
+    public void testConcurrentGetContentProvider() throws Exception {
+        // Warm up the provider and the binder threads.
+        runThreads(1);
+
+        for (int numThreads : THREAD_COUNTS) {
+            final int calls = runThreads(numThreads);
+            Log.i(TAG, numThreads + " threads: " + (calls * 1000L / RUN_TIME)
+                    + " getContentProvider calls/s");
+            assertTrue(calls > 0);
+        }
+    }
+}
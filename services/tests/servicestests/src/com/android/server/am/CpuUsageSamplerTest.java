@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.os.ProcessStats;
+
+/**
+ * Checks what {@link CpuUsageSampler} hands on from a CPU stats update, and
+ * measures the allocations of the ProcessStats parse and of the sampler.
+ */
+@LargeTest
+public class CpuUsageSamplerTest extends AndroidTestCase {
+    private static final String TAG = "CpuUsageSamplerTest";
+
+    private static final int SAMPLES = 20;
+    private static final int MAX_TRIES = 5;
+
+    /** Spins until this thread has used at least ms of CPU. */
+    private static void burnCpu(long ms) {
+        final long end = SystemClock.currentThreadTimeMillis() + ms;
+        long x = 0;
+        while (SystemClock.currentThreadTimeMillis() < end) {
+            for (int i = 0; i < 10000; i++) {
+                x += i * 31;
+            }
+        }
+        if (x == 42) {
+            Log.i(TAG, "unlikely");
+        }
+    }
+
+    private static int indexOf(CpuUsageSampler.Snapshot snapshot, int pid) {
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.getPid(i) == pid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void sample(CpuUsageSampler sampler, ProcessStats stats, long now) {
+        stats.update();
+        sampler.sampleLocked(stats, stats.getLastCpuSpeedTimes(), now, true);
+    }
+
+    public void testSnapshotContainsWorkingProcesses() {
+        final ProcessStats stats = new ProcessStats(false);
+        stats.init();
+        final CpuUsageSampler sampler = new CpuUsageSampler();
+        final int myPid = Process.myPid();
+
+        // Our own process must show up once it has used enough CPU to be
+        // noticed, which jiffy rounding can take more than one try.
+        CpuUsageSampler.Snapshot snapshot = null;
+        int self = -1;
+        for (int tries = 0; self < 0 && tries < MAX_TRIES; tries++) {
+            burnCpu(100);
+            stats.update();
+            snapshot = sampler.sampleLocked(stats, stats.getLastCpuSpeedTimes(), 1234, true);
+            self = indexOf(snapshot, myPid);
+        }
+        assertTrue("pid " + myPid + " never sampled as running", self >= 0);
+        assertEquals(1234, snapshot.getUptime());
+        int working = 0;
+        for (int i = 0; i < stats.countStats(); i++) {
+            if (stats.getStats(i).working) {
+                working++;
+            }
+        }
+        assertEquals(working, snapshot.size());
+        final long selfTime = (snapshot.getRelUtime(self) + snapshot.getRelStime(self)) * 10;
+        assertTrue(selfTime > 0);
+
+        // Totals carry over from one snapshot to the next, and only grow on
+        // battery.
+        final CpuUsageSampler.Snapshot latest = sampler.acquireLatest();
+        assertSame(snapshot, latest);
+        final long total = latest.getCpuTime(myPid, -1);
+        assertTrue(total >= selfTime);
+        burnCpu(100);
+        stats.update();
+        final CpuUsageSampler.Snapshot next = sampler.sampleLocked(stats,
+                stats.getLastCpuSpeedTimes(), 2345, false);
+        assertNotSame(latest, next);
+        assertEquals(total, next.getCpuTime(myPid, -1));
+        // What the consumer holds has not changed under it.
+        assertEquals(total, latest.getCpuTime(myPid, -1));
+        assertEquals(1234, latest.getUptime());
+        assertEquals(-1, latest.getCpuTime(0, -1));
+        sampler.release(latest);
+    }
+
+    public void testHeldSnapshotIsNotRefilled() {
+        final ProcessStats stats = new ProcessStats(false);
+        stats.init();
+        final CpuUsageSampler sampler = new CpuUsageSampler();
+        assertNull(sampler.acquireLatest());
+
+        sample(sampler, stats, 1);
+        final CpuUsageSampler.Snapshot held = sampler.acquireLatest();
+        for (int i = 2; i < 5; i++) {
+            sample(sampler, stats, i);
+            assertEquals(1, held.getUptime());
+        }
+        sampler.release(held);
+        try {
+            sampler.release(held);
+            fail("released twice");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testSamplingDoesNotAllocate() {
+        final ProcessStats stats = new ProcessStats(false);
+        stats.init();
+        final CpuUsageSampler sampler = new CpuUsageSampler();
+        final SparseArray<ProcessRecord> pids = new SparseArray<ProcessRecord>();
+
+        // Warm up with the same calls as the measured loop, so that the
+        // pool, the snapshot arrays and the resolved process array have
+        // reached their size.
+        for (int i = 0; i < 3; i++) {
+            stats.update();
+            sampler.resolveProcessesLocked(
+                    sampler.sampleLocked(stats, stats.getLastCpuSpeedTimes(), i, true), pids);
+            sampler.release(sampler.acquireLatest());
+        }
+
+        Debug.startAllocCounting();
+        long parseAllocs = 0;
+        long parseBytes = 0;
+        long sampleAllocs = 0;
+        long sampleBytes = 0;
+        try {
+            for (int i = 0; i < SAMPLES; i++) {
+                Debug.resetThreadAllocCount();
+                Debug.resetThreadAllocSize();
+                stats.update();
+                final long[] cpuSpeedTimes = stats.getLastCpuSpeedTimes();
+                parseAllocs += Debug.getThreadAllocCount();
+                parseBytes += Debug.getThreadAllocSize();
+
+                Debug.resetThreadAllocCount();
+                Debug.resetThreadAllocSize();
+                final CpuUsageSampler.Snapshot snapshot =
+                        sampler.sampleLocked(stats, cpuSpeedTimes, i, true);
+                sampler.resolveProcessesLocked(snapshot, pids);
+                final CpuUsageSampler.Snapshot latest = sampler.acquireLatest();
+                latest.getCpuTime(Process.myPid(), 0);
+                sampler.release(latest);
+                sampleAllocs += Debug.getThreadAllocCount();
+                sampleBytes += Debug.getThreadAllocSize();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        Log.i(TAG, "Per CPU stats update: ProcessStats.update " + (parseAllocs / SAMPLES)
+                + " objects/" + (parseBytes / SAMPLES) + " bytes, CpuUsageSampler "
+                + (sampleAllocs / SAMPLES) + " objects/" + (sampleBytes / SAMPLES) + " bytes");
+        assertEquals(0, sampleAllocs);
+    }
+}
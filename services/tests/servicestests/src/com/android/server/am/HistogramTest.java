@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+
+public class HistogramTest extends AndroidTestCase {
+
+    public void testBuckets() {
+        assertEquals(0, Histogram.bucketFor(0));
+        assertEquals(1, Histogram.bucketFor(1));
+        assertEquals(2, Histogram.bucketFor(2));
+        assertEquals(2, Histogram.bucketFor(3));
+        assertEquals(11, Histogram.bucketFor(1500));
+        assertEquals(Histogram.NUM_BUCKETS - 1, Histogram.bucketFor(Long.MAX_VALUE));
+    }
+
+    public void testPercentiles() {
+        final Histogram hist = new Histogram();
+        assertEquals(-1, hist.getPercentileBucket(50));
+        for (int i = 0; i < 98; i++) {
+            hist.add(3);
+        }
+        hist.add(200);
+        hist.add(10000);
+        assertEquals(100, hist.getCount());
+        assertEquals(10000, hist.getMax());
+        assertEquals(Histogram.bucketFor(3), hist.getPercentileBucket(50));
+        assertEquals(Histogram.bucketFor(3), hist.getPercentileBucket(98));
+        assertEquals(Histogram.bucketFor(200), hist.getPercentileBucket(99));
+        assertEquals(Histogram.bucketFor(10000), hist.getPercentileBucket(100));
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Offline evaluation of {@link LaunchPredictor}.  A usage file has one
+ * launch per line, "hourOfDay packageName", in the order the user switched
+ * between packages.  Each file is replayed against a cache of the most
+ * recently used processes, as the process limit would keep them, with and
+ * without the predicted packages also kept ready, reporting the prediction
+ * hit rate and how many cold starts the predictions save.
+ *
+ * Recorded files placed in {@link #TRACE_DIR} on the device are evaluated
+ * too, with results in the log.
+ */
+public class LaunchPredictorTest extends AndroidTestCase {
+    private static final String TAG = "LaunchPredictorTest";
+
+    static final String TRACE_DIR = "/data/local/tmp/usage-traces";
+
+    // Processes the LRU cache keeps; that of a low memory device.
+    static final int CACHED = 4;
+    // Predictions acted on per launch, as with the default pool size.
+    static final int PREDICTED = 2;
+
+    static final class Launch {
+        final int hour;
+        final String packageName;
+
+        Launch(int hour, String packageName) {
+            this.hour = hour;
+            this.packageName = packageName;
+        }
+    }
+
+    static final class Result {
+        int launches;
+        int hits;
+        int coldBaseline;
+        int coldPredicted;
+
+        float hitRate() {
+            return launches > 0 ? (float) hits / launches : 0;
+        }
+
+        float coldReduction() {
+            return coldBaseline > 0 ? 1f - (float) coldPredicted / coldBaseline : 0;
+        }
+
+        @Override
+        public String toString() {
+            return launches + " launches, hit rate " + (int) (hitRate() * 100)
+                    + "%, cold starts " + coldBaseline + " -> " + coldPredicted
+                    + " (" + (int) (coldReduction() * 100) + "% fewer)";
+        }
+    }
+
+    static Result evaluate(ArrayList<Launch> launches) {
+        final LaunchPredictor predictor = new LaunchPredictor();
+        final ArrayList<String> lru = new ArrayList<String>();
+        ArrayList<String> predicted = new ArrayList<String>();
+        final Result result = new Result();
+        for (int i = 0; i < launches.size(); i++) {
+            final Launch launch = launches.get(i);
+            final boolean cached = lru.contains(launch.packageName);
+            final boolean hit = predicted.contains(launch.packageName);
+            result.launches++;
+            if (hit) {
+                result.hits++;
+            }
+            if (!cached) {
+                result.coldBaseline++;
+                if (!hit) {
+                    result.coldPredicted++;
+                }
+            }
+
+            lru.remove(launch.packageName);
+            lru.add(0, launch.packageName);
+            while (lru.size() > CACHED) {
+                lru.remove(lru.size() - 1);
+            }
+            predictor.noteLaunch(launch.packageName, launch.hour);
+            predicted = predictor.predict(launch.hour, PREDICTED);
+        }
+        return result;
+    }
+
+    static ArrayList<Launch> readTrace(File file) throws IOException {
+        final ArrayList<Launch> launches = new ArrayList<Launch>();
+        final BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\\s+");
+                launches.add(new Launch(Integer.parseInt(fields[0]), fields[1]));
+            }
+        } finally {
+            in.close();
+        }
+        return launches;
+    }
+
+    /**
+     * Two weeks of a simulated user: mail then news in the morning, a
+     * messaging app that follows the camera, music on the commute, and
+     * about a third of launches spread over a dozen other apps.
+     */
+    static ArrayList<Launch> syntheticTrace() {
+        final Random random = new Random(42);
+        final ArrayList<Launch> launches = new ArrayList<Launch>();
+        for (int day = 0; day < 14; day++) {
+            for (int hour = 7; hour < 23; hour++) {
+                if (hour == 7) {
+                    launches.add(new Launch(hour, "com.example.mail"));
+                    launches.add(new Launch(hour, "com.example.news"));
+                }
+                if (hour == 8 || hour == 18) {
+                    launches.add(new Launch(hour, "com.example.music"));
+                }
+                final int n = 2 + random.nextInt(4);
+                for (int i = 0; i < n; i++) {
+                    final int r = random.nextInt(10);
+                    if (r < 2) {
+                        launches.add(new Launch(hour, "com.example.camera"));
+                        launches.add(new Launch(hour, "com.example.chat"));
+                    } else if (r < 4) {
+                        launches.add(new Launch(hour, "com.example.browser"));
+                    } else if (r < 6) {
+                        launches.add(new Launch(hour, "com.example.chat"));
+                    } else {
+                        launches.add(new Launch(hour, "com.example.app" + random.nextInt(12)));
+                    }
+                }
+            }
+        }
+        return launches;
+    }
+
+    public void testSyntheticTrace() {
+        final Result result = evaluate(syntheticTrace());
+        Log.i(TAG, "synthetic: " + result);
+        assertTrue(result.toString(), result.hitRate() > 0.3f);
+        assertTrue(result.toString(), result.coldPredicted < result.coldBaseline);
+    }
+
+    public void testRecordedTraces() throws IOException {
+        final File[] files = new File(TRACE_DIR).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final Result result = evaluate(readTrace(file));
+            Log.i(TAG, file.getName() + ": " + result);
+            assertTrue(result.coldPredicted <= result.coldBaseline);
+        }
+    }
+
+    public void testTransitionsFollowChangedHabit() {
+        final LaunchPredictor predictor = new LaunchPredictor();
+        for (int i = 0; i < 10; i++) {
+            predictor.noteLaunch("a", 12);
+            predictor.noteLaunch("b", 12);
+        }
+        for (int i = 0; i < 20; i++) {
+            predictor.noteLaunch("a", 12);
+            predictor.noteLaunch("c", 12);
+        }
+        predictor.noteLaunch("a", 12);
+        assertEquals("c", predictor.predict(12, 1).get(0));
+    }
+
+    public void testRemovedPackageIsNotPredicted() {
+        final LaunchPredictor predictor = new LaunchPredictor();
+        predictor.noteLaunch("a", 9);
+        predictor.noteLaunch("b", 9);
+        predictor.noteLaunch("a", 9);
+        predictor.removePackage("b");
+        assertTrue(predictor.predict(9, 5).isEmpty());
+    }
+
+    public void testTrackedPackagesAreBounded() {
+        final LaunchPredictor predictor = new LaunchPredictor();
+        for (int i = 0; i < LaunchPredictor.MAX_PACKAGES * 2; i++) {
+            predictor.noteLaunch("p" + i, i % LaunchPredictor.HOURS);
+        }
+        final ArrayList<String> all = predictor.predict(0, LaunchPredictor.MAX_PACKAGES * 2);
+        assertEquals(LaunchPredictor.MAX_PACKAGES - 1, all.size());
+        assertFalse(all.contains("p0"));
+    }
+}
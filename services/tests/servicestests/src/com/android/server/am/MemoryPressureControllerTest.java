@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Replays memory traces through {@link MemoryPressureController}.  Each
+ * trace line is "uptimeMs availKb pgscanKswapd pgscanDirect", with the scan
+ * counters cumulative as in /proc/vmstat; such lines can be recorded on a
+ * device with a loop over /proc/meminfo and /proc/vmstat.
+ */
+public class MemoryPressureControllerTest extends AndroidTestCase {
+    private static final String TAG = "MemoryPressureControllerTest";
+
+    // Cached-app kill level of a 512MB device, in kB.
+    private static final long KILL_LEVEL_512MB = 32768;
+    // And of a 2GB device.
+    private static final long KILL_LEVEL_2GB = 81920;
+
+    /** 512MB device: a burst of cold starts, then the user goes idle. */
+    private static final String[] TRACE_512MB_LAUNCH_STORM = {
+        "0      120000  1000   0",
+        "5000   110000  1000   0",
+        "10000  70000   4000   0",
+        "15000  60000   20000  0",
+        "20000  38000   45000  120",
+        "25000  36000   70000  400",
+        "30000  45000   80000  400",
+        "35000  52000   82000  400",
+        "40000  70000   82000  400",
+        "45000  100000  82000  400",
+        "50000  105000  82000  400",
+        "55000  110000  82000  400",
+        "60000  112000  82000  400",
+        "65000  112000  82000  400",
+        "70000  115000  82000  400",
+        "75000  115000  82000  400",
+        "80000  118000  82000  400",
+        "85000  118000  82000  400",
+        "90000  120000  82000  400",
+    };
+
+    /** 2GB device with plenty of memory to spare throughout. */
+    private static final String[] TRACE_2GB_IDLE = {
+        "0      900000  0      0",
+        "5000   880000  0      0",
+        "10000  870000  0      0",
+        "15000  860000  0      0",
+        "20000  855000  0      0",
+        "25000  850000  0      0",
+    };
+
+    private static class Result {
+        int minLimit = Integer.MAX_VALUE;
+        int maxLimit = Integer.MIN_VALUE;
+        int maxLevel;
+        int changes;
+        int finalLimit;
+    }
+
+    private static Result replay(MemoryPressureController controller, String[] trace) {
+        final Result result = new Result();
+        int last = controller.getProcessLimit();
+        for (String line : trace) {
+            final String[] fields = line.trim().split("\\s+");
+            controller.onSample(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+            final int limit = controller.getProcessLimit();
+            if (limit != last) {
+                result.changes++;
+                last = limit;
+            }
+            result.minLimit = Math.min(result.minLimit, limit);
+            result.maxLimit = Math.max(result.maxLimit, limit);
+            result.maxLevel = Math.max(result.maxLevel, controller.getLevel());
+        }
+        result.finalLimit = last;
+        return result;
+    }
+
+    public void testLaunchStormShrinksAndRecovers() {
+        final MemoryPressureController controller
+                = new MemoryPressureController(6, 24, KILL_LEVEL_512MB);
+        final Result result = replay(controller, TRACE_512MB_LAUNCH_STORM);
+        Log.i(TAG, "512MB launch storm: limit " + result.minLimit + ".." + result.maxLimit
+                + ", " + result.changes + " changes, final " + result.finalLimit);
+        assertEquals(MemoryPressureController.LEVEL_CRITICAL, result.maxLevel);
+        assertTrue(result.minLimit < 24);
+        assertTrue(result.minLimit >= 6);
+        assertTrue(result.finalLimit > result.minLimit);
+        assertTrue(result.finalLimit <= 24);
+        // Growing back happens one step at a time, not every sample.
+        assertTrue(result.changes < TRACE_512MB_LAUNCH_STORM.length);
+    }
+
+    public void testPlentyOfMemoryKeepsMaximum() {
+        final MemoryPressureController controller
+                = new MemoryPressureController(8, 24, KILL_LEVEL_2GB);
+        final Result result = replay(controller, TRACE_2GB_IDLE);
+        assertEquals(24, result.minLimit);
+        assertEquals(0, result.changes);
+        assertEquals(MemoryPressureController.LEVEL_NORMAL, result.maxLevel);
+        assertEquals(ProcessList.TRIM_HIDDEN_APPS, controller.getTrimHiddenApps());
+    }
+
+    public void testStrayDirectScansAreNotCritical() {
+        final MemoryPressureController controller
+                = new MemoryPressureController(6, 24, KILL_LEVEL_512MB);
+        long direct = 0;
+        for (int i = 0; i < 20; i++) {
+            // A few pages of direct reclaim now and then, plenty free.
+            direct += (i % 3 == 0) ? 1 : 0;
+            controller.onSample(i * 5000, 200000, 0, direct);
+            assertTrue(controller.getLevel() != MemoryPressureController.LEVEL_CRITICAL);
+        }
+        assertEquals(24, controller.getProcessLimit());
+    }
+
+    public void testDirectReclaimHysteresis() {
+        final MemoryPressureController controller
+                = new MemoryPressureController(6, 24, KILL_LEVEL_512MB);
+        long direct = 0;
+        long now = 0;
+        controller.onSample(now, 200000, 0, direct);
+        // 1000 pages/s is critical: the limit is cut by a quarter once.
+        now += 5000;
+        direct += 5000;
+        controller.onSample(now, 200000, 0, direct);
+        assertEquals(MemoryPressureController.LEVEL_CRITICAL, controller.getLevel());
+        assertEquals(18, controller.getProcessLimit());
+        // 200 pages/s keeps it critical, cutting a process at a time.
+        now += 5000;
+        direct += 1000;
+        controller.onSample(now, 200000, 0, direct);
+        assertEquals(MemoryPressureController.LEVEL_CRITICAL, controller.getLevel());
+        assertEquals(17, controller.getProcessLimit());
+        // 50 pages/s ends it.
+        now += 5000;
+        direct += 250;
+        controller.onSample(now, 200000, 0, direct);
+        assertEquals(MemoryPressureController.LEVEL_NORMAL, controller.getLevel());
+        // And 200 pages/s does not start it again.
+        now += 5000;
+        direct += 1000;
+        controller.onSample(now, 200000, 0, direct);
+        assertEquals(MemoryPressureController.LEVEL_NORMAL, controller.getLevel());
+    }
+
+    public void testLimitNeverLeavesBounds() {
+        final MemoryPressureController controller
+                = new MemoryPressureController(4, 10, KILL_LEVEL_512MB);
+        long scans = 0;
+        for (int i = 0; i < 50; i++) {
+            scans += 1000;
+            controller.onSample(i * 5000, 1000, scans, scans);
+            assertTrue(controller.getProcessLimit() >= 4);
+        }
+        assertEquals(4, controller.getProcessLimit());
+        assertTrue(controller.getTrimCriticalThreshold()
+                > ProcessList.TRIM_CRITICAL_THRESHOLD);
+        for (int i = 50; i < 200; i++) {
+            controller.onSample(i * 5000, 1000000, scans, scans);
+            assertTrue(controller.getProcessLimit() <= 10);
+        }
+        assertEquals(10, controller.getProcessLimit());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.pm.ApplicationInfo;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that {@link ProcessLruList} behaves like the ArrayList it replaced,
+ * and compares the two under the kind of churn the activity manager puts the
+ * LRU list through.
+ */
+public class ProcessLruListTest extends AndroidTestCase {
+    private static final String TAG = "ProcessLruListTest";
+
+    private static final int PROCESS_COUNT = 150;
+    private static final int ITERATIONS = 20000;
+
+    private static ProcessRecord[] createProcesses(int count) {
+        final ProcessRecord[] procs = new ProcessRecord[count];
+        for (int i = 0; i < count; i++) {
+            final ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.uid = Process.FIRST_APPLICATION_UID + i;
+            procs[i] = new ProcessRecord(null, null, info, info.packageName, info.uid);
+        }
+        return procs;
+    }
+
+    private static void assertSameOrder(ArrayList<ProcessRecord> expected,
+            ProcessLruList actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i));
+            assertEquals(i, actual.indexOf(expected.get(i)));
+        }
+        // The links must agree with the index.
+        ProcessRecord app = actual.getLeastRecent();
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), app);
+            app = app.lruNext;
+        }
+        assertNull(app);
+    }
+
+    public void testMatchesArrayList() {
+        final ProcessRecord[] procs = createProcesses(40);
+        final ArrayList<ProcessRecord> expected = new ArrayList<ProcessRecord>();
+        final ProcessLruList actual = new ProcessLruList();
+        final Random random = new Random(0);
+
+        for (int n = 0; n < 2000; n++) {
+            final ProcessRecord app = procs[random.nextInt(procs.length)];
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(expected.remove(app), actual.remove(app));
+                    break;
+                case 1:
+                    expected.remove(app);
+                    expected.add(app);
+                    actual.moveToMostRecent(app);
+                    break;
+                default: {
+                    expected.remove(app);
+                    actual.remove(app);
+                    final int pos = random.nextInt(expected.size() + 1);
+                    expected.add(pos, app);
+                    actual.add(pos, app);
+                    break;
+                }
+            }
+            assertEquals(expected.contains(app), actual.contains(app));
+            if (n % 16 == 0) {
+                assertSameOrder(expected, actual);
+            }
+        }
+        assertSameOrder(expected, actual);
+
+        actual.clear();
+        assertEquals(0, actual.size());
+        for (ProcessRecord app : procs) {
+            assertFalse(actual.contains(app));
+            assertEquals(-1, actual.indexOf(app));
+        }
+    }
+
+    public void testInsertAfter() {
+        final ProcessRecord[] procs = createProcesses(3);
+        final ProcessLruList list = new ProcessLruList();
+        list.insertAfter(null, procs[0]);
+        list.insertAfter(procs[0], procs[2]);
+        list.insertAfter(procs[0], procs[1]);
+        assertSame(procs[0], list.get(0));
+        assertSame(procs[1], list.get(1));
+        assertSame(procs[2], list.get(2));
+        assertSame(procs[2], list.getMostRecent());
+
+        try {
+            list.insertAfter(null, procs[1]);
+            fail("inserted a process twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Each step moves one process to (near) the front and then walks the
+     * list from the back, as updateOomAdjLocked does after an LRU update.
+     */
+    public void testBenchmarkChurn() {
+        final ProcessRecord[] procs = createProcesses(PROCESS_COUNT);
+        final int[] picks = new int[ITERATIONS];
+        final Random random = new Random(0);
+        for (int i = 0; i < ITERATIONS; i++) {
+            // Favour a small set of frequently used processes.
+            picks[i] = PROCESS_COUNT - 1 - Math.min(PROCESS_COUNT - 1,
+                    (int) Math.abs(random.nextGaussian() * PROCESS_COUNT / 4));
+        }
+
+        final ArrayList<ProcessRecord> array = new ArrayList<ProcessRecord>();
+        final ProcessLruList list = new ProcessLruList();
+        final ProcessRecord[] listProcs = createProcesses(PROCESS_COUNT);
+        for (int i = 0; i < PROCESS_COUNT; i++) {
+            array.add(procs[i]);
+            list.add(listProcs[i]);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        long sum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ProcessRecord app = procs[picks[i]];
+            final int index = array.indexOf(app);
+            array.remove(index);
+            array.add(app);
+            if (i % 8 == 0) {
+                for (int j = array.size() - 1; j >= 0; j--) {
+                    sum += array.get(j).pid;
+                }
+            }
+        }
+        final long arrayTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ProcessRecord app = listProcs[picks[i]];
+            list.moveToMostRecent(app);
+            if (i % 8 == 0) {
+                for (int j = list.size() - 1; j >= 0; j--) {
+                    sum += list.get(j).pid;
+                }
+            }
+        }
+        final long listTime = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(0, sum);
+        Log.i(TAG, ITERATIONS + " LRU updates over " + PROCESS_COUNT + " processes: "
+                + "ArrayList " + arrayTime + "ms, ProcessLruList " + listTime + "ms, "
+                + list.getIndexRebuildCount() + " index rebuilds");
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ProcessStateWriterTest extends AndroidTestCase {
+    private static final int BLOCKING_PID = 100;
+    private static final int TIMEOUT_SECONDS = 5;
+
+    /**
+     * Records writes instead of making them, and holds the writer thread
+     * inside the write for {@link #BLOCKING_PID} until released.
+     */
+    private static final class RecordingSink implements ProcessStateWriter.Sink {
+        final ArrayList<Integer> mWrittenPids = new ArrayList<Integer>();
+        final CountDownLatch mBlocked = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        CountDownLatch mWritten;
+        int mWaitForPid;
+
+        @Override
+        public boolean setOomAdj(int pid, int adj) {
+            if (pid == BLOCKING_PID) {
+                mBlocked.countDown();
+                try {
+                    mRelease.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+            synchronized (this) {
+                mWrittenPids.add(pid);
+                if (pid == mWaitForPid && mWritten != null) {
+                    mWritten.countDown();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean setProcessGroup(int pid, int schedGroup) {
+            return setOomAdj(pid, 0);
+        }
+
+        synchronized CountDownLatch expect(int pid) {
+            mWaitForPid = pid;
+            mWritten = new CountDownLatch(1);
+            return mWritten;
+        }
+
+        synchronized boolean wrote(int pid) {
+            return mWrittenPids.contains(pid);
+        }
+    }
+
+    public void testCancelDropsQueuedUpdate() throws Exception {
+        final RecordingSink sink = new RecordingSink();
+        final ProcessStateWriter writer = new ProcessStateWriter(true, sink);
+        writer.start();
+        writer.setOomAdj(BLOCKING_PID, 1);
+        assertTrue(sink.mBlocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Queued behind the blocked batch, then cancelled.
+        writer.setOomAdj(200, 2);
+        writer.cancel(200);
+        final CountDownLatch written = sink.expect(300);
+        writer.setOomAdj(300, 3);
+        sink.mRelease.countDown();
+        assertTrue(written.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(sink.wrote(200));
+        assertFalse(writer.takeStalePid(200));
+    }
+
+    public void testCancelDropsUpdateInBatchBeingWritten() throws Exception {
+        final RecordingSink sink = new RecordingSink();
+        final ProcessStateWriter writer = new ProcessStateWriter(true, sink);
+        // Queued before the writer starts, so both land in its first batch.
+        writer.setOomAdj(BLOCKING_PID, 1);
+        writer.setOomAdj(200, 2);
+        writer.setProcessGroup(200, 0);
+        writer.start();
+        assertTrue(sink.mBlocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // pid 200 has already been taken off the queue; it must not be
+        // written once the writer gets to it.
+        writer.cancel(200);
+        final CountDownLatch written = sink.expect(300);
+        writer.setOomAdj(300, 3);
+        sink.mRelease.countDown();
+        assertTrue(written.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(sink.wrote(BLOCKING_PID));
+        assertFalse(sink.wrote(200));
+        assertFalse(writer.takeStalePid(200));
+    }
+
+    public void testCancelDuringWriteMarksPidStale() throws Exception {
+        final RecordingSink sink = new RecordingSink();
+        final ProcessStateWriter writer = new ProcessStateWriter(true, sink);
+        writer.start();
+        writer.setOomAdj(BLOCKING_PID, 1);
+        assertTrue(sink.mBlocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Returns without waiting for the blocked write.
+        writer.cancel(BLOCKING_PID);
+        assertTrue(writer.takeStalePid(BLOCKING_PID));
+        assertFalse(writer.takeStalePid(BLOCKING_PID));
+
+        // What a new process with the same pid queues is written after.
+        final CountDownLatch written = sink.expect(BLOCKING_PID);
+        sink.mRelease.countDown();
+        assertTrue(written.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final CountDownLatch rewritten = sink.expect(BLOCKING_PID);
+        writer.setOomAdj(BLOCKING_PID, 2);
+        assertTrue(rewritten.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+public class UsageStatsJournalTest extends AndroidTestCase {
+    private File mFile;
+
+    private static class Recorder implements UsageStatsJournal.Replayer {
+        final ArrayList<String> events = new ArrayList<String>();
+
+        @Override
+        public void onResume(String pkg, String comp, long wallTime, boolean newPackage,
+                boolean newComponent) {
+            events.add("resume " + pkg + "/" + comp + " " + wallTime + " " + newPackage
+                    + " " + newComponent);
+        }
+
+        @Override
+        public void onPause(String pkg, long usageTime) {
+            events.add("pause " + pkg + " " + usageTime);
+        }
+
+        @Override
+        public void onLaunchTime(String pkg, String comp, int millis) {
+            events.add("launch " + pkg + "/" + comp + " " + millis);
+        }
+
+        @Override
+        public void onRemoved(String pkg) {
+            events.add("removed " + pkg);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "journal");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testAppendAndReplay() throws IOException {
+        final UsageStatsJournal journal = new UsageStatsJournal(mFile);
+        journal.startGeneration("usage-20130801", 3);
+        journal.noteResume("com.example", ".Main", 1000, true, true);
+        journal.notePause("com.example", 250);
+        journal.flush();
+        journal.noteLaunchTime("com.example", ".Main", 400);
+        journal.noteRemoved("com.other");
+        journal.flush();
+
+        final UsageStatsJournal.Header header = UsageStatsJournal.readHeader(mFile);
+        assertEquals("usage-20130801", header.day);
+        assertEquals(3, header.generation);
+
+        final Recorder recorder = new Recorder();
+        final UsageStatsJournal.Replayed replayed = UsageStatsJournal.replay(mFile, recorder);
+        assertEquals(4, recorder.events.size());
+        assertEquals("resume com.example/.Main 1000 true true", recorder.events.get(0));
+        assertEquals("pause com.example 250", recorder.events.get(1));
+        assertEquals("launch com.example/.Main 400", recorder.events.get(2));
+        assertEquals("removed com.other", recorder.events.get(3));
+        assertEquals(mFile.length(), replayed.length);
+        assertEquals(3, replayed.nameIds.size());
+    }
+
+    public void testResumedLogReusesNamesAndDropsTornRecord() throws IOException {
+        UsageStatsJournal journal = new UsageStatsJournal(mFile);
+        journal.startGeneration("usage-20130801", 0);
+        journal.noteResume("com.example", ".Main", 1000, true, true);
+        journal.notePause("com.example", 100);
+        journal.flush();
+
+        // A crash part way through the last record.
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        journal = new UsageStatsJournal(mFile);
+        Recorder recorder = new Recorder();
+        journal.resume(UsageStatsJournal.replay(mFile, recorder));
+        assertEquals(1, recorder.events.size());
+
+        final long before = mFile.length();
+        journal.notePause("com.example", 200);
+        journal.flush();
+        // Only the pause record; the package name is already defined.
+        assertEquals(1 + 4 + 8, mFile.length() - before);
+
+        recorder = new Recorder();
+        UsageStatsJournal.replay(mFile, recorder);
+        assertEquals(2, recorder.events.size());
+        assertEquals("pause com.example 200", recorder.events.get(1));
+    }
+
+    public void testNewGenerationReplacesFile() throws IOException {
+        final UsageStatsJournal journal = new UsageStatsJournal(mFile);
+        journal.startGeneration("usage-20130801", 1);
+        journal.noteResume("com.example", ".Main", 1000, true, true);
+        journal.flush();
+        journal.noteResume("com.example", ".Other", 2000, false, true);
+        journal.startGeneration("usage-20130802", 0);
+        journal.flush();
+
+        assertEquals("usage-20130802", UsageStatsJournal.readHeader(mFile).day);
+        final Recorder recorder = new Recorder();
+        UsageStatsJournal.replay(mFile, recorder);
+        assertEquals(0, recorder.events.size());
+        assertEquals(mFile.length(), journal.getSize());
+    }
+}
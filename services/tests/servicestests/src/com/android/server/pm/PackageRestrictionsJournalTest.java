@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import android.content.pm.PackageUserState;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+import libcore.io.Libcore;
+
+public class PackageRestrictionsJournalTest extends AndroidTestCase {
+    private static final String TAG = "PackageRestrictionsJournalTest";
+
+    private static final int PACKAGE_COUNT = 300;
+    private static final int CHANGES = 100;
+
+    private File mJournalFile;
+    private File mXmlFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournalFile = new File(getContext().getCacheDir(), "package-restrictions.jnl");
+        mXmlFile = new File(getContext().getCacheDir(), "package-restrictions.xml");
+        mJournalFile.delete();
+        mXmlFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournalFile.delete();
+        mXmlFile.delete();
+        super.tearDown();
+    }
+
+    private static HashMap<String, PackageSetting> createPackages() {
+        final HashMap<String, PackageSetting> packages = new HashMap<String, PackageSetting>();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final String name = "com.example.app" + i;
+            final PackageSetting ps = new PackageSetting(name, name,
+                    new File("/data/app/" + name + ".apk"),
+                    new File("/data/app/" + name + ".apk"),
+                    "/data/app-lib/" + name, 1, 0);
+            if (i % 3 == 0) {
+                ps.addDisabledComponent(name + ".Receiver", 0);
+            }
+            packages.put(name, ps);
+        }
+        return packages;
+    }
+
+    public void testReplayRestoresState() {
+        final HashMap<String, PackageSetting> packages = createPackages();
+        final PackageSetting ps = packages.get("com.example.app1");
+        ps.setEnabled(COMPONENT_ENABLED_STATE_DISABLED, 0);
+        ps.setStopped(true, 0);
+        ps.disableComponentLPw("com.example.app1.Activity", 0);
+
+        final PackageRestrictionsJournal journal = new PackageRestrictionsJournal(mJournalFile);
+        assertTrue(journal.append(ps.name, ps.readUserState(0)));
+        assertTrue(journal.append("com.example.removed", new PackageUserState()));
+        assertEquals(2, journal.getRecordCount());
+
+        final HashMap<String, PackageSetting> fresh = createPackages();
+        final PackageRestrictionsJournal reader = new PackageRestrictionsJournal(mJournalFile);
+        assertEquals(2, reader.replay(fresh, 0));
+
+        final PackageSetting restored = fresh.get("com.example.app1");
+        assertEquals(COMPONENT_ENABLED_STATE_DISABLED, restored.getEnabled(0));
+        assertTrue(restored.getStopped(0));
+        assertTrue(restored.getDisabledComponents(0).contains("com.example.app1.Activity"));
+        assertEquals(COMPONENT_ENABLED_STATE_DEFAULT, fresh.get("com.example.app2").getEnabled(0));
+    }
+
+    public void testTornRecordIsDropped() throws Exception {
+        final HashMap<String, PackageSetting> packages = createPackages();
+        final PackageRestrictionsJournal journal = new PackageRestrictionsJournal(mJournalFile);
+        final PackageSetting ps = packages.get("com.example.app4");
+        ps.setStopped(true, 0);
+        assertTrue(journal.append(ps.name, ps.readUserState(0)));
+        final long goodLength = mJournalFile.length();
+        ps.setStopped(false, 0);
+        assertTrue(journal.append(ps.name, ps.readUserState(0)));
+
+        // Simulate a crash half way through the second record.
+        final RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+        raf.setLength(goodLength + 6);
+        raf.close();
+
+        final HashMap<String, PackageSetting> fresh = createPackages();
+        final PackageRestrictionsJournal reader = new PackageRestrictionsJournal(mJournalFile);
+        assertEquals(1, reader.replay(fresh, 0));
+        assertTrue(fresh.get("com.example.app4").getStopped(0));
+        assertEquals(goodLength, mJournalFile.length());
+
+        // Appends after recovery must be readable again.
+        assertTrue(reader.append(ps.name, ps.readUserState(0)));
+        assertEquals(2, new PackageRestrictionsJournal(mJournalFile).replay(fresh, 0));
+        assertFalse(fresh.get("com.example.app4").getStopped(0));
+    }
+
+    public void testResetDiscardsRecords() {
+        final HashMap<String, PackageSetting> packages = createPackages();
+        final PackageRestrictionsJournal journal = new PackageRestrictionsJournal(mJournalFile);
+        for (int i = 0; i < PackageRestrictionsJournal.MAX_RECORDS; i++) {
+            assertTrue(journal.append("com.example.app0", packages.get("com.example.app0")
+                    .readUserState(0)));
+        }
+        assertTrue(journal.needsCompaction());
+        journal.reset();
+        assertFalse(journal.needsCompaction());
+        assertFalse(mJournalFile.exists());
+    }
+
+    public void testJournalIsNotWorldReadable() throws Exception {
+        final HashMap<String, PackageSetting> packages = createPackages();
+        final PackageRestrictionsJournal journal = new PackageRestrictionsJournal(mJournalFile);
+        final PackageUserState state = packages.get("com.example.app0").readUserState(0);
+        assertTrue(journal.append("com.example.app0", state));
+        assertEquals(0660, Libcore.os.stat(mJournalFile.getPath()).st_mode & 0777);
+
+        // A journal recreated after compaction gets the same mode.
+        journal.reset();
+        assertTrue(journal.append("com.example.app0", state));
+        assertEquals(0660, Libcore.os.stat(mJournalFile.getPath()).st_mode & 0777);
+    }
+
+    /**
+     * Rough equivalent of Settings.writePackageRestrictionsLPr, used as the
+     * baseline for the benchmark below.
+     */
+    private void writeXml(HashMap<String, PackageSetting> packages) throws Exception {
+        final FileOutputStream fstr = new FileOutputStream(mXmlFile);
+        final BufferedOutputStream str = new BufferedOutputStream(fstr);
+        final XmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(str, "utf-8");
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "package-restrictions");
+        for (PackageSetting ps : packages.values()) {
+            final PackageUserState state = ps.readUserState(0);
+            serializer.startTag(null, "pkg");
+            serializer.attribute(null, "name", ps.name);
+            serializer.attribute(null, "enabled", Integer.toString(state.enabled));
+            if (state.disabledComponents != null) {
+                serializer.startTag(null, "disabled-components");
+                for (String name : state.disabledComponents) {
+                    serializer.startTag(null, "item");
+                    serializer.attribute(null, "name", name);
+                    serializer.endTag(null, "item");
+                }
+                serializer.endTag(null, "disabled-components");
+            }
+            serializer.endTag(null, "pkg");
+        }
+        serializer.endTag(null, "package-restrictions");
+        serializer.endDocument();
+        str.flush();
+        FileUtils.sync(fstr);
+        str.close();
+    }
+
+    private void readXml() throws Exception {
+        final FileInputStream str = new FileInputStream(mXmlFile);
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(str, null);
+        while (parser.next() != XmlPullParser.END_DOCUMENT) {
+            if (parser.getEventType() == XmlPullParser.START_TAG) {
+                parser.getAttributeValue(null, "name");
+            }
+        }
+        str.close();
+    }
+
+    public void testBenchmarkAgainstXml() throws Exception {
+        final HashMap<String, PackageSetting> packages = createPackages();
+        final PackageRestrictionsJournal journal = new PackageRestrictionsJournal(mJournalFile);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < CHANGES; i++) {
+            final PackageSetting ps = packages.get("com.example.app" + (i % PACKAGE_COUNT));
+            ps.disableComponentLPw(ps.name + ".Service" + i, 0);
+            writeXml(packages);
+        }
+        final long xmlWrite = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < CHANGES; i++) {
+            final PackageSetting ps = packages.get("com.example.app" + (i % PACKAGE_COUNT));
+            ps.enableComponentLPw(ps.name + ".Service" + i, 0);
+            assertTrue(journal.append(ps.name, ps.readUserState(0)));
+        }
+        final long journalWrite = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        readXml();
+        final long xmlRead = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        assertEquals(CHANGES, new PackageRestrictionsJournal(mJournalFile).replay(
+                createPackages(), 0));
+        final long journalRead = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, CHANGES + " changes over " + PACKAGE_COUNT + " packages: "
+                + "xml write " + xmlWrite + "ms, journal write " + journalWrite + "ms; "
+                + "xml read " + xmlRead + "ms, journal replay " + journalRead + "ms");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageParser;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks that parsing the system apps on a worker pool produces the same
+ * packages, in the same order, as parsing them one at a time.
+ */
+@LargeTest
+public class ParallelPackageParserTest extends AndroidTestCase {
+    private static final String TAG = "ParallelPackageParserTest";
+
+    private static final int THREADS = 4;
+
+    private File[] getSystemApks() {
+        final File appDir = new File(Environment.getRootDirectory(), "app");
+        final String[] names = appDir.list();
+        assertNotNull(names);
+        Arrays.sort(names, String.CASE_INSENSITIVE_ORDER);
+        final ArrayList<File> apks = new ArrayList<File>();
+        for (String name : names) {
+            if (name.endsWith(".apk")) {
+                apks.add(new File(appDir, name));
+            }
+        }
+        return apks.toArray(new File[apks.size()]);
+    }
+
+    private PackageParser.Package parseSerially(File file, DisplayMetrics metrics, int flags) {
+        final PackageParser pp = new PackageParser(file.getPath());
+        return pp.parsePackage(file, file.getPath(), metrics, flags);
+    }
+
+    private static void assertSamePackage(PackageParser.Package expected,
+            PackageParser.Package actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.packageName, actual.packageName);
+        assertEquals(expected.mVersionCode, actual.mVersionCode);
+        assertEquals(expected.mSharedUserId, actual.mSharedUserId);
+        assertEquals(expected.mScanPath, actual.mScanPath);
+        assertEquals(expected.activities.size(), actual.activities.size());
+        assertEquals(expected.receivers.size(), actual.receivers.size());
+        assertEquals(expected.services.size(), actual.services.size());
+        assertEquals(expected.providers.size(), actual.providers.size());
+        assertEquals(expected.permissions.size(), actual.permissions.size());
+        assertEquals(expected.requestedPermissions, actual.requestedPermissions);
+        for (int i = 0; i < expected.activities.size(); i++) {
+            assertEquals(expected.activities.get(i).className,
+                    actual.activities.get(i).className);
+            assertEquals(expected.activities.get(i).intents.size(),
+                    actual.activities.get(i).intents.size());
+        }
+    }
+
+    public void testParallelParseMatchesSerialParse() {
+        final File[] apks = getSystemApks();
+        final DisplayMetrics metrics = new DisplayMetrics();
+        metrics.setToDefaults();
+        final int flags = PackageParser.PARSE_IS_SYSTEM | PackageParser.PARSE_IS_SYSTEM_DIR
+                | PackageParser.PARSE_MUST_BE_APK;
+
+        final long serialStart = SystemClock.uptimeMillis();
+        final PackageParser.Package[] serial = new PackageParser.Package[apks.length];
+        for (int i = 0; i < apks.length; i++) {
+            serial[i] = parseSerially(apks[i], metrics, flags);
+        }
+        final long serialTime = SystemClock.uptimeMillis() - serialStart;
+
+        final ParallelPackageParser parser = new ParallelPackageParser(null, false, metrics,
+                THREADS);
+        final ParallelPackageParser.ParseResult[] parallel;
+        final long parallelStart = SystemClock.uptimeMillis();
+        try {
+            parallel = parser.parse(apks, flags);
+        } finally {
+            parser.shutdown();
+        }
+        final long parallelTime = SystemClock.uptimeMillis() - parallelStart;
+
+        Log.i(TAG, "Parsed " + apks.length + " apks: serial " + serialTime + "ms, "
+                + THREADS + " threads " + parallelTime + "ms");
+
+        assertEquals(apks.length, parallel.length);
+        for (int i = 0; i < apks.length; i++) {
+            assertEquals(apks[i], parallel[i].scanFile);
+            assertSamePackage(serial[i], parallel[i].pkg);
+        }
+    }
+
+    public void testParseErrorIsReported() throws Exception {
+        final File bogus = new File(getContext().getCacheDir(), "bogus.apk");
+        bogus.createNewFile();
+        final DisplayMetrics metrics = new DisplayMetrics();
+        metrics.setToDefaults();
+
+        final ParallelPackageParser parser = new ParallelPackageParser(null, false, metrics,
+                THREADS);
+        try {
+            final ParallelPackageParser.ParseResult[] results = parser.parse(
+                    new File[] { bogus }, PackageParser.PARSE_MUST_BE_APK);
+            assertNull(results[0].pkg);
+            assertTrue(results[0].parseError != 0);
+        } finally {
+            parser.shutdown();
+            bogus.delete();
+        }
+    }
+}